@@ -0,0 +1,232 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Interactive transfer latency while a batch job saturates the database.
+//
+// Builds a database from DatasetGenerator in a temporary directory. Interactive
+// threads issue the transferFunds statements with a short pause between
+// requests and take a slot with admitNow, as the event dispatch thread does;
+// batch threads run full scans of the transactions table back to back, as
+// the application's reconciliation and archiving runs do. Interactive work is
+// first measured alone. The batch load is then doubled, with an admission
+// controller that admits everything, until interactive p99 breaches the SLO
+// or the batch thread limit is reached, and the last load is measured again
+// with the configured budgets and SLO. Prints interactive latency
+// percentiles, rejections and failed transfers by cause, batch throughput
+// and the controller's queue metrics per phase, and exits with status 1 if
+// interactive p99 under admission control exceeds the SLO.
+//
+// Usage: java -cp ".;h2-2.1.214.jar" AdmissionControlBenchmark [interactive threads] [max batch threads] [phase seconds] [slo ms]
+public class AdmissionControlBenchmark {
+    private static final long SEED = 42;
+    private static final String BATCH_SQL =
+        "SELECT COUNT(*), SUM(amount) FROM transactions WHERE description LIKE ?";
+    
+    // Results of one phase
+    private static final class PhaseResult {
+        final List<Long> latencies = new ArrayList<>();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong batchOps = new AtomicLong();
+        // Rejections by reason and failures by SQL state or message
+        final Map<String, AtomicLong> causes = new ConcurrentHashMap<>();
+        
+        synchronized void add(long nanos) {
+            latencies.add(nanos);
+        }
+        
+        void count(AtomicLong counter, String cause) {
+            counter.incrementAndGet();
+            causes.computeIfAbsent(cause, k -> new AtomicLong()).incrementAndGet();
+        }
+        
+        synchronized double percentileMs(double percentile) {
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+            if (sorted.length == 0) {
+                return 0;
+            }
+            Arrays.sort(sorted);
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+            return sorted[Math.max(0, index)] / 1_000_000.0;
+        }
+        
+        synchronized int count() {
+            return latencies.size();
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int interactiveThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int maxBatchThreads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int phaseSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        long sloMillis = args.length > 3 ? Long.parseLong(args[3]) : 250;
+        int concurrency = Math.max(2, Runtime.getRuntime().availableProcessors());
+        
+        Path directory = Files.createTempDirectory("admission-benchmark");
+        String url = "jdbc:h2:" + directory.toAbsolutePath().resolve("bankingDB");
+        List<String[]> accounts = new ArrayList<>();
+        
+        try (Connection conn = DriverManager.getConnection(url, OnlineBankingSystem.DB_USER, OnlineBankingSystem.DB_PASSWORD)) {
+            SchemaMigrator migrator = new SchemaMigrator();
+            List<SchemaMigrator.Migration> deferred = migrator.migrate(conn);
+            
+            DatasetGenerator generator = new DatasetGenerator(SEED, 50_000, 1_000_000, 2, LocalDate.of(2026, 1, 1));
+            Path data = Files.createTempDirectory(directory, "data");
+            try {
+                generator.generate(data);
+                generator.load(conn, data);
+            } finally {
+                DatasetGenerator.delete(data);
+            }
+            // Transaction indexes built once over the loaded rows
+            migrator.applyDeferred(conn, deferred);
+            
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT user_id, account_number FROM accounts")) {
+                while (rs.next()) {
+                    accounts.add(new String[] { rs.getString("user_id"), rs.getString("account_number") });
+                }
+            }
+            
+            System.out.printf("%d interactive and up to %d batch threads, %d s per phase, concurrency %d, SLO %d ms%n",
+                              interactiveThreads, maxBatchThreads, phaseSeconds, concurrency, sloMillis);
+            System.out.printf("%-22s %9s %8s %7s %9s %9s %9s %10s%n", "phase", "transfers", "rejected", "failed",
+                              "p50 ms", "p99 ms", "max ms", "batch ops");
+            
+            AdmissionController admitAll = new AdmissionController(Integer.MAX_VALUE, Integer.MAX_VALUE - 1,
+                                                                   Integer.MAX_VALUE, Integer.MAX_VALUE,
+                                                                   Long.MAX_VALUE / 2_000_000, Long.MAX_VALUE / 2_000_000);
+            runPhase("interactive only", url, accounts, interactiveThreads, 0, phaseSeconds, admitAll);
+            
+            // Raise the batch load until admitting everything breaks the SLO
+            int batchThreads = 1;
+            while (true) {
+                PhaseResult uncontrolled = runPhase(batchThreads + " batch, admit all", url, accounts, interactiveThreads,
+                                                    batchThreads, phaseSeconds, admitAll);
+                if (uncontrolled.percentileMs(0.99) > sloMillis || batchThreads * 2 > maxBatchThreads) {
+                    break;
+                }
+                batchThreads *= 2;
+            }
+            
+            AdmissionController controller = new AdmissionController(concurrency, Math.max(1, concurrency / 4), 256, 64,
+                                                                     sloMillis, 30_000);
+            PhaseResult controlled = runPhase(batchThreads + " batch, admission", url, accounts, interactiveThreads,
+                                              batchThreads, phaseSeconds, controller);
+            
+            boolean bounded = controlled.percentileMs(0.99) <= sloMillis;
+            System.out.println(bounded ? "Interactive p99 stayed within the SLO under admission control"
+                                       : "Interactive p99 exceeded the SLO under admission control");
+            System.out.println("Benchmark files left in " + directory);
+            System.exit(bounded ? 0 : 1);
+        }
+    }
+    
+    private static PhaseResult runPhase(String name, String url, List<String[]> accounts, int interactiveThreads,
+                                        int batchThreads, int seconds, AdmissionController controller)
+            throws InterruptedException {
+        PhaseResult result = new PhaseResult();
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> threads = new ArrayList<>();
+        
+        for (int t = 0; t < interactiveThreads; t++) {
+            threads.add(new Thread(() -> interactiveLoop(url, accounts, controller, running, result), "interactive-" + t));
+        }
+        for (int t = 0; t < batchThreads; t++) {
+            threads.add(new Thread(() -> batchLoop(url, controller, running, result), "batch-" + t));
+        }
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        Thread.sleep(seconds * 1000L);
+        AdmissionController.QueueStats interactive = controller.getStats(AdmissionController.Priority.INTERACTIVE);
+        AdmissionController.QueueStats batch = controller.getStats(AdmissionController.Priority.BATCH);
+        // No interrupts: an interrupted H2 file operation closes the database
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        System.out.printf("%-22s %9d %8d %7d %9.2f %9.2f %9.2f %10d%n", name, result.count(), result.rejected.get(),
+                          result.failed.get(), result.percentileMs(0.50), result.percentileMs(0.99),
+                          result.percentileMs(1.0), result.batchOps.get());
+        if (!result.causes.isEmpty()) {
+            System.out.println("    not completed: " + new TreeMap<>(result.causes));
+        }
+        System.out.println("    " + interactive);
+        System.out.println("    " + batch);
+        return result;
+    }
+    
+    // Transfers with a pause between requests, like users at their screens
+    @SuppressWarnings("try")
+    private static void interactiveLoop(String url, List<String[]> accounts, AdmissionController controller,
+                                        AtomicBoolean running, PhaseResult result) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        
+        while (running.get()) {
+            String[] from = accounts.get(random.nextInt(accounts.size()));
+            String[] to = accounts.get(random.nextInt(accounts.size()));
+            
+            long start = System.nanoTime();
+            try (AdmissionController.Permit permit = controller.admitNow(AdmissionController.Priority.INTERACTIVE);
+                 Connection conn = DriverManager.getConnection(url, OnlineBankingSystem.DB_USER, OnlineBankingSystem.DB_PASSWORD)) {
+                conn.setAutoCommit(false);
+                try {
+                    BackupBenchmark.transfer(conn, Integer.parseInt(from[0]), from[1], to[1], 0.01);
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                }
+                result.add(System.nanoTime() - start);
+            } catch (AdmissionController.RejectedException e) {
+                result.count(result.rejected, "rejected " + e.getReason());
+            } catch (SQLException e) {
+                // The transfer's own refusals carry no SQL state
+                result.count(result.failed, "failed " + (e.getSQLState() != null ? e.getSQLState() : e.getMessage()));
+            }
+            
+            try {
+                Thread.sleep(5 + random.nextInt(20));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+    
+    // Full scans back to back, each admitted as batch work
+    @SuppressWarnings("try")
+    private static void batchLoop(String url, AdmissionController controller, AtomicBoolean running, PhaseResult result) {
+        while (running.get()) {
+            try (AdmissionController.Permit permit = controller.await(AdmissionController.Priority.BATCH);
+                 Connection conn = DriverManager.getConnection(url, OnlineBankingSystem.DB_USER, OnlineBankingSystem.DB_PASSWORD);
+                 PreparedStatement pstmt = conn.prepareStatement(BATCH_SQL)) {
+                pstmt.setString(1, "%" + ThreadLocalRandom.current().nextInt(1000) + "%");
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    rs.next();
+                }
+                result.batchOps.incrementAndGet();
+            } catch (InterruptedException e) {
+                return;
+            } catch (SQLException e) {
+                if (!running.get()) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,376 @@
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// Priority-aware admission control for work that needs a database connection.
+//
+// Interactive work (logins, registrations, postings) and batch work
+// (standing orders, hold expiry, archiving, interest accrual and
+// reconciliation, all run inside the application) each have a FIFO queue
+// and a concurrency budget. Interactive work may use every slot; batch
+// work is capped at its own smaller budget and is only admitted while no
+// interactive request is waiting, so a busy batch job can delay an
+// interactive request by at most the time it takes one batch operation to
+// finish.
+//
+// The latency of interactive work (queue wait plus execution) is tracked
+// over a sliding window. While its p99 exceeds the SLO the controller sheds
+// load: new batch work is rejected at once and queued batch work is held
+// back until it times out. Interactive requests are rejected at once when
+// their queue is full, or when the oldest queued request has already waited
+// longer than the SLO, since a new arrival would then miss it as well.
+// Rejections are RejectedException, an SQLException, so callers that report
+// database errors report these too without extra handling.
+//
+// The event dispatch thread must never park, so work started on it uses
+// admitNow, which grants a free slot or refuses at once instead of queueing.
+// Batch work never holds more than its own budget, so the slots above it
+// are only ever taken by interactive work.
+//
+// Per-queue depth, in-flight count and lifetime admissions and rejections
+// are available from getStats, with the average, p99 and longest wait over
+// the same sliding window.
+public class AdmissionController {
+    // Class of work; declaration order is scheduling priority
+    public enum Priority {
+        INTERACTIVE, BATCH
+    }
+    
+    // Interactive latency window and how often shedding is re-evaluated
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long EVALUATION_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int WINDOW_SAMPLES = 1024;
+    
+    // Fast refusal of a request that would otherwise wait too long
+    public static class RejectedException extends SQLException {
+        private static final long serialVersionUID = 1L;
+        
+        public enum Reason {
+            QUEUE_FULL, OVERLOADED, SHED, TIMEOUT, NO_SLOT
+        }
+        
+        private final Priority priority;
+        private final Reason reason;
+        private final long retryAfterMillis;
+        
+        RejectedException(Priority priority, Reason reason, long retryAfterMillis) {
+            super("Server busy (" + priority.name().toLowerCase() + " " + reason.name().toLowerCase().replace('_', ' ') +
+                  "), please try again shortly");
+            this.priority = priority;
+            this.reason = reason;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+        
+        public Priority getPriority() {
+            return priority;
+        }
+        
+        public Reason getReason() {
+            return reason;
+        }
+        
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+    }
+    
+    // An admitted operation; close it when the operation is finished. Callers hold it in a
+    // try-with-resources they never reference it in, and suppress the "try" lint for that.
+    public final class Permit implements AutoCloseable {
+        private final Priority priority;
+        private final long requestedAt;
+        private boolean closed;
+        
+        private Permit(Priority priority, long requestedAt) {
+            this.priority = priority;
+            this.requestedAt = requestedAt;
+        }
+        
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+    
+    // Point-in-time metrics of one queue: counts since start, waits over the last window
+    public static final class QueueStats {
+        public final Priority priority;
+        public final int depth;
+        public final int inFlight;
+        public final long admitted;
+        public final long rejected;
+        public final double avgWaitMillis;
+        public final double p99WaitMillis;
+        public final double maxWaitMillis;
+        
+        QueueStats(Priority priority, int depth, int inFlight, long admitted, long rejected, double avgWaitMillis,
+                   double p99WaitMillis, double maxWaitMillis) {
+            this.priority = priority;
+            this.depth = depth;
+            this.inFlight = inFlight;
+            this.admitted = admitted;
+            this.rejected = rejected;
+            this.avgWaitMillis = avgWaitMillis;
+            this.p99WaitMillis = p99WaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%-11s depth %4d, in flight %3d, admitted %9d, rejected %7d, " +
+                                 "wait over %d s avg %7.2f ms, p99 %7.2f ms, max %7.2f ms",
+                                 priority, depth, inFlight, admitted, rejected, TimeUnit.NANOSECONDS.toSeconds(WINDOW_NANOS),
+                                 avgWaitMillis, p99WaitMillis, maxWaitMillis);
+        }
+    }
+    
+    // Queue and budget of one priority class
+    private static final class Lane {
+        final Priority priority;
+        final int limit;
+        final int maxQueue;
+        final long waitLimitNanos;
+        final ArrayDeque<Long> waiters = new ArrayDeque<>();
+        final LatencyWindow waits = new LatencyWindow(WINDOW_SAMPLES);
+        int inFlight;
+        long admitted;
+        long rejected;
+        
+        Lane(Priority priority, int limit, int maxQueue, long waitLimitNanos) {
+            this.priority = priority;
+            this.limit = limit;
+            this.maxQueue = maxQueue;
+            this.waitLimitNanos = waitLimitNanos;
+        }
+    }
+    
+    private final int concurrency;
+    private final long sloNanos;
+    private final Lane[] lanes = new Lane[Priority.values().length];
+    private final LatencyWindow interactiveLatency = new LatencyWindow(WINDOW_SAMPLES);
+    private int inFlight;
+    private boolean shedding;
+    private long lastEvaluation;
+    private long waiterSequence;
+    
+    public AdmissionController(int concurrency, int batchConcurrency, int interactiveQueue, int batchQueue,
+                               long interactiveSloMillis, long batchMaxWaitMillis) {
+        if (batchConcurrency < 1 || batchConcurrency >= concurrency) {
+            throw new IllegalArgumentException("Batch concurrency must be at least 1 and below the total");
+        }
+        
+        this.concurrency = concurrency;
+        this.sloNanos = TimeUnit.MILLISECONDS.toNanos(interactiveSloMillis);
+        lanes[Priority.INTERACTIVE.ordinal()] = new Lane(Priority.INTERACTIVE, concurrency, interactiveQueue, sloNanos);
+        lanes[Priority.BATCH.ordinal()] =
+            new Lane(Priority.BATCH, batchConcurrency, batchQueue, TimeUnit.MILLISECONDS.toNanos(batchMaxWaitMillis));
+        lastEvaluation = System.nanoTime();
+    }
+    
+    // Admit one operation, queueing it behind its class if the budget is used up, or reject it
+    public Permit admit(Priority priority) throws RejectedException {
+        return admit(priority, true);
+    }
+    
+    // Admit one operation only if a slot is free right now, otherwise reject it; for the event dispatch thread
+    public Permit admitNow(Priority priority) throws RejectedException {
+        return admit(priority, false);
+    }
+    
+    private Permit admit(Priority priority, boolean queue) throws RejectedException {
+        long requestedAt = System.nanoTime();
+        Lane lane = lanes[priority.ordinal()];
+        
+        synchronized (this) {
+            evaluate(requestedAt);
+            
+            if (priority == Priority.BATCH && shedding) {
+                throw reject(lane, RejectedException.Reason.SHED);
+            }
+            if (!lane.waiters.isEmpty() && requestedAt - lane.waiters.peekFirst() > lane.waitLimitNanos) {
+                throw reject(lane, RejectedException.Reason.OVERLOADED);
+            }
+            if (lane.waiters.isEmpty() && canAdmit(lane)) {
+                return grant(lane, requestedAt, requestedAt);
+            }
+            if (!queue) {
+                throw reject(lane, RejectedException.Reason.NO_SLOT);
+            }
+            if (lane.waiters.size() >= lane.maxQueue) {
+                throw reject(lane, RejectedException.Reason.QUEUE_FULL);
+            }
+            
+            // Queue entries are enqueue times made unique, so each waiter can find itself at the head
+            long ticket = Math.max(requestedAt, waiterSequence + 1);
+            waiterSequence = ticket;
+            lane.waiters.addLast(ticket);
+            long deadline = requestedAt + lane.waitLimitNanos;
+            
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    evaluate(now);
+                    
+                    if (lane.waiters.peekFirst() == ticket && canAdmit(lane)) {
+                        lane.waiters.removeFirst();
+                        notifyAll();
+                        return grant(lane, requestedAt, now);
+                    }
+                    if (now - deadline >= 0) {
+                        lane.waiters.remove(ticket);
+                        notifyAll();
+                        throw reject(lane, RejectedException.Reason.TIMEOUT);
+                    }
+                    
+                    // Wake at least once per evaluation so shedding can end without new arrivals
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.min(deadline - now, EVALUATION_NANOS));
+                }
+            } catch (InterruptedException e) {
+                lane.waiters.remove(ticket);
+                notifyAll();
+                Thread.currentThread().interrupt();
+                throw reject(lane, RejectedException.Reason.TIMEOUT);
+            }
+        }
+    }
+    
+    // Admit, sitting out rejections; for background work that should slow down rather than fail
+    public Permit await(Priority priority) throws InterruptedException {
+        while (true) {
+            try {
+                return admit(priority);
+            } catch (RejectedException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                Thread.sleep(e.getRetryAfterMillis());
+            }
+        }
+    }
+    
+    public synchronized boolean isShedding() {
+        evaluate(System.nanoTime());
+        return shedding;
+    }
+    
+    // p99 of interactive latency over the last window, in milliseconds
+    public synchronized double getInteractiveP99Millis() {
+        return interactiveLatency.percentile(System.nanoTime(), 0.99) / 1_000_000.0;
+    }
+    
+    public synchronized QueueStats getStats(Priority priority) {
+        Lane lane = lanes[priority.ordinal()];
+        long now = System.nanoTime();
+        return new QueueStats(priority, lane.waiters.size(), lane.inFlight, lane.admitted, lane.rejected,
+                              lane.waits.mean(now) / 1_000_000.0, lane.waits.percentile(now, 0.99) / 1_000_000.0,
+                              lane.waits.percentile(now, 1.0) / 1_000_000.0);
+    }
+    
+    // Free slot in the total and class budgets; batch also yields to queued interactive work and to shedding
+    private boolean canAdmit(Lane lane) {
+        if (inFlight >= concurrency || lane.inFlight >= lane.limit) {
+            return false;
+        }
+        return lane.priority == Priority.INTERACTIVE ||
+               (!shedding && lanes[Priority.INTERACTIVE.ordinal()].waiters.isEmpty());
+    }
+    
+    private Permit grant(Lane lane, long requestedAt, long now) {
+        long waited = now - requestedAt;
+        inFlight++;
+        lane.inFlight++;
+        lane.admitted++;
+        lane.waits.add(now, waited);
+        return new Permit(lane.priority, requestedAt);
+    }
+    
+    private RejectedException reject(Lane lane, RejectedException.Reason reason) {
+        lane.rejected++;
+        long retryAfterNanos = reason == RejectedException.Reason.SHED ? WINDOW_NANOS
+                             : reason == RejectedException.Reason.NO_SLOT ? EVALUATION_NANOS : lane.waitLimitNanos;
+        long retryAfterMillis = TimeUnit.NANOSECONDS.toMillis(retryAfterNanos);
+        return new RejectedException(lane.priority, reason, Math.max(1, retryAfterMillis));
+    }
+    
+    private synchronized void release(Permit permit) {
+        if (permit.closed) {
+            return;
+        }
+        permit.closed = true;
+        
+        long now = System.nanoTime();
+        inFlight--;
+        lanes[permit.priority.ordinal()].inFlight--;
+        if (permit.priority == Priority.INTERACTIVE) {
+            interactiveLatency.add(now, now - permit.requestedAt);
+        }
+        evaluate(now);
+        notifyAll();
+    }
+    
+    // Start or stop shedding from the interactive p99 over the last window
+    private void evaluate(long now) {
+        if (now - lastEvaluation < EVALUATION_NANOS) {
+            return;
+        }
+        lastEvaluation = now;
+        
+        boolean breached = interactiveLatency.percentile(now, 0.99) > sloNanos;
+        if (breached != shedding) {
+            shedding = breached;
+            notifyAll();
+        }
+    }
+    
+    // The most recent samples with their times; percentiles and means only consider samples inside the window
+    static final class LatencyWindow {
+        private final long[] times;
+        private final long[] values;
+        private final long[] scratch;
+        private int next;
+        private int size;
+        
+        LatencyWindow(int capacity) {
+            times = new long[capacity];
+            values = new long[capacity];
+            scratch = new long[capacity];
+        }
+        
+        void add(long time, long value) {
+            times[next] = time;
+            values[next] = value;
+            next = (next + 1) % times.length;
+            size = Math.min(size + 1, times.length);
+        }
+        
+        long percentile(long now, double percentile) {
+            int count = collect(now);
+            if (count == 0) {
+                return 0;
+            }
+            Arrays.sort(scratch, 0, count);
+            return scratch[(int) Math.min(count - 1, Math.max(0, Math.ceil(percentile * count) - 1))];
+        }
+        
+        double mean(long now) {
+            int count = collect(now);
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                total += scratch[i];
+            }
+            return count == 0 ? 0 : (double) total / count;
+        }
+        
+        // Copy the samples inside the window into scratch and return how many there are
+        private int collect(long now) {
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (now - times[i] <= WINDOW_NANOS) {
+                    scratch[count++] = values[i];
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,513 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+// Asynchronous append-only audit log.
+//
+// Callers claim a slot in a preallocated ring of events, fill it in place
+// and publish it; nothing is allocated per event and callers never touch the
+// file. A single writer thread drains published events in batches, encodes
+// them into one reused direct buffer and appends the batch to the log file.
+// With BATCH durability each batch is forced to disk before its slots are
+// reused; with NONE the operating system decides when data reaches disk.
+// If the writer falls a whole ring behind, callers wait for it rather than
+// drop audit records. A failed write is reported once on standard error and
+// stays visible through getFailure(); the records of that batch are lost, so
+// callers should refuse further audited operations.
+//
+// Record layout (big-endian):
+//   int magic, int bodyLength,
+//   body: long sequence, long timeMillis, byte action, byte success, int userId,
+//         long amountCents, string subject, string counterparty, string detail,
+//   int crc32(body), int bodyLength
+// Strings are a short byte length (-1 for null) followed by UTF-8 bytes. The
+// trailing length lets the last record be found from the end of the file, so
+// opening the log does not have to scan it.
+//
+// Run with "verify <file>" to check every record, or "tail <file> [count]"
+// to print the last records and follow new ones.
+public class AuditLog implements AutoCloseable {
+    // Audited operations
+    public enum Action {
+        LOGIN, REGISTRATION, TRANSFER, DEPOSIT, WITHDRAWAL
+    }
+    
+    // When appended batches are forced to disk
+    public enum Durability {
+        NONE, BATCH
+    }
+    
+    static final int MAGIC = 0x41554431; // "AUD1"
+    static final int MAX_STRING_BYTES = 512;
+    static final int HEADER_BYTES = 8;
+    static final int TRAILER_BYTES = 8;
+    static final int MAX_BODY_BYTES = 8 + 8 + 1 + 1 + 4 + 8 + 3 * (2 + MAX_STRING_BYTES);
+    static final int MAX_RECORD_BYTES = HEADER_BYTES + MAX_BODY_BYTES + TRAILER_BYTES;
+    
+    private static final int BUFFER_BYTES = 256 * 1024;
+    private static final int MAX_BATCH = 1024;
+    
+    // One preallocated ring slot; fields are overwritten in place
+    private static final class Event {
+        long timeMillis;
+        Action action;
+        boolean success;
+        int userId;
+        long amountCents;
+        String subject;
+        String counterparty;
+        String detail;
+    }
+    
+    private final Path file;
+    private final Durability durability;
+    private final int mask;
+    private final Event[] ring;
+    
+    // published.get(slot) == sequence once the event for that sequence is filled in
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final CRC32 crc = new CRC32();
+    
+    private FileChannel channel;
+    private long firstSequence;
+    private Thread writer;
+    private volatile boolean running;
+    private volatile IOException failure;
+    
+    public AuditLog(Path file, Durability durability, int ringSize) {
+        if (Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of two");
+        }
+        
+        this.file = file;
+        this.durability = durability;
+        this.mask = ringSize - 1;
+        this.ring = new Event[ringSize];
+        this.published = new AtomicLongArray(ringSize);
+        
+        for (int i = 0; i < ringSize; i++) {
+            ring[i] = new Event();
+            published.set(i, -1);
+        }
+    }
+    
+    // Open the file, continue the sequence after its last record and start the writer
+    public void start() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        firstSequence = recoverTail(channel) + 1;
+        
+        running = true;
+        writer = new Thread(this::writeLoop, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    // Record an audited operation; returns once the event is in the ring
+    public void record(Action action, boolean success, int userId, String subject, String counterparty,
+                       double amount, String detail) {
+        long sequence = claimed.getAndIncrement();
+        
+        // Ring full: wait for the writer to free the slot
+        while (sequence - written.get() > mask) {
+            if (!running) {
+                return;
+            }
+            LockSupport.parkNanos(10_000);
+        }
+        
+        Event event = ring[(int) (sequence & mask)];
+        event.timeMillis = System.currentTimeMillis();
+        event.action = action;
+        event.success = success;
+        event.userId = userId;
+        event.amountCents = Math.round(amount * 100);
+        event.subject = subject;
+        event.counterparty = counterparty;
+        event.detail = detail;
+        
+        published.set((int) (sequence & mask), sequence);
+    }
+    
+    // Write out everything recorded so far and close the file
+    @Override
+    public void close() {
+        running = false;
+        if (writer != null) {
+            try {
+                writer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        try {
+            if (channel != null) {
+                channel.force(true);
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    // Last I/O error seen by the writer, or null
+    public IOException getFailure() {
+        return failure;
+    }
+    
+    // Number of events recorded but not yet written
+    public long getBacklog() {
+        return claimed.get() - written.get();
+    }
+    
+    private void writeLoop() {
+        long next = written.get();
+        
+        while (running || next < claimed.get()) {
+            int batch = 0;
+            buffer.clear();
+            
+            while (batch < MAX_BATCH && published.get((int) (next & mask)) == next) {
+                if (buffer.remaining() < MAX_RECORD_BYTES) {
+                    flush(false);
+                }
+                
+                Event event = ring[(int) (next & mask)];
+                encode(firstSequence + next, event);
+                
+                // Drop references so the ring does not keep strings alive
+                event.subject = null;
+                event.counterparty = null;
+                event.detail = null;
+                
+                next++;
+                batch++;
+            }
+            
+            if (batch == 0) {
+                if (!running && next < claimed.get() && published.get((int) (next & mask)) != next) {
+                    // A producer claimed a slot but never published it before shutdown
+                    break;
+                }
+                LockSupport.parkNanos(50_000);
+                continue;
+            }
+            
+            flush(durability == Durability.BATCH);
+            written.set(next);
+        }
+    }
+    
+    // Append the buffered records, optionally forcing them to disk
+    private void flush(boolean force) {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (force) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            // Keep draining so callers are never blocked; the failure stays visible through getFailure()
+            if (failure == null) {
+                System.err.println("Audit log: writing " + file + " failed, audit records are being lost");
+                e.printStackTrace();
+            }
+            failure = e;
+        }
+        buffer.clear();
+    }
+    
+    private void encode(long sequence, Event event) {
+        int recordStart = buffer.position();
+        buffer.putInt(MAGIC);
+        buffer.putInt(0);
+        
+        int bodyStart = buffer.position();
+        buffer.putLong(sequence);
+        buffer.putLong(event.timeMillis);
+        buffer.put((byte) event.action.ordinal());
+        buffer.put((byte) (event.success ? 1 : 0));
+        buffer.putInt(event.userId);
+        buffer.putLong(event.amountCents);
+        putString(event.subject);
+        putString(event.counterparty);
+        putString(event.detail);
+        int bodyEnd = buffer.position();
+        int bodyLength = bodyEnd - bodyStart;
+        
+        buffer.putInt(recordStart + 4, bodyLength);
+        
+        crc.reset();
+        buffer.position(bodyStart);
+        buffer.limit(bodyEnd);
+        crc.update(buffer);
+        buffer.limit(buffer.capacity());
+        
+        buffer.putInt((int) crc.getValue());
+        buffer.putInt(bodyLength);
+    }
+    
+    // UTF-8 encode directly into the buffer, truncating at MAX_STRING_BYTES on a character boundary
+    private void putString(String value) {
+        if (value == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+        
+        int lengthAt = buffer.position();
+        buffer.putShort((short) 0);
+        int start = buffer.position();
+        
+        for (int i = 0; i < value.length(); i++) {
+            int c = value.charAt(i);
+            int width;
+            
+            if (Character.isHighSurrogate((char) c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, value.charAt(i + 1));
+                width = 4;
+            } else if (Character.isSurrogate((char) c)) {
+                c = '?';
+                width = 1;
+            } else {
+                width = c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+            }
+            
+            if (buffer.position() - start + width > MAX_STRING_BYTES) {
+                break;
+            }
+            
+            if (width == 1) {
+                buffer.put((byte) c);
+            } else if (width == 2) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (width == 3) {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buffer.put((byte) (0xF0 | (c >> 18)));
+                buffer.put((byte) (0x80 | ((c >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+                i++;
+            }
+        }
+        
+        buffer.putShort(lengthAt, (short) (buffer.position() - start));
+    }
+    
+    // Find the last intact record, cut off anything torn after it and return its sequence (-1 if none)
+    static long recoverTail(FileChannel channel) throws IOException {
+        long size = channel.size();
+        
+        // Fast path: the trailing length points at a valid record ending exactly at end of file
+        if (size >= HEADER_BYTES + TRAILER_BYTES) {
+            ByteBuffer trailer = ByteBuffer.allocate(4);
+            channel.read(trailer, size - 4);
+            int bodyLength = trailer.getInt(0);
+            long recordStart = size - HEADER_BYTES - bodyLength - TRAILER_BYTES;
+            
+            if (bodyLength > 0 && bodyLength <= MAX_BODY_BYTES && recordStart >= 0) {
+                Record record = Record.read(channel, recordStart);
+                if (record != null) {
+                    channel.position(size);
+                    return record.sequence;
+                }
+            }
+        }
+        
+        // Slow path: scan forward to the end of the last intact record and truncate there
+        long position = 0;
+        long lastSequence = -1;
+        Record record;
+        while ((record = Record.read(channel, position)) != null) {
+            lastSequence = record.sequence;
+            position = record.end;
+        }
+        
+        if (position < size) {
+            System.err.println("Audit log: discarding " + (size - position) + " bytes of incomplete record at offset " + position);
+            channel.truncate(position);
+        }
+        channel.position(position);
+        return lastSequence;
+    }
+    
+    // A decoded record, used by recovery and the reader tool
+    static final class Record {
+        long start;
+        long end;
+        long sequence;
+        long timeMillis;
+        Action action;
+        boolean success;
+        int userId;
+        long amountCents;
+        String subject;
+        String counterparty;
+        String detail;
+        
+        // Read and verify the record at position; null if there is no complete, intact record there
+        static Record read(FileChannel channel, long position) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            if (readFully(channel, header, position) < HEADER_BYTES || header.getInt(0) != MAGIC) {
+                return null;
+            }
+            
+            int bodyLength = header.getInt(4);
+            if (bodyLength <= 0 || bodyLength > MAX_BODY_BYTES) {
+                return null;
+            }
+            
+            ByteBuffer rest = ByteBuffer.allocate(bodyLength + TRAILER_BYTES);
+            if (readFully(channel, rest, position + HEADER_BYTES) < rest.capacity()) {
+                return null;
+            }
+            
+            CRC32 crc = new CRC32();
+            crc.update(rest.array(), 0, bodyLength);
+            if ((int) crc.getValue() != rest.getInt(bodyLength) || rest.getInt(bodyLength + 4) != bodyLength) {
+                return null;
+            }
+            
+            rest.position(0);
+            Record record = new Record();
+            record.start = position;
+            record.end = position + HEADER_BYTES + bodyLength + TRAILER_BYTES;
+            record.sequence = rest.getLong();
+            record.timeMillis = rest.getLong();
+            int action = rest.get();
+            if (action < 0 || action >= Action.values().length) {
+                return null;
+            }
+            record.action = Action.values()[action];
+            record.success = rest.get() == 1;
+            record.userId = rest.getInt();
+            record.amountCents = rest.getLong();
+            record.subject = getString(rest);
+            record.counterparty = getString(rest);
+            record.detail = getString(rest);
+            return record;
+        }
+        
+        private static String getString(ByteBuffer buffer) {
+            short length = buffer.getShort();
+            if (length < 0) {
+                return null;
+            }
+            String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("#%d %tF %<tT.%<tL %-12s %-7s user=%d amount=%d.%02d subject=%s counterparty=%s detail=%s",
+                                 sequence, timeMillis, action, success ? "OK" : "FAILED", userId,
+                                 amountCents / 100, Math.abs(amountCents % 100), subject, counterparty, detail);
+        }
+    }
+    
+    private static int readFully(FileChannel channel, ByteBuffer target, long position) throws IOException {
+        int total = 0;
+        while (target.hasRemaining()) {
+            int n = channel.read(target, position + total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+    
+    // Check every record in a log file; returns the number of problems found
+    static int verify(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            long count = 0;
+            long expectedSequence = -1;
+            int problems = 0;
+            Record record;
+            
+            while ((record = Record.read(channel, position)) != null) {
+                if (expectedSequence >= 0 && record.sequence != expectedSequence) {
+                    System.out.println("Sequence gap at offset " + position + ": expected " + expectedSequence + ", found " + record.sequence);
+                    problems++;
+                }
+                expectedSequence = record.sequence + 1;
+                position = record.end;
+                count++;
+            }
+            
+            if (position < size) {
+                System.out.println("Corrupt or incomplete record at offset " + position + " (" + (size - position) + " bytes not verified)");
+                problems++;
+            }
+            
+            System.out.println("Verified " + count + " records, " + position + " of " + size + " bytes, " + problems + " problem(s)");
+            return problems;
+        }
+    }
+    
+    // Print the last count records, then follow the file and print new records as they are appended
+    static void tail(Path path, int count) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ArrayDeque<Record> last = new ArrayDeque<>();
+            long position = 0;
+            Record record;
+            
+            while ((record = Record.read(channel, position)) != null) {
+                last.addLast(record);
+                if (last.size() > count) {
+                    last.removeFirst();
+                }
+                position = record.end;
+            }
+            
+            for (Record r : last) {
+                System.out.println(r);
+            }
+            
+            while (true) {
+                record = Record.read(channel, position);
+                if (record == null) {
+                    Thread.sleep(500);
+                    continue;
+                }
+                System.out.println(record);
+                position = record.end;
+            }
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !("verify".equals(args[0]) || "tail".equals(args[0]))) {
+            System.err.println("Usage: java AuditLog verify <file> | tail <file> [count]");
+            System.exit(2);
+        }
+        
+        Path path = Paths.get(args[1]);
+        if ("verify".equals(args[0])) {
+            System.exit(verify(path) == 0 ? 0 : 1);
+        } else {
+            tail(path, args.length > 2 ? Integer.parseInt(args[2]) : 20);
+        }
+    }
+}
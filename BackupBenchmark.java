@@ -0,0 +1,239 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Online backup throughput and its effect on transfer latency.
+//
+// Builds a database from DatasetGenerator in a temporary directory and runs
+// worker threads issuing the same statements as transferFunds. Transfer
+// latency is recorded in four phases: a baseline with no backup running, a
+// full backup, a quiet period with more postings, and an incremental backup.
+// The last backup is then restored and verified. Prints backup throughput,
+// bytes written, and transfer throughput and latency percentiles per phase.
+//
+// Usage: java -cp ".;h2-2.1.214.jar" BackupBenchmark [users] [transactions] [threads] [phase seconds]
+public class BackupBenchmark {
+    private static final long SEED = 42;
+    private static final String[] PHASES = { "baseline", "full backup", "between backups", "incremental backup" };
+    
+    // Transfer latencies of one phase
+    private static final class LatencyRecorder {
+        private long[] nanos = new long[1 << 16];
+        private int size;
+        private long failures;
+        
+        synchronized void add(long value) {
+            if (size == nanos.length) {
+                nanos = Arrays.copyOf(nanos, size * 2);
+            }
+            nanos[size++] = value;
+        }
+        
+        synchronized void failed() {
+            failures++;
+        }
+        
+        synchronized String summary(String phase, long elapsedMs) {
+            long[] sorted = Arrays.copyOf(nanos, size);
+            Arrays.sort(sorted);
+            return String.format("%-20s %9d %7d %10.0f %9.2f %9.2f %9.2f %9.2f", phase, size, failures,
+                                 size * 1000.0 / Math.max(1, elapsedMs), percentileMs(sorted, 0.50),
+                                 percentileMs(sorted, 0.99), percentileMs(sorted, 0.999), percentileMs(sorted, 1.0));
+        }
+        
+        private static double percentileMs(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+            return sorted[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        long transactions = args.length > 1 ? Long.parseLong(args[1]) : 2_000_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int phaseSeconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        
+        Path directory = Files.createTempDirectory("backup-benchmark");
+        String url = "jdbc:h2:" + directory.toAbsolutePath().resolve("bankingDB");
+        String user = OnlineBankingSystem.DB_USER;
+        String password = OnlineBankingSystem.DB_PASSWORD;
+        
+        try (Connection conn = DriverManager.getConnection(url, user, password)) {
+            SchemaMigrator migrator = new SchemaMigrator();
+            List<SchemaMigrator.Migration> deferred = migrator.migrate(conn);
+            
+            DatasetGenerator generator = new DatasetGenerator(SEED, users, transactions, 2, LocalDate.of(2026, 1, 1));
+            Path data = Files.createTempDirectory(directory, "data");
+            try {
+                generator.generate(data);
+                generator.load(conn, data);
+            } finally {
+                DatasetGenerator.delete(data);
+            }
+            // Transaction indexes built once over the loaded rows
+            migrator.applyDeferred(conn, deferred);
+            
+            List<String[]> accounts = new ArrayList<>();
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT user_id, account_number FROM accounts")) {
+                while (rs.next()) {
+                    accounts.add(new String[] { rs.getString("user_id"), rs.getString("account_number") });
+                }
+            }
+            
+            LatencyRecorder[] recorders = new LatencyRecorder[PHASES.length];
+            for (int i = 0; i < recorders.length; i++) {
+                recorders[i] = new LatencyRecorder();
+            }
+            AtomicLong phase = new AtomicLong();
+            List<Thread> workers = new ArrayList<>();
+            
+            for (int t = 0; t < threads; t++) {
+                Thread worker = new Thread(() -> runTransfers(url, user, password, accounts, recorders, phase),
+                                           "transfer-worker-" + t);
+                worker.setDaemon(true);
+                workers.add(worker);
+                worker.start();
+            }
+            
+            BackupManager manager = new BackupManager(directory.resolve("backups"));
+            long[] phaseMs = new long[PHASES.length];
+            List<BackupManager.BackupResult> results = new ArrayList<>();
+            
+            for (int p = 0; p < PHASES.length; p++) {
+                phase.set(p);
+                long start = System.nanoTime();
+                if (p % 2 == 1) {
+                    results.add(manager.backup(conn));
+                } else {
+                    Thread.sleep(phaseSeconds * 1000L);
+                }
+                phaseMs[p] = (System.nanoTime() - start) / 1_000_000;
+            }
+            phase.set(-1);
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            
+            System.out.printf("%d users, %d transactions, %d transfer threads%n", users, transactions, threads);
+            for (BackupManager.BackupResult result : results) {
+                System.out.println(result);
+            }
+            System.out.printf("%-20s %9s %7s %10s %9s %9s %9s %9s%n", "phase", "transfers", "failed", "per second",
+                              "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+            for (int p = 0; p < PHASES.length; p++) {
+                System.out.println(recorders[p].summary(PHASES[p], phaseMs[p]));
+            }
+            
+            long start = System.nanoTime();
+            manager.restore(results.get(results.size() - 1).id, directory.resolve("restored"));
+            System.out.println("Restored and verified the incremental backup in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+        
+        System.out.println("Benchmark files left in " + directory);
+    }
+    
+    // Transfers between random accounts until the phase is set to -1
+    private static void runTransfers(String url, String user, String password, List<String[]> accounts,
+                                     LatencyRecorder[] recorders, AtomicLong phase) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        
+        try (Connection conn = DriverManager.getConnection(url, user, password)) {
+            conn.setAutoCommit(false);
+            long current;
+            
+            while ((current = phase.get()) >= 0) {
+                String[] from = accounts.get(random.nextInt(accounts.size()));
+                String[] to = accounts.get(random.nextInt(accounts.size()));
+                if (from == to) {
+                    continue;
+                }
+                
+                long start = System.nanoTime();
+                try {
+                    transfer(conn, Integer.parseInt(from[0]), from[1], to[1], 0.01);
+                    conn.commit();
+                    recorders[(int) current].add(System.nanoTime() - start);
+                } catch (SQLException e) {
+                    conn.rollback();
+                    recorders[(int) current].failed();
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    // The statements transferFunds issues, in the same order
+    static void transfer(Connection conn, int userId, String fromAccount, String toAccount, double amount)
+            throws SQLException {
+        int fromAccountId;
+        int toAccountId;
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(OnlineBankingSystem.OWNED_ACCOUNT_FOR_UPDATE_SQL)) {
+            pstmt.setString(1, fromAccount);
+            pstmt.setInt(2, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next() || rs.getDouble("balance") < amount) {
+                    throw new SQLException("Insufficient funds");
+                }
+                fromAccountId = rs.getInt("id");
+            }
+        }
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(OnlineBankingSystem.ACCOUNT_BY_NUMBER_SQL)) {
+            pstmt.setString(1, toAccount);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("Destination account not found");
+                }
+                toAccountId = rs.getInt("id");
+            }
+        }
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(OnlineBankingSystem.DEBIT_SQL)) {
+            pstmt.setDouble(1, amount);
+            pstmt.setInt(2, fromAccountId);
+            pstmt.executeUpdate();
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(OnlineBankingSystem.CREDIT_SQL)) {
+            pstmt.setDouble(1, amount);
+            pstmt.setInt(2, toAccountId);
+            pstmt.executeUpdate();
+        }
+        
+        double fromBalanceAfter = balance(conn, fromAccountId);
+        double toBalanceAfter = balance(conn, toAccountId);
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(OnlineBankingSystem.INSERT_TRANSFER_SQL)) {
+            pstmt.setInt(1, fromAccountId);
+            pstmt.setInt(2, toAccountId);
+            pstmt.setDouble(3, amount);
+            pstmt.setString(4, "TRANSFER");
+            pstmt.setString(5, "Benchmark");
+            pstmt.setDouble(6, fromBalanceAfter);
+            pstmt.setDouble(7, toBalanceAfter);
+            pstmt.setTimestamp(8, new Timestamp(System.currentTimeMillis()));
+            pstmt.executeUpdate();
+        }
+    }
+    
+    private static double balance(Connection conn, int accountId) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(OnlineBankingSystem.BALANCE_SQL)) {
+            pstmt.setInt(1, accountId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                rs.next();
+                return rs.getDouble(1);
+            }
+        }
+    }
+}
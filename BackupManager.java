@@ -0,0 +1,439 @@
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+// Online backup and verified restore of the banking database.
+//
+// The snapshot comes from H2's BACKUP TO, which copies a transactionally
+// consistent image of the live store while postings carry on: the store
+// stops reusing file space for the duration of the copy instead of blocking
+// writers. BACKUP TO can only write a zip, so the database file is inflated
+// once into a staging area and then split into fixed-size segments kept in a
+// content-addressed repository:
+//
+//   <repository>/segments/<sha-256>      one segment of a database file
+//   <repository>/backups/<id>.manifest   file name, length and hash, then
+//                                        the hash of every segment in order
+//
+// A backup only writes the segments the repository does not hold yet, so
+// every backup after the first is incremental: pages the store has not
+// rewritten since an earlier backup cost one hash and no write. Segments
+// are copied with FileChannel.transferTo, on backup and on restore, so the
+// copy never passes through the Java heap. They are hashed with positional
+// reads into one direct buffer rather than through memory mappings: a
+// mapping lives until it is garbage collected, and on Windows it keeps the
+// file from being deleted or moved until then.
+//
+// Restore rebuilds the file from its segments, checking every segment and
+// the whole file against the manifest. It then opens the restored database
+// read-only and runs ReconciliationJob over it, so a restore that does not
+// balance is reported before anyone starts the application on it.
+public class BackupManager {
+    static final int SEGMENT_SIZE = 4 << 20;
+    private static final int HASH_BUFFER_SIZE = 1 << 20;
+    
+    private static final DateTimeFormatter BACKUP_ID = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+    
+    // What one backup wrote
+    public static class BackupResult {
+        public final String id;
+        public final long fileBytes;
+        public final int segments;
+        public final int newSegments;
+        public final long bytesWritten;
+        public final long elapsedMs;
+        
+        BackupResult(String id, long fileBytes, int segments, int newSegments, long bytesWritten, long elapsedMs) {
+            this.id = id;
+            this.fileBytes = fileBytes;
+            this.segments = segments;
+            this.newSegments = newSegments;
+            this.bytesWritten = bytesWritten;
+            this.elapsedMs = elapsedMs;
+        }
+        
+        // Snapshot bytes processed per second
+        public double getThroughputMBps() {
+            return fileBytes / 1_048_576.0 / Math.max(1, elapsedMs) * 1000;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("Backup %s: %,d bytes in %d segments, %d new (%,d bytes written) in %d ms, %.1f MB/s",
+                                 id, fileBytes, segments, newSegments, bytesWritten, elapsedMs, getThroughputMBps());
+        }
+    }
+    
+    // A backup's contents as recorded in its manifest
+    static class Manifest {
+        String fileName;
+        long length;
+        String fileHash;
+        final List<String> segmentHashes = new ArrayList<>();
+    }
+    
+    private final Path repository;
+    private final Path segments;
+    private final Path backups;
+    private ScheduledExecutorService scheduler;
+    
+    public BackupManager(Path repository) throws IOException {
+        this.repository = repository;
+        this.segments = repository.resolve("segments");
+        this.backups = repository.resolve("backups");
+        Files.createDirectories(segments);
+        Files.createDirectories(backups);
+    }
+    
+    // Back up the database behind the connection without stopping it
+    public BackupResult backup(Connection conn) throws SQLException, IOException {
+        long start = System.nanoTime();
+        String id = LocalDateTime.now().format(BACKUP_ID);
+        Path staging = Files.createTempDirectory(repository, "staging-");
+        
+        try {
+            Path zip = staging.resolve("snapshot.zip");
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("BACKUP TO '" + zip.toAbsolutePath().toString().replace("'", "''") + "'");
+            }
+            Path file = extractDatabaseFile(zip, staging);
+            Files.delete(zip);
+            
+            Manifest manifest = new Manifest();
+            manifest.fileName = file.getFileName().toString();
+            int newSegments = 0;
+            long bytesWritten = 0;
+            
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                manifest.length = channel.size();
+                MessageDigest fileDigest = sha256();
+                ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+                
+                for (long offset = 0; offset < manifest.length; offset += SEGMENT_SIZE) {
+                    long length = Math.min(SEGMENT_SIZE, manifest.length - offset);
+                    MessageDigest segmentDigest = sha256();
+                    digest(channel, offset, length, buffer, fileDigest, segmentDigest);
+                    String hash = hex(segmentDigest.digest());
+                    manifest.segmentHashes.add(hash);
+                    
+                    Path segment = segments.resolve(hash);
+                    if (!Files.exists(segment)) {
+                        writeSegment(channel, offset, length, segment);
+                        newSegments++;
+                        bytesWritten += length;
+                    }
+                }
+                manifest.fileHash = hex(fileDigest.digest());
+            }
+            
+            writeManifest(id, manifest);
+            return new BackupResult(id, manifest.length, manifest.segmentHashes.size(), newSegments, bytesWritten,
+                                    (System.nanoTime() - start) / 1_000_000);
+        } finally {
+            deleteRecursively(staging);
+        }
+    }
+    
+    // Rebuild a backup into targetDirectory, check it against its manifest and reconcile the ledger in it.
+    // Returns the JDBC URL of the restored database.
+    public String restore(String id, Path targetDirectory) throws IOException, SQLException, InterruptedException {
+        Manifest manifest = readManifest(id);
+        Files.createDirectories(targetDirectory);
+        Path target = targetDirectory.resolve(manifest.fileName);
+        if (Files.exists(target)) {
+            throw new IOException("Refusing to overwrite existing database file " + target);
+        }
+        
+        Path partial = targetDirectory.resolve(manifest.fileName + ".restoring");
+        try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                                                StandardOpenOption.READ)) {
+            long position = 0;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+            for (String hash : manifest.segmentHashes) {
+                try (FileChannel in = FileChannel.open(segments.resolve(hash), StandardOpenOption.READ)) {
+                    long length = in.size();
+                    MessageDigest segmentDigest = sha256();
+                    digest(in, 0, length, buffer, segmentDigest);
+                    if (!hash.equals(hex(segmentDigest.digest()))) {
+                        throw new IOException("Segment " + hash + " is corrupt");
+                    }
+                    transferFully(in, 0, length, out, position);
+                    position += length;
+                }
+            }
+            out.force(true);
+            
+            if (position != manifest.length) {
+                throw new IOException("Restored " + position + " bytes, manifest says " + manifest.length);
+            }
+            if (!manifest.fileHash.equals(hashFile(out, buffer))) {
+                throw new IOException("Restored file does not match the backup's hash");
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+        
+        String fileName = manifest.fileName;
+        String dbName = fileName.endsWith(".mv.db") ? fileName.substring(0, fileName.length() - ".mv.db".length()) : fileName;
+        String url = "jdbc:h2:" + targetDirectory.toAbsolutePath().resolve(dbName) + ";ACCESS_MODE_DATA=r";
+        verifyLedger(url);
+        return url;
+    }
+    
+    // Backup ids, oldest first
+    public List<String> list() throws IOException {
+        List<String> ids = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(backups, "*.manifest")) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                ids.add(name.substring(0, name.length() - ".manifest".length()));
+            }
+        }
+        ids.sort(null);
+        return ids;
+    }
+    
+    // Take a backup every intervalMinutes on a daemon thread, starting one interval from now
+    public void startSchedule(String dbUrl, String dbUser, String dbPassword, long intervalMinutes) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "online-backup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+                System.out.println(backup(conn));
+            } catch (SQLException | IOException e) {
+                e.printStackTrace();
+            }
+        }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+    
+    public void stopSchedule() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+    
+    // The restored ledger must balance, exactly as the live one does
+    private static void verifyLedger(String url) throws SQLException, InterruptedException {
+        ReconciliationJob job = new ReconciliationJob(url, OnlineBankingSystem.DB_USER, OnlineBankingSystem.DB_PASSWORD,
+                                                      10_000, Runtime.getRuntime().availableProcessors());
+        List<ReconciliationJob.Discrepancy> discrepancies = job.run();
+        if (!discrepancies.isEmpty()) {
+            throw new SQLException("Restored database has " + discrepancies.size() + " balance discrepancies, first: " +
+                                   discrepancies.get(0));
+        }
+    }
+    
+    // BACKUP TO writes a zip holding the store file; inflate the .mv.db entry next to it
+    private static Path extractDatabaseFile(Path zip, Path directory) throws IOException {
+        try (ZipInputStream in = new ZipInputStream(Files.newInputStream(zip))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                String name = Paths.get(entry.getName()).getFileName().toString();
+                if (name.endsWith(".mv.db")) {
+                    Path file = directory.resolve(name);
+                    Files.copy(in, file);
+                    return file;
+                }
+            }
+        }
+        throw new IOException("Backup archive " + zip + " holds no database file");
+    }
+    
+    // Write to a temporary name and move into place, so a crash never leaves a partial segment under its hash
+    private void writeSegment(FileChannel source, long offset, long length, Path segment) throws IOException {
+        Path partial = Files.createTempFile(segments, "segment-", ".partial");
+        try {
+            try (FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+                transferFully(source, offset, length, out, 0);
+                out.force(true);
+            }
+            Files.move(partial, segment, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // Another backup stored the same segment first
+            Files.deleteIfExists(partial);
+        } catch (IOException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+    }
+    
+    // transferTo may move fewer bytes than asked for; loop until the range is done
+    private static void transferFully(FileChannel in, long offset, long length, FileChannel out, long position)
+            throws IOException {
+        out.position(position);
+        long done = 0;
+        while (done < length) {
+            long moved = in.transferTo(offset + done, length - done, out);
+            if (moved <= 0) {
+                throw new IOException("Copy stalled after " + done + " of " + length + " bytes");
+            }
+            done += moved;
+        }
+    }
+    
+    private void writeManifest(String id, Manifest manifest) throws IOException {
+        Path partial = backups.resolve(id + ".manifest.partial");
+        try (BufferedWriter out = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+            out.write("file " + manifest.fileName + "\n");
+            out.write("length " + manifest.length + "\n");
+            out.write("sha256 " + manifest.fileHash + "\n");
+            for (String hash : manifest.segmentHashes) {
+                out.write("segment " + hash + "\n");
+            }
+        }
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(partial, backups.resolve(id + ".manifest"), StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    Manifest readManifest(String id) throws IOException {
+        Path path = backups.resolve(id + ".manifest");
+        if (!Files.exists(path)) {
+            throw new NoSuchFileException("No backup " + id + " in " + repository);
+        }
+        
+        Manifest manifest = new Manifest();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            int space = line.indexOf(' ');
+            String key = line.substring(0, space);
+            String value = line.substring(space + 1);
+            switch (key) {
+                case "file":
+                    manifest.fileName = value;
+                    break;
+                case "length":
+                    manifest.length = Long.parseLong(value);
+                    break;
+                case "sha256":
+                    manifest.fileHash = value;
+                    break;
+                case "segment":
+                    manifest.segmentHashes.add(value);
+                    break;
+                default:
+                    throw new IOException("Unknown manifest entry in " + path + ": " + line);
+            }
+        }
+        return manifest;
+    }
+    
+    private static String hashFile(FileChannel channel, ByteBuffer buffer) throws IOException {
+        MessageDigest digest = sha256();
+        digest(channel, 0, channel.size(), buffer, digest);
+        return hex(digest.digest());
+    }
+    
+    // Feed a range of the channel to every digest, reading it into the buffer piece by piece
+    private static void digest(FileChannel channel, long position, long length, ByteBuffer buffer,
+                               MessageDigest... digests) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("File ended at " + position + " of " + end + " bytes");
+            }
+            buffer.flip();
+            
+            for (MessageDigest digest : digests) {
+                buffer.rewind();
+                digest.update(buffer);
+            }
+            position += read;
+        }
+    }
+    
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+    
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+    
+    private static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (Files.isDirectory(path)) {
+                    deleteRecursively(path);
+                } else {
+                    Files.delete(path);
+                }
+            }
+        }
+        Files.delete(directory);
+    }
+    
+    // Usage: BackupManager backup <repository>
+    //        BackupManager list <repository>
+    //        BackupManager restore <repository> <backup id> <target directory>
+    // backup uses the application's database and needs it to be closed; the running
+    // application takes its own scheduled backups (see banking.backup.dir).
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || (args[0].equals("restore") && args.length < 4)) {
+            System.err.println("Usage: BackupManager backup <repository> | list <repository> | " +
+                               "restore <repository> <backup id> <target directory>");
+            System.exit(2);
+        }
+        BackupManager manager = new BackupManager(Paths.get(args[1]));
+        
+        switch (args[0]) {
+            case "backup":
+                try (Connection conn = DriverManager.getConnection(OnlineBankingSystem.DB_URL, OnlineBankingSystem.DB_USER,
+                                                                   OnlineBankingSystem.DB_PASSWORD)) {
+                    System.out.println(manager.backup(conn));
+                }
+                break;
+            case "list":
+                for (String id : manager.list()) {
+                    Manifest manifest = manager.readManifest(id);
+                    System.out.println(id + "  " + manifest.fileName + "  " + manifest.length + " bytes  " +
+                                       manifest.segmentHashes.size() + " segments");
+                }
+                break;
+            case "restore":
+                long start = System.nanoTime();
+                String url = manager.restore(args[2], Paths.get(args[3]));
+                System.out.println("Restored and verified " + args[2] + " in " + (System.nanoTime() - start) / 1_000_000 +
+                                   " ms: " + url);
+                break;
+            default:
+                System.err.println("Unknown command: " + args[0]);
+                System.exit(2);
+        }
+    }
+}
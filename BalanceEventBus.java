@@ -0,0 +1,164 @@
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// In-process bus for committed balance changes.
+//
+// Posting paths publish after commit, with the balance each account was left
+// at, so subscribers can update what they show without querying again.
+// Delivery happens on a single dispatcher thread: publishing never blocks a
+// posting, and every subscriber sees the changes of an account in order.
+// A posting's transaction id is assigned while its account rows are locked,
+// so for any one account a higher id is always the later change; anything
+// older than the last change already delivered for that account is dropped.
+//
+// Subscribers that touch Swing components must hop to the event dispatch
+// thread themselves.
+public class BalanceEventBus {
+    // One account's balance after a committed posting
+    public static final class BalanceChange {
+        public final int accountId;
+        public final int transactionId;
+        public final String transactionType;
+        public final double delta;
+        public final double balanceAfter;
+        public final Timestamp postedAt;
+        
+        BalanceChange(int accountId, int transactionId, String transactionType, double delta, double balanceAfter,
+                      Timestamp postedAt) {
+            this.accountId = accountId;
+            this.transactionId = transactionId;
+            this.transactionType = transactionType;
+            this.delta = delta;
+            this.balanceAfter = balanceAfter;
+            this.postedAt = postedAt;
+        }
+    }
+    
+    public interface Listener {
+        void balanceChanged(BalanceChange change);
+    }
+    
+    // Handle returned by subscribe; cancel it to stop receiving changes
+    public final class Subscription {
+        private final Collection<Integer> accountIds;
+        private final Listener listener;
+        
+        private Subscription(Collection<Integer> accountIds, Listener listener) {
+            this.accountIds = accountIds;
+            this.listener = listener;
+        }
+        
+        public void cancel() {
+            if (accountIds == null) {
+                globalListeners.remove(listener);
+                if (globalListeners.isEmpty()) {
+                    lastDelivered.keySet().retainAll(accountListeners.keySet());
+                }
+                return;
+            }
+            for (Integer accountId : accountIds) {
+                CopyOnWriteArrayList<Listener> listeners = accountListeners.get(accountId);
+                if (listeners != null) {
+                    listeners.remove(listener);
+                    if (listeners.isEmpty() && accountListeners.remove(accountId, listeners) && globalListeners.isEmpty()) {
+                        lastDelivered.remove(accountId);
+                    }
+                }
+            }
+        }
+    }
+    
+    private final ConcurrentHashMap<Integer, CopyOnWriteArrayList<Listener>> accountListeners = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Listener> globalListeners = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<BalanceChange> queue = new LinkedBlockingQueue<>();
+    
+    // Last transaction delivered per watched account, written by the dispatcher thread. An account's entry
+    // goes when nobody watches it any more, so the map stays as large as the set of watched accounts.
+    private final Map<Integer, Integer> lastDelivered = new ConcurrentHashMap<>();
+    
+    private Thread dispatcher;
+    
+    // Start delivering published changes
+    public void start() {
+        dispatcher = new Thread(this::dispatchLoop, "balance-event-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+    
+    public void stop() {
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+    }
+    
+    // Receive changes to the given accounts
+    public Subscription subscribe(Collection<Integer> accountIds, Listener listener) {
+        for (Integer accountId : accountIds) {
+            accountListeners.computeIfAbsent(accountId, k -> new CopyOnWriteArrayList<>()).add(listener);
+        }
+        return new Subscription(accountIds, listener);
+    }
+    
+    // Receive changes to every account, e.g. for an API feed
+    public Subscription subscribeAll(Listener listener) {
+        globalListeners.add(listener);
+        return new Subscription(null, listener);
+    }
+    
+    // Publish the balances a committed posting left behind. Never blocks the caller.
+    public void publishPosting(int transactionId, Integer fromAccountId, Integer toAccountId, double amount,
+                               String transactionType, Timestamp postedAt, Double fromBalanceAfter, Double toBalanceAfter) {
+        if (fromAccountId != null && fromBalanceAfter != null) {
+            queue.offer(new BalanceChange(fromAccountId, transactionId, transactionType, -amount, fromBalanceAfter, postedAt));
+        }
+        if (toAccountId != null && toBalanceAfter != null) {
+            queue.offer(new BalanceChange(toAccountId, transactionId, transactionType, amount, toBalanceAfter, postedAt));
+        }
+    }
+    
+    private void dispatchLoop() {
+        try {
+            while (true) {
+                deliver(queue.take());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void deliver(BalanceChange change) {
+        CopyOnWriteArrayList<Listener> listeners = accountListeners.get(change.accountId);
+        if (listeners == null && globalListeners.isEmpty()) {
+            return;
+        }
+        
+        Integer last = lastDelivered.get(change.accountId);
+        if (last != null && last >= change.transactionId) {
+            return;
+        }
+        lastDelivered.put(change.accountId, change.transactionId);
+        
+        if (listeners != null) {
+            for (Listener listener : listeners) {
+                deliverTo(listener, change);
+            }
+        }
+        for (Listener listener : globalListeners) {
+            deliverTo(listener, change);
+        }
+    }
+    
+    // A failing subscriber must not stop delivery to the others
+    private static void deliverTo(Listener listener, BalanceChange change) {
+        try {
+            listener.balanceChanged(change);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Fixed-size Bloom filter over strings.
+//
+// Sized at construction for an expected number of entries and a target
+// false-positive rate p: m = -n ln p / (ln 2)^2 bits and k = m / n ln 2 bit
+// positions per entry. The k positions are h1 + i * h2 for two 64-bit hashes
+// of the string (Kirsch and Mitzenmacher), so an add or a query hashes the
+// characters twice whatever k is and allocates nothing. Bits are kept in an
+// AtomicLongArray: adds from several threads set bits with CAS and queries
+// never lock.
+//
+// Memory never grows. Adding more entries than expected raises the
+// false-positive rate instead, which getFalsePositiveRate() reports from
+// the current entry count.
+public class BloomFilter {
+    private static final long SEED1 = 0x9E3779B97F4A7C15L;
+    private static final long SEED2 = 0xC2B2AE3D27D4EB4FL;
+    private static final int MAX_WORDS = Integer.MAX_VALUE - 8;
+    
+    private final AtomicLongArray words;
+    private final long bitCount;
+    private final int hashCount;
+    private final LongAdder entries = new LongAdder();
+    
+    public BloomFilter(long expectedEntries, double falsePositiveRate) {
+        if (expectedEntries < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Expected entries must be positive and the false-positive rate between 0 and 1");
+        }
+        
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (ln2 * ln2));
+        long wordCount = (bits + 63) / 64;
+        if (wordCount > MAX_WORDS) {
+            throw new IllegalArgumentException("A filter for " + expectedEntries + " entries at " + falsePositiveRate +
+                                               " needs more than " + MAX_WORDS + " words");
+        }
+        
+        this.words = new AtomicLongArray((int) wordCount);
+        this.bitCount = wordCount * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedEntries * ln2));
+    }
+    
+    public void add(String value) {
+        long h1 = hash(value, SEED1);
+        long h2 = hash(value, SEED2);
+        
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            
+            long current = words.get(word);
+            while ((current & mask) == 0 && !words.compareAndSet(word, current, current | mask)) {
+                current = words.get(word);
+            }
+        }
+        entries.increment();
+    }
+    
+    // False means the value was never added; true means it probably was
+    public boolean mightContain(String value) {
+        long h1 = hash(value, SEED1);
+        long h2 = hash(value, SEED2);
+        
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public long getBitCount() {
+        return bitCount;
+    }
+    
+    public int getHashCount() {
+        return hashCount;
+    }
+    
+    public long getEntryCount() {
+        return entries.sum();
+    }
+    
+    // Expected false-positive rate at the current number of entries: (1 - e^(-kn/m))^k
+    public double getFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) hashCount * entries.sum() / bitCount), hashCount);
+    }
+    
+    // 64-bit hash of the characters, finished with the MurmurHash3 mixer
+    private static long hash(String value, long seed) {
+        long h = seed ^ value.length();
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001B3L;
+            h = Long.rotateLeft(h, 29) * SEED1;
+        }
+        
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
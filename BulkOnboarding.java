@@ -0,0 +1,489 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bulk customer onboarding: one user and one opening account per input record.
+//
+// Records are read as a stream of CSV lines
+//     full_name,email,username,password,account_type
+// (an optional header line is skipped; fields may be double-quoted) and cut
+// into chunks. Writer threads each take a chunk and, on their own connection
+// and in one transaction:
+//   1. drop records that fail validation or repeat a username or email
+//      already seen in the chunk or already stored,
+//   2. pre-allocate a distinct, unused account number for every remaining record,
+//   3. insert all users in one JDBC batch and map the generated keys back in order,
+//   4. insert all accounts in one JDBC batch and commit.
+// If a batch is still refused (a duplicate committed by a concurrent chunk or
+// registration in the meantime), the chunk is rolled back and replayed record
+// by record under savepoints, so only the offending records fail. An account
+// number taken in the meantime is not the record's fault: the replay draws
+// another one for it instead.
+//
+// Every failure is reported with its line number and reason; the run never
+// aborts because of a bad record. Meant to run while the application is shut
+// down: the application's read model and audit log are not told about the new
+// customers until its next start.
+public class BulkOnboarding {
+    private static final int DEFAULT_CHUNK_SIZE = 1000;
+    private static final String[] ACCOUNT_TYPES = {"Savings", "Checking"};
+    
+    // Account numbers tried per record in the replay before its account collision counts as a failure
+    private static final int ACCOUNT_NUMBER_ATTEMPTS = 3;
+    
+    private static final String USER_SQL = "INSERT INTO users (username, password, full_name, email) VALUES (?, ?, ?, ?)";
+    private static final String ACCOUNT_SQL = "INSERT INTO accounts (user_id, account_number, account_type, balance) VALUES (?, ?, ?, ?)";
+    
+    // One customer to onboard
+    public static class CustomerRecord {
+        public final long lineNumber;
+        public final String fullName;
+        public final String email;
+        public final String username;
+        public final String password;
+        public final String accountType;
+        
+        public CustomerRecord(long lineNumber, String fullName, String email, String username, String password,
+                              String accountType) {
+            this.lineNumber = lineNumber;
+            this.fullName = fullName;
+            this.email = email;
+            this.username = username;
+            this.password = password;
+            this.accountType = accountType;
+        }
+    }
+    
+    // A record that was not onboarded, and why
+    public static class Failure {
+        public final long lineNumber;
+        public final String username;
+        public final String reason;
+        
+        Failure(long lineNumber, String username, String reason) {
+            this.lineNumber = lineNumber;
+            this.username = username;
+            this.reason = reason;
+        }
+        
+        @Override
+        public String toString() {
+            return "line " + lineNumber + " (" + username + "): " + reason;
+        }
+    }
+    
+    public interface FailureListener {
+        void failed(Failure failure);
+    }
+    
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPassword;
+    private final int chunkSize;
+    private final int parallelism;
+    private final AtomicLong onboarded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    
+    public BulkOnboarding(String dbUrl, String dbUser, String dbPassword, int chunkSize, int parallelism) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+    }
+    
+    // Onboard every record in the input; failures go to the listener, which may be called from several threads
+    public void run(Reader input, FailureListener listener) throws IOException, SQLException, InterruptedException {
+        ExecutorService writers = Executors.newFixedThreadPool(parallelism);
+        // Bounded so the reader never gets more than a few chunks ahead of the writers
+        Semaphore inFlight = new Semaphore(parallelism * 2);
+        List<Future<?>> futures = new ArrayList<>();
+        
+        try (BufferedReader reader = new BufferedReader(input)) {
+            List<CustomerRecord> chunk = new ArrayList<>(chunkSize);
+            String line;
+            long lineNumber = 0;
+            
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || (lineNumber == 1 && line.toLowerCase().startsWith("full_name"))) {
+                    continue;
+                }
+                
+                String[] fields = parseCsvLine(line);
+                if (fields.length != 5) {
+                    report(listener, new Failure(lineNumber, fields.length > 2 ? fields[2] : "?",
+                                                 "Expected 5 fields, found " + fields.length));
+                    continue;
+                }
+                chunk.add(new CustomerRecord(lineNumber, fields[0].trim(), fields[1].trim(), fields[2].trim(),
+                                             fields[3], fields[4].trim()));
+                
+                if (chunk.size() == chunkSize) {
+                    futures.add(submit(writers, inFlight, chunk, listener));
+                    chunk = new ArrayList<>(chunkSize);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                futures.add(submit(writers, inFlight, chunk, listener));
+            }
+            
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof SQLException) {
+                        throw (SQLException) cause;
+                    }
+                    throw new SQLException("Onboarding chunk failed: " + cause, cause);
+                }
+            }
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+    
+    public long getOnboarded() {
+        return onboarded.get();
+    }
+    
+    public long getFailed() {
+        return failed.get();
+    }
+    
+    private Future<?> submit(ExecutorService writers, Semaphore inFlight, List<CustomerRecord> chunk,
+                             FailureListener listener) throws InterruptedException {
+        inFlight.acquire();
+        return writers.submit(() -> {
+            try {
+                onboardChunk(chunk, listener);
+                return null;
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+    
+    private void onboardChunk(List<CustomerRecord> chunk, FailureListener listener) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+            conn.setAutoCommit(false);
+            
+            try {
+                List<CustomerRecord> accepted = screen(conn, chunk, listener);
+                if (accepted.isEmpty()) {
+                    return;
+                }
+                String[] accountNumbers = allocateAccountNumbers(conn, accepted.size());
+                
+                try {
+                    insertBatch(conn, accepted, accountNumbers);
+                    conn.commit();
+                    onboarded.addAndGet(accepted.size());
+                } catch (SQLException e) {
+                    // Something slipped past screening; isolate the offending records
+                    conn.rollback();
+                    insertOneByOne(conn, accepted, accountNumbers, listener);
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+    
+    // Drop invalid records and duplicate usernames or emails, within the chunk and against stored users
+    private List<CustomerRecord> screen(Connection conn, List<CustomerRecord> chunk,
+                                        FailureListener listener) throws SQLException {
+        Set<String> usernames = new HashSet<>();
+        Set<String> emails = new HashSet<>();
+        List<CustomerRecord> valid = new ArrayList<>(chunk.size());
+        
+        for (CustomerRecord record : chunk) {
+            String problem = validate(record);
+            if (problem == null && !usernames.add(record.username)) {
+                problem = "Duplicate username in input";
+            }
+            if (problem == null && !emails.add(record.email)) {
+                problem = "Duplicate email in input";
+            }
+            
+            if (problem == null) {
+                valid.add(record);
+            } else {
+                report(listener, new Failure(record.lineNumber, record.username, problem));
+            }
+        }
+        
+        // One lookup per column: H2 answers each through that column's unique index, but scans the whole
+        // table for an OR of the two
+        Set<String> takenUsernames = storedUserValues(conn, "username", usernames);
+        Set<String> takenEmails = storedUserValues(conn, "email", emails);
+        
+        if (takenUsernames.isEmpty() && takenEmails.isEmpty()) {
+            return valid;
+        }
+        
+        List<CustomerRecord> accepted = new ArrayList<>(valid.size());
+        for (CustomerRecord record : valid) {
+            if (takenUsernames.contains(record.username)) {
+                report(listener, new Failure(record.lineNumber, record.username, "Username already exists"));
+            } else if (takenEmails.contains(record.email)) {
+                report(listener, new Failure(record.lineNumber, record.username, "Email already exists"));
+            } else {
+                accepted.add(record);
+            }
+        }
+        return accepted;
+    }
+    
+    // The given values that some stored user already has in the column
+    private static Set<String> storedUserValues(Connection conn, String column, Set<String> values)
+            throws SQLException {
+        Set<String> stored = new HashSet<>();
+        String sql = "SELECT " + column + " FROM users WHERE " + column + " = ANY(?)";
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setArray(1, conn.createArrayOf("VARCHAR", values.toArray()));
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    stored.add(rs.getString(column));
+                }
+            }
+        }
+        return stored;
+    }
+    
+    // Same rules as the registration form, plus the column limits of the schema
+    private static String validate(CustomerRecord record) {
+        if (record.fullName.isEmpty() || record.email.isEmpty() || record.username.isEmpty() || record.password.isEmpty()) {
+            return "Missing required field";
+        }
+        if (record.username.length() > 50 || record.password.length() > 50
+            || record.fullName.length() > 100 || record.email.length() > 100) {
+            return "Field too long";
+        }
+        if (!Arrays.asList(ACCOUNT_TYPES).contains(record.accountType)) {
+            return "Unknown account type: " + record.accountType;
+        }
+        return null;
+    }
+    
+    // Distinct random 10-digit account numbers not yet used by any account
+    static String[] allocateAccountNumbers(Connection conn, int count) throws SQLException {
+        Random random = ThreadLocalRandom.current();
+        Set<String> allocated = new LinkedHashSet<>();
+        String sql = "SELECT account_number FROM accounts WHERE account_number = ANY(?)";
+        
+        while (allocated.size() < count) {
+            Set<String> candidates = new HashSet<>();
+            while (allocated.size() + candidates.size() < count) {
+                String candidate = String.format("%010d", (long) (random.nextDouble() * 10_000_000_000L));
+                if (!allocated.contains(candidate)) {
+                    candidates.add(candidate);
+                }
+            }
+            
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setArray(1, conn.createArrayOf("VARCHAR", candidates.toArray()));
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        candidates.remove(rs.getString("account_number"));
+                    }
+                }
+            }
+            allocated.addAll(candidates);
+        }
+        return allocated.toArray(new String[0]);
+    }
+    
+    private static void insertBatch(Connection conn, List<CustomerRecord> records, String[] accountNumbers)
+            throws SQLException {
+        int[] userIds = new int[records.size()];
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(USER_SQL, Statement.RETURN_GENERATED_KEYS)) {
+            for (CustomerRecord record : records) {
+                bindUser(pstmt, record);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            
+            // Generated keys come back in batch order
+            try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
+                int i = 0;
+                while (generatedKeys.next() && i < userIds.length) {
+                    userIds[i++] = generatedKeys.getInt(1);
+                }
+                if (i != userIds.length) {
+                    throw new SQLException("Creating users failed, expected " + userIds.length + " IDs but got " + i);
+                }
+            }
+        }
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(ACCOUNT_SQL)) {
+            for (int i = 0; i < records.size(); i++) {
+                bindAccount(pstmt, userIds[i], accountNumbers[i], records.get(i));
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+    }
+    
+    // Fallback after a refused batch: each record under its own savepoint, committed together
+    private void insertOneByOne(Connection conn, List<CustomerRecord> records, String[] accountNumbers,
+                                FailureListener listener) throws SQLException {
+        int inserted = 0;
+        
+        try (PreparedStatement userStmt = conn.prepareStatement(USER_SQL, Statement.RETURN_GENERATED_KEYS);
+             PreparedStatement accountStmt = conn.prepareStatement(ACCOUNT_SQL)) {
+            for (int i = 0; i < records.size(); i++) {
+                CustomerRecord record = records.get(i);
+                Savepoint savepoint = conn.setSavepoint();
+                
+                try {
+                    bindUser(userStmt, record);
+                    userStmt.executeUpdate();
+                    
+                    int userId;
+                    try (ResultSet generatedKeys = userStmt.getGeneratedKeys()) {
+                        if (!generatedKeys.next()) {
+                            throw new SQLException("Creating user failed, no ID obtained.");
+                        }
+                        userId = generatedKeys.getInt(1);
+                    }
+                    
+                    insertAccount(conn, accountStmt, userId, accountNumbers, i, record);
+                    conn.releaseSavepoint(savepoint);
+                    inserted++;
+                } catch (SQLException e) {
+                    conn.rollback(savepoint);
+                    String reason = e.getMessage().contains("Unique index or primary key violation")
+                        ? "Username, email or account number already exists" : e.getMessage();
+                    report(listener, new Failure(record.lineNumber, record.username, reason));
+                }
+            }
+        }
+        
+        conn.commit();
+        onboarded.addAndGet(inserted);
+    }
+    
+    // Insert one record's account; accounts are only unique by number, so a duplicate key means the number
+    // was taken after allocation and another one is drawn
+    private static void insertAccount(Connection conn, PreparedStatement accountStmt, int userId, String[] accountNumbers,
+                                      int index, CustomerRecord record) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            Savepoint savepoint = conn.setSavepoint();
+            try {
+                bindAccount(accountStmt, userId, accountNumbers[index], record);
+                accountStmt.executeUpdate();
+                conn.releaseSavepoint(savepoint);
+                return;
+            } catch (SQLException e) {
+                conn.rollback(savepoint);
+                if (!"23505".equals(e.getSQLState()) || attempt == ACCOUNT_NUMBER_ATTEMPTS) {
+                    throw e;
+                }
+                accountNumbers[index] = allocateAccountNumbers(conn, 1)[0];
+            }
+        }
+    }
+    
+    private static void bindUser(PreparedStatement pstmt, CustomerRecord record) throws SQLException {
+        pstmt.setString(1, record.username);
+        pstmt.setString(2, record.password);
+        pstmt.setString(3, record.fullName);
+        pstmt.setString(4, record.email);
+    }
+    
+    private static void bindAccount(PreparedStatement pstmt, int userId, String accountNumber, CustomerRecord record)
+            throws SQLException {
+        pstmt.setInt(1, userId);
+        pstmt.setString(2, accountNumber);
+        pstmt.setString(3, record.accountType);
+        pstmt.setDouble(4, OnlineBankingSystem.INITIAL_BALANCE);
+    }
+    
+    private void report(FailureListener listener, Failure failure) {
+        failed.incrementAndGet();
+        listener.failed(failure);
+    }
+    
+    // Split one CSV line; fields may be double-quoted, with "" for a literal quote
+    static String[] parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+    
+    // Usage: BulkOnboarding <customers.csv | -> [failures.txt] [threads] [chunk size]
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: BulkOnboarding <customers.csv | -> [failures.txt] [threads] [chunk size]");
+            System.exit(2);
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int chunkSize = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_CHUNK_SIZE;
+        
+        try (Connection conn = DriverManager.getConnection(OnlineBankingSystem.DB_URL, OnlineBankingSystem.DB_USER,
+                                                           OnlineBankingSystem.DB_PASSWORD)) {
+            new SchemaMigrator().migrate(conn);
+        }
+        
+        BulkOnboarding onboarding = new BulkOnboarding(OnlineBankingSystem.DB_URL, OnlineBankingSystem.DB_USER,
+                                                       OnlineBankingSystem.DB_PASSWORD, chunkSize, threads);
+        InputStream in = "-".equals(args[0]) ? System.in : new FileInputStream(args[0]);
+        PrintWriter failures = args.length > 1
+            ? new PrintWriter(new OutputStreamWriter(new FileOutputStream(args[1]), StandardCharsets.UTF_8))
+            : new PrintWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8), true);
+        
+        long start = System.nanoTime();
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            onboarding.run(reader, failure -> {
+                synchronized (failures) {
+                    failures.println(failure);
+                }
+            });
+        } finally {
+            failures.flush();
+            if (args.length > 1) {
+                failures.close();
+            }
+        }
+        long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        
+        System.out.println("Onboarded " + onboarding.getOnboarded() + " customers in " + elapsedMs + " ms (" +
+                           onboarding.getOnboarded() * 60_000 / elapsedMs + " per minute), " +
+                           onboarding.getFailed() + " failed");
+    }
+}
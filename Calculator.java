@@ -1,18 +1,125 @@
 
 import javax.swing.*;
 import javax.swing.border.*;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.*;
 import java.sql.*;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
+import java.lang.management.ManagementFactory;
 
 public class OnlineBankingSystem {
     // Database connection details
-    private static final String DB_URL = "jdbc:h2:./bankingDB";
-    private static final String DB_USER = "sa";
-    private static final String DB_PASSWORD = "";
+    static final String DB_URL = System.getProperty("banking.db.url", "jdbc:h2:./bankingDB");
+    static final String DB_USER = "sa";
+    static final String DB_PASSWORD = "";
+    
+    // Opening balance credited to every new account at registration
+    static final double INITIAL_BALANCE = 1000.00;
+    
+    // How long a screen refresh waits for the read model to catch up with the user's own posting
+    private static final long READ_YOUR_WRITES_TIMEOUT_MS = 500;
+    
+    // Days of postings the read model holds; history searches reaching further back run on the primary
+    private static final long READ_MODEL_WINDOW_DAYS = Long.getLong("banking.readmodel.window.days", 90);
+    
+    // Storage behind balance reads, deposits and withdrawals. Only jdbc can post inside the
+    // application's own transactions, next to the idempotency claim; see LedgerStorage.
+    private static final String LEDGER_STORAGE = System.getProperty("banking.ledger.storage", "jdbc");
+    
+    // Read model lag above which its applier logs a warning
+    private static final long READ_MODEL_MAX_LAG_MS = Long.getLong("banking.readmodel.max.lag.ms", 1000);
+    
+    // Velocity limits enforced on transfers and withdrawals
+    private static final double DAILY_WITHDRAWAL_CAP = 5000.00;
+    private static final long MAX_TRANSFERS_PER_MINUTE = Long.getLong("banking.velocity.transfers.per.minute", 10);
+    private static final double MAX_OUTGOING_PER_HOUR = 20000.00;
+    
+    // Worker threads executing due standing orders
+    private static final int STANDING_ORDER_WORKERS = 4;
+    
+    // Authorization holds still open after this long are released automatically
+    private static final long HOLD_EXPIRY_HOURS = Long.getLong("banking.holds.expiry.hours", 7 * 24);
+    
+    // Registration availability filters: users they are sized for, their false-positive rate, and
+    // how long typing must pause before a field is checked
+    private static final long EXPECTED_USERS = Long.getLong("banking.users.expected", 1_000_000);
+    private static final double AVAILABILITY_FALSE_POSITIVE_RATE =
+        Double.parseDouble(System.getProperty("banking.availability.fpp", "0.01"));
+    private static final int AVAILABILITY_DEBOUNCE_MS = 300;
+    
+    // How long idempotency keys are remembered, and how many are cached in memory
+    private static final long IDEMPOTENCY_RETENTION_HOURS = 24;
+    private static final int IDEMPOTENCY_CACHE_SIZE = 100_000;
+    
+    // Audit log location, durability (NONE or BATCH) and ring buffer size
+    private static final String AUDIT_LOG_FILE = System.getProperty("banking.audit.file", "audit.log");
+    private static final String AUDIT_DURABILITY = System.getProperty("banking.audit.durability", "BATCH");
+    private static final int AUDIT_RING_SIZE = 8192;
+    
+    // Annual interest rate credited monthly to savings accounts (no accrual if unset), and its worker threads
+    private static final String INTEREST_ANNUAL_RATE = System.getProperty("banking.interest.annual.rate");
+    private static final int INTEREST_ACCRUAL_WORKERS = 2;
+    
+    // Local time of the nightly balance reconciliation, and its worker threads
+    private static final String RECONCILIATION_TIME = System.getProperty("banking.reconciliation.time", "02:00");
+    private static final int RECONCILIATION_WORKERS = 2;
+    
+    // Online backup repository (no scheduled backups if unset) and how often to back up
+    private static final String BACKUP_DIR = System.getProperty("banking.backup.dir");
+    private static final long BACKUP_INTERVAL_MINUTES = Long.getLong("banking.backup.interval.minutes", 60);
+    
+    // Admission control: connection budget, batch share of it, queue sizes and the interactive latency target
+    private static final int ADMISSION_CONCURRENCY = Integer.getInteger("banking.admission.concurrency", 16);
+    private static final int ADMISSION_BATCH_CONCURRENCY = Integer.getInteger("banking.admission.batch.concurrency", 4);
+    private static final int ADMISSION_INTERACTIVE_QUEUE = 256;
+    private static final int ADMISSION_BATCH_QUEUE = 64;
+    private static final long INTERACTIVE_SLO_MILLIS = Long.getLong("banking.admission.interactive.slo.ms", 250);
+    private static final long BATCH_MAX_WAIT_MILLIS = 30_000;
+    
+    // Sessions end after this long without activity, and in any case after the absolute lifetime
+    private static final long SESSION_IDLE_TIMEOUT_MINUTES = 15;
+    private static final long SESSION_ABSOLUTE_TIMEOUT_MINUTES = 12 * 60;
+    private static final int EXPECTED_SESSIONS = 1024;
+    
+    // Audit detail for a retry answered with the result of the original request
+    private static final String REPEATED_REQUEST = "Repeated request, original result returned";
+    
+    // SQL issued on the primary and the read model; QueryPlanCheck verifies each one uses an index
+    static final String AUTHENTICATE_SQL =
+        "SELECT id, full_name FROM users WHERE username = ? AND password = ?";
+    static final String USER_ACCOUNT_IDS_SQL =
+        "SELECT id, account_number FROM accounts WHERE user_id = ?";
+    static final String INSERT_USER_SQL =
+        "INSERT INTO users (username, password, full_name, email) VALUES (?, ?, ?, ?)";
+    static final String INSERT_ACCOUNT_SQL =
+        "INSERT INTO accounts (user_id, account_number, account_type, balance) VALUES (?, ?, ?, ?)";
+    static final String DASHBOARD_ACCOUNTS_SQL =
+        "SELECT id, account_number, account_type, balance FROM accounts WHERE user_id = ?";
+    static final String ACCOUNT_BALANCES_SQL =
+        "SELECT account_number, account_type, balance FROM accounts WHERE user_id = ?";
+    static final String ACCOUNT_CHOICES_SQL =
+        "SELECT account_number, account_type FROM accounts WHERE user_id = ?";
+    static final String OWNED_ACCOUNT_FOR_UPDATE_SQL =
+        "SELECT id, balance FROM accounts WHERE account_number = ? AND user_id = ? FOR UPDATE";
+    static final String ACCOUNT_BY_NUMBER_SQL =
+        "SELECT id FROM accounts WHERE account_number = ?";
+    static final String DEBIT_SQL =
+        "UPDATE accounts SET balance = balance - ? WHERE id = ?";
+    static final String CREDIT_SQL =
+        "UPDATE accounts SET balance = balance + ? WHERE id = ?";
+    static final String INSERT_TRANSFER_SQL =
+        "INSERT INTO transactions (from_account_id, to_account_id, amount, transaction_type, description, from_balance_after, to_balance_after, transaction_date) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    static final String INSERT_DEPOSIT_SQL =
+        "INSERT INTO transactions (to_account_id, amount, transaction_type, description, to_balance_after, transaction_date) VALUES (?, ?, ?, ?, ?, ?)";
+    static final String INSERT_WITHDRAWAL_SQL =
+        "INSERT INTO transactions (from_account_id, amount, transaction_type, description, from_balance_after, transaction_date) VALUES (?, ?, ?, ?, ?, ?)";
+    static final String BALANCE_SQL =
+        "SELECT balance FROM accounts WHERE id = ?";
     
     // UI Components
     private JFrame mainFrame;
@@ -20,9 +127,102 @@ public class OnlineBankingSystem {
     private CardLayout cardLayout;
     private JPanel contentPanel;
     
-    // Current logged in user
-    private int currentUserId = -1;
-    private String currentUsername = "";
+    // Applies versioned schema changes at startup
+    private final SchemaMigrator schemaMigrator = new SchemaMigrator();
+    
+    // Moves closed months out of the hot transactions table
+    private final TransactionArchiver transactionArchiver = new TransactionArchiver(DB_URL, DB_USER, DB_PASSWORD);
+    
+    // In-memory velocity and fraud limits checked before each posting
+    private final VelocityLimiter velocityLimiter = new VelocityLimiter(DAILY_WITHDRAWAL_CAP, MAX_TRANSFERS_PER_MINUTE, MAX_OUTGOING_PER_HOUR);
+    
+    // Balance reads and single-leg postings, inside the transaction of the operation making them
+    private final LedgerStorage ledgerStorage = openLedgerStorage(LEDGER_STORAGE);
+    
+    // In-memory copy serving dashboard, account list and history reads
+    private final ReadModel readModel = new ReadModel(DB_URL, DB_USER, DB_PASSWORD, READ_MODEL_WINDOW_DAYS,
+                                                      READ_MODEL_MAX_LAG_MS);
+    
+    // Logged-in sessions with their cached user and account metadata
+    private final SessionStore sessionStore = new SessionStore(SESSION_IDLE_TIMEOUT_MINUTES, SESSION_ABSOLUTE_TIMEOUT_MINUTES, EXPECTED_SESSIONS);
+    
+    // Append-only trail of logins, registrations and postings, written off the calling thread
+    private final AuditLog auditLog = new AuditLog(java.nio.file.Paths.get(AUDIT_LOG_FILE),
+                                                   AuditLog.Durability.valueOf(AUDIT_DURABILITY), AUDIT_RING_SIZE);
+    
+    // Separates interactive requests from batch work competing for the database. Interactive requests start
+    // on the event dispatch thread, which must never park, so they take a free slot or are refused at once.
+    private final AdmissionController admission =
+        new AdmissionController(ADMISSION_CONCURRENCY, ADMISSION_BATCH_CONCURRENCY, ADMISSION_INTERACTIVE_QUEUE,
+                                ADMISSION_BATCH_QUEUE, INTERACTIVE_SLO_MILLIS, BATCH_MAX_WAIT_MILLIS);
+    
+    // Executes standing orders and future-dated transfers when they fall due
+    private final StandingOrderScheduler standingOrderScheduler =
+        new StandingOrderScheduler(DB_URL, DB_USER, DB_PASSWORD,
+            (conn, userId, from, to, amount, description) -> {
+                Runnable afterCommit = postTransfer(conn, userId, from, to, amount, description, null, 0);
+                return () -> {
+                    afterCommit.run();
+                    auditLog.record(AuditLog.Action.TRANSFER, true, userId, from, to, amount, description);
+                };
+            },
+            STANDING_ORDER_WORKERS, admission);
+    
+    // Credits monthly interest to savings accounts; postings reach the read model and open screens after commit
+    private final InterestAccrualJob interestAccrualJob = INTEREST_ANNUAL_RATE == null ? null :
+        new InterestAccrualJob(DB_URL, DB_USER, DB_PASSWORD, new BigDecimal(INTEREST_ANNUAL_RATE),
+            InterestAccrualJob.DEFAULT_RANGE_SIZE, INTEREST_ACCRUAL_WORKERS, admission,
+            (transactionId, accountId, amount, description, postedAt, balanceAfter) ->
+                publishPosting(transactionId, null, accountId, amount.doubleValue(), InterestAccrualJob.INTEREST_TYPE,
+                               description, postedAt, null, balanceAfter.doubleValue()));
+    
+    // Checks every stored balance against the ledger each night, next to live postings
+    private final ReconciliationJob reconciliationJob =
+        new ReconciliationJob(DB_URL, DB_USER, DB_PASSWORD, ReconciliationJob.DEFAULT_RANGE_SIZE, RECONCILIATION_WORKERS,
+                              admission);
+    
+    // Funds reserved for later capture; captures post as transfers to the hold's payee
+    private final HoldManager holdManager =
+        new HoldManager(DB_URL, DB_USER, DB_PASSWORD,
+            (conn, userId, from, to, amount, description, reserved) -> {
+                Runnable afterCommit = postTransfer(conn, userId, from, to, amount, description, null, reserved);
+                return () -> {
+                    afterCommit.run();
+                    auditLog.record(AuditLog.Action.TRANSFER, true, userId, from, to, amount, description);
+                };
+            },
+            HOLD_EXPIRY_HOURS, admission);
+    
+    // Answers whether a username or email is free, mostly without asking the database
+    private final UserAvailability userAvailability =
+        new UserAvailability(DB_URL, DB_USER, DB_PASSWORD, EXPECTED_USERS, AVAILABILITY_FALSE_POSITIVE_RATE);
+    
+    // Recognises retried transfers, deposits and withdrawals by their idempotency key
+    private final IdempotencyStore idempotencyStore = new IdempotencyStore(IDEMPOTENCY_RETENTION_HOURS, IDEMPOTENCY_CACHE_SIZE);
+    
+    // Idempotency key for the transfer currently being entered; renewed after each successful transfer
+    private String transferRequestKey = UUID.randomUUID().toString();
+    
+    // Completes once initializeDatabase has finished on its background thread
+    private final CompletableFuture<Void> databaseReady = new CompletableFuture<>();
+    
+    // Token of the session this window is logged in with; null when logged out
+    private String sessionToken;
+    
+    // Pushes committed balance changes to the open screens
+    private final BalanceEventBus balanceEvents = new BalanceEventBus();
+    private BalanceEventBus.Subscription balanceSubscription;
+    
+    // Dashboard balance labels by account id, updated in place when a balance changes
+    private final Map<Integer, JLabel> balanceLabels = new HashMap<>();
+    
+    // The transfer screen's source accounts, and each account's item in it by account id, updated in place
+    // when a balance changes
+    private JComboBox<String> fromAccountComboBox;
+    private final Map<Integer, TransferAccountItem> transferAccountItems = new HashMap<>();
+    
+    // Below the history table: how far back the rows shown go
+    private JLabel historyWindowLabel;
     
     public static void main(String[] args) {
         // Set look and feel to system default
@@ -32,62 +232,146 @@ public class OnlineBankingSystem {
             e.printStackTrace();
         }
         
-        // Start application
-        SwingUtilities.invokeLater(() -> {
-            OnlineBankingSystem app = new OnlineBankingSystem();
-            app.initializeDatabase();
-            app.createAndShowGUI();
-        });
+        // Start application: the database initialises while the first frame is being built
+        OnlineBankingSystem app = new OnlineBankingSystem();
+        
+        // No operation may run without an audit trail
+        try {
+            app.start();
+        } catch (java.io.IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(null, "Failed to open audit log: " + e.getMessage(), 
+                                         "Audit Error", JOptionPane.ERROR_MESSAGE);
+            System.exit(1);
+        }
+        
+        SwingUtilities.invokeLater(app::createAndShowGUI);
+    }
+    
+    // Open the audit log, then initialise the database in the background
+    void start() throws java.io.IOException {
+        auditLog.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(auditLog::close, "audit-log-close"));
+        startDatabaseInitialization();
+    }
+    
+    // Start without a frame so OperationBudgetCheck can drive the operations; call on the event dispatch thread
+    void startHeadless() throws java.io.IOException {
+        start();
+        cardLayout = new CardLayout();
+        contentPanel = new JPanel(cardLayout);
+    }
+    
+    // Run initializeDatabase on a background thread
+    private void startDatabaseInitialization() {
+        Thread initThread = new Thread(() -> {
+            try {
+                initializeDatabase();
+            } finally {
+                databaseReady.complete(null);
+            }
+        }, "database-init");
+        initThread.setDaemon(true);
+        initThread.start();
+    }
+    
+    // Block until the database is ready; only waits if the user acts before initialisation finishes
+    private void awaitDatabase() {
+        databaseReady.join();
     }
     
     // Initialize database tables if they don't exist
+    @SuppressWarnings("try")
     private void initializeDatabase() {
+        long start = System.nanoTime();
+        
         try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            // Create users table
-            try (Statement stmt = conn.createStatement()) {
-                String sql = "CREATE TABLE IF NOT EXISTS users (" +
-                             "id INT AUTO_INCREMENT PRIMARY KEY, " +
-                             "username VARCHAR(50) UNIQUE NOT NULL, " +
-                             "password VARCHAR(50) NOT NULL, " +
-                             "full_name VARCHAR(100) NOT NULL, " +
-                             "email VARCHAR(100) UNIQUE NOT NULL, " +
-                             "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)";
-                stmt.executeUpdate(sql);
-            }
+            // Apply pending schema migrations; a current schema costs one metadata read. Background ones
+            // are left for the archiver thread below.
+            java.util.List<SchemaMigrator.Migration> deferred = schemaMigrator.migrate(conn);
             
-            // Create accounts table
-            try (Statement stmt = conn.createStatement()) {
-                String sql = "CREATE TABLE IF NOT EXISTS accounts (" +
-                             "id INT AUTO_INCREMENT PRIMARY KEY, " +
-                             "user_id INT NOT NULL, " +
-                             "account_number VARCHAR(20) UNIQUE NOT NULL, " +
-                             "account_type VARCHAR(20) NOT NULL, " +
-                             "balance DECIMAL(15,2) DEFAULT 0.00, " +
-                             "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                             "FOREIGN KEY (user_id) REFERENCES users(id))";
-                stmt.executeUpdate(sql);
+            // Rebuild velocity windows from recent postings
+            velocityLimiter.rebuild(conn);
+            velocityLimiter.startSweeper();
+            sessionStore.startSweeper();
+            
+            // Reload recent idempotency keys so retries across a restart are still recognised
+            idempotencyStore.rebuild(conn);
+            idempotencyStore.startSweeper(DB_URL, DB_USER, DB_PASSWORD);
+            
+            // Reload open authorization holds; those that expired while stopped are released first
+            holdManager.rebuild(conn);
+            holdManager.start();
+            
+            System.out.println("Database initialized successfully in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            
+            // Load the read model and start following committed postings
+            readModel.start();
+            balanceEvents.start();
+            
+            // Start executing standing orders, catching up on any that fell due while stopped
+            standingOrderScheduler.start();
+            
+            // Credit interest for the month that has closed, catching up if it closed while stopped, and
+            // reconcile balances nightly; both run as batch work behind interactive requests
+            if (interestAccrualJob != null) {
+                interestAccrualJob.startSchedule();
             }
+            reconciliationJob.startSchedule(LocalTime.parse(RECONCILIATION_TIME));
             
-            // Create transactions table
-            try (Statement stmt = conn.createStatement()) {
-                String sql = "CREATE TABLE IF NOT EXISTS transactions (" +
-                             "id INT AUTO_INCREMENT PRIMARY KEY, " +
-                             "from_account_id INT, " +
-                             "to_account_id INT, " +
-                             "amount DECIMAL(15,2) NOT NULL, " +
-                             "transaction_type VARCHAR(20) NOT NULL, " +
-                             "description VARCHAR(200), " +
-                             "transaction_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                             "FOREIGN KEY (from_account_id) REFERENCES accounts(id), " +
-                             "FOREIGN KEY (to_account_id) REFERENCES accounts(id))";
-                stmt.executeUpdate(sql);
+            // Back up the live database on a schedule; postings are not paused while a backup runs
+            if (BACKUP_DIR != null) {
+                try {
+                    new BackupManager(java.nio.file.Paths.get(BACKUP_DIR))
+                        .startSchedule(DB_URL, DB_USER, DB_PASSWORD, BACKUP_INTERVAL_MINUTES);
+                } catch (java.io.IOException e) {
+                    e.printStackTrace();
+                }
             }
             
-            System.out.println("Database initialized successfully");
+            // Archive closed months in the background so startup is not delayed, then apply the background
+            // migrations. An index build holds the transactions table until it finishes, so it only starts once
+            // the reads above and the archiving are done; they would otherwise time out waiting for the lock.
+            Thread archiveThread = new Thread(() -> {
+                try (AdmissionController.Permit permit = admission.await(AdmissionController.Priority.BATCH)) {
+                    long moved = transactionArchiver.archiveClosedPeriods();
+                    if (moved > 0) {
+                        System.out.println("Archived " + moved + " transactions from closed periods");
+                    }
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                
+                try (Connection migrationConn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+                    schemaMigrator.applyDeferred(migrationConn, deferred);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }, "transaction-archiver");
+            archiveThread.setDaemon(true);
+            archiveThread.start();
+            
+            // Fill the registration availability filters; checks ask the database until this finishes
+            Thread availabilityThread = new Thread(() -> {
+                try (AdmissionController.Permit permit = admission.await(AdmissionController.Priority.BATCH);
+                     Connection loadConn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+                    userAvailability.load(loadConn);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "availability-filter-load");
+            availabilityThread.setDaemon(true);
+            availabilityThread.start();
         } catch (SQLException e) {
             e.printStackTrace();
-            JOptionPane.showMessageDialog(null, "Failed to initialize database: " + e.getMessage(), 
-                                         "Database Error", JOptionPane.ERROR_MESSAGE);
+            SwingUtilities.invokeLater(() -> 
+                JOptionPane.showMessageDialog(mainFrame, "Failed to initialize database: " + e.getMessage(), 
+                                             "Database Error", JOptionPane.ERROR_MESSAGE));
         }
     }
     
@@ -103,26 +387,68 @@ public class OnlineBankingSystem {
         cardLayout = new CardLayout();
         contentPanel = new JPanel(cardLayout);
         
-        // Initialize all panels
-        createLoginPanel();
-        createRegisterPanel();
-        createDashboardPanel();
-        createTransferPanel();
-        createHistoryPanel();
-        
-        // Add panels to content panel
-        contentPanel.add(loginPanel, "LOGIN");
-        contentPanel.add(registerPanel, "REGISTER");
-        contentPanel.add(dashboardPanel, "DASHBOARD");
-        contentPanel.add(transferPanel, "TRANSFER");
-        contentPanel.add(historyPanel, "HISTORY");
-        
-        // Show login panel first
-        cardLayout.show(contentPanel, "LOGIN");
+        // Only the login panel is built up front; the rest are created on first navigation
+        showPanel("LOGIN");
         
         // Add content panel to frame
         mainFrame.add(contentPanel);
         mainFrame.setVisible(true);
+        
+        // Report time to login screen once the frame has been painted
+        SwingUtilities.invokeLater(() -> {
+            long startupMs = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+            System.out.println("Login screen shown " + startupMs + " ms after JVM start");
+            
+            // Used by the class-data-sharing training run (see build-cds.sh)
+            if (Boolean.getBoolean("banking.exitAfterStartup")) {
+                awaitDatabase();
+                System.exit(0);
+            }
+        });
+    }
+    
+    // Switch to a panel, building it first if this is its first use
+    private void showPanel(String name) {
+        ensurePanel(name);
+        cardLayout.show(contentPanel, name);
+    }
+    
+    // Build a panel and add it to the card layout the first time it is needed
+    private void ensurePanel(String name) {
+        switch (name) {
+            case "LOGIN":
+                if (loginPanel == null) {
+                    createLoginPanel();
+                    contentPanel.add(loginPanel, name);
+                }
+                break;
+            case "REGISTER":
+                if (registerPanel == null) {
+                    createRegisterPanel();
+                    contentPanel.add(registerPanel, name);
+                }
+                break;
+            case "DASHBOARD":
+                if (dashboardPanel == null) {
+                    createDashboardPanel();
+                    contentPanel.add(dashboardPanel, name);
+                }
+                break;
+            case "TRANSFER":
+                if (transferPanel == null) {
+                    createTransferPanel();
+                    contentPanel.add(transferPanel, name);
+                }
+                break;
+            case "HISTORY":
+                if (historyPanel == null) {
+                    createHistoryPanel();
+                    contentPanel.add(historyPanel, name);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown panel: " + name);
+        }
     }
     
     // Create login panel
@@ -188,18 +514,22 @@ public class OnlineBankingSystem {
                 return;
             }
             
+            if (auditLogFailed("Login Error")) {
+                return;
+            }
+            
             // Authenticate user
             if (authenticateUser(username, password)) {
                 // Load user dashboard
                 loadUserDashboard();
-                cardLayout.show(contentPanel, "DASHBOARD");
+                showPanel("DASHBOARD");
             } else {
                 JOptionPane.showMessageDialog(mainFrame, "Invalid username or password", 
                                              "Login Error", JOptionPane.ERROR_MESSAGE);
             }
         });
         
-        registerButton.addActionListener(e -> cardLayout.show(contentPanel, "REGISTER"));
+        registerButton.addActionListener(e -> showPanel("REGISTER"));
         
         // Add panels to login panel
         loginPanel.add(titlePanel, BorderLayout.NORTH);
@@ -232,6 +562,12 @@ public class OnlineBankingSystem {
         JLabel usernameLabel = new JLabel("Username:");
         JTextField usernameField = new JTextField(20);
         
+        // Availability of the email and username, shown next to them as the user types
+        JLabel emailStatusLabel = new JLabel(" ");
+        JLabel usernameStatusLabel = new JLabel(" ");
+        watchAvailability(emailField, emailStatusLabel, UserAvailability.Field.EMAIL);
+        watchAvailability(usernameField, usernameStatusLabel, UserAvailability.Field.USERNAME);
+        
         JLabel passwordLabel = new JLabel("Password:");
         JPasswordField passwordField = new JPasswordField(20);
         
@@ -262,6 +598,10 @@ public class OnlineBankingSystem {
         gbc.gridy = 1;
         formPanel.add(emailField, gbc);
         
+        gbc.gridx = 2;
+        gbc.gridy = 1;
+        formPanel.add(emailStatusLabel, gbc);
+        
         gbc.gridx = 0;
         gbc.gridy = 2;
         formPanel.add(usernameLabel, gbc);
@@ -270,6 +610,10 @@ public class OnlineBankingSystem {
         gbc.gridy = 2;
         formPanel.add(usernameField, gbc);
         
+        gbc.gridx = 2;
+        gbc.gridy = 2;
+        formPanel.add(usernameStatusLabel, gbc);
+        
         gbc.gridx = 0;
         gbc.gridy = 3;
         formPanel.add(passwordLabel, gbc);
@@ -330,7 +674,7 @@ public class OnlineBankingSystem {
             if (registerUser(fullName, email, username, password, accountType)) {
                 JOptionPane.showMessageDialog(mainFrame, "Registration successful! Please login.", 
                                              "Registration Success", JOptionPane.INFORMATION_MESSAGE);
-                cardLayout.show(contentPanel, "LOGIN");
+                showPanel("LOGIN");
                 
                 // Clear fields
                 fullNameField.setText("");
@@ -341,13 +685,73 @@ public class OnlineBankingSystem {
             }
         });
         
-        backButton.addActionListener(e -> cardLayout.show(contentPanel, "LOGIN"));
+        backButton.addActionListener(e -> showPanel("LOGIN"));
         
         // Add panels to register panel
         registerPanel.add(titlePanel, BorderLayout.NORTH);
         registerPanel.add(formPanel, BorderLayout.CENTER);
     }
     
+    // Show whether a registration field's text is free once typing pauses. The filters answer most
+    // checks on the spot; possible hits are looked up off the event dispatch thread.
+    private void watchAvailability(JTextField field, JLabel statusLabel, UserAvailability.Field kind) {
+        javax.swing.Timer timer = new javax.swing.Timer(AVAILABILITY_DEBOUNCE_MS, e -> {
+            String value = field.getText();
+            if (value.isEmpty()) {
+                statusLabel.setText(" ");
+                return;
+            }
+            if (!userAvailability.mightBeTaken(kind, value)) {
+                showAvailability(statusLabel, false);
+                return;
+            }
+            
+            statusLabel.setText("Checking...");
+            statusLabel.setForeground(Color.GRAY);
+            CompletableFuture.supplyAsync(() -> {
+                try {
+                    return userAvailability.isTaken(kind, value);
+                } catch (SQLException ex) {
+                    ex.printStackTrace();
+                    return null;
+                }
+            }).thenAccept(taken -> SwingUtilities.invokeLater(() -> {
+                // Drop answers for text that has changed since
+                if (!value.equals(field.getText())) {
+                    return;
+                }
+                if (taken == null) {
+                    statusLabel.setText(" ");
+                } else {
+                    showAvailability(statusLabel, taken);
+                }
+            }));
+        });
+        timer.setRepeats(false);
+        
+        field.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            @Override
+            public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                timer.restart();
+            }
+            
+            @Override
+            public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                timer.restart();
+            }
+            
+            @Override
+            public void changedUpdate(javax.swing.event.DocumentEvent e) {
+                timer.restart();
+            }
+        });
+    }
+    
+    private void showAvailability(JLabel statusLabel, boolean taken) {
+        statusLabel.setText(taken ? "Already taken" : "Available");
+        statusLabel.setForeground(taken ? new Color(180, 0, 0) : new Color(0, 128, 0));
+    }
+    
     // Create dashboard panel
     private void createDashboardPanel() {
         dashboardPanel = new JPanel(new BorderLayout());
@@ -360,11 +764,7 @@ public class OnlineBankingSystem {
         titleLabel.setHorizontalAlignment(SwingConstants.CENTER);
         
         JButton logoutButton = new JButton("Logout");
-        logoutButton.addActionListener(e -> {
-            currentUserId = -1;
-            currentUsername = "";
-            cardLayout.show(contentPanel, "LOGIN");
-        });
+        logoutButton.addActionListener(e -> logout());
         
         JPanel logoutPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
         logoutPanel.add(logoutButton);
@@ -410,12 +810,12 @@ public class OnlineBankingSystem {
         // Add action listeners
         transferButton.addActionListener(e -> {
             updateTransferPanel();
-            cardLayout.show(contentPanel, "TRANSFER");
+            showPanel("TRANSFER");
         });
         
         historyButton.addActionListener(e -> {
             updateTransactionHistory();
-            cardLayout.show(contentPanel, "HISTORY");
+            showPanel("HISTORY");
         });
         
         depositButton.addActionListener(e -> {
@@ -450,7 +850,7 @@ public class OnlineBankingSystem {
         titleLabel.setHorizontalAlignment(SwingConstants.CENTER);
         
         JButton backButton = new JButton("Back to Dashboard");
-        backButton.addActionListener(e -> cardLayout.show(contentPanel, "DASHBOARD"));
+        backButton.addActionListener(e -> showPanel("DASHBOARD"));
         
         JPanel backPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         backPanel.add(backButton);
@@ -465,7 +865,7 @@ public class OnlineBankingSystem {
         gbc.insets = new Insets(5, 5, 5, 5);
         
         JLabel fromAccountLabel = new JLabel("From Account:");
-        JComboBox<String> fromAccountComboBox = new JComboBox<>();
+        fromAccountComboBox = new JComboBox<>();
         
         JLabel toAccountLabel = new JLabel("To Account:");
         JTextField toAccountField = new JTextField(20);
@@ -476,6 +876,12 @@ public class OnlineBankingSystem {
         JLabel descriptionLabel = new JLabel("Description:");
         JTextField descriptionField = new JTextField(20);
         
+        JLabel executeOnLabel = new JLabel("Execute on (yyyy-mm-dd):");
+        JTextField executeOnField = new JTextField(20);
+        executeOnField.setToolTipText("Leave empty to transfer now");
+        
+        JCheckBox repeatMonthlyCheckBox = new JCheckBox("Repeat monthly");
+        
         JButton transferButton = new JButton("Transfer");
         
         // Add components to form panel
@@ -511,11 +917,23 @@ public class OnlineBankingSystem {
         gbc.gridy = 3;
         formPanel.add(descriptionField, gbc);
         
+        gbc.gridx = 0;
+        gbc.gridy = 4;
+        formPanel.add(executeOnLabel, gbc);
+        
+        gbc.gridx = 1;
+        gbc.gridy = 4;
+        formPanel.add(executeOnField, gbc);
+        
+        gbc.gridx = 1;
+        gbc.gridy = 5;
+        formPanel.add(repeatMonthlyCheckBox, gbc);
+        
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
         buttonPanel.add(transferButton);
         
         gbc.gridx = 0;
-        gbc.gridy = 4;
+        gbc.gridy = 6;
         gbc.gridwidth = 2;
         formPanel.add(buttonPanel, gbc);
         
@@ -549,21 +967,45 @@ public class OnlineBankingSystem {
                 // Extract account number from combo box selection
                 String fromAccount = fromAccountStr.split(" - ")[0];
                 
+                // A date or repeat makes this a standing order instead of an immediate transfer
+                String executeOnStr = executeOnField.getText().trim();
+                if (!executeOnStr.isEmpty() || repeatMonthlyCheckBox.isSelected()) {
+                    LocalDate executeOn = executeOnStr.isEmpty() ? LocalDate.now() : LocalDate.parse(executeOnStr);
+                    if (executeOn.isBefore(LocalDate.now())) {
+                        JOptionPane.showMessageDialog(mainFrame, "Execution date cannot be in the past", 
+                                                     "Transfer Error", JOptionPane.ERROR_MESSAGE);
+                        return;
+                    }
+                    
+                    if (scheduleTransfer(fromAccount, toAccountStr, amount, description, executeOn, repeatMonthlyCheckBox.isSelected())) {
+                        JOptionPane.showMessageDialog(mainFrame, "Transfer scheduled for " + executeOn + 
+                                                     (repeatMonthlyCheckBox.isSelected() ? " and monthly thereafter" : ""), 
+                                                     "Transfer Scheduled", JOptionPane.INFORMATION_MESSAGE);
+                        toAccountField.setText("");
+                        amountField.setText("");
+                        descriptionField.setText("");
+                        executeOnField.setText("");
+                        repeatMonthlyCheckBox.setSelected(false);
+                    }
+                    return;
+                }
+                
                 // Perform transfer
-                if (transferFunds(fromAccount, toAccountStr, amount, description)) {
+                if (transferFunds(fromAccount, toAccountStr, amount, description, transferRequestKey)) {
+                    transferRequestKey = UUID.randomUUID().toString();
                     JOptionPane.showMessageDialog(mainFrame, "Transfer successful!", 
                                                  "Transfer Success", JOptionPane.INFORMATION_MESSAGE);
                     // Clear fields
                     toAccountField.setText("");
                     amountField.setText("");
                     descriptionField.setText("");
-                    
-                    // Refresh dashboard
-                    loadUserDashboard();
                 }
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(mainFrame, "Please enter a valid amount", 
                                              "Transfer Error", JOptionPane.ERROR_MESSAGE);
+            } catch (DateTimeParseException ex) {
+                JOptionPane.showMessageDialog(mainFrame, "Please enter the execution date as yyyy-mm-dd", 
+                                             "Transfer Error", JOptionPane.ERROR_MESSAGE);
             }
         });
         
@@ -584,7 +1026,7 @@ public class OnlineBankingSystem {
         titleLabel.setHorizontalAlignment(SwingConstants.CENTER);
         
         JButton backButton = new JButton("Back to Dashboard");
-        backButton.addActionListener(e -> cardLayout.show(contentPanel, "DASHBOARD"));
+        backButton.addActionListener(e -> showPanel("DASHBOARD"));
         
         JPanel backPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         backPanel.add(backButton);
@@ -595,43 +1037,201 @@ public class OnlineBankingSystem {
         // Center panel for transaction table
         JPanel tablePanel = new JPanel(new BorderLayout());
         
-        // Create table model
-        String[] columnNames = {"Date", "Type", "Description", "Amount", "Balance"};
-        DefaultTableModel tableModel = new DefaultTableModel(columnNames, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        // Create table model; cells are formatted by the renderer when first painted
+        HistoryTableModel tableModel = new HistoryTableModel();
         
         JTable transactionTable = new JTable(tableModel);
+        transactionTable.setDefaultRenderer(HistoryTableModel.Column.class, new HistoryTableModel.Renderer());
         JScrollPane scrollPane = new JScrollPane(transactionTable);
         
         tablePanel.add(scrollPane, BorderLayout.CENTER);
         
+        // Filter panel above the table
+        JPanel filterPanel = new JPanel(new GridBagLayout());
+        filterPanel.setBorder(BorderFactory.createTitledBorder("Search"));
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        gbc.insets = new Insets(2, 5, 2, 5);
+        
+        JTextField fromDateField = new JTextField(10);
+        JTextField toDateField = new JTextField(10);
+        String[] types = {"All", "TRANSFER", "DEPOSIT", "WITHDRAWAL", InterestAccrualJob.INTEREST_TYPE};
+        JComboBox<String> typeComboBox = new JComboBox<>(types);
+        JTextField minAmountField = new JTextField(8);
+        JTextField maxAmountField = new JTextField(8);
+        JTextField counterpartyField = new JTextField(10);
+        JTextField textField = new JTextField(15);
+        textField.setToolTipText("Whole words; postings must contain all of them");
+        
+        JButton searchButton = new JButton("Search");
+        JButton clearButton = new JButton("Clear");
+        
+        // First row: dates, type and counterparty
+        gbc.gridy = 0;
+        gbc.gridx = 0;
+        filterPanel.add(new JLabel("From (yyyy-mm-dd):"), gbc);
+        gbc.gridx = 1;
+        filterPanel.add(fromDateField, gbc);
+        gbc.gridx = 2;
+        filterPanel.add(new JLabel("To:"), gbc);
+        gbc.gridx = 3;
+        filterPanel.add(toDateField, gbc);
+        gbc.gridx = 4;
+        filterPanel.add(new JLabel("Type:"), gbc);
+        gbc.gridx = 5;
+        filterPanel.add(typeComboBox, gbc);
+        
+        // Second row: amounts, counterparty and description text
+        gbc.gridy = 1;
+        gbc.gridx = 0;
+        filterPanel.add(new JLabel("Min amount:"), gbc);
+        gbc.gridx = 1;
+        filterPanel.add(minAmountField, gbc);
+        gbc.gridx = 2;
+        filterPanel.add(new JLabel("Max:"), gbc);
+        gbc.gridx = 3;
+        filterPanel.add(maxAmountField, gbc);
+        gbc.gridx = 4;
+        filterPanel.add(new JLabel("Account:"), gbc);
+        gbc.gridx = 5;
+        filterPanel.add(counterpartyField, gbc);
+        
+        // Third row: description text and buttons
+        gbc.gridy = 2;
+        gbc.gridx = 0;
+        filterPanel.add(new JLabel("Description:"), gbc);
+        gbc.gridx = 1;
+        gbc.gridwidth = 3;
+        filterPanel.add(textField, gbc);
+        
+        JPanel searchButtonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        searchButtonPanel.add(searchButton);
+        searchButtonPanel.add(clearButton);
+        gbc.gridx = 4;
+        gbc.gridwidth = 2;
+        filterPanel.add(searchButtonPanel, gbc);
+        
+        // Add action listeners
+        searchButton.addActionListener(e -> {
+            HistorySearch.Filter filter = new HistorySearch.Filter();
+            
+            try {
+                if (!fromDateField.getText().trim().isEmpty()) {
+                    filter.fromDate = LocalDate.parse(fromDateField.getText().trim());
+                }
+                if (!toDateField.getText().trim().isEmpty()) {
+                    filter.toDate = LocalDate.parse(toDateField.getText().trim());
+                }
+                if (!minAmountField.getText().trim().isEmpty()) {
+                    filter.minAmount = new BigDecimal(minAmountField.getText().trim());
+                }
+                if (!maxAmountField.getText().trim().isEmpty()) {
+                    filter.maxAmount = new BigDecimal(maxAmountField.getText().trim());
+                }
+            } catch (DateTimeParseException ex) {
+                JOptionPane.showMessageDialog(mainFrame, "Please enter dates as yyyy-mm-dd", 
+                                             "History Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(mainFrame, "Please enter a valid amount", 
+                                             "History Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            
+            if (typeComboBox.getSelectedIndex() > 0) {
+                filter.transactionType = (String) typeComboBox.getSelectedItem();
+            }
+            if (!counterpartyField.getText().trim().isEmpty()) {
+                filter.counterpartyAccount = counterpartyField.getText().trim();
+            }
+            if (!textField.getText().trim().isEmpty()) {
+                filter.text = textField.getText().trim();
+            }
+            
+            updateTransactionHistory(filter);
+        });
+        
+        clearButton.addActionListener(e -> {
+            fromDateField.setText("");
+            toDateField.setText("");
+            typeComboBox.setSelectedIndex(0);
+            minAmountField.setText("");
+            maxAmountField.setText("");
+            counterpartyField.setText("");
+            textField.setText("");
+            updateTransactionHistory();
+        });
+        
+        tablePanel.add(filterPanel, BorderLayout.NORTH);
+        
+        historyWindowLabel = new JLabel(" ");
+        tablePanel.add(historyWindowLabel, BorderLayout.SOUTH);
+        
         // Add panels to history panel
         historyPanel.add(titlePanel, BorderLayout.NORTH);
         historyPanel.add(tablePanel, BorderLayout.CENTER);
     }
     
+    // End the current session and return to the login screen
+    void logout() {
+        sessionStore.invalidate(sessionToken);
+        sessionToken = null;
+        if (balanceSubscription != null) {
+            balanceSubscription.cancel();
+            balanceSubscription = null;
+        }
+        showPanel("LOGIN");
+    }
+    
     // Authenticate user
-    private boolean authenticateUser(String username, String password) {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT id FROM users WHERE username = ? AND password = ?";
-            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    @SuppressWarnings("try")
+    boolean authenticateUser(String username, String password) {
+        awaitDatabase();
+        
+        try (AdmissionController.Permit permit = admission.admitNow(AdmissionController.Priority.INTERACTIVE);
+             Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            int userId;
+            String fullName;
+            
+            try (PreparedStatement pstmt = conn.prepareStatement(AUTHENTICATE_SQL)) {
                 pstmt.setString(1, username);
                 pstmt.setString(2, password);
                 
                 try (ResultSet rs = pstmt.executeQuery()) {
-                    if (rs.next()) {
-                        currentUserId = rs.getInt("id");
-                        currentUsername = username;
-                        return true;
+                    if (!rs.next()) {
+                        auditLog.record(AuditLog.Action.LOGIN, false, -1, username, null, 0, "Invalid username or password");
+                        return false;
+                    }
+                    userId = rs.getInt("id");
+                    fullName = rs.getString("full_name");
+                }
+            }
+            
+            // Cache the user's accounts in the session so later screens and postings need not look them up
+            Map<String, Integer> accountIds = new HashMap<>();
+            try (PreparedStatement pstmt = conn.prepareStatement(USER_ACCOUNT_IDS_SQL)) {
+                pstmt.setInt(1, userId);
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        accountIds.put(rs.getString("account_number"), rs.getInt("id"));
                     }
                 }
             }
+            
+            sessionToken = sessionStore.create(userId, username, fullName, accountIds).getToken();
+            
+            // Follow balance changes to the user's accounts, including incoming transfers from others
+            if (balanceSubscription != null) {
+                balanceSubscription.cancel();
+            }
+            balanceSubscription = balanceEvents.subscribe(accountIds.values(),
+                change -> SwingUtilities.invokeLater(() -> showBalanceChange(change)));
+            auditLog.record(AuditLog.Action.LOGIN, true, userId, username, null, 0, null);
+            return true;
         } catch (SQLException e) {
             e.printStackTrace();
+            auditLog.record(AuditLog.Action.LOGIN, false, -1, username, null, 0, e.getMessage());
             JOptionPane.showMessageDialog(mainFrame, "Database error: " + e.getMessage(), 
                                          "Authentication Error", JOptionPane.ERROR_MESSAGE);
         }
@@ -640,72 +1240,90 @@ public class OnlineBankingSystem {
     }
     
     // Register new user
+    @SuppressWarnings("try")
     private boolean registerUser(String fullName, String email, String username, String password, String accountType) {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            // Start transaction
-            conn.setAutoCommit(false);
-            
-            try {
-                // Insert user
-                String userSql = "INSERT INTO users (username, password, full_name, email) VALUES (?, ?, ?, ?)";
-                int userId;
+        awaitDatabase();
+        if (auditLogFailed("Registration Error")) {
+            return false;
+        }
+        
+        String errorMessage = null;
+        try (AdmissionController.Permit permit = admission.admitNow(AdmissionController.Priority.INTERACTIVE);
+             Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            // Refuse a known username or email before starting a transaction that would only roll back
+            if (userAvailability.isTaken(conn, UserAvailability.Field.USERNAME, username) ||
+                userAvailability.isTaken(conn, UserAvailability.Field.EMAIL, email)) {
+                auditLog.record(AuditLog.Action.REGISTRATION, false, -1, username, null, 0, "Username or email already exists");
+                errorMessage = "Username or email already exists";
+            } else {
+                // Start transaction
+                conn.setAutoCommit(false);
                 
-                try (PreparedStatement pstmt = conn.prepareStatement(userSql, Statement.RETURN_GENERATED_KEYS)) {
-                    pstmt.setString(1, username);
-                    pstmt.setString(2, password);
-                    pstmt.setString(3, fullName);
-                    pstmt.setString(4, email);
+                try {
+                    // Insert user
+                    int userId;
                     
-                    pstmt.executeUpdate();
-                    
-                    try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
-                        if (generatedKeys.next()) {
-                            userId = generatedKeys.getInt(1);
-                        } else {
-                            throw new SQLException("Creating user failed, no ID obtained.");
+                    try (PreparedStatement pstmt = conn.prepareStatement(INSERT_USER_SQL, Statement.RETURN_GENERATED_KEYS)) {
+                        pstmt.setString(1, username);
+                        pstmt.setString(2, password);
+                        pstmt.setString(3, fullName);
+                        pstmt.setString(4, email);
+                        
+                        pstmt.executeUpdate();
+                        
+                        try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
+                            if (generatedKeys.next()) {
+                                userId = generatedKeys.getInt(1);
+                            } else {
+                                throw new SQLException("Creating user failed, no ID obtained.");
+                            }
                         }
                     }
-                }
-                
-                // Generate account number
-                String accountNumber = generateAccountNumber();
-                
-                // Insert account
-                String accountSql = "INSERT INTO accounts (user_id, account_number, account_type, balance) VALUES (?, ?, ?, ?)";
-                try (PreparedStatement pstmt = conn.prepareStatement(accountSql)) {
-                    pstmt.setInt(1, userId);
-                    pstmt.setString(2, accountNumber);
-                    pstmt.setString(3, accountType);
-                    pstmt.setDouble(4, 1000.00); // Initial balance of $1000
                     
-                    pstmt.executeUpdate();
-                }
-                
-                // Commit transaction
-                conn.commit();
-                return true;
-            } catch (SQLException e) {
-                // Rollback transaction on error
-                conn.rollback();
-                e.printStackTrace();
-                
-                if (e.getMessage().contains("Unique index or primary key violation")) {
-                    JOptionPane.showMessageDialog(mainFrame, "Username or email already exists", 
-                                                 "Registration Error", JOptionPane.ERROR_MESSAGE);
-                } else {
-                    JOptionPane.showMessageDialog(mainFrame, "Registration error: " + e.getMessage(), 
-                                                 "Registration Error", JOptionPane.ERROR_MESSAGE);
+                    // Generate account number
+                    String accountNumber = generateAccountNumber();
+                    
+                    // Insert account
+                    int accountId;
+                    try (PreparedStatement pstmt = conn.prepareStatement(INSERT_ACCOUNT_SQL, Statement.RETURN_GENERATED_KEYS)) {
+                        pstmt.setInt(1, userId);
+                        pstmt.setString(2, accountNumber);
+                        pstmt.setString(3, accountType);
+                        pstmt.setDouble(4, INITIAL_BALANCE);
+                        
+                        pstmt.executeUpdate();
+                        accountId = generatedId(pstmt);
+                    }
+                    
+                    // Commit transaction
+                    conn.commit();
+                    userAvailability.add(username, email);
+                    readModel.publishAccountOpened(userId, fullName, accountId, accountNumber, accountType, INITIAL_BALANCE);
+                    auditLog.record(AuditLog.Action.REGISTRATION, true, userId, username, accountNumber, INITIAL_BALANCE, accountType);
+                    return true;
+                } catch (SQLException e) {
+                    // Rollback transaction on error
+                    conn.rollback();
+                    e.printStackTrace();
+                    auditLog.record(AuditLog.Action.REGISTRATION, false, -1, username, null, 0, e.getMessage());
+                    
+                    errorMessage = e.getMessage().contains("Unique index or primary key violation")
+                        ? "Username or email already exists"
+                        : "Registration error: " + e.getMessage();
+                } finally {
+                    // Restore auto-commit
+                    conn.setAutoCommit(true);
                 }
-            } finally {
-                // Restore auto-commit
-                conn.setAutoCommit(true);
             }
         } catch (SQLException e) {
             e.printStackTrace();
-            JOptionPane.showMessageDialog(mainFrame, "Database error: " + e.getMessage(), 
-                                         "Registration Error", JOptionPane.ERROR_MESSAGE);
+            auditLog.record(AuditLog.Action.REGISTRATION, false, -1, username, null, 0, e.getMessage());
+            errorMessage = "Database error: " + e.getMessage();
         }
         
+        // Shown only now, so the admission permit and connection are not held while the dialog is open
+        JOptionPane.showMessageDialog(mainFrame, errorMessage, 
+                                     "Registration Error", JOptionPane.ERROR_MESSAGE);
         return false;
     }
     
@@ -724,30 +1342,22 @@ public class OnlineBankingSystem {
     
     // Load user dashboard
     private void loadUserDashboard() {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            // Get user's full name
-            String userSql = "SELECT full_name FROM users WHERE id = ?";
-            String fullName = "";
-            
-            try (PreparedStatement pstmt = conn.prepareStatement(userSql)) {
-                pstmt.setInt(1, currentUserId);
-                
-                try (ResultSet rs = pstmt.executeQuery()) {
-                    if (rs.next()) {
-                        fullName = rs.getString("full_name");
-                    }
-                }
-            }
-            
-            // Update welcome message
+        SessionStore.Session session = currentSession();
+        if (session == null) {
+            return;
+        }
+        int userId = session.getUserId();
+        
+        ensurePanel("DASHBOARD");
+        
+        try (Connection conn = getReadConnection()) {
+            // Update welcome message from the name cached in the session
             JLabel welcomeLabel = (JLabel) ((JPanel) ((BorderLayout) dashboardPanel.getLayout()).getLayoutComponent(BorderLayout.CENTER)).getComponent(0);
-            welcomeLabel.setText("Welcome, " + fullName + "!");
+            welcomeLabel.setText("Welcome, " + session.getFullName() + "!");
             
             // Get user's accounts
-            String accountSql = "SELECT id, account_number, account_type, balance FROM accounts WHERE user_id = ?";
-            
-            try (PreparedStatement pstmt = conn.prepareStatement(accountSql)) {
-                pstmt.setInt(1, currentUserId);
+            try (PreparedStatement pstmt = conn.prepareStatement(DASHBOARD_ACCOUNTS_SQL)) {
+                pstmt.setInt(1, userId);
                 
                 try (ResultSet rs = pstmt.executeQuery()) {
                     // Get accounts panel
@@ -758,6 +1368,7 @@ public class OnlineBankingSystem {
                     
                     // Clear accounts panel
                     accountsPanel.removeAll();
+                    balanceLabels.clear();
                     
                     // Add accounts to panel
                     while (rs.next()) {
@@ -779,10 +1390,10 @@ public class OnlineBankingSystem {
                         accountInfoPanel.add(new JLabel("Type: " + accountType));
                         
                         // Format balance with 2 decimal places
-                        String balanceStr = String.format("$%.2f", balance);
-                        JLabel balanceLabel = new JLabel("Balance: " + balanceStr);
+                        JLabel balanceLabel = new JLabel("Balance: $" + MoneyFormat.format(balance));
                         balanceLabel.setFont(new Font("Arial", Font.BOLD, 14));
                         accountInfoPanel.add(balanceLabel);
+                        balanceLabels.put(accountId, balanceLabel);
                         
                         accountPanel.add(accountInfoPanel, BorderLayout.CENTER);
                         
@@ -805,21 +1416,23 @@ public class OnlineBankingSystem {
     
     // Update transfer panel with user's accounts
     private void updateTransferPanel() {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+        SessionStore.Session session = currentSession();
+        if (session == null) {
+            return;
+        }
+        int userId = session.getUserId();
+        
+        ensurePanel("TRANSFER");
+        
+        try (Connection conn = getReadConnection()) {
             // Get user's accounts
-            String sql = "SELECT account_number, account_type, balance FROM accounts WHERE user_id = ?";
-            
-            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                pstmt.setInt(1, currentUserId);
+            try (PreparedStatement pstmt = conn.prepareStatement(ACCOUNT_BALANCES_SQL)) {
+                pstmt.setInt(1, userId);
                 
                 try (ResultSet rs = pstmt.executeQuery()) {
-                    // Get from account combo box
-                    JPanel formPanel = (JPanel) ((BorderLayout) transferPanel.getLayout()).getLayoutComponent(BorderLayout.CENTER);
-JComboBox<String> fromAccountComboBox = (JComboBox<String>) formPanel.getComponent(1);
-
-                    
                     // Clear combo box
                     fromAccountComboBox.removeAllItems();
+                    transferAccountItems.clear();
                     
                     // Add accounts to combo box
                     while (rs.next()) {
@@ -827,8 +1440,10 @@ JComboBox<String> fromAccountComboBox = (JComboBox<String>) formPanel.getCompone
                         String accountType = rs.getString("account_type");
                         double balance = rs.getDouble("balance");
                         
-                        String item = accountNumber + " - " + accountType + " - $" + String.format("%.2f", balance);
-                        fromAccountComboBox.addItem(item);
+                        TransferAccountItem item = new TransferAccountItem(fromAccountComboBox.getItemCount(),
+                                                                           accountNumber + " - " + accountType);
+                        fromAccountComboBox.addItem(item.text(balance));
+                        transferAccountItems.put(session.getAccountIds().get(accountNumber), item);
                     }
                 }
             }
@@ -839,87 +1454,90 @@ JComboBox<String> fromAccountComboBox = (JComboBox<String>) formPanel.getCompone
         }
     }
     
-    // Update transaction history
-    private void updateTransactionHistory() {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            // Get user's accounts
-            String accountSql = "SELECT id, account_number FROM accounts WHERE user_id = ?";
-            Map<Integer, String> accountMap = new HashMap<>();
-            
-            try (PreparedStatement pstmt = conn.prepareStatement(accountSql)) {
-                pstmt.setInt(1, currentUserId);
-                
-                try (ResultSet rs = pstmt.executeQuery()) {
-                    while (rs.next()) {
-                        accountMap.put(rs.getInt("id"), rs.getString("account_number"));
-                    }
-                }
-            }
-            
-            if (accountMap.isEmpty()) {
+    // Update transaction history with the most recent transactions
+    void updateTransactionHistory() {
+        updateTransactionHistory(new HistorySearch.Filter());
+    }
+    
+    // Update transaction history with the transactions matching a filter
+    @SuppressWarnings("try")
+    private void updateTransactionHistory(HistorySearch.Filter filter) {
+        SessionStore.Session session = currentSession();
+        if (session == null) {
+            return;
+        }
+        
+        ensurePanel("HISTORY");
+        
+        try (Connection conn = getReadConnection()) {
+            // The user's accounts as cached at login, keyed by number so each row's ownership check is a hash lookup
+            Map<String, Integer> accountIds = session.getAccountIds();
+            if (accountIds.isEmpty()) {
                 return;
             }
             
-            // Get transaction history
-            StringBuilder transactionSql = new StringBuilder();
-            transactionSql.append("SELECT t.transaction_date, t.transaction_type, t.description, t.amount, ");
-            transactionSql.append("a_from.account_number as from_account, a_to.account_number as to_account ");
-            transactionSql.append("FROM transactions t ");
-            transactionSql.append("LEFT JOIN accounts a_from ON t.from_account_id = a_from.id ");
-            transactionSql.append("LEFT JOIN accounts a_to ON t.to_account_id = a_to.id ");
-            transactionSql.append("WHERE a_from.user_id = ? OR a_to.user_id = ? ");
-            transactionSql.append("ORDER BY t.transaction_date DESC");
+            // Get transaction table
+            JPanel tablePanel = (JPanel) ((BorderLayout) historyPanel.getLayout()).getLayoutComponent(BorderLayout.CENTER);
+            JScrollPane scrollPane = (JScrollPane) tablePanel.getComponent(0);
+            JTable transactionTable = (JTable) scrollPane.getViewport().getView();
+            HistoryTableModel tableModel = (HistoryTableModel) transactionTable.getModel();
             
-            try (PreparedStatement pstmt = conn.prepareStatement(transactionSql.toString())) {
-                pstmt.setInt(1, currentUserId);
-                pstmt.setInt(2, currentUserId);
+            // Get transaction history with the filters pushed down into SQL. The read model answers everything
+            // from its window start on; only a search the user starts earlier continues on the primary.
+            LocalDate windowStart = readModel.getWindowStart().toLocalDateTime().toLocalDate();
+            boolean beforeWindow = (filter.fromDate != null && filter.fromDate.isBefore(windowStart)) ||
+                                   (filter.toDate != null && filter.toDate.isBefore(windowStart));
+            
+            tableModel.clear();
+            int rows = 0;
+            if (filter.toDate == null || !filter.toDate.isBefore(windowStart)) {
+                HistorySearch.Filter recent = filter;
+                if (beforeWindow) {
+                    recent = filter.copy();
+                    recent.fromDate = windowStart;
+                }
+                // The read model builds its full-text index while loading, before it serves any search
+                try (PreparedStatement pstmt = HistorySearch.prepare(conn, ReadModel.LEDGER_TABLE, accountIds.values(), recent,
+                                                                     HistorySearch.DEFAULT_LIMIT, true)) {
+                    rows = loadHistoryRows(pstmt, accountIds, tableModel);
+                }
+            }
+            
+            // Older postings follow the window's as far as the page has room, reading the hot table and then
+            // one archived month at a time, newest first, so a full page stops the search
+            if (beforeWindow && rows < HistorySearch.DEFAULT_LIMIT) {
+                HistorySearch.Filter older = filter.copy();
+                if (older.toDate == null || !older.toDate.isBefore(windowStart)) {
+                    older.toDate = windowStart.minusDays(1);
+                }
                 
-                try (ResultSet rs = pstmt.executeQuery()) {
-                    // Get transaction table
-                    JPanel tablePanel = (JPanel) ((BorderLayout) historyPanel.getLayout()).getLayoutComponent(BorderLayout.CENTER);
-                    JScrollPane scrollPane = (JScrollPane) tablePanel.getComponent(0);
-                    JTable transactionTable = (JTable) scrollPane.getViewport().getView();
-                    DefaultTableModel tableModel = (DefaultTableModel) transactionTable.getModel();
-                    
-                    // Clear table
-                    tableModel.setRowCount(0);
-                    
-                    // Add transactions to table
-                    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+                try (AdmissionController.Permit permit = admission.admitNow(AdmissionController.Priority.INTERACTIVE);
+                     Connection primary = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+                    // The hot table's full-text index only counts once its background migration has finished
+                    Set<String> textIndexed = older.text == null ? new HashSet<>() : HistorySearch.textIndexedTables(primary);
+                    if (!schemaMigrator.isApplied(SchemaMigrator.TEXT_INDEX_VERSION)) {
+                        textIndexed.remove("transactions");
+                    }
                     
-                    while (rs.next()) {
-                        String date = dateFormat.format(rs.getTimestamp("transaction_date"));
-                        String type = rs.getString("transaction_type");
-                        String description = rs.getString("description");
-                        double amount = rs.getDouble("amount");
-                        String fromAccount = rs.getString("from_account");
-                        String toAccount = rs.getString("to_account");
-                        
-                        // Format description
-                        if (description == null || description.isEmpty()) {
-                            if (type.equals("TRANSFER")) {
-                                description = "Transfer from " + fromAccount + " to " + toAccount;
-                            } else if (type.equals("DEPOSIT")) {
-                                description = "Deposit to " + toAccount;
-                            } else if (type.equals("WITHDRAWAL")) {
-                                description = "Withdrawal from " + fromAccount;
-                            }
+                    for (String table : TransactionArchiver.ledgerTables(primary, older.fromDate, older.toDate)) {
+                        try (PreparedStatement pstmt = HistorySearch.prepare(primary, table, accountIds.values(), older,
+                                                                             HistorySearch.DEFAULT_LIMIT - rows,
+                                                                             textIndexed.contains(table))) {
+                            rows += loadHistoryRows(pstmt, accountIds, tableModel);
                         }
-                        
-                        // Format amount
-                        String amountStr;
-                        if (type.equals("WITHDRAWAL") || 
-                            (type.equals("TRANSFER") && accountMap.containsValue(fromAccount))) {
-                            amountStr = "-$" + String.format("%.2f", amount);
-                        } else {
-                            amountStr = "+$" + String.format("%.2f", amount);
+                        if (rows == HistorySearch.DEFAULT_LIMIT) {
+                            break;
                         }
-                        
-                        // Add row to table
-                        tableModel.addRow(new Object[]{date, type, description, amountStr, ""});
                     }
                 }
+                historyWindowLabel.setText("Postings before " + windowStart + " were read from the full ledger");
+            } else if (filter.fromDate == null) {
+                historyWindowLabel.setText("Showing postings from " + windowStart +
+                                           "; enter an earlier From date to search older postings");
+            } else {
+                historyWindowLabel.setText(" ");
             }
+            tableModel.fireTableDataChanged();
         } catch (SQLException e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(mainFrame, "Error loading transaction history: " + e.getMessage(), 
@@ -927,104 +1545,258 @@ JComboBox<String> fromAccountComboBox = (JComboBox<String>) formPanel.getCompone
         }
     }
     
-    // Transfer funds between accounts
-    private boolean transferFunds(String fromAccount, String toAccount, double amount, String description) {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            // Start transaction
-            conn.setAutoCommit(false);
+    // Append a search's results to the history table; returns the number of rows
+    private int loadHistoryRows(PreparedStatement pstmt, Map<String, Integer> accountIds, HistoryTableModel tableModel)
+            throws SQLException {
+        try (ResultSet rs = pstmt.executeQuery()) {
+            int rows = 0;
             
-            try {
-                // Get from account ID and balance
-                String fromSql = "SELECT id, balance FROM accounts WHERE account_number = ? AND user_id = ?";
-                int fromAccountId = -1;
-                double fromBalance = 0;
+            // Add transactions to table; text is only built for rows that get painted
+            while (rs.next()) {
+                long postedAt = rs.getTimestamp("transaction_date").getTime();
+                String type = rs.getString("transaction_type");
+                String description = rs.getString("description");
+                long amountCents = MoneyFormat.toCents(rs.getDouble("amount"));
+                String fromAccount = rs.getString("from_account");
+                String toAccount = rs.getString("to_account");
                 
-                try (PreparedStatement pstmt = conn.prepareStatement(fromSql)) {
-                    pstmt.setString(1, fromAccount);
-                    pstmt.setInt(2, currentUserId);
-                    
-                    try (ResultSet rs = pstmt.executeQuery()) {
-                        if (rs.next()) {
-                            fromAccountId = rs.getInt("id");
-                            fromBalance = rs.getDouble("balance");
-                        } else {
-                            throw new SQLException("Source account not found");
-                        }
-                    }
-                }
+                // Balance after the posting on the side that belongs to this user
+                boolean outgoing = accountIds.containsKey(fromAccount);
+                double balanceAfter = outgoing ? rs.getDouble("from_balance_after") : rs.getDouble("to_balance_after");
+                long balanceCents = rs.wasNull() ? HistoryTableModel.NO_BALANCE : MoneyFormat.toCents(balanceAfter);
                 
-                // Check if balance is sufficient
-                if (fromBalance < amount) {
-                    throw new SQLException("Insufficient funds");
+                // Money leaving the user's account is shown negative
+                if (type.equals("WITHDRAWAL") || (type.equals("TRANSFER") && outgoing)) {
+                    amountCents = -amountCents;
                 }
                 
-                // Get to account ID
-                String toSql = "SELECT id FROM accounts WHERE account_number = ?";
-                int toAccountId = -1;
-                
-                try (PreparedStatement pstmt = conn.prepareStatement(toSql)) {
-                    pstmt.setString(1, toAccount);
-                    
-                    try (ResultSet rs = pstmt.executeQuery()) {
-                        if (rs.next()) {
-                            toAccountId = rs.getInt("id");
-                        } else {
-                            throw new SQLException("Destination account not found");
-                        }
-                    }
-                }
-                
-                // Update from account balance
-                String updateFromSql = "UPDATE accounts SET balance = balance - ? WHERE id = ?";
-                try (PreparedStatement pstmt = conn.prepareStatement(updateFromSql)) {
-                    pstmt.setDouble(1, amount);
-                    pstmt.setInt(2, fromAccountId);
-                    pstmt.executeUpdate();
+                tableModel.addRow(postedAt, type, description, amountCents, balanceCents, fromAccount, toAccount);
+                rows++;
+            }
+            return rows;
+        }
+    }
+    
+    // Transfer funds between accounts; a non-null idempotency key makes retries of the same request safe
+    @SuppressWarnings("try")
+    boolean transferFunds(String fromAccount, String toAccount, double amount, String description, String idempotencyKey) {
+        SessionStore.Session session = currentSession();
+        if (session == null) {
+            return false;
+        }
+        int userId = session.getUserId();
+        if (auditLogFailed("Transfer Error")) {
+            return false;
+        }
+        
+        // Reject accounts the user does not hold without touching the database
+        if (!session.ownsAccount(fromAccount)) {
+            auditLog.record(AuditLog.Action.TRANSFER, false, userId, fromAccount, toAccount, amount, "Source account not found");
+            JOptionPane.showMessageDialog(mainFrame, "Source account not found", 
+                                         "Transfer Error", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+        
+        // A retry of a request that has already gone through returns its original result
+        try {
+            if (idempotencyKey != null && idempotencyStore.lookup(userId, idempotencyKey, "TRANSFER") != null) {
+                auditLog.record(AuditLog.Action.TRANSFER, true, userId, fromAccount, toAccount, amount, REPEATED_REQUEST);
+                return true;
+            }
+        } catch (SQLException e) {
+            auditLog.record(AuditLog.Action.TRANSFER, false, userId, fromAccount, toAccount, amount, e.getMessage());
+            JOptionPane.showMessageDialog(mainFrame, e.getMessage(), 
+                                         "Transfer Error", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+        
+        // Check velocity limits before touching the database
+        long limitToken;
+        try {
+            limitToken = velocityLimiter.acquireTransfer(userId, amount);
+        } catch (VelocityLimiter.LimitExceededException e) {
+            auditLog.record(AuditLog.Action.TRANSFER, false, userId, fromAccount, toAccount, amount, e.getMessage());
+            JOptionPane.showMessageDialog(mainFrame, e.getMessage(), 
+                                         "Transfer Limit", JOptionPane.WARNING_MESSAGE);
+            return false;
+        }
+        
+        String failure = null;
+        String errorMessage = null;
+        try (AdmissionController.Permit permit = admission.admitNow(AdmissionController.Priority.INTERACTIVE);
+             Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+            // Start transaction
+            conn.setAutoCommit(false);
+            
+            try {
+                // Claim the idempotency key first so a concurrent retry waits for this posting
+                if (idempotencyKey != null && idempotencyStore.claim(conn, userId, idempotencyKey, "TRANSFER") != null) {
+                    conn.rollback();
+                    auditLog.record(AuditLog.Action.TRANSFER, true, userId, fromAccount, toAccount, amount, REPEATED_REQUEST);
+                    velocityLimiter.releaseTransfer(userId, amount, limitToken);
+                    return true;
                 }
                 
-                // Update to account balance
-                String updateToSql = "UPDATE accounts SET balance = balance + ? WHERE id = ?";
-                try (PreparedStatement pstmt = conn.prepareStatement(updateToSql)) {
-                    pstmt.setDouble(1, amount);
-                    pstmt.setInt(2, toAccountId);
-                    pstmt.executeUpdate();
-                }
-                
-                // Record transaction
-                String transactionSql = "INSERT INTO transactions (from_account_id, to_account_id, amount, transaction_type, description) VALUES (?, ?, ?, ?, ?)";
-                try (PreparedStatement pstmt = conn.prepareStatement(transactionSql)) {
-                    pstmt.setInt(1, fromAccountId);
-                    pstmt.setInt(2, toAccountId);
-                    pstmt.setDouble(3, amount);
-                    pstmt.setString(4, "TRANSFER");
-                    pstmt.setString(5, description);
-                    pstmt.executeUpdate();
-                }
+                // Post the transfer
+                Runnable afterCommit = postTransfer(conn, userId, fromAccount, toAccount, amount, description, idempotencyKey, 0);
                 
                 // Commit transaction
                 conn.commit();
+                afterCommit.run();
+                auditLog.record(AuditLog.Action.TRANSFER, true, userId, fromAccount, toAccount, amount, description);
                 return true;
             } catch (SQLException e) {
                 // Rollback transaction on error
                 conn.rollback();
                 e.printStackTrace();
-                JOptionPane.showMessageDialog(mainFrame, "Transfer error: " + e.getMessage(), 
-                                             "Transfer Error", JOptionPane.ERROR_MESSAGE);
+                failure = e.getMessage();
+                errorMessage = "Transfer error: " + e.getMessage();
             } finally {
                 // Restore auto-commit
                 conn.setAutoCommit(true);
             }
         } catch (SQLException e) {
             e.printStackTrace();
-            JOptionPane.showMessageDialog(mainFrame, "Database error: " + e.getMessage(), 
-                                         "Transfer Error", JOptionPane.ERROR_MESSAGE);
+            failure = e.getMessage();
+            errorMessage = "Database error: " + e.getMessage();
         }
         
+        // Shown only now, so the admission permit and connection are not held while the dialog is open
+        JOptionPane.showMessageDialog(mainFrame, errorMessage, 
+                                     "Transfer Error", JOptionPane.ERROR_MESSAGE);
+        auditLog.record(AuditLog.Action.TRANSFER, false, userId, fromAccount, toAccount, amount, failure);
+        
+        // Posting failed, so it must not count towards the limits
+        velocityLimiter.releaseTransfer(userId, amount, limitToken);
         return false;
     }
     
+    // Move funds inside the caller's transaction; returns the work to run once that transaction commits.
+    // A non-null idempotency key must already have been claimed in the same transaction. reservedByHold
+    // is the part of the source account's held funds set aside for this posting (when capturing a hold).
+    private Runnable postTransfer(Connection conn, int userId, String fromAccount, String toAccount, double amount, String description,
+                                  String idempotencyKey, double reservedByHold) throws SQLException {
+        // Get from account ID and balance, locking the row as HoldManager.placeHold does so the
+        // available balance check and the debit are not interleaved with a hold on the same account
+        int fromAccountId = -1;
+        double fromBalance = 0;
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(OWNED_ACCOUNT_FOR_UPDATE_SQL)) {
+            pstmt.setString(1, fromAccount);
+            pstmt.setInt(2, userId);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    fromAccountId = rs.getInt("id");
+                    fromBalance = rs.getDouble("balance");
+                } else {
+                    throw new SQLException("Source account not found");
+                }
+            }
+        }
+        
+        // Check if the available balance is sufficient; funds held for other payments are not available
+        if (fromBalance - (holdManager.getHeldAmount(fromAccountId) - reservedByHold) < amount) {
+            throw new SQLException("Insufficient funds");
+        }
+        
+        // Get to account ID
+        int toAccountId = -1;
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(ACCOUNT_BY_NUMBER_SQL)) {
+            pstmt.setString(1, toAccount);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    toAccountId = rs.getInt("id");
+                } else {
+                    throw new SQLException("Destination account not found");
+                }
+            }
+        }
+        
+        // Update from account balance
+        try (PreparedStatement pstmt = conn.prepareStatement(DEBIT_SQL)) {
+            pstmt.setDouble(1, amount);
+            pstmt.setInt(2, fromAccountId);
+            pstmt.executeUpdate();
+        }
+        
+        // Update to account balance
+        try (PreparedStatement pstmt = conn.prepareStatement(CREDIT_SQL)) {
+            pstmt.setDouble(1, amount);
+            pstmt.setInt(2, toAccountId);
+            pstmt.executeUpdate();
+        }
+        
+        // Read back balances while the updated rows are still locked
+        double fromBalanceAfter = readBalance(conn, fromAccountId);
+        double toBalanceAfter = readBalance(conn, toAccountId);
+        
+        // Record transaction
+        Timestamp postedAt = new Timestamp(System.currentTimeMillis());
+        int transactionId;
+        try (PreparedStatement pstmt = conn.prepareStatement(INSERT_TRANSFER_SQL, Statement.RETURN_GENERATED_KEYS)) {
+            pstmt.setInt(1, fromAccountId);
+            pstmt.setInt(2, toAccountId);
+            pstmt.setDouble(3, amount);
+            pstmt.setString(4, "TRANSFER");
+            pstmt.setString(5, description);
+            pstmt.setDouble(6, fromBalanceAfter);
+            pstmt.setDouble(7, toBalanceAfter);
+            pstmt.setTimestamp(8, postedAt);
+            pstmt.executeUpdate();
+            transactionId = generatedId(pstmt);
+        }
+        
+        // Record the result against the idempotency key in the same transaction
+        if (idempotencyKey != null) {
+            idempotencyStore.complete(conn, userId, idempotencyKey, transactionId);
+        }
+        
+        // Let readers see the posting only after it is committed
+        int fromId = fromAccountId;
+        int toId = toAccountId;
+        return () -> {
+            publishPosting(transactionId, fromId, toId, amount, "TRANSFER", description,
+                           postedAt, fromBalanceAfter, toBalanceAfter);
+            if (idempotencyKey != null) {
+                idempotencyStore.committed(userId, idempotencyKey, "TRANSFER", transactionId);
+            }
+        };
+    }
+    
+    // Store a future-dated or monthly transfer; it is posted by the standing order scheduler when due
+    private boolean scheduleTransfer(String fromAccount, String toAccount, double amount, String description,
+                                     LocalDate executeOn, boolean repeatMonthly) {
+        SessionStore.Session session = currentSession();
+        if (session == null) {
+            return false;
+        }
+        int userId = session.getUserId();
+        
+        awaitDatabase();
+        
+        try {
+            standingOrderScheduler.createOrder(userId, fromAccount, toAccount, amount, description,
+                                               executeOn.atStartOfDay(), repeatMonthly ? 1 : 0);
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(mainFrame, "Database error: " + e.getMessage(), 
+                                         "Transfer Error", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+    }
+    
     // Show deposit dialog
     private void showDepositDialog() {
+        SessionStore.Session session = currentSession();
+        if (session == null) {
+            return;
+        }
+        int userId = session.getUserId();
+        
         // Create dialog
         JDialog depositDialog = new JDialog(mainFrame, "Deposit", true);
         depositDialog.setSize(400, 250);
@@ -1046,6 +1818,9 @@ JComboBox<String> fromAccountComboBox = (JComboBox<String>) formPanel.getCompone
         JButton depositButton = new JButton("Deposit");
         JButton cancelButton = new JButton("Cancel");
         
+        // One idempotency key per dialog, so pressing Deposit again after a timeout cannot post twice
+        String requestKey = UUID.randomUUID().toString();
+        
         // Add components to form panel
         gbc.gridx = 0;
         gbc.gridy = 0;
@@ -1073,11 +1848,10 @@ JComboBox<String> fromAccountComboBox = (JComboBox<String>) formPanel.getCompone
         formPanel.add(buttonPanel, gbc);
         
         // Load user accounts
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT account_number, account_type FROM accounts WHERE user_id = ?";
+        try (Connection conn = getReadConnection()) {
             
-            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                pstmt.setInt(1, currentUserId);
+            try (PreparedStatement pstmt = conn.prepareStatement(ACCOUNT_CHOICES_SQL)) {
+                pstmt.setInt(1, userId);
                 
                 try (ResultSet rs = pstmt.executeQuery()) {
                     while (rs.next()) {
@@ -1121,13 +1895,10 @@ JComboBox<String> fromAccountComboBox = (JComboBox<String>) formPanel.getCompone
                 String accountNumber = accountStr.split(" - ")[0];
                 
                 // Perform deposit
-                if (deposit(accountNumber, amount)) {
+                if (deposit(accountNumber, amount, requestKey)) {
                     JOptionPane.showMessageDialog(depositDialog, "Deposit successful!", 
                                                  "Deposit Success", JOptionPane.INFORMATION_MESSAGE);
                     depositDialog.dispose();
-                    
-                    // Refresh dashboard
-                    loadUserDashboard();
                 }
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(depositDialog, "Please enter a valid amount", 
@@ -1146,6 +1917,12 @@ JComboBox<String> fromAccountComboBox = (JComboBox<String>) formPanel.getCompone
     
     // Show withdraw dialog
     private void showWithdrawDialog() {
+        SessionStore.Session session = currentSession();
+        if (session == null) {
+            return;
+        }
+        int userId = session.getUserId();
+        
         // Create dialog
         JDialog withdrawDialog = new JDialog(mainFrame, "Withdraw", true);
         withdrawDialog.setSize(400, 250);
@@ -1167,6 +1944,9 @@ JComboBox<String> fromAccountComboBox = (JComboBox<String>) formPanel.getCompone
         JButton withdrawButton = new JButton("Withdraw");
         JButton cancelButton = new JButton("Cancel");
         
+        // One idempotency key per dialog, so pressing Withdraw again after a timeout cannot post twice
+        String requestKey = UUID.randomUUID().toString();
+        
         // Add components to form panel
         gbc.gridx = 0;
         gbc.gridy = 0;
@@ -1194,11 +1974,10 @@ JComboBox<String> fromAccountComboBox = (JComboBox<String>) formPanel.getCompone
         formPanel.add(buttonPanel, gbc);
         
         // Load user accounts with balances
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String sql = "SELECT account_number, account_type, balance FROM accounts WHERE user_id = ?";
+        try (Connection conn = getReadConnection()) {
             
-            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                pstmt.setInt(1, currentUserId);
+            try (PreparedStatement pstmt = conn.prepareStatement(ACCOUNT_BALANCES_SQL)) {
+                pstmt.setInt(1, userId);
                 
                 try (ResultSet rs = pstmt.executeQuery()) {
                     while (rs.next()) {
@@ -1206,7 +1985,7 @@ JComboBox<String> fromAccountComboBox = (JComboBox<String>) formPanel.getCompone
                         String accountType = rs.getString("account_type");
                         double balance = rs.getDouble("balance");
                         
-                        accountComboBox.addItem(accountNumber + " - " + accountType + " - $" + String.format("%.2f", balance));
+                        accountComboBox.addItem(accountNumber + " - " + accountType + " - $" + MoneyFormat.format(balance));
                     }
                 }
             }
@@ -1243,13 +2022,10 @@ JComboBox<String> fromAccountComboBox = (JComboBox<String>) formPanel.getCompone
                 String accountNumber = accountStr.split(" - ")[0];
                 
                 // Perform withdrawal
-                if (withdraw(accountNumber, amount)) {
+                if (withdraw(accountNumber, amount, requestKey)) {
                     JOptionPane.showMessageDialog(withdrawDialog, "Withdrawal successful!", 
                                                  "Withdraw Success", JOptionPane.INFORMATION_MESSAGE);
                     withdrawDialog.dispose();
-                    
-                    // Refresh dashboard
-                    loadUserDashboard();
                 }
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(withdrawDialog, "Please enter a valid amount", 
@@ -1266,142 +2042,319 @@ JComboBox<String> fromAccountComboBox = (JComboBox<String>) formPanel.getCompone
         withdrawDialog.setVisible(true);
     }
     
-    // Deposit funds
-    private boolean deposit(String accountNumber, double amount) {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+    // Deposit funds; a non-null idempotency key makes retries of the same request safe
+    @SuppressWarnings("try")
+    boolean deposit(String accountNumber, double amount, String idempotencyKey) {
+        SessionStore.Session session = currentSession();
+        if (session == null) {
+            return false;
+        }
+        int userId = session.getUserId();
+        if (auditLogFailed("Deposit Error")) {
+            return false;
+        }
+        
+        // Reject accounts the user does not hold without touching the database
+        if (!session.ownsAccount(accountNumber)) {
+            auditLog.record(AuditLog.Action.DEPOSIT, false, userId, accountNumber, null, amount, "Account not found");
+            JOptionPane.showMessageDialog(mainFrame, "Account not found", 
+                                         "Deposit Error", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+        
+        // A retry of a request that has already gone through returns its original result
+        try {
+            if (idempotencyKey != null && idempotencyStore.lookup(userId, idempotencyKey, "DEPOSIT") != null) {
+                auditLog.record(AuditLog.Action.DEPOSIT, true, userId, accountNumber, null, amount, REPEATED_REQUEST);
+                return true;
+            }
+        } catch (SQLException e) {
+            auditLog.record(AuditLog.Action.DEPOSIT, false, userId, accountNumber, null, amount, e.getMessage());
+            JOptionPane.showMessageDialog(mainFrame, e.getMessage(), 
+                                         "Deposit Error", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+        
+        String failure = null;
+        String errorMessage = null;
+        try (AdmissionController.Permit permit = admission.admitNow(AdmissionController.Priority.INTERACTIVE);
+             Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
             // Start transaction
             conn.setAutoCommit(false);
             
             try {
-                // Get account ID
-                String accountSql = "SELECT id FROM accounts WHERE account_number = ? AND user_id = ?";
-                int accountId = -1;
-                
-                try (PreparedStatement pstmt = conn.prepareStatement(accountSql)) {
-                    pstmt.setString(1, accountNumber);
-                    pstmt.setInt(2, currentUserId);
-                    
-                    try (ResultSet rs = pstmt.executeQuery()) {
-                        if (rs.next()) {
-                            accountId = rs.getInt("id");
-                        } else {
-                            throw new SQLException("Account not found");
-                        }
-                    }
+                // Claim the idempotency key first so a concurrent retry waits for this posting
+                if (idempotencyKey != null && idempotencyStore.claim(conn, userId, idempotencyKey, "DEPOSIT") != null) {
+                    conn.rollback();
+                    auditLog.record(AuditLog.Action.DEPOSIT, true, userId, accountNumber, null, amount, REPEATED_REQUEST);
+                    return true;
                 }
                 
-                // Update account balance
-                String updateSql = "UPDATE accounts SET balance = balance + ? WHERE id = ?";
-                try (PreparedStatement pstmt = conn.prepareStatement(updateSql)) {
-                    pstmt.setDouble(1, amount);
-                    pstmt.setInt(2, accountId);
-                    pstmt.executeUpdate();
-                }
+                // Ownership was checked against the session, which also holds the account's id
+                int accountId = session.getAccountIds().get(accountNumber);
+                
+                // Update account balance and record transaction
+                LedgerStorage.Posting posting = ledgerStorage.credit(conn, accountId, BigDecimal.valueOf(amount),
+                                                                     "DEPOSIT", "Deposit to account");
+                int transactionId = (int) posting.id;
+                double balanceAfter = posting.balanceAfter.doubleValue();
+                Timestamp postedAt = new Timestamp(posting.postedAt);
                 
-                // Record transaction
-                String transactionSql = "INSERT INTO transactions (to_account_id, amount, transaction_type, description) VALUES (?, ?, ?, ?)";
-                try (PreparedStatement pstmt = conn.prepareStatement(transactionSql)) {
-                    pstmt.setInt(1, accountId);
-                    pstmt.setDouble(2, amount);
-                    pstmt.setString(3, "DEPOSIT");
-                    pstmt.setString(4, "Deposit to account");
-                    pstmt.executeUpdate();
+                if (idempotencyKey != null) {
+                    idempotencyStore.complete(conn, userId, idempotencyKey, transactionId);
                 }
                 
                 // Commit transaction
                 conn.commit();
+                publishPosting(transactionId, null, accountId, amount, "DEPOSIT", "Deposit to account",
+                               postedAt, null, balanceAfter);
+                if (idempotencyKey != null) {
+                    idempotencyStore.committed(userId, idempotencyKey, "DEPOSIT", transactionId);
+                }
+                auditLog.record(AuditLog.Action.DEPOSIT, true, userId, accountNumber, null, amount, null);
                 return true;
             } catch (SQLException e) {
                 // Rollback transaction on error
                 conn.rollback();
                 e.printStackTrace();
-                JOptionPane.showMessageDialog(mainFrame, "Deposit error: " + e.getMessage(), 
-                                             "Deposit Error", JOptionPane.ERROR_MESSAGE);
+                failure = e.getMessage();
+                errorMessage = "Deposit error: " + e.getMessage();
             } finally {
                 // Restore auto-commit
                 conn.setAutoCommit(true);
             }
         } catch (SQLException e) {
             e.printStackTrace();
-            JOptionPane.showMessageDialog(mainFrame, "Database error: " + e.getMessage(), 
-                                         "Deposit Error", JOptionPane.ERROR_MESSAGE);
+            failure = e.getMessage();
+            errorMessage = "Database error: " + e.getMessage();
         }
         
+        // Shown only now, so the admission permit and connection are not held while the dialog is open
+        JOptionPane.showMessageDialog(mainFrame, errorMessage, 
+                                     "Deposit Error", JOptionPane.ERROR_MESSAGE);
+        auditLog.record(AuditLog.Action.DEPOSIT, false, userId, accountNumber, null, amount, failure);
         return false;
     }
     
-    // Withdraw funds
-    private boolean withdraw(String accountNumber, double amount) {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
+    // Withdraw funds; a non-null idempotency key makes retries of the same request safe
+    @SuppressWarnings("try")
+    boolean withdraw(String accountNumber, double amount, String idempotencyKey) {
+        SessionStore.Session session = currentSession();
+        if (session == null) {
+            return false;
+        }
+        int userId = session.getUserId();
+        if (auditLogFailed("Withdrawal Error")) {
+            return false;
+        }
+        
+        // Reject accounts the user does not hold without touching the database
+        if (!session.ownsAccount(accountNumber)) {
+            auditLog.record(AuditLog.Action.WITHDRAWAL, false, userId, accountNumber, null, amount, "Account not found");
+            JOptionPane.showMessageDialog(mainFrame, "Account not found", 
+                                         "Withdrawal Error", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+        
+        // A retry of a request that has already gone through returns its original result
+        try {
+            if (idempotencyKey != null && idempotencyStore.lookup(userId, idempotencyKey, "WITHDRAWAL") != null) {
+                auditLog.record(AuditLog.Action.WITHDRAWAL, true, userId, accountNumber, null, amount, REPEATED_REQUEST);
+                return true;
+            }
+        } catch (SQLException e) {
+            auditLog.record(AuditLog.Action.WITHDRAWAL, false, userId, accountNumber, null, amount, e.getMessage());
+            JOptionPane.showMessageDialog(mainFrame, e.getMessage(), 
+                                         "Withdrawal Error", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+        
+        // Check velocity limits before touching the database
+        long limitToken;
+        try {
+            limitToken = velocityLimiter.acquireWithdrawal(userId, accountNumber, amount);
+        } catch (VelocityLimiter.LimitExceededException e) {
+            auditLog.record(AuditLog.Action.WITHDRAWAL, false, userId, accountNumber, null, amount, e.getMessage());
+            JOptionPane.showMessageDialog(mainFrame, e.getMessage(), 
+                                         "Withdrawal Limit", JOptionPane.WARNING_MESSAGE);
+            return false;
+        }
+        
+        String failure = null;
+        String errorMessage = null;
+        try (AdmissionController.Permit permit = admission.admitNow(AdmissionController.Priority.INTERACTIVE);
+             Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
             // Start transaction
             conn.setAutoCommit(false);
             
             try {
-                // Get account ID and balance
-                String accountSql = "SELECT id, balance FROM accounts WHERE account_number = ? AND user_id = ?";
-                int accountId = -1;
-                double balance = 0;
-                
-                try (PreparedStatement pstmt = conn.prepareStatement(accountSql)) {
-                    pstmt.setString(1, accountNumber);
-                    pstmt.setInt(2, currentUserId);
-                    
-                    try (ResultSet rs = pstmt.executeQuery()) {
-                        if (rs.next()) {
-                            accountId = rs.getInt("id");
-                            balance = rs.getDouble("balance");
-                        } else {
-                            throw new SQLException("Account not found");
-                        }
-                    }
+                // Claim the idempotency key first so a concurrent retry waits for this posting
+                if (idempotencyKey != null && idempotencyStore.claim(conn, userId, idempotencyKey, "WITHDRAWAL") != null) {
+                    conn.rollback();
+                    auditLog.record(AuditLog.Action.WITHDRAWAL, true, userId, accountNumber, null, amount, REPEATED_REQUEST);
+                    velocityLimiter.releaseWithdrawal(userId, accountNumber, amount, limitToken);
+                    return true;
                 }
                 
-                // Check if balance is sufficient
-                if (balance < amount) {
-                    throw new SQLException("Insufficient funds");
-                }
+                // Ownership was checked against the session, which also holds the account's id
+                int accountId = session.getAccountIds().get(accountNumber);
                 
-                // Update account balance
-                String updateSql = "UPDATE accounts SET balance = balance - ? WHERE id = ?";
-                try (PreparedStatement pstmt = conn.prepareStatement(updateSql)) {
-                    pstmt.setDouble(1, amount);
-                    pstmt.setInt(2, accountId);
-                    pstmt.executeUpdate();
-                }
+                // Lock the account until commit like the source account of a transfer, check that the balance
+                // less held funds covers the amount, update it and record transaction
+                LedgerStorage.Posting posting = ledgerStorage.debit(conn, accountId, BigDecimal.valueOf(amount),
+                                                                    BigDecimal.valueOf(holdManager.getHeldAmount(accountId)),
+                                                                    "WITHDRAWAL", "Withdrawal from account");
+                int transactionId = (int) posting.id;
+                double balanceAfter = posting.balanceAfter.doubleValue();
+                Timestamp postedAt = new Timestamp(posting.postedAt);
                 
-                // Record transaction
-                String transactionSql = "INSERT INTO transactions (from_account_id, amount, transaction_type, description) VALUES (?, ?, ?, ?)";
-                try (PreparedStatement pstmt = conn.prepareStatement(transactionSql)) {
-                    pstmt.setInt(1, accountId);
-                    pstmt.setDouble(2, amount);
-                    pstmt.setString(3, "WITHDRAWAL");
-                    pstmt.setString(4, "Withdrawal from account");
-                    pstmt.executeUpdate();
+                if (idempotencyKey != null) {
+                    idempotencyStore.complete(conn, userId, idempotencyKey, transactionId);
                 }
                 
                 // Commit transaction
                 conn.commit();
+                publishPosting(transactionId, accountId, null, amount, "WITHDRAWAL", "Withdrawal from account",
+                               postedAt, balanceAfter, null);
+                if (idempotencyKey != null) {
+                    idempotencyStore.committed(userId, idempotencyKey, "WITHDRAWAL", transactionId);
+                }
+                auditLog.record(AuditLog.Action.WITHDRAWAL, true, userId, accountNumber, null, amount, null);
                 return true;
             } catch (SQLException e) {
                 // Rollback transaction on error
                 conn.rollback();
                 e.printStackTrace();
-                JOptionPane.showMessageDialog(mainFrame, "Withdrawal error: " + e.getMessage(), 
-                                             "Withdrawal Error", JOptionPane.ERROR_MESSAGE);
+                failure = e.getMessage();
+                errorMessage = "Withdrawal error: " + e.getMessage();
             } finally {
                 // Restore auto-commit
                 conn.setAutoCommit(true);
             }
         } catch (SQLException e) {
             e.printStackTrace();
-            JOptionPane.showMessageDialog(mainFrame, "Database error: " + e.getMessage(), 
-                                         "Withdrawal Error", JOptionPane.ERROR_MESSAGE);
-             return false;
+            failure = e.getMessage();
+            errorMessage = "Database error: " + e.getMessage();
         }
         
+        // Shown only now, so the admission permit and connection are not held while the dialog is open
+        JOptionPane.showMessageDialog(mainFrame, errorMessage, 
+                                     "Withdrawal Error", JOptionPane.ERROR_MESSAGE);
+        auditLog.record(AuditLog.Action.WITHDRAWAL, false, userId, accountNumber, null, amount, failure);
         
-
-
+        // Posting failed, so it must not count towards the limits
+        velocityLimiter.releaseWithdrawal(userId, accountNumber, amount, limitToken);
+        return false;
+    }
+    
+    // Hand a committed posting to the read model and to balance subscribers
+    private void publishPosting(int transactionId, Integer fromAccountId, Integer toAccountId, double amount,
+                                String transactionType, String description, Timestamp postedAt,
+                                Double fromBalanceAfter, Double toBalanceAfter) {
+        readModel.publishPosting(transactionId, fromAccountId, toAccountId, amount, transactionType, description,
+                                 postedAt, fromBalanceAfter, toBalanceAfter);
+        balanceEvents.publishPosting(transactionId, fromAccountId, toAccountId, amount, transactionType,
+                                     postedAt, fromBalanceAfter, toBalanceAfter);
+    }
+    
+    // Update the dashboard and transfer screens in place for one changed balance (on the event dispatch thread)
+    private void showBalanceChange(BalanceEventBus.BalanceChange change) {
+        String balanceStr = "$" + MoneyFormat.format(change.balanceAfter);
+        
+        JLabel balanceLabel = balanceLabels.get(change.accountId);
+        if (balanceLabel != null) {
+            balanceLabel.setText("Balance: " + balanceStr);
+        }
+        
+        TransferAccountItem item = transferAccountItems.get(change.accountId);
+        if (item != null) {
+            boolean selected = fromAccountComboBox.getSelectedIndex() == item.index;
+            fromAccountComboBox.removeItemAt(item.index);
+            fromAccountComboBox.insertItemAt(item.text(change.balanceAfter), item.index);
+            if (selected) {
+                fromAccountComboBox.setSelectedIndex(item.index);
+            }
+        }
+    }
+    
+    // One account's place in the transfer screen's source accounts, and its text less the balance
+    private static final class TransferAccountItem {
+        final int index;
+        final String label;
+        
+        TransferAccountItem(int index, String label) {
+            this.index = index;
+            this.label = label;
+        }
+        
+        // The combo box item, reading "number - type - $balance"
+        String text(double balance) {
+            return label + " - $" + MoneyFormat.format(balance);
+        }
+    }
+    
+    // Refuse an audited operation while the audit log cannot be written, since it would go unrecorded
+    private boolean auditLogFailed(String title) {
+        java.io.IOException failure = auditLog.getFailure();
+        if (failure == null) {
+            return false;
+        }
+        
+        JOptionPane.showMessageDialog(mainFrame, "The audit log cannot be written, so this operation is unavailable (" +
+                                     failure + ")", title, JOptionPane.ERROR_MESSAGE);
+        return true;
+    }
+    
+    // The session this window is logged in with; on expiry the user is sent back to the login screen
+    private SessionStore.Session currentSession() {
+        SessionStore.Session session = sessionStore.get(sessionToken);
+        
+        if (session == null && sessionToken != null) {
+            sessionToken = null;
+            JOptionPane.showMessageDialog(mainFrame, "Your session has expired. Please log in again.", 
+                                         "Session Expired", JOptionPane.WARNING_MESSAGE);
+            showPanel("LOGIN");
+        }
+        
+        return session;
+    }
+    
+    // Read the key generated by the last executed insert
+    private int generatedId(PreparedStatement pstmt) throws SQLException {
+        try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
+            if (generatedKeys.next()) {
+                return generatedKeys.getInt(1);
+            }
+            throw new SQLException("Insert failed, no ID obtained.");
+        }
+    }
+    
+    // Open a connection to the read model, giving it a moment to apply the user's latest postings
+    private Connection getReadConnection() throws SQLException {
+        try {
+            readModel.awaitCaughtUp(READ_YOUR_WRITES_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return readModel.getConnection();
+    }
+    
+    // Read the current balance of an account inside the caller's transaction
+    private double readBalance(Connection conn, int accountId) throws SQLException {
+        return ledgerStorage.getBalance(conn, accountId).doubleValue();
+    }
+    
+    // The storage named by banking.ledger.storage
+    private static LedgerStorage openLedgerStorage(String name) {
+        switch (name) {
+            case "jdbc":
+                return new JdbcLedgerStorage(DB_URL, DB_USER, DB_PASSWORD);
+            default:
+                // The other backends keep their ledger outside this database and cannot share its transactions
+                throw new IllegalArgumentException("Unsupported ledger storage: " + name);
+        }
+    }
+    
 // To run this application:
 // 1. Save this file as OnlineBankingSystem.java
 // 2. Compile with: javac -cp ".;h2-2.1.214.jar" OnlineBankingSystem.java (Windows)
@@ -1409,18 +2362,6 @@ JComboBox<String> fromAccountComboBox = (JComboBox<String>) formPanel.getCompone
 // 3. Run with: java -cp ".;h2-2.1.214.jar" OnlineBankingSystem (Windows)
 //    or: java -cp ".:h2-2.1.214.jar" OnlineBankingSystem (Linux/Mac)
 // Note: You need to download the H2 database JAR file from https://h2database.com/
-
-// For demonstration purposes:
- System.out.println("This code creates a complete Java Online Banking System with:");
- System.out.println("1. User registration and login");
- System.out.println("2. Account management");
- System.out.println("3. Fund transfers between accounts");
- System.out.println("4. Deposits and withdrawals");
- System.out.println("5. Transaction history");
- System.out.println("6. Embedded H2 database for data storage");
- System.out.println("");
- System.out.println("To run this application, save it as OnlineBankingSystem.java and follow the instructions in the comments.");
-    }
-
+// For faster startup, ./build-cds.sh compiles the app and creates an AppCDS archive
+// (app.jsa) covering the application and H2 classes; run with -XX:SharedArchiveFile=app.jsa
 }
-
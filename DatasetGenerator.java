@@ -0,0 +1,488 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+// Deterministic synthetic dataset for performance work.
+//
+// Produces users, accounts and a multi-year transaction history in the
+// current schema. The shape is deliberately uneven:
+//   - a small set of merchant accounts receives a large share of all
+//     transfers, with Zipf-distributed popularity among merchants,
+//   - customer activity follows a Pareto distribution, so a few customers
+//     post a lot and most post little,
+//   - about a third of customers go dormant some time after joining and
+//     never initiate another posting,
+//   - customers join steadily over the first part of the period, so the
+//     posting rate grows over time.
+// Postings respect the same rules as the application: debits never take an
+// account below zero, every account opens with INITIAL_BALANCE, and the
+// balance-after columns and final balances are exact, so
+// ReconciliationJob finds no discrepancies.
+//
+// Everything derives from the seed and the end date, never from the clock,
+// so the same arguments always produce the same rows. Rows are generated in
+// one sequential pass into CSV files, which H2 then loads with one
+// INSERT ... DIRECT SELECT FROM CSVREAD per table instead of row-by-row inserts.
+// The load goes into a database whose background migrations have not run
+// yet, so the date, account and full-text indexes on transactions are built
+// once over the loaded rows rather than maintained row by row; main leaves
+// them to the application's next start.
+public class DatasetGenerator {
+    private static final double MERCHANT_SHARE = 0.001;
+    private static final double DORMANT_SHARE = 0.35;
+    private static final double SAVINGS_SHARE = 0.5;
+    private static final double TRANSFER_TO_MERCHANT = 0.4;
+    private static final double PARETO_ALPHA = 1.2;
+    private static final double ZIPF_EXPONENT = 1.1;
+    // Customers join during this leading fraction of the period
+    private static final double JOIN_PERIOD = 0.8;
+    private static final int WRITE_BUFFER = 1 << 20;
+    private static final String NULL = "NULL";
+    
+    private static final String USERS_FILE = "users.csv";
+    private static final String ACCOUNTS_FILE = "accounts.csv";
+    private static final String TRANSACTIONS_FILE = "transactions.csv";
+    
+    private static final String[] FIRST_NAMES = {
+        "Anna", "Ben", "Carla", "David", "Elena", "Farid", "Grace", "Hugo", "Ines", "Jonas",
+        "Kira", "Liam", "Maya", "Nils", "Olga", "Pavel", "Quinn", "Rosa", "Sami", "Tara",
+        "Umar", "Vera", "Wim", "Xenia", "Yusuf", "Zoe", "Arjun", "Bea", "Chen", "Dana"
+    };
+    private static final String[] LAST_NAMES = {
+        "Adams", "Becker", "Costa", "Dubois", "Evans", "Fischer", "Garcia", "Hansen", "Ivanova", "Jensen",
+        "Kowalski", "Larsen", "Moreau", "Novak", "Okafor", "Petrov", "Quist", "Rossi", "Schmidt", "Tanaka",
+        "Ueda", "Varga", "Weber", "Xu", "Yilmaz", "Zimmer", "Ali", "Brown", "Cohen", "Diaz"
+    };
+    private static final String[] MERCHANT_KINDS = {
+        "Grocery", "Pharmacy", "Coffee", "Fuel", "Electronics", "Books", "Transit", "Utilities", "Telecom", "Cinema"
+    };
+    private static final String[] TRANSFER_REASONS = {
+        "Rent", "Dinner", "Shared bills", "Gift", "Loan repayment", "Tickets", "Savings", "Holiday"
+    };
+    
+    private final long seed;
+    private final int users;
+    private final long transactions;
+    private final long startSecond;
+    private final long endSecond;
+    
+    // Counts of what the last generate() produced
+    private int accountCount;
+    private long transactionCount;
+    
+    public DatasetGenerator(long seed, int users, long transactions, int years, LocalDate endDate) {
+        this.seed = seed;
+        this.users = users;
+        this.transactions = transactions;
+        this.startSecond = endDate.minusYears(years).atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+        this.endSecond = endDate.atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+    }
+    
+    // Write users.csv, accounts.csv and transactions.csv into the directory
+    public void generate(Path directory) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        long span = endSecond - startSecond;
+        int merchants = Math.max(1, (int) (users * MERCHANT_SHARE));
+        int customers = users - merchants;
+        
+        // Users, in joining order: merchants first, then customers spread over the join period
+        long[] joinedAt = new long[users];
+        long[] dormantFrom = new long[users];
+        double[] activity = new double[users];
+        int[] firstAccount = new int[users + 1];
+        boolean[] hasSavings = new boolean[users];
+        
+        int accounts = 0;
+        for (int u = 0; u < users; u++) {
+            boolean merchant = u < merchants;
+            joinedAt[u] = merchant ? startSecond
+                : startSecond + (long) ((u - merchants + random.nextDouble()) / customers * span * JOIN_PERIOD);
+            dormantFrom[u] = Long.MAX_VALUE;
+            if (!merchant && random.nextDouble() < DORMANT_SHARE) {
+                dormantFrom[u] = joinedAt[u] + 30L * 86400 + (long) (random.nextDouble() * 365 * 86400);
+            }
+            activity[u] = merchant ? 0 : Math.min(1000, Math.pow(1 - random.nextDouble(), -1 / PARETO_ALPHA));
+            hasSavings[u] = !merchant && random.nextDouble() < SAVINGS_SHARE;
+            
+            firstAccount[u] = accounts;
+            accounts += hasSavings[u] ? 2 : 1;
+        }
+        firstAccount[users] = accounts;
+        
+        // Accounts; customers mostly post from checking, so it gets most of their activity
+        int[] owner = new int[accounts];
+        boolean[] savings = new boolean[accounts];
+        double[] cumulativeActivity = new double[accounts];
+        long[] balance = new long[accounts];
+        double total = 0;
+        
+        for (int u = 0; u < users; u++) {
+            for (int a = firstAccount[u]; a < firstAccount[u + 1]; a++) {
+                owner[a] = u;
+                savings[a] = a > firstAccount[u];
+                double share = !hasSavings[u] ? 1.0 : savings[a] ? 0.2 : 0.8;
+                total += activity[u] * share;
+                cumulativeActivity[a] = total;
+                balance[a] = Math.round(OnlineBankingSystem.INITIAL_BALANCE * 100);
+            }
+        }
+        
+        double[] merchantPopularity = new double[merchants];
+        double popularity = 0;
+        for (int m = 0; m < merchants; m++) {
+            popularity += 1 / Math.pow(m + 1, ZIPF_EXPONENT);
+            merchantPopularity[m] = popularity;
+        }
+        
+        writeUsers(directory.resolve(USERS_FILE), merchants, joinedAt);
+        writeTransactions(directory.resolve(TRANSACTIONS_FILE), random, merchants, joinedAt, dormantFrom, firstAccount,
+                          owner, cumulativeActivity, merchantPopularity, balance);
+        writeAccounts(directory.resolve(ACCOUNTS_FILE), owner, savings, joinedAt, balance);
+        accountCount = accounts;
+    }
+    
+    private void writeUsers(Path file, int merchants, long[] joinedAt) throws IOException {
+        try (Writer out = writer(file)) {
+            out.write("ID,USERNAME,PASSWORD,FULL_NAME,EMAIL,CREATED_AT\n");
+            StringBuilder row = new StringBuilder(128);
+            
+            for (int u = 0; u < users; u++) {
+                int id = u + 1;
+                String fullName;
+                String username;
+                if (u < merchants) {
+                    fullName = MERCHANT_KINDS[u % MERCHANT_KINDS.length] + " Store " + id;
+                    username = "merchant" + id;
+                } else {
+                    String first = FIRST_NAMES[(int) (mix(seed, id) % FIRST_NAMES.length)];
+                    String last = LAST_NAMES[(int) (mix(seed + 1, id) % LAST_NAMES.length)];
+                    fullName = first + " " + last;
+                    username = (first + "." + last + id).toLowerCase();
+                }
+                
+                row.setLength(0);
+                row.append(id).append(',').append(username).append(",password").append(id).append(',')
+                   .append(fullName).append(',').append(username).append("@example.com,");
+                appendTimestamp(row, joinedAt[u]);
+                out.append(row).append('\n');
+            }
+        }
+    }
+    
+    private void writeAccounts(Path file, int[] owner, boolean[] savings, long[] joinedAt, long[] balance) throws IOException {
+        try (Writer out = writer(file)) {
+            out.write("ID,USER_ID,ACCOUNT_NUMBER,ACCOUNT_TYPE,BALANCE,CREATED_AT\n");
+            StringBuilder row = new StringBuilder(96);
+            
+            for (int a = 0; a < owner.length; a++) {
+                row.setLength(0);
+                row.append(a + 1).append(',').append(owner[a] + 1).append(',').append(accountNumber(a + 1)).append(',')
+                   .append(savings[a] ? "Savings" : "Checking").append(',');
+                appendCents(row, balance[a]);
+                row.append(',');
+                appendTimestamp(row, joinedAt[owner[a]]);
+                out.append(row).append('\n');
+            }
+        }
+    }
+    
+    private void writeTransactions(Path file, SplittableRandom random, int merchants, long[] joinedAt, long[] dormantFrom,
+                                   int[] firstAccount, int[] owner, double[] cumulativeActivity,
+                                   double[] merchantPopularity, long[] balance) throws IOException {
+        long span = endSecond - startSecond;
+        long written = 0;
+        long previousSecond = startSecond;
+        
+        try (Writer out = writer(file)) {
+            out.write("ID,FROM_ACCOUNT_ID,TO_ACCOUNT_ID,AMOUNT,TRANSACTION_TYPE,DESCRIPTION,FROM_BALANCE_AFTER,TO_BALANCE_AFTER,TRANSACTION_DATE\n");
+            StringBuilder row = new StringBuilder(160);
+            
+            for (long i = 0; i < transactions; i++) {
+                // Posting rate grows with the customer base: density rises linearly over the period
+                long second = Math.max(previousSecond, startSecond + (long) (Math.sqrt((i + random.nextDouble()) / transactions) * span));
+                previousSecond = second;
+                
+                // Customers who have joined by now are a prefix of the user list
+                int joined = upperBound(joinedAt, second);
+                int openAccounts = firstAccount[joined];
+                if (cumulativeActivity[openAccounts - 1] == 0) {
+                    continue;
+                }
+                
+                int account = pickActive(random, cumulativeActivity, openAccounts, owner, dormantFrom, second);
+                double kind = random.nextDouble();
+                Integer from = null;
+                Integer to = null;
+                String type;
+                String description;
+                long amount;
+                
+                if (kind < 0.55) {
+                    type = "TRANSFER";
+                    from = account;
+                    if (random.nextDouble() < TRANSFER_TO_MERCHANT) {
+                        int merchant = lowerBound(merchantPopularity, random.nextDouble() * merchantPopularity[merchants - 1]);
+                        to = firstAccount[merchant];
+                        description = "Payment to " + MERCHANT_KINDS[merchant % MERCHANT_KINDS.length] + " Store " + (merchant + 1);
+                        amount = logNormalCents(random, 4_000, 1.0);
+                    } else {
+                        to = lowerBound(cumulativeActivity, random.nextDouble() * cumulativeActivity[openAccounts - 1]);
+                        description = TRANSFER_REASONS[random.nextInt(TRANSFER_REASONS.length)];
+                        amount = logNormalCents(random, 8_000, 1.2);
+                    }
+                    if (to == account) {
+                        to = null;
+                    }
+                } else if (kind < 0.8) {
+                    type = "DEPOSIT";
+                    to = account;
+                    description = "Deposit to account";
+                    amount = logNormalCents(random, 50_000, 0.8);
+                } else {
+                    type = "WITHDRAWAL";
+                    from = account;
+                    description = "Withdrawal from account";
+                    amount = logNormalCents(random, 6_000, 0.9);
+                }
+                
+                // Same rule as the application: never below zero. A drained account gets a deposit instead.
+                if (from != null) {
+                    amount = Math.min(amount, balance[from]);
+                    if (amount == 0 || (type.equals("TRANSFER") && to == null)) {
+                        type = "DEPOSIT";
+                        description = "Deposit to account";
+                        to = from;
+                        from = null;
+                        amount = logNormalCents(random, 50_000, 0.8);
+                    }
+                }
+                if (from != null) {
+                    balance[from] -= amount;
+                }
+                if (to != null) {
+                    balance[to] += amount;
+                }
+                
+                written++;
+                row.setLength(0);
+                row.append(written).append(',');
+                row.append(from == null ? NULL : String.valueOf(from + 1)).append(',');
+                row.append(to == null ? NULL : String.valueOf(to + 1)).append(',');
+                appendCents(row, amount);
+                row.append(',').append(type).append(',').append(description).append(',');
+                if (from == null) {
+                    row.append(NULL);
+                } else {
+                    appendCents(row, balance[from]);
+                }
+                row.append(',');
+                if (to == null) {
+                    row.append(NULL);
+                } else {
+                    appendCents(row, balance[to]);
+                }
+                row.append(',');
+                appendTimestamp(row, second);
+                out.append(row).append('\n');
+            }
+        }
+        transactionCount = written;
+    }
+    
+    // An account weighted by its owner's activity whose owner is not dormant at this time
+    private static int pickActive(SplittableRandom random, double[] cumulativeActivity, int openAccounts, int[] owner,
+                                  long[] dormantFrom, long second) {
+        int account = 0;
+        for (int attempt = 0; attempt < 20; attempt++) {
+            account = lowerBound(cumulativeActivity, random.nextDouble() * cumulativeActivity[openAccounts - 1]);
+            if (dormantFrom[owner[account]] > second) {
+                break;
+            }
+        }
+        return account;
+    }
+    
+    // Load generated files into an empty database migrated up to its background migrations; apply those
+    // (SchemaMigrator.migrate returns them) after the load
+    public void load(Connection conn, Path directory) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM users")) {
+                rs.next();
+                if (rs.getLong(1) > 0) {
+                    throw new SQLException("Target database already has users; load into an empty database");
+                }
+            }
+            
+            // Rows are consistent by construction; skip per-row foreign key checks during the load
+            stmt.execute("SET REFERENTIAL_INTEGRITY FALSE");
+            try {
+                loadTable(stmt, "users", "id, username, password, full_name, email, created_at",
+                          directory.resolve(USERS_FILE));
+                loadTable(stmt, "accounts", "id, user_id, account_number, account_type, balance, created_at",
+                          directory.resolve(ACCOUNTS_FILE));
+                loadTable(stmt, "transactions", "id, from_account_id, to_account_id, amount, transaction_type, " +
+                          "description, from_balance_after, to_balance_after, transaction_date",
+                          directory.resolve(TRANSACTIONS_FILE));
+            } finally {
+                stmt.execute("SET REFERENTIAL_INTEGRITY TRUE");
+            }
+            
+            // Explicit ids bypass the identity columns; move them past the loaded rows
+            restartIdentity(stmt, "users");
+            restartIdentity(stmt, "accounts");
+            restartIdentity(stmt, "transactions");
+            stmt.execute("ANALYZE");
+        }
+    }
+    
+    // Remove generated files and their directory
+    public static void delete(Path directory) throws IOException {
+        for (String name : new String[] { USERS_FILE, ACCOUNTS_FILE, TRANSACTIONS_FILE }) {
+            Files.deleteIfExists(directory.resolve(name));
+        }
+        Files.deleteIfExists(directory);
+    }
+    
+    public int getAccountCount() {
+        return accountCount;
+    }
+    
+    public long getTransactionCount() {
+        return transactionCount;
+    }
+    
+    private static void loadTable(Statement stmt, String table, String columns, Path file) throws SQLException {
+        String path = file.toAbsolutePath().toString().replace("'", "''");
+        stmt.executeUpdate("INSERT INTO " + table + " (" + columns + ") DIRECT SELECT * FROM CSVREAD('" + path +
+                           "', NULL, 'charset=UTF-8 null=" + NULL + "')");
+    }
+    
+    private static void restartIdentity(Statement stmt, String table) throws SQLException {
+        long next;
+        try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(id), 0) + 1 FROM " + table)) {
+            rs.next();
+            next = rs.getLong(1);
+        }
+        stmt.executeUpdate("ALTER TABLE " + table + " ALTER COLUMN id RESTART WITH " + next);
+    }
+    
+    // Distinct 10-digit account numbers: an odd multiplier not divisible by 5 permutes 0..10^10-1
+    static String accountNumber(long accountId) {
+        long number = Math.floorMod(accountId * 7_919_000_003L + 1_234_567_891L, 10_000_000_000L);
+        return String.format("%010d", number);
+    }
+    
+    private static long logNormalCents(SplittableRandom random, long medianCents, double sigma) {
+        // Box-Muller
+        double gaussian = Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+        return Math.max(1, Math.min(100_000_000, Math.round(medianCents * Math.exp(sigma * gaussian))));
+    }
+    
+    // First index whose cumulative value exceeds the target
+    private static int lowerBound(double[] cumulative, double target) {
+        int index = Arrays.binarySearch(cumulative, target);
+        index = index >= 0 ? index + 1 : -index - 1;
+        return Math.min(index, cumulative.length - 1);
+    }
+    
+    // Number of entries at or before the given time
+    private static int upperBound(long[] sorted, long value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    private static long mix(long seed, long value) {
+        long z = seed * 0x9E3779B97F4A7C15L + value;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return (z ^ (z >>> 31)) >>> 1;
+    }
+    
+    private static void appendCents(StringBuilder out, long cents) {
+        out.append(cents / 100).append('.');
+        appendTwoDigits(out, cents % 100);
+    }
+    
+    // yyyy-MM-dd HH:mm:ss, as CSVREAD hands it to the TIMESTAMP column
+    private static void appendTimestamp(StringBuilder out, long epochSecond) {
+        LocalDateTime time = LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+        out.append(time.getYear()).append('-');
+        appendTwoDigits(out, time.getMonthValue());
+        out.append('-');
+        appendTwoDigits(out, time.getDayOfMonth());
+        out.append(' ');
+        appendTwoDigits(out, time.getHour());
+        out.append(':');
+        appendTwoDigits(out, time.getMinute());
+        out.append(':');
+        appendTwoDigits(out, time.getSecond());
+    }
+    
+    private static void appendTwoDigits(StringBuilder out, long value) {
+        if (value < 10) {
+            out.append('0');
+        }
+        out.append(value);
+    }
+    
+    private static Writer writer(Path file) throws IOException {
+        return new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8), WRITE_BUFFER);
+    }
+    
+    // Usage: DatasetGenerator [seed] [users] [transactions] [years] [end date]
+    public static void main(String[] args) throws Exception {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 42;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        long transactions = args.length > 2 ? Long.parseLong(args[2]) : 20_000_000;
+        int years = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        LocalDate endDate = args.length > 4 ? LocalDate.parse(args[4]) : LocalDate.of(2026, 1, 1);
+        
+        DatasetGenerator generator = new DatasetGenerator(seed, users, transactions, years, endDate);
+        Path directory = Files.createTempDirectory("banking-dataset");
+        
+        try {
+            long start = System.nanoTime();
+            generator.generate(directory);
+            long generatedMs = (System.nanoTime() - start) / 1_000_000;
+            
+            int deferred;
+            try (Connection conn = DriverManager.getConnection(OnlineBankingSystem.DB_URL, OnlineBankingSystem.DB_USER,
+                                                               OnlineBankingSystem.DB_PASSWORD)) {
+                deferred = new SchemaMigrator().migrate(conn).size();
+                
+                start = System.nanoTime();
+                generator.load(conn, directory);
+            }
+            long loadedMs = (System.nanoTime() - start) / 1_000_000;
+            long rows = users + generator.getAccountCount() + generator.getTransactionCount();
+            
+            System.out.println("Generated " + users + " users, " + generator.getAccountCount() + " accounts and " +
+                               generator.getTransactionCount() + " transactions in " + generatedMs + " ms, loaded in " +
+                               loadedMs + " ms (" + rows * 1000 / Math.max(1, loadedMs) + " rows/s)");
+            if (deferred > 0) {
+                System.out.println(deferred + " background migrations (transaction indexes) are left for the " +
+                                   "application to apply on its next start");
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import javax.swing.table.DefaultTableModel;
+import javax.swing.table.TableCellRenderer;
+
+// Allocation and time per history row: the previous formatting path against
+// HistoryTableModel.
+//
+// Both paths get the same synthetic query results and run on the event
+// dispatch thread, which reports the bytes it allocates. Three phases are
+// measured per path: loading the results into the table model, painting
+// every cell once through the table's renderer, and painting every cell
+// again. The previous path is the old updateTransactionHistory loop: a new
+// SimpleDateFormat per load, String.format for every amount, descriptions
+// built by concatenation, Map.containsValue per row, and Object[] rows in a
+// DefaultTableModel painted by the default renderer. Prints bytes and
+// nanoseconds per row for each phase, averaged over the measured rounds.
+// Each path runs in a JVM of its own, since sharing one would let the first
+// path's profile decide how the JIT compiles the table's renderer calls for
+// the second.
+//
+// Usage: java HistoryRenderBenchmark [rows] [accounts] [rounds] [previous|compact]
+public class HistoryRenderBenchmark {
+    private static final String[] TYPES = { "TRANSFER", "DEPOSIT", "WITHDRAWAL", InterestAccrualJob.INTEREST_TYPE };
+    private static final String[] COLUMN_NAMES = { "Date", "Type", "Description", "Amount", "Balance" };
+    private static final String[] PHASES = { "load", "first paint", "repaint" };
+    
+    // Query results as the history search returns them
+    private static final class Results {
+        final long[] postedAt;
+        final String[] types;
+        final String[] descriptions;
+        final double[] amounts;
+        final double[] fromBalances;
+        final double[] toBalances;
+        final String[] fromAccounts;
+        final String[] toAccounts;
+        
+        Results(int rows) {
+            postedAt = new long[rows];
+            types = new String[rows];
+            descriptions = new String[rows];
+            amounts = new double[rows];
+            fromBalances = new double[rows];
+            toBalances = new double[rows];
+            fromAccounts = new String[rows];
+            toAccounts = new String[rows];
+        }
+    }
+    
+    private interface Path {
+        JTable table();
+        
+        void load(Results results);
+    }
+    
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : HistorySearch.DEFAULT_LIMIT;
+        int accounts = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        
+        if (args.length < 4) {
+            System.out.printf("%d rows, %d accounts, %d rounds%n", rows, accounts, rounds);
+            System.out.printf("%-10s %-12s %14s %12s%n", "path", "phase", "bytes per row", "ns per row");
+            for (String path : new String[] { "previous", "compact" }) {
+                String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+                Process process = new ProcessBuilder(java, "-Djava.awt.headless=true", "-cp",
+                                                     System.getProperty("java.class.path"), "HistoryRenderBenchmark",
+                                                     String.valueOf(rows), String.valueOf(accounts),
+                                                     String.valueOf(rounds), path)
+                    .inheritIO().start();
+                if (process.waitFor() != 0) {
+                    System.exit(1);
+                }
+            }
+            return;
+        }
+        String pathName = args[3];
+        
+        Map<Integer, String> accountMap = new HashMap<>();
+        Map<String, Integer> accountIds = new HashMap<>();
+        for (int i = 0; i < accounts; i++) {
+            String number = String.format("%010d", 1_000_000_000L + i);
+            accountMap.put(i + 1, number);
+            accountIds.put(number, i + 1);
+        }
+        Results results = generate(rows, accountMap.values().toArray(new String[0]));
+        
+        SwingUtilities.invokeAndWait(() -> {
+            if (pathName.equals("previous")) {
+                measure(pathName, previousPath(accountMap), results, rows, rounds);
+            } else {
+                measure(pathName, compactPath(accountIds), results, rows, rounds);
+            }
+        });
+    }
+    
+    // Run every phase rounds times after as many warmup rounds, and print the averages
+    private static void measure(String name, Path path, Results results, int rows, int rounds) {
+        long[] bytes = new long[PHASES.length];
+        long[] nanos = new long[PHASES.length];
+        long threadId = Thread.currentThread().getId();
+        JTable table = path.table();
+        
+        for (int round = -rounds; round < rounds; round++) {
+            for (int phase = 0; phase < PHASES.length; phase++) {
+                long startBytes = THREADS.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                
+                if (phase == 0) {
+                    path.load(results);
+                } else {
+                    paintAll(table);
+                }
+                
+                long elapsed = System.nanoTime() - start;
+                long allocated = THREADS.getThreadAllocatedBytes(threadId) - startBytes;
+                if (round >= 0) {
+                    bytes[phase] += allocated;
+                    nanos[phase] += elapsed;
+                }
+            }
+        }
+        
+        long total = (long) rows * rounds;
+        for (int phase = 0; phase < PHASES.length; phase++) {
+            System.out.printf("%-10s %-12s %14.1f %12.1f%n", name, PHASES[phase], (double) bytes[phase] / total,
+                              (double) nanos[phase] / total);
+        }
+    }
+    
+    // What JTable does for each visible cell before painting it
+    private static void paintAll(JTable table) {
+        for (int row = 0; row < table.getRowCount(); row++) {
+            for (int column = 0; column < table.getColumnCount(); column++) {
+                TableCellRenderer renderer = table.getCellRenderer(row, column);
+                table.prepareRenderer(renderer, row, column);
+            }
+        }
+    }
+    
+    // The loop updateTransactionHistory used before HistoryTableModel
+    private static Path previousPath(Map<Integer, String> accountMap) {
+        DefaultTableModel tableModel = new DefaultTableModel(COLUMN_NAMES, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        JTable table = new JTable(tableModel);
+        
+        return new Path() {
+            @Override
+            public JTable table() {
+                return table;
+            }
+            
+            @Override
+            public void load(Results results) {
+                tableModel.setRowCount(0);
+                SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+                
+                for (int i = 0; i < results.postedAt.length; i++) {
+                    String date = dateFormat.format(new Timestamp(results.postedAt[i]));
+                    String type = results.types[i];
+                    String description = results.descriptions[i];
+                    double amount = results.amounts[i];
+                    String fromAccount = results.fromAccounts[i];
+                    String toAccount = results.toAccounts[i];
+                    
+                    boolean outgoing = accountMap.containsValue(fromAccount);
+                    double balanceAfter = outgoing ? results.fromBalances[i] : results.toBalances[i];
+                    String balanceStr = "$" + String.format("%.2f", balanceAfter);
+                    
+                    if (description == null || description.isEmpty()) {
+                        if (type.equals("TRANSFER")) {
+                            description = "Transfer from " + fromAccount + " to " + toAccount;
+                        } else if (type.equals("DEPOSIT")) {
+                            description = "Deposit to " + toAccount;
+                        } else if (type.equals("WITHDRAWAL")) {
+                            description = "Withdrawal from " + fromAccount;
+                        }
+                    }
+                    
+                    String amountStr;
+                    if (type.equals("WITHDRAWAL") || (type.equals("TRANSFER") && outgoing)) {
+                        amountStr = "-$" + String.format("%.2f", amount);
+                    } else {
+                        amountStr = "+$" + String.format("%.2f", amount);
+                    }
+                    
+                    tableModel.addRow(new Object[]{date, type, description, amountStr, balanceStr});
+                }
+            }
+        };
+    }
+    
+    // The loop updateTransactionHistory uses now
+    private static Path compactPath(Map<String, Integer> accountIds) {
+        HistoryTableModel tableModel = new HistoryTableModel();
+        JTable table = new JTable(tableModel);
+        table.setDefaultRenderer(HistoryTableModel.Column.class, new HistoryTableModel.Renderer());
+        
+        return new Path() {
+            @Override
+            public JTable table() {
+                return table;
+            }
+            
+            @Override
+            public void load(Results results) {
+                tableModel.clear();
+                
+                for (int i = 0; i < results.postedAt.length; i++) {
+                    String type = results.types[i];
+                    String fromAccount = results.fromAccounts[i];
+                    long amountCents = MoneyFormat.toCents(results.amounts[i]);
+                    
+                    boolean outgoing = accountIds.containsKey(fromAccount);
+                    long balanceCents = MoneyFormat.toCents(outgoing ? results.fromBalances[i] : results.toBalances[i]);
+                    if (type.equals("WITHDRAWAL") || (type.equals("TRANSFER") && outgoing)) {
+                        amountCents = -amountCents;
+                    }
+                    
+                    tableModel.addRow(results.postedAt[i], type, results.descriptions[i], amountCents, balanceCents,
+                                      fromAccount, results.toAccounts[i]);
+                }
+                tableModel.fireTableDataChanged();
+            }
+        };
+    }
+    
+    // A mix of postings in and out of the user's accounts, half without a description
+    private static Results generate(int rows, String[] ownAccounts) {
+        SplittableRandom random = new SplittableRandom(42);
+        Results results = new Results(rows);
+        long now = System.currentTimeMillis();
+        
+        for (int i = 0; i < rows; i++) {
+            String type = TYPES[random.nextInt(TYPES.length)];
+            String own = ownAccounts[random.nextInt(ownAccounts.length)];
+            String other = String.format("%010d", 2_000_000_000L + random.nextInt(1_000_000));
+            boolean outgoing = type.equals("WITHDRAWAL") || (type.equals("TRANSFER") && random.nextBoolean());
+            
+            results.postedAt[i] = now - i * 3_600_000L;
+            results.types[i] = type;
+            results.descriptions[i] = random.nextBoolean() ? null : "Payment " + i;
+            results.amounts[i] = random.nextInt(1_000_000) / 100.0;
+            results.fromBalances[i] = random.nextInt(10_000_000) / 100.0;
+            results.toBalances[i] = random.nextInt(10_000_000) / 100.0;
+            results.fromAccounts[i] = type.equals("DEPOSIT") ? null : outgoing ? own : other;
+            results.toAccounts[i] = type.equals("WITHDRAWAL") ? null : outgoing ? other : own;
+        }
+        return results;
+    }
+}
@@ -0,0 +1,217 @@
+import java.math.BigDecimal;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+// Filtered transaction history query.
+//
+// All filters are pushed down into SQL. A search reads one ledger table: the
+// read model's, or on the primary the hot table or one month's archive, so
+// a caller covering several months searches their tables newest first until
+// its page is full. The query has one branch per user account and
+// direction, postings leaving it and postings arriving, so each branch is a
+// range of one (account, date, id) index instead of an OR across two joins.
+// Every ledger table has that index on both account columns, newest first.
+// Every branch is ordered in that index's order and capped at the result
+// limit before the branches are merged, so H2 stops reading after the limit
+// of matching rows per branch however long the account history is. The
+// table is named directly rather than through the transaction_ledger view,
+// because H2 cannot stop early inside a view. Transfers between two of the
+// user's accounts are only taken from the outgoing side, so the branches
+// never overlap and are merged with UNION ALL.
+//
+// Description text goes through the H2 full-text index of the ledger table,
+// on the read model and the primary alike. The index also holds the account
+// ids as words, so a branch searches for the text's words plus its account
+// id and joins the matching keys to the table by primary key: it reads the
+// account's matching postings instead of its whole history. Words match
+// whole and case-insensitively, and all of them must be present. A table
+// whose index is not built yet, such as the primary's hot table while its
+// background migration runs, matches the same words with a regular
+// expression on the rows the branch reads instead.
+public class HistorySearch {
+    // Maximum number of rows a single search returns
+    public static final int DEFAULT_LIMIT = 500;
+    
+    // Columns of each ledger table's full-text index; the account ids let a search narrow to one account
+    static final String TEXT_INDEX_COLUMNS = "DESCRIPTION,FROM_ACCOUNT_ID,TO_ACCOUNT_ID";
+    
+    // Statements preparing a database for full-text indexes; safe to repeat
+    static final String CREATE_TEXT_SEARCH_ALIAS = "CREATE ALIAS IF NOT EXISTS FT_INIT FOR \"org.h2.fulltext.FullText.init\"";
+    static final String INIT_TEXT_SEARCH = "CALL FT_INIT()";
+    
+    // Characters that never occur in a word, for matching without the index
+    private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+    
+    // Search criteria; null fields are not filtered on
+    public static class Filter {
+        public LocalDate fromDate;
+        public LocalDate toDate;
+        public String transactionType;
+        public BigDecimal minAmount;
+        public BigDecimal maxAmount;
+        public String counterpartyAccount;
+        public String text;
+        
+        // The same criteria, for narrowing the date range of one part of a search
+        public Filter copy() {
+            Filter copy = new Filter();
+            copy.fromDate = fromDate;
+            copy.toDate = toDate;
+            copy.transactionType = transactionType;
+            copy.minAmount = minAmount;
+            copy.maxAmount = maxAmount;
+            copy.counterpartyAccount = counterpartyAccount;
+            copy.text = text;
+            return copy;
+        }
+    }
+    
+    // Prepare the search for the given accounts in one ledger table, indexed by (account DESC,
+    // transaction_date DESC, id DESC) on both sides; textIndexed says whether its full-text index can
+    // answer the description text. The caller executes and closes the statement. Columns: id,
+    // transaction_date, transaction_type, description, amount, from_balance_after, to_balance_after,
+    // from_account, to_account
+    public static PreparedStatement prepare(Connection conn, String table, Collection<Integer> accountIds,
+                                            Filter filter, int limit, boolean textIndexed) throws SQLException {
+        List<Object> params = new ArrayList<>();
+        PreparedStatement pstmt = conn.prepareStatement(buildQuery(table, accountIds, filter, limit, textIndexed, params));
+        for (int i = 0; i < params.size(); i++) {
+            pstmt.setObject(i + 1, params.get(i));
+        }
+        return pstmt;
+    }
+    
+    // (Re)build the full-text index of one ledger table from its current rows
+    static String createTextIndex(String table) {
+        return "CALL FT_CREATE_INDEX('PUBLIC', '" + table.toUpperCase() + "', '" + TEXT_INDEX_COLUMNS + "')";
+    }
+    
+    // Drop a ledger table's full-text index and its entries; does nothing if the table has none
+    static String dropTextIndex(String table) {
+        return "CALL FT_DROP_INDEX('PUBLIC', '" + table.toUpperCase() + "')";
+    }
+    
+    // Lower-case names of the tables with a full-text index; empty if full-text search was never initialised.
+    // An index is listed from the start of its build, so a caller that may search during one excludes the table.
+    static Set<String> textIndexedTables(Connection conn) throws SQLException {
+        Set<String> tables = new HashSet<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT \"TABLE\" FROM FT.INDEXES WHERE SCHEMA = 'PUBLIC'")) {
+            while (rs.next()) {
+                tables.add(rs.getString(1).toLowerCase());
+            }
+        } catch (SQLException e) {
+            // No FT schema (90079) or no FT.INDEXES table (42S02): nothing is indexed
+            if (!"90079".equals(e.getSQLState()) && !"42S02".equals(e.getSQLState())) {
+                throw e;
+            }
+        }
+        return tables;
+    }
+    
+    // The search SQL; its parameter values are appended to params in order
+    static String buildQuery(String table, Collection<Integer> accountIds, Filter filter, int limit,
+                             boolean textIndexed, List<Object> params) {
+        StringBuilder sql = new StringBuilder();
+        
+        for (Integer accountId : accountIds) {
+            appendBranch(sql, params, table, "from_account_id", "a_to", accountId, null, filter, limit, textIndexed);
+            sql.append(" UNION ALL ");
+            appendBranch(sql, params, table, "to_account_id", "a_from", accountId, accountIds, filter, limit, textIndexed);
+            sql.append(" UNION ALL ");
+        }
+        sql.setLength(sql.length() - " UNION ALL ".length());
+        sql.append(" ORDER BY transaction_date DESC, id DESC LIMIT ?");
+        params.add(limit);
+        return sql.toString();
+    }
+    
+    // One side of the search: the newest matching postings in one table whose ownColumn is the account.
+    // Postings whose other side is one of excludedCounterparties are left to that account's outgoing branch.
+    private static void appendBranch(StringBuilder sql, List<Object> params, String table, String ownColumn,
+                                     String counterpartyAlias, Integer accountId, Collection<Integer> excludedCounterparties,
+                                     Filter filter, int limit, boolean textIndexed) {
+        // A parenthesized branch rather than a derived table: H2 drops the date range from the index condition
+        // of a derived table that selects columns the index does not hold
+        sql.append("(");
+        sql.append("SELECT t.id, t.transaction_date, t.transaction_type, t.description, t.amount, ");
+        sql.append("t.from_balance_after, t.to_balance_after, ");
+        sql.append("a_from.account_number AS from_account, a_to.account_number AS to_account ");
+        boolean textSearch = filter.text != null && textIndexed;
+        if (!textSearch) {
+            sql.append("FROM ").append(table).append(" t ");
+        } else {
+            // The full-text matches of the words and the account id, each joined by primary key. H2 keeps the
+            // order of a LEFT JOIN, so it reads the matches first instead of probing them per posting.
+            sql.append("FROM FT_SEARCH_DATA(?, 0, 0) ft ");
+            sql.append("LEFT JOIN ").append(table).append(" t ON t.id = CAST(ft.KEYS[1] AS INT) ");
+            params.add(filter.text + " " + accountId);
+        }
+        sql.append("LEFT JOIN accounts a_from ON t.from_account_id = a_from.id ");
+        sql.append("LEFT JOIN accounts a_to ON t.to_account_id = a_to.id ");
+        
+        sql.append("WHERE t.").append(ownColumn).append(" = ?");
+        params.add(accountId);
+        
+        if (textSearch) {
+            sql.append(" AND ft.\"TABLE\" = ?");
+            params.add(table.toUpperCase());
+        } else if (filter.text != null) {
+            // Each word whole and in any case, as the full-text index matches it
+            for (String word : NON_WORD.split(filter.text.trim())) {
+                if (!word.isEmpty()) {
+                    sql.append(" AND REGEXP_LIKE(t.description, ?, 'i')");
+                    params.add("(?<![\\p{L}\\p{N}])" + Pattern.quote(word) + "(?![\\p{L}\\p{N}])");
+                }
+            }
+        }
+        
+        if (excludedCounterparties != null) {
+            sql.append(" AND (t.from_account_id IS NULL OR t.from_account_id NOT IN (");
+            boolean first = true;
+            for (Integer excluded : excludedCounterparties) {
+                sql.append(first ? "?" : ", ?");
+                params.add(excluded);
+                first = false;
+            }
+            sql.append("))");
+        }
+        
+        if (filter.fromDate != null) {
+            sql.append(" AND t.transaction_date >= ?");
+            params.add(Timestamp.valueOf(filter.fromDate.atStartOfDay()));
+        }
+        if (filter.toDate != null) {
+            // Inclusive end date
+            sql.append(" AND t.transaction_date < ?");
+            params.add(Timestamp.valueOf(filter.toDate.plusDays(1).atStartOfDay()));
+        }
+        if (filter.transactionType != null) {
+            sql.append(" AND t.transaction_type = ?");
+            params.add(filter.transactionType);
+        }
+        if (filter.minAmount != null) {
+            sql.append(" AND t.amount >= ?");
+            params.add(filter.minAmount);
+        }
+        if (filter.maxAmount != null) {
+            sql.append(" AND t.amount <= ?");
+            params.add(filter.maxAmount);
+        }
+        if (filter.counterpartyAccount != null) {
+            sql.append(" AND ").append(counterpartyAlias).append(".account_number = ?");
+            params.add(filter.counterpartyAccount);
+        }
+        
+        // All of the index's columns in its own order, which H2 needs to read it in order and stop at the
+        // limit; a text branch sorts its matches the same way
+        sql.append(" ORDER BY t.").append(ownColumn).append(" DESC, t.transaction_date DESC, t.id DESC LIMIT ?)");
+        params.add(limit);
+    }
+}
@@ -0,0 +1,202 @@
+import java.awt.Component;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import javax.swing.JTable;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
+
+// Transaction history rows for the history table.
+//
+// Rows are kept column-wise in primitive arrays: posting time in epoch
+// millis, signed amount and balance in cents, and references to the strings
+// the query returned. Nothing is formatted when a search loads; the cell text
+// of a row is built the first time the row is painted, with one reused
+// builder, a java.time formatter and MoneyFormat, and kept for later
+// repaints. Rows that are never scrolled into view are never formatted.
+//
+// getValueAt returns the column constant rather than the cell text, so the
+// table does not allocate a value per painted cell; Renderer looks the text
+// up by row. All methods are called on the event dispatch thread.
+public class HistoryTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    
+    // Balance value for a posting without a recorded running balance
+    public static final long NO_BALANCE = Long.MIN_VALUE;
+    
+    private static final DateTimeFormatter DATE_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final int INITIAL_CAPACITY = 64;
+    
+    // Table columns in display order
+    public enum Column {
+        DATE("Date"), TYPE("Type"), DESCRIPTION("Description"), AMOUNT("Amount"), BALANCE("Balance");
+        
+        private final String title;
+        
+        Column(String title) {
+            this.title = title;
+        }
+    }
+    
+    private static final Column[] COLUMNS = Column.values();
+    
+    private int size;
+    private long[] postedAt = new long[INITIAL_CAPACITY];
+    private long[] amountCents = new long[INITIAL_CAPACITY];
+    private long[] balanceCents = new long[INITIAL_CAPACITY];
+    private String[] types = new String[INITIAL_CAPACITY];
+    private String[] descriptions = new String[INITIAL_CAPACITY];
+    private String[] fromAccounts = new String[INITIAL_CAPACITY];
+    private String[] toAccounts = new String[INITIAL_CAPACITY];
+    
+    // Cell text of rows painted so far, by column ordinal then row; null until first painted
+    private final String[][] text = new String[COLUMNS.length][INITIAL_CAPACITY];
+    private final StringBuilder builder = new StringBuilder(64);
+    
+    // Paints history cells from the text the model builds for them
+    public static class Renderer extends DefaultTableCellRenderer {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus,
+                                                       int row, int column) {
+            HistoryTableModel model = (HistoryTableModel) table.getModel();
+            String text = model.getText(table.convertRowIndexToModel(row), (Column) value);
+            return super.getTableCellRendererComponent(table, text, isSelected, hasFocus, row, column);
+        }
+    }
+    
+    // Drop all rows; call fireTableDataChanged once the new rows are added
+    public void clear() {
+        Arrays.fill(types, 0, size, null);
+        Arrays.fill(descriptions, 0, size, null);
+        Arrays.fill(fromAccounts, 0, size, null);
+        Arrays.fill(toAccounts, 0, size, null);
+        for (String[] columnText : text) {
+            Arrays.fill(columnText, 0, size, null);
+        }
+        size = 0;
+    }
+    
+    // Append a row; amountCents is negative for money leaving the user's account
+    public void addRow(long postedAtMillis, String type, String description, long amountCents, long balanceCents,
+                       String fromAccount, String toAccount) {
+        if (size == postedAt.length) {
+            grow();
+        }
+        
+        postedAt[size] = postedAtMillis;
+        this.amountCents[size] = amountCents;
+        this.balanceCents[size] = balanceCents;
+        types[size] = type;
+        descriptions[size] = description == null || description.isEmpty() ? null : description;
+        fromAccounts[size] = fromAccount;
+        toAccounts[size] = toAccount;
+        size++;
+    }
+    
+    @Override
+    public int getRowCount() {
+        return size;
+    }
+    
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+    
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column].title;
+    }
+    
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return Column.class;
+    }
+    
+    // The column constant; the cell text comes from getText
+    @Override
+    public Object getValueAt(int row, int column) {
+        return COLUMNS[column];
+    }
+    
+    // Text of one cell, built on first use
+    public String getText(int row, Column column) {
+        if (column == Column.TYPE) {
+            return types[row];
+        }
+        
+        String[] columnText = text[column.ordinal()];
+        String cell = columnText[row];
+        if (cell == null) {
+            builder.setLength(0);
+            appendCell(row, column, builder);
+            cell = builder.toString();
+            columnText[row] = cell;
+        }
+        return cell;
+    }
+    
+    private void appendCell(int row, Column column, StringBuilder sb) {
+        switch (column) {
+            case DATE:
+                DATE_FORMAT.formatTo(Instant.ofEpochMilli(postedAt[row]), sb);
+                break;
+            case TYPE:
+                sb.append(types[row]);
+                break;
+            case DESCRIPTION:
+                appendDescription(row, sb);
+                break;
+            case AMOUNT:
+                long amount = amountCents[row];
+                sb.append(amount < 0 ? "-$" : "+$");
+                MoneyFormat.appendCents(sb, Math.abs(amount));
+                break;
+            case BALANCE:
+                if (balanceCents[row] != NO_BALANCE) {
+                    MoneyFormat.appendCents(sb.append('$'), balanceCents[row]);
+                }
+                break;
+        }
+    }
+    
+    // The stored description, or one describing the posting when none was entered
+    private void appendDescription(int row, StringBuilder sb) {
+        if (descriptions[row] != null) {
+            sb.append(descriptions[row]);
+            return;
+        }
+        
+        switch (types[row]) {
+            case "TRANSFER":
+                sb.append("Transfer from ").append(fromAccounts[row]).append(" to ").append(toAccounts[row]);
+                break;
+            case "DEPOSIT":
+                sb.append("Deposit to ").append(toAccounts[row]);
+                break;
+            case "WITHDRAWAL":
+                sb.append("Withdrawal from ").append(fromAccounts[row]);
+                break;
+            default:
+                break;
+        }
+    }
+    
+    private void grow() {
+        int capacity = postedAt.length * 2;
+        postedAt = Arrays.copyOf(postedAt, capacity);
+        amountCents = Arrays.copyOf(amountCents, capacity);
+        balanceCents = Arrays.copyOf(balanceCents, capacity);
+        types = Arrays.copyOf(types, capacity);
+        descriptions = Arrays.copyOf(descriptions, capacity);
+        fromAccounts = Arrays.copyOf(fromAccounts, capacity);
+        toAccounts = Arrays.copyOf(toAccounts, capacity);
+        for (int i = 0; i < text.length; i++) {
+            text[i] = Arrays.copyOf(text[i], capacity);
+        }
+    }
+}
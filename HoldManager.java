@@ -0,0 +1,398 @@
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Authorization holds: funds reserved now and captured later.
+//
+// A hold reserves an amount on one of a user's accounts for a payee without
+// posting anything. It is captured in full or in part, which posts a
+// transfer to the payee, or released; a hold that is still open when its
+// expiry time comes is released automatically. Holds are stored in the
+// holds table with their remaining amount and status.
+//
+// The total held per account is kept in memory, so the posting path checks
+// the available balance (balance less holds) with one map lookup instead of
+// summing open holds. The total is changed in the safe direction around each
+// transaction: a new hold is reserved before its row commits and backed out
+// if the transaction fails, and captured or released amounts are given back
+// only after commit. New holds on one account are serialised by locking the
+// account row, which transfers and withdrawals also lock before checking the
+// available balance and debiting it.
+//
+// Open holds are also queued by expiry time. A daemon thread sleeps until the
+// earliest one is due and expires it as batch work through the shared
+// AdmissionController; holds captured or released in the meantime are skipped
+// when they reach the head. Totals and queue are rebuilt from the open holds
+// at startup, so holds that expired while the application was down are
+// released as soon as it starts.
+public class HoldManager {
+    // Posts the captured amount inside the caller's transaction and returns the work to run after commit.
+    // reservedAmount of the source account's held total belongs to this hold and is available to the posting.
+    public interface CapturePoster {
+        Runnable postCapture(Connection conn, int userId, String fromAccount, String toAccount, double amount,
+                             String description, double reservedAmount) throws SQLException;
+    }
+    
+    static final String OPEN = "OPEN";
+    static final String CAPTURED = "CAPTURED";
+    static final String RELEASED = "RELEASED";
+    static final String EXPIRED = "EXPIRED";
+    
+    // How long to wait before retrying an expiry that failed
+    private static final long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    
+    // An open hold waiting for its expiry time
+    private static final class Expiry {
+        final long holdId;
+        final long expiresAt;
+        
+        Expiry(long holdId, long expiresAt) {
+            this.holdId = holdId;
+            this.expiresAt = expiresAt;
+        }
+    }
+    
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPassword;
+    private final CapturePoster poster;
+    private final long expiryMillis;
+    private final AdmissionController admission;
+    
+    // Held cents per account id; accounts without open holds have no entry
+    private final ConcurrentHashMap<Integer, Long> heldCents = new ConcurrentHashMap<>();
+    private final Set<Long> openHolds = ConcurrentHashMap.newKeySet();
+    private final PriorityQueue<Expiry> expiries = new PriorityQueue<>(Comparator.comparingLong((Expiry e) -> e.expiresAt));
+    
+    private Thread expiryThread;
+    
+    public HoldManager(String dbUrl, String dbUser, String dbPassword, CapturePoster poster, long expiryHours,
+                       AdmissionController admission) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword;
+        this.poster = poster;
+        this.expiryMillis = TimeUnit.HOURS.toMillis(expiryHours);
+        this.admission = admission;
+    }
+    
+    // Reload totals and expiry queue from the open holds
+    public void rebuild(Connection conn) throws SQLException {
+        heldCents.clear();
+        openHolds.clear();
+        synchronized (expiries) {
+            expiries.clear();
+        }
+        
+        String sql = "SELECT id, account_id, amount, expires_at FROM holds WHERE status = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, OPEN);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    long holdId = rs.getLong("id");
+                    adjust(rs.getInt("account_id"), toCents(rs.getBigDecimal("amount")));
+                    openHolds.add(holdId);
+                    enqueue(new Expiry(holdId, rs.getTimestamp("expires_at").getTime()));
+                }
+            }
+        }
+    }
+    
+    // Start expiring holds as they fall due
+    public void start() {
+        expiryThread = new Thread(this::runExpiries, "hold-expiry");
+        expiryThread.setDaemon(true);
+        expiryThread.start();
+    }
+    
+    public void stop() {
+        if (expiryThread != null) {
+            expiryThread.interrupt();
+        }
+    }
+    
+    // Hot path: total of the open holds on an account
+    public double getHeldAmount(int accountId) {
+        Long cents = heldCents.get(accountId);
+        return cents == null ? 0 : cents / 100.0;
+    }
+    
+    public int getOpenHoldCount() {
+        return openHolds.size();
+    }
+    
+    // Reserve an amount of the user's account for a payee; returns the hold id
+    public long placeHold(int userId, String fromAccount, String toAccount, double amount, String description)
+            throws SQLException {
+        long cents = toCents(amount);
+        if (cents <= 0) {
+            throw new SQLException("Hold amount must be positive");
+        }
+        
+        long holdId;
+        Timestamp expiresAt = new Timestamp(System.currentTimeMillis() + expiryMillis);
+        
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+            conn.setAutoCommit(false);
+            int accountId = -1;
+            boolean reserved = false;
+            
+            try {
+                long balanceCents;
+                
+                // Lock the account so concurrent holds on it check against each other's reservations
+                String accountSql = "SELECT id, balance FROM accounts WHERE account_number = ? AND user_id = ? FOR UPDATE";
+                try (PreparedStatement pstmt = conn.prepareStatement(accountSql)) {
+                    pstmt.setString(1, fromAccount);
+                    pstmt.setInt(2, userId);
+                    
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        if (!rs.next()) {
+                            throw new SQLException("Source account not found");
+                        }
+                        accountId = rs.getInt("id");
+                        balanceCents = toCents(rs.getBigDecimal("balance"));
+                    }
+                }
+                
+                try (PreparedStatement pstmt = conn.prepareStatement(OnlineBankingSystem.ACCOUNT_BY_NUMBER_SQL)) {
+                    pstmt.setString(1, toAccount);
+                    
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        if (!rs.next()) {
+                            throw new SQLException("Destination account not found");
+                        }
+                    }
+                }
+                
+                if (balanceCents - heldCents.getOrDefault(accountId, 0L) < cents) {
+                    throw new SQLException("Insufficient funds");
+                }
+                adjust(accountId, cents);
+                reserved = true;
+                
+                String insertSql = "INSERT INTO holds (user_id, account_id, from_account, to_account, amount, description, status, expires_at) " +
+                                   "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+                try (PreparedStatement pstmt = conn.prepareStatement(insertSql, Statement.RETURN_GENERATED_KEYS)) {
+                    pstmt.setInt(1, userId);
+                    pstmt.setInt(2, accountId);
+                    pstmt.setString(3, fromAccount);
+                    pstmt.setString(4, toAccount);
+                    pstmt.setBigDecimal(5, BigDecimal.valueOf(cents, 2));
+                    pstmt.setString(6, description);
+                    pstmt.setString(7, OPEN);
+                    pstmt.setTimestamp(8, expiresAt);
+                    pstmt.executeUpdate();
+                    
+                    try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
+                        generatedKeys.next();
+                        holdId = generatedKeys.getLong(1);
+                    }
+                }
+                
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                if (reserved) {
+                    adjust(accountId, -cents);
+                }
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        
+        openHolds.add(holdId);
+        enqueue(new Expiry(holdId, expiresAt.getTime()));
+        return holdId;
+    }
+    
+    // Post part or all of a hold to its payee. A final capture releases whatever is left;
+    // otherwise the rest stays held for further captures until released or expired.
+    public void capture(long holdId, double amount, boolean finalCapture) throws SQLException {
+        long cents = toCents(amount);
+        if (cents <= 0) {
+            throw new SQLException("Capture amount must be positive");
+        }
+        
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+            conn.setAutoCommit(false);
+            
+            try {
+                String holdSql = "SELECT user_id, account_id, from_account, to_account, amount, description " +
+                                 "FROM holds WHERE id = ? AND status = ? FOR UPDATE";
+                int userId;
+                int accountId;
+                String fromAccount;
+                String toAccount;
+                long remainingCents;
+                String description;
+                
+                try (PreparedStatement pstmt = conn.prepareStatement(holdSql)) {
+                    pstmt.setLong(1, holdId);
+                    pstmt.setString(2, OPEN);
+                    
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        if (!rs.next()) {
+                            throw new SQLException("Hold not found or no longer open");
+                        }
+                        userId = rs.getInt("user_id");
+                        accountId = rs.getInt("account_id");
+                        fromAccount = rs.getString("from_account");
+                        toAccount = rs.getString("to_account");
+                        remainingCents = toCents(rs.getBigDecimal("amount"));
+                        description = rs.getString("description");
+                    }
+                }
+                
+                if (cents > remainingCents) {
+                    throw new SQLException("Capture exceeds the held amount");
+                }
+                
+                Runnable afterCommit = poster.postCapture(conn, userId, fromAccount, toAccount, cents / 100.0,
+                                                          description, remainingCents / 100.0);
+                long leftCents = finalCapture ? 0 : remainingCents - cents;
+                
+                String updateSql = "UPDATE holds SET amount = ?, captured_amount = captured_amount + ?, status = ?, closed_at = ? WHERE id = ?";
+                try (PreparedStatement pstmt = conn.prepareStatement(updateSql)) {
+                    pstmt.setBigDecimal(1, BigDecimal.valueOf(leftCents, 2));
+                    pstmt.setBigDecimal(2, BigDecimal.valueOf(cents, 2));
+                    pstmt.setString(3, leftCents == 0 ? CAPTURED : OPEN);
+                    pstmt.setTimestamp(4, leftCents == 0 ? new Timestamp(System.currentTimeMillis()) : null);
+                    pstmt.setLong(5, holdId);
+                    pstmt.executeUpdate();
+                }
+                
+                conn.commit();
+                
+                if (leftCents == 0) {
+                    openHolds.remove(holdId);
+                }
+                adjust(accountId, leftCents - remainingCents);
+                afterCommit.run();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+    
+    // Give the remaining amount of a hold back to the account without posting
+    public void release(long holdId) throws SQLException {
+        if (!close(holdId, RELEASED)) {
+            throw new SQLException("Hold not found or no longer open");
+        }
+    }
+    
+    // Close an open hold without posting; returns false if it was not open
+    private boolean close(long holdId, String status) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+            conn.setAutoCommit(false);
+            
+            try {
+                int accountId;
+                long remainingCents;
+                
+                try (PreparedStatement pstmt = conn.prepareStatement("SELECT account_id, amount FROM holds WHERE id = ? AND status = ? FOR UPDATE")) {
+                    pstmt.setLong(1, holdId);
+                    pstmt.setString(2, OPEN);
+                    
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        if (!rs.next()) {
+                            conn.rollback();
+                            openHolds.remove(holdId);
+                            return false;
+                        }
+                        accountId = rs.getInt("account_id");
+                        remainingCents = toCents(rs.getBigDecimal("amount"));
+                    }
+                }
+                
+                try (PreparedStatement pstmt = conn.prepareStatement("UPDATE holds SET amount = 0, status = ?, closed_at = ? WHERE id = ?")) {
+                    pstmt.setString(1, status);
+                    pstmt.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+                    pstmt.setLong(3, holdId);
+                    pstmt.executeUpdate();
+                }
+                
+                conn.commit();
+                openHolds.remove(holdId);
+                adjust(accountId, -remainingCents);
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+    
+    // Expire holds in expiry order, sleeping until the earliest is due
+    @SuppressWarnings("try")
+    private void runExpiries() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Expiry due;
+            
+            synchronized (expiries) {
+                try {
+                    Expiry head = expiries.peek();
+                    long wait = head == null ? 0 : head.expiresAt - System.currentTimeMillis();
+                    if (head == null || wait > 0) {
+                        expiries.wait(wait);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                due = expiries.poll();
+            }
+            
+            // Captured or released since it was queued
+            if (!openHolds.contains(due.holdId)) {
+                continue;
+            }
+            
+            try (AdmissionController.Permit permit = admission.await(AdmissionController.Priority.BATCH)) {
+                close(due.holdId, EXPIRED);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                enqueue(new Expiry(due.holdId, System.currentTimeMillis() + RETRY_MILLIS));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+    
+    private void enqueue(Expiry expiry) {
+        synchronized (expiries) {
+            expiries.add(expiry);
+            if (expiries.peek() == expiry) {
+                expiries.notifyAll();
+            }
+        }
+    }
+    
+    // Add to an account's held total, dropping the entry when it reaches zero
+    private void adjust(int accountId, long deltaCents) {
+        heldCents.compute(accountId, (id, cents) -> {
+            long total = (cents == null ? 0 : cents) + deltaCents;
+            return total == 0 ? null : total;
+        });
+    }
+    
+    private static long toCents(double amount) {
+        return Math.round(amount * 100);
+    }
+    
+    private static long toCents(BigDecimal amount) {
+        return amount.movePointRight(2).longValue();
+    }
+}
@@ -0,0 +1,293 @@
+import java.sql.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Idempotency keys for postings.
+//
+// A client sends the same key with every retry of one request. The key is
+// claimed by inserting it into idempotency_keys as the first statement of
+// the posting transaction and completed with the resulting transaction id
+// before commit, so the key and the posting are recorded atomically. A retry
+// that arrives while the original is still in flight waits on the key's
+// primary key. H2 gives up on the lock after its lock timeout with HYT00,
+// not with the duplicate, so the claim tries again a bounded number of
+// times; once the original commits the retry sees the duplicate and gets
+// the original result without touching accounts, and if the original rolls
+// back the retry claims the key itself. A retry still waiting after the
+// last attempt fails with RequestInProgressException and can be sent again.
+//
+// Completed keys are also kept in a bounded in-memory cache in insertion
+// order, so the usual retry is answered on the hot path without opening a
+// transaction. The cache is only an optimisation: a miss falls through to
+// the claim, which is always authoritative. Keys older than the retention
+// period are evicted from both the cache and the table.
+public class IdempotencyStore {
+    // Result of a request that has already been processed under a key
+    public static class Outcome {
+        public final String operation;
+        public final int transactionId;
+        final long recordedAt;
+        
+        Outcome(String operation, int transactionId, long recordedAt) {
+            this.operation = operation;
+            this.transactionId = transactionId;
+            this.recordedAt = recordedAt;
+        }
+    }
+    
+    // Thrown when a retry has waited its attempts out while the original request still holds the key
+    public static class RequestInProgressException extends SQLException {
+        private static final long serialVersionUID = 1L;
+        
+        RequestInProgressException(SQLException cause) {
+            super("This request is still being processed, please try again shortly", cause.getSQLState(), cause);
+        }
+    }
+    
+    // Lock timeouts a claim waits out for an in-flight original before giving up
+    private static final int CLAIM_ATTEMPTS = 5;
+    
+    private final long retentionMillis;
+    private final int maxCachedKeys;
+    
+    // Insertion-ordered, so the oldest keys are always at the head
+    private final LinkedHashMap<String, Outcome> cache = new LinkedHashMap<>();
+    
+    // Time spent in this class per keyed request, for measuring its overhead
+    private final LongAdder overheadNanos = new LongAdder();
+    private final LongAdder keyedRequests = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder duplicateClaims = new LongAdder();
+    private final LongAdder inFlightWaits = new LongAdder();
+    
+    private ScheduledExecutorService sweeper;
+    
+    public IdempotencyStore(long retentionHours, int maxCachedKeys) {
+        this.retentionMillis = TimeUnit.HOURS.toMillis(retentionHours);
+        this.maxCachedKeys = maxCachedKeys;
+    }
+    
+    // Hot path: the outcome of an already completed request, or null if the cache does not know the key
+    public Outcome lookup(int userId, String key, String operation) throws SQLException {
+        long start = System.nanoTime();
+        keyedRequests.increment();
+        Outcome outcome;
+        
+        synchronized (cache) {
+            outcome = cache.get(cacheKey(userId, key));
+        }
+        
+        if (outcome != null) {
+            cacheHits.increment();
+            checkOperation(outcome, operation);
+        }
+        
+        overheadNanos.add(System.nanoTime() - start);
+        return outcome;
+    }
+    
+    // Claim the key inside the posting transaction. Returns null if the request is new, or the
+    // outcome of the earlier request if the key has already been used; the caller then rolls back.
+    // Throws RequestInProgressException if the earlier request is still in flight after every attempt.
+    public Outcome claim(Connection conn, int userId, String key, String operation) throws SQLException {
+        long start = System.nanoTime();
+        
+        try {
+            String sql = "INSERT INTO idempotency_keys (user_id, idem_key, operation, created_at) VALUES (?, ?, ?, ?)";
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setInt(1, userId);
+                pstmt.setString(2, key);
+                pstmt.setString(3, operation);
+                pstmt.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+                
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        pstmt.executeUpdate();
+                        return null;
+                    } catch (SQLException e) {
+                        // 23505: duplicate key, the request has already been processed
+                        if ("23505".equals(e.getSQLState())) {
+                            break;
+                        }
+                        // HYT00: the original still holds the key; only the failed statement is rolled back
+                        if (!"HYT00".equals(e.getSQLState())) {
+                            throw e;
+                        }
+                        inFlightWaits.increment();
+                        if (attempt == CLAIM_ATTEMPTS) {
+                            throw new RequestInProgressException(e);
+                        }
+                    }
+                }
+            }
+            
+            duplicateClaims.increment();
+            Outcome outcome = readOutcome(conn, userId, key);
+            checkOperation(outcome, operation);
+            remember(userId, key, outcome);
+            return outcome;
+        } finally {
+            overheadNanos.add(System.nanoTime() - start);
+        }
+    }
+    
+    // Attach the posting's transaction id to a claimed key, still inside the posting transaction
+    public void complete(Connection conn, int userId, String key, int transactionId) throws SQLException {
+        long start = System.nanoTime();
+        
+        String sql = "UPDATE idempotency_keys SET transaction_id = ? WHERE user_id = ? AND idem_key = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, transactionId);
+            pstmt.setInt(2, userId);
+            pstmt.setString(3, key);
+            pstmt.executeUpdate();
+        } finally {
+            overheadNanos.add(System.nanoTime() - start);
+        }
+    }
+    
+    // Cache a completed key once its posting has committed
+    public void committed(int userId, String key, String operation, int transactionId) {
+        long start = System.nanoTime();
+        remember(userId, key, new Outcome(operation, transactionId, System.currentTimeMillis()));
+        overheadNanos.add(System.nanoTime() - start);
+    }
+    
+    // Reload keys still inside the retention period so retries across a restart are answered from memory
+    public void rebuild(Connection conn) throws SQLException {
+        synchronized (cache) {
+            cache.clear();
+        }
+        
+        String sql = "SELECT user_id, idem_key, operation, transaction_id, created_at FROM idempotency_keys " +
+                     "WHERE created_at >= ? AND transaction_id IS NOT NULL ORDER BY created_at";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setTimestamp(1, new Timestamp(System.currentTimeMillis() - retentionMillis));
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    remember(rs.getInt("user_id"), rs.getString("idem_key"),
+                             new Outcome(rs.getString("operation"), rs.getInt("transaction_id"),
+                                         rs.getTimestamp("created_at").getTime()));
+                }
+            }
+        }
+    }
+    
+    // Start evicting expired keys from the cache and the table
+    public void startSweeper(String dbUrl, String dbUser, String dbPassword) {
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "idempotency-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(() -> {
+            try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+                evictExpired(conn);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            
+            if (keyedRequests.sum() > 0) {
+                System.out.println(String.format("Idempotency overhead: %.1f us per keyed request over %d requests " +
+                                                 "(%d cache hits, %d duplicate claims, %d in-flight waits, %d keys cached)",
+                                                 getAverageOverheadMicros(), keyedRequests.sum(), getCacheHits(),
+                                                 getDuplicateClaims(), getInFlightWaits(), getCachedKeys()));
+            }
+        }, 1, 10, TimeUnit.MINUTES);
+    }
+    
+    public void stopSweeper() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+    
+    // Average time spent on idempotency per keyed request, in microseconds
+    public double getAverageOverheadMicros() {
+        long requests = keyedRequests.sum();
+        return requests == 0 ? 0 : overheadNanos.sum() / 1000.0 / requests;
+    }
+    
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+    
+    public long getDuplicateClaims() {
+        return duplicateClaims.sum();
+    }
+    
+    // Lock timeouts claims have waited out behind an in-flight original
+    public long getInFlightWaits() {
+        return inFlightWaits.sum();
+    }
+    
+    public int getCachedKeys() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+    
+    // Drop keys older than the retention period
+    void evictExpired(Connection conn) throws SQLException {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        
+        synchronized (cache) {
+            Iterator<Outcome> it = cache.values().iterator();
+            while (it.hasNext() && it.next().recordedAt < cutoff) {
+                it.remove();
+            }
+        }
+        
+        String sql = "DELETE FROM idempotency_keys WHERE created_at < ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setTimestamp(1, new Timestamp(cutoff));
+            pstmt.executeUpdate();
+        }
+    }
+    
+    private void remember(int userId, String key, Outcome outcome) {
+        synchronized (cache) {
+            cache.put(cacheKey(userId, key), outcome);
+            
+            // Bounded: shed the oldest keys first; the table still protects against their retries
+            if (cache.size() > maxCachedKeys) {
+                Iterator<Map.Entry<String, Outcome>> it = cache.entrySet().iterator();
+                it.next();
+                it.remove();
+            }
+        }
+    }
+    
+    private Outcome readOutcome(Connection conn, int userId, String key) throws SQLException {
+        String sql = "SELECT operation, transaction_id, created_at FROM idempotency_keys WHERE user_id = ? AND idem_key = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, key);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return new Outcome(rs.getString("operation"), rs.getInt("transaction_id"),
+                                       rs.getTimestamp("created_at").getTime());
+                }
+                throw new SQLException("Idempotency key vanished while being checked");
+            }
+        }
+    }
+    
+    // A key identifies one request, so reusing it for a different kind of posting is a client error
+    private static void checkOperation(Outcome outcome, String operation) throws SQLException {
+        if (!outcome.operation.equals(operation)) {
+            throw new SQLException("Idempotency key was already used for a " + outcome.operation.toLowerCase());
+        }
+    }
+    
+    private static String cacheKey(int userId, String key) {
+        return userId + ":" + key;
+    }
+}
@@ -0,0 +1,206 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Checks for IdempotencyStore claims, including retries that arrive while the
+// original request is still in flight.
+//
+// Runs against a migrated database in a temporary directory with a short lock
+// timeout, so a retry waits out several lock timeouts behind an original that
+// has claimed its key but not yet committed. Covers a new key, a completed
+// key, a retry whose original commits or rolls back while it waits, a retry
+// whose original outlasts every attempt, and a key reused for another kind of
+// posting. Prints one line per check and exits with status 1 if any fails.
+//
+// Usage: java -cp ".;h2-2.1.214.jar" IdempotencyStoreCheck
+public class IdempotencyStoreCheck {
+    private static final long LOCK_TIMEOUT_MS = 200;
+    
+    private final String url;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "idempotency-check");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int failures;
+    private int keySequence;
+    
+    IdempotencyStoreCheck(Path directory) {
+        this.url = "jdbc:h2:" + directory.resolve("idempotency").toAbsolutePath() + ";LOCK_TIMEOUT=" + LOCK_TIMEOUT_MS;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("idempotency-check");
+        int failures = new IdempotencyStoreCheck(directory).run();
+        
+        System.out.println(failures == 0 ? "All checks passed" : failures + " check(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+    
+    int run() throws Exception {
+        int userId;
+        try (Connection conn = connect()) {
+            new SchemaMigrator().migrate(conn);
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("INSERT INTO users (username, password, full_name, email) " +
+                                   "VALUES ('check', 'x', 'Idempotency Check', 'check@example.com')",
+                                   Statement.RETURN_GENERATED_KEYS);
+                try (ResultSet rs = stmt.getGeneratedKeys()) {
+                    rs.next();
+                    userId = rs.getInt(1);
+                }
+            }
+        }
+        
+        newAndCompletedKeys(userId);
+        retryWhileOriginalCommits(userId);
+        retryWhileOriginalRollsBack(userId);
+        retryOutlastedByOriginal(userId);
+        keyReusedForAnotherOperation(userId);
+        return failures;
+    }
+    
+    private void newAndCompletedKeys(int userId) throws SQLException {
+        IdempotencyStore store = newStore();
+        String key = newKey();
+        
+        try (Connection conn = connect()) {
+            conn.setAutoCommit(false);
+            check("a new key is claimed", store.claim(conn, userId, key, "DEPOSIT") == null);
+            store.complete(conn, userId, key, 101);
+            conn.commit();
+        }
+        
+        try (Connection conn = connect()) {
+            conn.setAutoCommit(false);
+            IdempotencyStore.Outcome outcome = store.claim(conn, userId, key, "DEPOSIT");
+            conn.rollback();
+            check("a completed key returns the original posting", outcome != null && outcome.transactionId == 101);
+        }
+    }
+    
+    // The original commits after the retry has already hit the lock timeout at least once
+    private void retryWhileOriginalCommits(int userId) throws Exception {
+        IdempotencyStore store = newStore();
+        String key = newKey();
+        
+        try (Connection original = connect()) {
+            original.setAutoCommit(false);
+            store.claim(original, userId, key, "TRANSFER");
+            
+            Future<IdempotencyStore.Outcome> retry = executor.submit(() -> claimAndRollBack(store, userId, key, "TRANSFER"));
+            Thread.sleep(LOCK_TIMEOUT_MS * 3 / 2);
+            check("a retry waits while the original is in flight", !retry.isDone());
+            
+            store.complete(original, userId, key, 202);
+            original.commit();
+            
+            IdempotencyStore.Outcome outcome = retry.get(10, TimeUnit.SECONDS);
+            check("the retry returns the original posting once it commits", outcome != null && outcome.transactionId == 202);
+            check("the retry waited out at least one lock timeout", store.getInFlightWaits() > 0);
+        }
+    }
+    
+    // An original that rolls back leaves the key to the retry, which then posts itself
+    private void retryWhileOriginalRollsBack(int userId) throws Exception {
+        IdempotencyStore store = newStore();
+        String key = newKey();
+        
+        try (Connection original = connect()) {
+            original.setAutoCommit(false);
+            store.claim(original, userId, key, "WITHDRAWAL");
+            
+            Future<IdempotencyStore.Outcome> retry = executor.submit(() -> claimAndRollBack(store, userId, key, "WITHDRAWAL"));
+            Thread.sleep(LOCK_TIMEOUT_MS * 3 / 2);
+            original.rollback();
+            
+            check("the retry claims the key when the original rolls back", retry.get(10, TimeUnit.SECONDS) == null);
+        }
+    }
+    
+    // An original still in flight after every attempt makes the retry fail as in progress, not as a duplicate
+    private void retryOutlastedByOriginal(int userId) throws Exception {
+        IdempotencyStore store = newStore();
+        String key = newKey();
+        
+        try (Connection original = connect()) {
+            original.setAutoCommit(false);
+            store.claim(original, userId, key, "DEPOSIT");
+            
+            boolean inProgress = false;
+            try (Connection conn = connect()) {
+                conn.setAutoCommit(false);
+                try {
+                    store.claim(conn, userId, key, "DEPOSIT");
+                } catch (IdempotencyStore.RequestInProgressException e) {
+                    inProgress = true;
+                } finally {
+                    conn.rollback();
+                }
+            }
+            check("a retry outlasted by the original fails as in progress", inProgress);
+            
+            store.complete(original, userId, key, 303);
+            original.commit();
+        }
+        
+        IdempotencyStore.Outcome outcome = claimAndRollBack(store, userId, key, "DEPOSIT");
+        check("sending it again afterwards returns the original posting", outcome != null && outcome.transactionId == 303);
+    }
+    
+    private void keyReusedForAnotherOperation(int userId) throws SQLException {
+        IdempotencyStore store = newStore();
+        String key = newKey();
+        
+        try (Connection conn = connect()) {
+            conn.setAutoCommit(false);
+            store.claim(conn, userId, key, "DEPOSIT");
+            store.complete(conn, userId, key, 404);
+            conn.commit();
+        }
+        
+        boolean refused = false;
+        try {
+            claimAndRollBack(store, userId, key, "WITHDRAWAL");
+        } catch (SQLException e) {
+            refused = !(e instanceof IdempotencyStore.RequestInProgressException);
+        }
+        check("a key reused for another operation is refused", refused);
+    }
+    
+    // Claim in a transaction of its own that is then rolled back, as a posting does after a duplicate
+    private IdempotencyStore.Outcome claimAndRollBack(IdempotencyStore store, int userId, String key, String operation)
+            throws SQLException {
+        try (Connection conn = connect()) {
+            conn.setAutoCommit(false);
+            try {
+                return store.claim(conn, userId, key, operation);
+            } finally {
+                conn.rollback();
+            }
+        }
+    }
+    
+    private IdempotencyStore newStore() {
+        return new IdempotencyStore(24, 1000);
+    }
+    
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection(url, OnlineBankingSystem.DB_USER, OnlineBankingSystem.DB_PASSWORD);
+    }
+    
+    private String newKey() {
+        return "check-" + ++keySequence;
+    }
+    
+    private void check(String description, boolean passed) {
+        System.out.println((passed ? "  PASS  " : "  FAIL  ") + description);
+        if (!passed) {
+            failures++;
+        }
+    }
+}
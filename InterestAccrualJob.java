@@ -0,0 +1,363 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.*;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Month-end interest accrual for savings accounts.
+//
+// The accounts table is split into fixed-width id ranges that are processed
+// in parallel on a ForkJoinPool. Each range is posted in its own short
+// transaction together with a row in interest_runs keyed by (period,
+// range_start); a range whose marker already exists is skipped, so a run can
+// be restarted after a crash and every account is credited exactly once per
+// period. Only one range of rows is locked at a time per worker, so a transfer
+// touching a locked account waits for at most one range's posting.
+//
+// The application runs the job itself: startSchedule accrues the month that
+// has just closed, catching up on one that closed while it was stopped, and
+// every range is admitted as BATCH work by the shared AdmissionController,
+// so ranges wait while interactive work is queued or over its latency target.
+// Postings are handed to a publisher after their range commits, which keeps
+// the read model and open screens current. main runs the same job offline,
+// against a stopped application's database. interest_runs is created by
+// schema migration V4, so the schema must be migrated before the job runs.
+public class InterestAccrualJob {
+    // Transaction type used for interest postings
+    public static final String INTEREST_TYPE = "INTEREST";
+    
+    // Receives each committed interest posting
+    public interface PostingPublisher {
+        void published(int transactionId, int accountId, BigDecimal amount, String description, Timestamp postedAt,
+                       BigDecimal balanceAfter);
+    }
+    
+    // Width of one id range; also the upper bound on rows locked by a worker
+    static final int DEFAULT_RANGE_SIZE = 2000;
+    
+    // How often the schedule checks whether another month has closed
+    private static final long SCHEDULE_INTERVAL_MINUTES = 60;
+    
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPassword;
+    private final BigDecimal monthlyRate;
+    private final int rangeSize;
+    private final int parallelism;
+    private final AdmissionController admission;
+    private final PostingPublisher publisher;
+    
+    private final AtomicLong accountsCredited = new AtomicLong();
+    private final AtomicLong rangesSkipped = new AtomicLong();
+    
+    private ScheduledExecutorService scheduler;
+    private volatile YearMonth lastAccrued;
+    
+    // A job run on its own, e.g. offline by main, that neither yields to other work nor publishes its postings
+    public InterestAccrualJob(String dbUrl, String dbUser, String dbPassword,
+                              BigDecimal annualRate, int rangeSize, int parallelism) {
+        this(dbUrl, dbUser, dbPassword, annualRate, rangeSize, parallelism, null, null);
+    }
+    
+    public InterestAccrualJob(String dbUrl, String dbUser, String dbPassword, BigDecimal annualRate, int rangeSize,
+                              int parallelism, AdmissionController admission, PostingPublisher publisher) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword;
+        this.monthlyRate = annualRate.divide(BigDecimal.valueOf(12), 10, RoundingMode.HALF_EVEN);
+        this.rangeSize = rangeSize;
+        this.parallelism = parallelism;
+        this.admission = admission;
+        this.publisher = publisher;
+    }
+    
+    // Accrue the last closed month now and check for a newly closed one every hour
+    public void startSchedule() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "interest-accrual");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                accrueClosedMonth();
+            } catch (SQLException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, 0, SCHEDULE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+    
+    public void stopSchedule() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+    
+    // Accrue the month before the current one unless this job has already done so
+    void accrueClosedMonth() throws SQLException {
+        YearMonth period = YearMonth.now().minusMonths(1);
+        if (period.equals(lastAccrued)) {
+            return;
+        }
+        
+        long start = System.nanoTime();
+        long credited = run(period);
+        lastAccrued = period;
+        if (credited > 0) {
+            System.out.println("Credited interest to " + credited + " savings accounts for " + period + " in " +
+                               (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+    }
+    
+    // Accrue interest for the given period. Returns the number of accounts credited by this run.
+    public long run(YearMonth period) throws SQLException {
+        int minId;
+        int maxId;
+        long postedRanges;
+        
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT MIN(id), MAX(id) FROM accounts")) {
+                rs.next();
+                minId = rs.getInt(1);
+                maxId = rs.getInt(2);
+                if (rs.wasNull()) {
+                    return 0;
+                }
+            }
+            
+            try (PreparedStatement pstmt = conn.prepareStatement("SELECT COUNT(*) FROM interest_runs WHERE period = ?")) {
+                pstmt.setString(1, TransactionArchiver.periodKey(period));
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    rs.next();
+                    postedRanges = rs.getLong(1);
+                }
+            }
+        }
+        
+        // Align ranges to multiples of the range size so restarts see the same partitioning
+        int firstRange = Math.floorDiv(minId, rangeSize);
+        int lastRange = Math.floorDiv(maxId, rangeSize);
+        
+        // A period whose ranges all have markers is complete, so a restart does not claim each of them again
+        long accountsBefore = accountsCredited.get();
+        if (postedRanges >= lastRange - firstRange + 1) {
+            rangesSkipped.addAndGet(postedRanges);
+            return 0;
+        }
+        
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new RangeTask(period, firstRange, lastRange));
+        } finally {
+            pool.shutdown();
+        }
+        
+        return accountsCredited.get() - accountsBefore;
+    }
+    
+    // Number of ranges skipped because an earlier run had already posted them
+    public long getRangesSkipped() {
+        return rangesSkipped.get();
+    }
+    
+    // Splits the range index interval until a single range is left, then posts it
+    private class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final YearMonth period;
+        private final int fromRange;
+        private final int toRange;
+        
+        RangeTask(YearMonth period, int fromRange, int toRange) {
+            this.period = period;
+            this.fromRange = fromRange;
+            this.toRange = toRange;
+        }
+        
+        @Override
+        @SuppressWarnings("try")
+        protected void compute() {
+            if (fromRange == toRange) {
+                try (AdmissionController.Permit permit = admission == null ? null : admission.await(AdmissionController.Priority.BATCH)) {
+                    postRange(period, fromRange * rangeSize, fromRange * rangeSize + rangeSize - 1);
+                } catch (SQLException e) {
+                    // Fail the run; ranges already committed are skipped on restart
+                    throw new IllegalStateException("Interest accrual failed for range starting at " +
+                                                    (fromRange * rangeSize), e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interest accrual interrupted", e);
+                }
+                return;
+            }
+            
+            int mid = (fromRange + toRange) >>> 1;
+            invokeAll(new RangeTask(period, fromRange, mid), new RangeTask(period, mid + 1, toRange));
+        }
+    }
+    
+    // Post interest for all savings accounts in [rangeStart, rangeEnd] in one transaction
+    private void postRange(YearMonth period, int rangeStart, int rangeEnd) throws SQLException {
+        String periodKey = TransactionArchiver.periodKey(period);
+        Timestamp postedAt = new Timestamp(System.currentTimeMillis());
+        List<Credit> credits = new ArrayList<>();
+        
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+            conn.setAutoCommit(false);
+            
+            try {
+                // Claim the range first; a duplicate key means it was already posted
+                String markerSql = "INSERT INTO interest_runs (period, range_start, range_end, accounts_credited) VALUES (?, ?, ?, 0)";
+                try (PreparedStatement pstmt = conn.prepareStatement(markerSql)) {
+                    pstmt.setString(1, periodKey);
+                    pstmt.setInt(2, rangeStart);
+                    pstmt.setInt(3, rangeEnd);
+                    pstmt.executeUpdate();
+                } catch (SQLException e) {
+                    if (isDuplicateKey(e)) {
+                        conn.rollback();
+                        rangesSkipped.incrementAndGet();
+                        return;
+                    }
+                    throw e;
+                }
+                
+                String selectSql = "SELECT id, balance FROM accounts " +
+                                   "WHERE id BETWEEN ? AND ? AND account_type = 'Savings' AND balance > 0 FOR UPDATE";
+                String updateSql = "UPDATE accounts SET balance = ? WHERE id = ?";
+                String transactionSql = "INSERT INTO transactions (to_account_id, amount, transaction_type, description, to_balance_after, transaction_date) VALUES (?, ?, ?, ?, ?, ?)";
+                String description = "Interest for " + period;
+                int credited = 0;
+                
+                try (PreparedStatement select = conn.prepareStatement(selectSql);
+                     PreparedStatement update = conn.prepareStatement(updateSql);
+                     PreparedStatement insert = conn.prepareStatement(transactionSql, Statement.RETURN_GENERATED_KEYS)) {
+                    select.setInt(1, rangeStart);
+                    select.setInt(2, rangeEnd);
+                    
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            int accountId = rs.getInt("id");
+                            BigDecimal balance = rs.getBigDecimal("balance");
+                            BigDecimal interest = balance.multiply(monthlyRate).setScale(2, RoundingMode.HALF_EVEN);
+                            
+                            if (interest.signum() <= 0) {
+                                continue;
+                            }
+                            
+                            BigDecimal newBalance = balance.add(interest);
+                            
+                            update.setBigDecimal(1, newBalance);
+                            update.setInt(2, accountId);
+                            update.addBatch();
+                            
+                            insert.setInt(1, accountId);
+                            insert.setBigDecimal(2, interest);
+                            insert.setString(3, INTEREST_TYPE);
+                            insert.setString(4, description);
+                            insert.setBigDecimal(5, newBalance);
+                            insert.setTimestamp(6, postedAt);
+                            insert.addBatch();
+                            
+                            credits.add(new Credit(accountId, interest, newBalance));
+                            credited++;
+                        }
+                    }
+                    
+                    if (credited > 0) {
+                        update.executeBatch();
+                        insert.executeBatch();
+                        
+                        // Keys come back in batch order, one per posting
+                        try (ResultSet keys = insert.getGeneratedKeys()) {
+                            for (Credit credit : credits) {
+                                keys.next();
+                                credit.transactionId = keys.getInt(1);
+                            }
+                        }
+                    }
+                }
+                
+                String completeSql = "UPDATE interest_runs SET accounts_credited = ? WHERE period = ? AND range_start = ?";
+                try (PreparedStatement pstmt = conn.prepareStatement(completeSql)) {
+                    pstmt.setInt(1, credited);
+                    pstmt.setString(2, periodKey);
+                    pstmt.setInt(3, rangeStart);
+                    pstmt.executeUpdate();
+                }
+                
+                conn.commit();
+                accountsCredited.addAndGet(credited);
+                
+                if (publisher != null) {
+                    for (Credit credit : credits) {
+                        publisher.published(credit.transactionId, credit.accountId, credit.amount, description, postedAt,
+                                            credit.balanceAfter);
+                    }
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+    
+    // One posted credit, published once its range has committed
+    private static final class Credit {
+        final int accountId;
+        final BigDecimal amount;
+        final BigDecimal balanceAfter;
+        int transactionId;
+        
+        Credit(int accountId, BigDecimal amount, BigDecimal balanceAfter) {
+            this.accountId = accountId;
+            this.amount = amount;
+            this.balanceAfter = balanceAfter;
+        }
+    }
+    
+    // H2 reports unique and primary key violations with SQL state 23505
+    private static boolean isDuplicateKey(SQLException e) {
+        return "23505".equals(e.getSQLState());
+    }
+    
+    // Offline run against the database of a stopped application, which otherwise holds it open
+    // Usage: InterestAccrualJob <yyyy-MM> <annual rate, e.g. 0.025> [threads]
+    public static void main(String[] args) throws SQLException {
+        if (args.length < 2) {
+            System.out.println("Usage: java InterestAccrualJob <yyyy-MM> <annual rate> [threads]");
+            return;
+        }
+        
+        YearMonth period = YearMonth.parse(args[0]);
+        BigDecimal annualRate = new BigDecimal(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        
+        try (Connection conn = DriverManager.getConnection(OnlineBankingSystem.DB_URL, OnlineBankingSystem.DB_USER,
+                                                           OnlineBankingSystem.DB_PASSWORD)) {
+            // interest_runs comes from V4; background migrations are left to the application's next start
+            new SchemaMigrator().migrate(conn);
+        }
+        
+        InterestAccrualJob job = new InterestAccrualJob(OnlineBankingSystem.DB_URL, OnlineBankingSystem.DB_USER,
+                                                        OnlineBankingSystem.DB_PASSWORD, annualRate,
+                                                        DEFAULT_RANGE_SIZE, threads);
+        
+        long start = System.nanoTime();
+        long credited = job.run(period);
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        
+        System.out.println("Credited interest to " + credited + " savings accounts for " + period +
+                           " in " + elapsedMs + " ms (" + job.getRangesSkipped() + " ranges already posted)");
+    }
+}
@@ -0,0 +1,215 @@
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// LedgerStorage over JDBC, on the application's tables and with its posting
+// statements: balances move by a relative CREDIT_SQL or DEBIT_SQL, the
+// balance after is read back with BALANCE_SQL and the posting is recorded
+// with INSERT_DEPOSIT_SQL or INSERT_WITHDRAWAL_SQL. A debit first locks the
+// account row, so the funds check and the update see the same balance. Calls
+// by account number open their own connection and transaction; calls with a
+// Connection, the application's deposit and withdraw, run in the caller's
+// transaction next to its idempotency claim. The schema must already be
+// migrated.
+public class JdbcLedgerStorage implements LedgerStorage {
+    private static final String LOCK_BALANCE_SQL = "SELECT balance FROM accounts WHERE id = ? FOR UPDATE";
+    
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPassword;
+    
+    public JdbcLedgerStorage(String dbUrl, String dbUser, String dbPassword) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword;
+    }
+    
+    @Override
+    public Account openAccount(int userId, String accountNumber, String accountType, BigDecimal openingBalance) throws SQLException {
+        String sql = "INSERT INTO accounts (user_id, account_number, account_type, balance) VALUES (?, ?, ?, ?)";
+        
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+             PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, accountNumber);
+            pstmt.setString(3, accountType);
+            pstmt.setBigDecimal(4, openingBalance);
+            pstmt.executeUpdate();
+            
+            try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
+                if (!generatedKeys.next()) {
+                    throw new SQLException("Creating account failed, no ID obtained.");
+                }
+                return new Account(generatedKeys.getInt(1), userId, accountNumber, accountType, openingBalance);
+            }
+        }
+    }
+    
+    @Override
+    public BigDecimal getBalance(String accountNumber) throws SQLException {
+        String sql = "SELECT balance FROM accounts WHERE account_number = ?";
+        
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, accountNumber);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getBigDecimal("balance");
+                }
+                throw new SQLException("Account not found");
+            }
+        }
+    }
+    
+    @Override
+    public Posting credit(String accountNumber, BigDecimal amount, String transactionType, String description) throws SQLException {
+        return post(accountNumber, amount, transactionType, description, false);
+    }
+    
+    @Override
+    public Posting debit(String accountNumber, BigDecimal amount, String transactionType, String description) throws SQLException {
+        return post(accountNumber, amount, transactionType, description, true);
+    }
+    
+    @Override
+    public List<Posting> recentPostings(String accountNumber, int limit) throws SQLException {
+        String sql = "SELECT t.id, a.id AS account_id, " +
+                     "CASE WHEN t.from_account_id = a.id THEN -t.amount ELSE t.amount END AS signed_amount, " +
+                     "CASE WHEN t.from_account_id = a.id THEN t.from_balance_after ELSE t.to_balance_after END AS balance_after, " +
+                     "t.transaction_type, t.description, t.transaction_date " +
+                     "FROM accounts a JOIN " + TransactionArchiver.LEDGER_VIEW + " t " +
+                     "ON t.from_account_id = a.id OR t.to_account_id = a.id " +
+                     "WHERE a.account_number = ? ORDER BY t.id DESC LIMIT ?";
+        List<Posting> postings = new ArrayList<>();
+        
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, accountNumber);
+            pstmt.setInt(2, limit);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    postings.add(new Posting(rs.getLong("id"), rs.getInt("account_id"), rs.getBigDecimal("signed_amount"),
+                                             rs.getBigDecimal("balance_after"), rs.getString("transaction_type"),
+                                             rs.getString("description"), rs.getTimestamp("transaction_date").getTime()));
+                }
+            }
+        }
+        
+        return postings;
+    }
+    
+    @Override
+    public BigDecimal getBalance(Connection conn, int accountId) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(OnlineBankingSystem.BALANCE_SQL)) {
+            pstmt.setInt(1, accountId);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getBigDecimal("balance");
+                }
+                throw new SQLException("Account not found");
+            }
+        }
+    }
+    
+    @Override
+    public Posting credit(Connection conn, int accountId, BigDecimal amount, String transactionType,
+                          String description) throws SQLException {
+        return post(conn, accountId, amount, BigDecimal.ZERO, transactionType, description, false);
+    }
+    
+    @Override
+    public Posting debit(Connection conn, int accountId, BigDecimal amount, BigDecimal reserved, String transactionType,
+                         String description) throws SQLException {
+        return post(conn, accountId, amount, reserved, transactionType, description, true);
+    }
+    
+    @Override
+    public void close() {
+        // Connections are opened per call
+    }
+    
+    // One leg in its own transaction
+    private Posting post(String accountNumber, BigDecimal amount, String transactionType, String description,
+                         boolean debit) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+            conn.setAutoCommit(false);
+            
+            try {
+                int accountId;
+                try (PreparedStatement pstmt = conn.prepareStatement(OnlineBankingSystem.ACCOUNT_BY_NUMBER_SQL)) {
+                    pstmt.setString(1, accountNumber);
+                    
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        if (!rs.next()) {
+                            throw new SQLException("Account not found");
+                        }
+                        accountId = rs.getInt("id");
+                    }
+                }
+                
+                Posting posting = post(conn, accountId, amount, BigDecimal.ZERO, transactionType, description, debit);
+                conn.commit();
+                return posting;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+    
+    // One leg in the caller's transaction: for a debit lock the account row and check funds, then move the
+    // balance and record the posting
+    private Posting post(Connection conn, int accountId, BigDecimal amount, BigDecimal reserved,
+                         String transactionType, String description, boolean debit) throws SQLException {
+        if (debit) {
+            try (PreparedStatement pstmt = conn.prepareStatement(LOCK_BALANCE_SQL)) {
+                pstmt.setInt(1, accountId);
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next()) {
+                        throw new SQLException("Account not found");
+                    }
+                    if (rs.getBigDecimal("balance").subtract(reserved).compareTo(amount) < 0) {
+                        throw new InsufficientFundsException();
+                    }
+                }
+            }
+        }
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(debit ? OnlineBankingSystem.DEBIT_SQL : OnlineBankingSystem.CREDIT_SQL)) {
+            pstmt.setBigDecimal(1, amount);
+            pstmt.setInt(2, accountId);
+            if (pstmt.executeUpdate() == 0) {
+                throw new SQLException("Account not found");
+            }
+        }
+        
+        BigDecimal balanceAfter = getBalance(conn, accountId);
+        String transactionSql = debit ? OnlineBankingSystem.INSERT_WITHDRAWAL_SQL : OnlineBankingSystem.INSERT_DEPOSIT_SQL;
+        Timestamp postedAt = new Timestamp(System.currentTimeMillis());
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(transactionSql, Statement.RETURN_GENERATED_KEYS)) {
+            pstmt.setInt(1, accountId);
+            pstmt.setBigDecimal(2, amount);
+            pstmt.setString(3, transactionType);
+            pstmt.setString(4, description);
+            pstmt.setBigDecimal(5, balanceAfter);
+            pstmt.setTimestamp(6, postedAt);
+            pstmt.executeUpdate();
+            
+            try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
+                if (!generatedKeys.next()) {
+                    throw new SQLException("Insert failed, no ID obtained.");
+                }
+                return new Posting(generatedKeys.getLong(1), accountId, debit ? amount.negate() : amount, balanceAfter,
+                                   transactionType, description, postedAt.getTime());
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+// Storage for the hottest ledger operations: balance lookup and single-leg
+// postings (a credit or debit to one account).
+//
+// JdbcLedgerStorage runs the application's posting statements on its
+// tables. MVStoreLedgerStorage keeps accounts and postings in H2 MVStore
+// transactional maps and skips SQL parsing and planning altogether. Both
+// must pass LedgerStorageConformance; LedgerStorageBenchmark compares them.
+//
+// The application's balance lookups, deposits and withdrawals go through the
+// Connection variants, which work inside the caller's JDBC transaction so a
+// posting commits or rolls back together with its idempotency claim. Only a
+// storage kept in the application's database can join that transaction;
+// the others refuse these calls with SQLFeatureNotSupportedException.
+//
+// Amounts are BigDecimal with at most two decimal places. Every method is
+// atomic and safe to call from several threads at once.
+public interface LedgerStorage extends AutoCloseable {
+    // An account as stored
+    final class Account {
+        public final int id;
+        public final int userId;
+        public final String accountNumber;
+        public final String accountType;
+        public final BigDecimal balance;
+        
+        public Account(int id, int userId, String accountNumber, String accountType, BigDecimal balance) {
+            this.id = id;
+            this.userId = userId;
+            this.accountNumber = accountNumber;
+            this.accountType = accountType;
+            this.balance = balance;
+        }
+    }
+    
+    // One leg of a posting as seen from one account; amount is negative for a debit
+    final class Posting {
+        public final long id;
+        public final int accountId;
+        public final BigDecimal amount;
+        public final BigDecimal balanceAfter;
+        public final String transactionType;
+        public final String description;
+        public final long postedAt;
+        
+        public Posting(long id, int accountId, BigDecimal amount, BigDecimal balanceAfter, String transactionType,
+                       String description, long postedAt) {
+            this.id = id;
+            this.accountId = accountId;
+            this.amount = amount;
+            this.balanceAfter = balanceAfter;
+            this.transactionType = transactionType;
+            this.description = description;
+            this.postedAt = postedAt;
+        }
+    }
+    
+    // Thrown by debit when the balance does not cover the amount; nothing is changed
+    class InsufficientFundsException extends SQLException {
+        private static final long serialVersionUID = 1L;
+        
+        public InsufficientFundsException() {
+            super("Insufficient funds");
+        }
+    }
+    
+    // Create an account; fails if the account number is taken
+    Account openAccount(int userId, String accountNumber, String accountType, BigDecimal openingBalance) throws SQLException;
+    
+    // Current balance; fails if the account does not exist
+    BigDecimal getBalance(String accountNumber) throws SQLException;
+    
+    // Add money to an account and record the posting
+    Posting credit(String accountNumber, BigDecimal amount, String transactionType, String description) throws SQLException;
+    
+    // Take money from an account and record the posting, or throw InsufficientFundsException
+    Posting debit(String accountNumber, BigDecimal amount, String transactionType, String description) throws SQLException;
+    
+    // Postings touching an account, newest first
+    List<Posting> recentPostings(String accountNumber, int limit) throws SQLException;
+    
+    // Current balance of the account with this id, read in the caller's transaction
+    BigDecimal getBalance(Connection conn, int accountId) throws SQLException;
+    
+    // Add money to the account with this id in the caller's transaction; the caller commits
+    Posting credit(Connection conn, int accountId, BigDecimal amount, String transactionType, String description)
+        throws SQLException;
+    
+    // Take money from the account with this id in the caller's transaction, or throw InsufficientFundsException
+    // if the balance less the reserved amount does not cover it; the caller commits or rolls back
+    Posting debit(Connection conn, int accountId, BigDecimal amount, BigDecimal reserved, String transactionType,
+                  String description) throws SQLException;
+    
+    @Override
+    void close() throws SQLException;
+}
@@ -0,0 +1,106 @@
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Throughput of balance lookups and single-leg postings per LedgerStorage backend.
+//
+// Each backend gets a fresh store with a set of accounts. Every worker thread
+// runs a warmup round, then the measured round; postings alternate credits and
+// debits of the same amount so balances stay put. Prints one row per backend
+// and operation.
+//
+// Usage: java -cp ".;h2-2.1.214.jar" LedgerStorageBenchmark [threads] [ops per thread] [accounts] [backend...]
+public class LedgerStorageBenchmark {
+    private static final BigDecimal OPENING_BALANCE = new BigDecimal("1000000.00");
+    private static final BigDecimal AMOUNT = new BigDecimal("1.00");
+    
+    private interface Operation {
+        void run(LedgerStorage storage, String accountNumber, int i) throws Exception;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int ops = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int accounts = args.length > 2 ? Integer.parseInt(args[2]) : 1_000;
+        List<String> backends = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            backends.add(args[i]);
+        }
+        if (backends.isEmpty()) {
+            backends.add("jdbc");
+            backends.add("mvstore");
+        }
+        
+        Operation lookup = (storage, accountNumber, i) -> storage.getBalance(accountNumber);
+        Operation posting = (storage, accountNumber, i) -> {
+            if (i % 2 == 0) {
+                storage.credit(accountNumber, AMOUNT, "DEPOSIT", "Benchmark");
+            } else {
+                storage.debit(accountNumber, AMOUNT, "WITHDRAWAL", "Benchmark");
+            }
+        };
+        
+        System.out.printf("%d thread(s), %d ops per thread, %d accounts%n", threads, ops, accounts);
+        System.out.printf("%-10s %-16s %12s %14s%n", "backend", "operation", "ops/s", "avg latency us");
+        
+        for (String name : backends) {
+            LedgerStorageConformance.Backend backend = LedgerStorageConformance.Backend.named(name);
+            String[] accountNumbers = new String[accounts];
+            int userId = backend.createUser("benchmark");
+            
+            try (LedgerStorage storage = backend.open()) {
+                for (int a = 0; a < accounts; a++) {
+                    accountNumbers[a] = String.format("8%09d", a);
+                    storage.openAccount(userId, accountNumbers[a], "Checking", OPENING_BALANCE);
+                }
+                
+                report(name, "balance lookup", storage, accountNumbers, threads, ops, lookup);
+                report(name, "posting", storage, accountNumbers, threads, ops, posting);
+            }
+        }
+    }
+    
+    private static void report(String backend, String operation, LedgerStorage storage, String[] accountNumbers,
+                               int threads, int ops, Operation op) throws Exception {
+        run(storage, accountNumbers, threads, Math.max(1, ops / 10), op);
+        
+        long elapsed = run(storage, accountNumbers, threads, ops, op);
+        long total = (long) threads * ops;
+        double opsPerSecond = total * 1_000_000_000.0 / elapsed;
+        double avgLatencyMicros = elapsed / 1_000.0 * threads / total;
+        
+        System.out.printf("%-10s %-16s %,12.0f %14.1f%n", backend, operation, opsPerSecond, avgLatencyMicros);
+    }
+    
+    // Wall-clock nanoseconds for every thread to finish its operations
+    private static long run(LedgerStorage storage, String[] accountNumbers, int threads, int ops, Operation op)
+            throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                // Pairs of operations hit the same account so postings net to zero
+                for (int i = 0; i < ops; i += 2) {
+                    String accountNumber = accountNumbers[random.nextInt(accountNumbers.length)];
+                    op.run(storage, accountNumber, i);
+                    op.run(storage, accountNumber, i + 1);
+                }
+                return null;
+            }));
+        }
+        
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        return elapsed;
+    }
+}
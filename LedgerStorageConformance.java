@@ -0,0 +1,496 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Conformance checks every LedgerStorage implementation must pass.
+//
+// Each backend gets a fresh store in a temporary directory and runs the same
+// checks: balances, credit and debit results, insufficient funds, unknown
+// and duplicate accounts, posting order, concurrent postings to one account,
+// survival of a close and reopen, and account ids up to the top of the int
+// range. Backends in a database the application can connect to also check
+// postings made inside the caller's transaction; the others must refuse
+// them. Prints one line per check and exits with status 1 if any check fails.
+//
+// Usage: java -cp ".;h2-2.1.214.jar" LedgerStorageConformance [jdbc] [mvstore] [sharded]
+public class LedgerStorageConformance {
+    // A storage implementation under test, able to reopen the same store
+    abstract static class Backend {
+        final String name;
+        final Path directory;
+        
+        Backend(String name) throws IOException {
+            this.name = name;
+            this.directory = Files.createTempDirectory("ledger-" + name);
+        }
+        
+        abstract LedgerStorage open() throws SQLException;
+        
+        // Owner for new accounts; the JDBC schema requires a users row, so call this after the first open
+        abstract int createUser(String username) throws SQLException;
+        
+        // Make the next account opened in the storage get the given id
+        abstract void restartAccountIds(LedgerStorage storage, int nextId) throws SQLException;
+        
+        // A connection to the database the storage posts in, or null if it cannot join a caller's transaction
+        Connection connect() throws SQLException {
+            return null;
+        }
+        
+        static Backend named(String name) throws IOException {
+            switch (name) {
+                case "jdbc":
+                    return new JdbcBackend();
+                case "mvstore":
+                    return new MVStoreBackend();
+                case "sharded":
+                    return new ShardedBackend();
+                default:
+                    throw new IllegalArgumentException("Unknown backend: " + name);
+            }
+        }
+    }
+    
+    static class JdbcBackend extends Backend {
+        private final String url;
+        
+        JdbcBackend() throws IOException {
+            super("jdbc");
+            url = "jdbc:h2:" + directory.resolve("ledger").toAbsolutePath() + ";LOCK_TIMEOUT=10000";
+        }
+        
+        @Override
+        LedgerStorage open() throws SQLException {
+            try (Connection conn = DriverManager.getConnection(url, "sa", "")) {
+                new SchemaMigrator().migrate(conn);
+            }
+            return new JdbcLedgerStorage(url, "sa", "");
+        }
+        
+        @Override
+        int createUser(String username) throws SQLException {
+            return insertUser(url, username);
+        }
+        
+        @Override
+        void restartAccountIds(LedgerStorage storage, int nextId) throws SQLException {
+            restartIdentity(url, nextId);
+        }
+        
+        @Override
+        Connection connect() throws SQLException {
+            return DriverManager.getConnection(url, "sa", "");
+        }
+        
+        static void restartIdentity(String url, int nextId) throws SQLException {
+            try (Connection conn = DriverManager.getConnection(url, "sa", "");
+                 Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("ALTER TABLE accounts ALTER COLUMN id RESTART WITH " + nextId);
+            }
+        }
+        
+        static int insertUser(String url, String username) throws SQLException {
+            String sql = "INSERT INTO users (username, password, full_name, email) VALUES (?, ?, ?, ?)";
+            try (Connection conn = DriverManager.getConnection(url, "sa", "");
+                 PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                pstmt.setString(1, username);
+                pstmt.setString(2, "secret");
+                pstmt.setString(3, username);
+                pstmt.setString(4, username + "@example.com");
+                pstmt.executeUpdate();
+                
+                try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
+                    generatedKeys.next();
+                    return generatedKeys.getInt(1);
+                }
+            }
+        }
+    }
+    
+    // Two shards; every account number used by the checks falls on shard 1, so owners are copied across
+    static class ShardedBackend extends Backend {
+        private final List<String> urls = new ArrayList<>();
+        
+        ShardedBackend() throws IOException {
+            super("sharded");
+            for (int shard = 0; shard < 2; shard++) {
+                urls.add("jdbc:h2:" + directory.resolve("shard" + shard).toAbsolutePath() + ";LOCK_TIMEOUT=10000");
+            }
+        }
+        
+        @Override
+        LedgerStorage open() throws SQLException {
+            try {
+                return new ShardedLedgerStorage(urls, "sa", "", directory.resolve("coordinator.log"));
+            } catch (IOException e) {
+                throw new SQLException("Opening the coordinator log failed", e);
+            }
+        }
+        
+        @Override
+        int createUser(String username) throws SQLException {
+            return JdbcBackend.insertUser(urls.get(0), username);
+        }
+        
+        @Override
+        void restartAccountIds(LedgerStorage storage, int nextId) throws SQLException {
+            for (String url : urls) {
+                JdbcBackend.restartIdentity(url, nextId);
+            }
+        }
+    }
+    
+    static class MVStoreBackend extends Backend {
+        private final AtomicInteger users = new AtomicInteger();
+        
+        MVStoreBackend() throws IOException {
+            super("mvstore");
+        }
+        
+        @Override
+        LedgerStorage open() {
+            return new MVStoreLedgerStorage(directory.resolve("ledger.mv.db").toString());
+        }
+        
+        @Override
+        int createUser(String username) {
+            return users.incrementAndGet();
+        }
+        
+        @Override
+        void restartAccountIds(LedgerStorage storage, int nextId) {
+            ((MVStoreLedgerStorage) storage).restartAccountIds(nextId);
+        }
+    }
+    
+    private final Backend backend;
+    private int failures;
+    private int accountSequence;
+    
+    LedgerStorageConformance(Backend backend) {
+        this.backend = backend;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        String[] names = args.length > 0 ? args : new String[] { "jdbc", "mvstore", "sharded" };
+        int failures = 0;
+        
+        for (String name : names) {
+            System.out.println("== " + name);
+            failures += new LedgerStorageConformance(Backend.named(name)).run();
+        }
+        
+        System.out.println(failures == 0 ? "All checks passed" : failures + " check(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+    
+    int run() throws Exception {
+        int userId;
+        
+        // Opening creates the schema the owner is inserted into
+        try (LedgerStorage storage = backend.open()) {
+            userId = backend.createUser("conformance");
+            
+            openAndRead(storage, userId);
+            creditAndDebit(storage, userId);
+            insufficientFunds(storage, userId);
+            unknownAccount(storage);
+            duplicateAccount(storage, userId);
+            postingOrder(storage, userId);
+            concurrentPostings(storage, userId);
+            concurrentOverdraw(storage, userId);
+            callerTransaction(storage, userId);
+        }
+        
+        reopen(userId);
+        largeAccountIds(userId);
+        return failures;
+    }
+    
+    private void openAndRead(LedgerStorage storage, int userId) throws SQLException {
+        String number = newAccountNumber();
+        LedgerStorage.Account account = storage.openAccount(userId, number, "Savings", money("1000.00"));
+        
+        check("open account returns its number", number.equals(account.accountNumber));
+        check("new account has the opening balance", sameAmount(storage.getBalance(number), "1000.00"));
+        check("new account has no postings", storage.recentPostings(number, 10).isEmpty());
+    }
+    
+    private void creditAndDebit(LedgerStorage storage, int userId) throws SQLException {
+        String number = newAccountNumber();
+        storage.openAccount(userId, number, "Checking", money("100.00"));
+        
+        LedgerStorage.Posting credit = storage.credit(number, money("10.25"), "DEPOSIT", "Deposit to account");
+        check("credit reports a positive amount", sameAmount(credit.amount, "10.25"));
+        check("credit reports the balance after", sameAmount(credit.balanceAfter, "110.25"));
+        
+        LedgerStorage.Posting debit = storage.debit(number, money("5.00"), "WITHDRAWAL", "Withdrawal from account");
+        check("debit reports a negative amount", sameAmount(debit.amount, "-5.00"));
+        check("debit reports the balance after", sameAmount(debit.balanceAfter, "105.25"));
+        check("posting ids increase", debit.id > credit.id);
+        check("balance reflects both postings", sameAmount(storage.getBalance(number), "105.25"));
+    }
+    
+    private void insufficientFunds(LedgerStorage storage, int userId) throws SQLException {
+        String number = newAccountNumber();
+        storage.openAccount(userId, number, "Checking", money("20.00"));
+        
+        boolean refused = false;
+        try {
+            storage.debit(number, money("20.01"), "WITHDRAWAL", "Withdrawal from account");
+        } catch (LedgerStorage.InsufficientFundsException e) {
+            refused = true;
+        }
+        
+        check("overdrawing debit is refused", refused);
+        check("refused debit leaves the balance", sameAmount(storage.getBalance(number), "20.00"));
+        check("refused debit records no posting", storage.recentPostings(number, 10).isEmpty());
+        
+        storage.debit(number, money("20.00"), "WITHDRAWAL", "Withdrawal from account");
+        check("debit of the exact balance is allowed", sameAmount(storage.getBalance(number), "0.00"));
+    }
+    
+    private void unknownAccount(LedgerStorage storage) {
+        check("balance of unknown account fails", failsWithoutFundsError(() -> storage.getBalance("0000000000")));
+        check("credit to unknown account fails", failsWithoutFundsError(() -> storage.credit("0000000000", money("1.00"), "DEPOSIT", null)));
+        check("debit from unknown account fails", failsWithoutFundsError(() -> storage.debit("0000000000", money("1.00"), "WITHDRAWAL", null)));
+    }
+    
+    private void duplicateAccount(LedgerStorage storage, int userId) throws SQLException {
+        String number = newAccountNumber();
+        storage.openAccount(userId, number, "Savings", money("1.00"));
+        
+        check("duplicate account number is refused",
+              failsWithoutFundsError(() -> storage.openAccount(userId, number, "Savings", money("2.00"))));
+        check("refused duplicate leaves the original", sameAmount(storage.getBalance(number), "1.00"));
+    }
+    
+    private void postingOrder(LedgerStorage storage, int userId) throws SQLException {
+        String number = newAccountNumber();
+        String other = newAccountNumber();
+        storage.openAccount(userId, number, "Checking", money("0.00"));
+        storage.openAccount(userId, other, "Checking", money("0.00"));
+        
+        for (int i = 1; i <= 5; i++) {
+            storage.credit(number, money(i + ".00"), "DEPOSIT", "Deposit " + i);
+            storage.credit(other, money("1.00"), "DEPOSIT", "Other " + i);
+        }
+        
+        List<LedgerStorage.Posting> postings = storage.recentPostings(number, 3);
+        check("posting limit is respected", postings.size() == 3);
+        check("postings are newest first", postings.size() == 3
+              && postings.get(0).id > postings.get(1).id && postings.get(1).id > postings.get(2).id);
+        check("newest posting carries the current balance", !postings.isEmpty()
+              && postings.get(0).balanceAfter.compareTo(storage.getBalance(number)) == 0);
+        check("newest posting keeps its description", !postings.isEmpty() && "Deposit 5".equals(postings.get(0).description));
+        
+        boolean onlyThisAccount = true;
+        for (LedgerStorage.Posting posting : storage.recentPostings(number, 100)) {
+            onlyThisAccount &= posting.description.startsWith("Deposit");
+        }
+        check("postings of other accounts are excluded", onlyThisAccount);
+    }
+    
+    // Equal credits and debits from many threads must leave the balance where it started
+    private void concurrentPostings(LedgerStorage storage, int userId) throws Exception {
+        String number = newAccountNumber();
+        storage.openAccount(userId, number, "Checking", money("100.00"));
+        
+        int threads = 8;
+        int rounds = 100;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < rounds; i++) {
+                    storage.credit(number, money("1.00"), "DEPOSIT", null);
+                    storage.debit(number, money("1.00"), "WITHDRAWAL", null);
+                }
+                return null;
+            }));
+        }
+        
+        boolean completed = awaitAll(pool, futures);
+        check("concurrent postings all succeed", completed);
+        check("concurrent postings lose no update", sameAmount(storage.getBalance(number), "100.00"));
+        check("concurrent postings are all recorded", storage.recentPostings(number, 10_000).size() == threads * rounds * 2);
+    }
+    
+    // Many threads draining one account must never take it below zero
+    private void concurrentOverdraw(LedgerStorage storage, int userId) throws Exception {
+        String number = newAccountNumber();
+        storage.openAccount(userId, number, "Checking", money("50.00"));
+        
+        int threads = 8;
+        int attempts = 10;
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < attempts; i++) {
+                    try {
+                        storage.debit(number, money("1.00"), "WITHDRAWAL", null);
+                        succeeded.incrementAndGet();
+                    } catch (LedgerStorage.InsufficientFundsException e) {
+                        refused.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        
+        boolean completed = awaitAll(pool, futures);
+        check("concurrent debits complete", completed);
+        check("exactly the available funds are debited", succeeded.get() == 50 && refused.get() == threads * attempts - 50);
+        check("concurrent debits stop at zero", sameAmount(storage.getBalance(number), "0.00"));
+    }
+    
+    // Postings through the Connection variants commit and roll back with the caller
+    private void callerTransaction(LedgerStorage storage, int userId) throws SQLException {
+        String number = newAccountNumber();
+        LedgerStorage.Account account = storage.openAccount(userId, number, "Checking", money("100.00"));
+        
+        try (Connection conn = backend.connect()) {
+            if (conn == null) {
+                check("postings in a caller's transaction are refused",
+                      refusedAsUnsupported(() -> storage.credit(null, account.id, money("1.00"), "DEPOSIT", null)));
+                return;
+            }
+            conn.setAutoCommit(false);
+            
+            LedgerStorage.Posting credit = storage.credit(conn, account.id, money("10.00"), "DEPOSIT", "In transaction");
+            check("posting in the caller's transaction reports the balance after", sameAmount(credit.balanceAfter, "110.00"));
+            check("caller's transaction sees its own posting", sameAmount(storage.getBalance(conn, account.id), "110.00"));
+            conn.rollback();
+            check("rolled back posting leaves the balance", sameAmount(storage.getBalance(number), "100.00"));
+            check("rolled back posting is not recorded", storage.recentPostings(number, 10).isEmpty());
+            
+            boolean refused = false;
+            try {
+                storage.debit(conn, account.id, money("50.01"), money("50.00"), "WITHDRAWAL", null);
+            } catch (LedgerStorage.InsufficientFundsException e) {
+                refused = true;
+            }
+            conn.rollback();
+            check("debit of reserved funds is refused", refused);
+            
+            storage.debit(conn, account.id, money("50.00"), money("50.00"), "WITHDRAWAL", null);
+            conn.commit();
+            check("committed debit in the caller's transaction is kept", sameAmount(storage.getBalance(number), "50.00"));
+        }
+    }
+    
+    private void reopen(int userId) throws SQLException {
+        String number = newAccountNumber();
+        long lastId;
+        
+        try (LedgerStorage storage = backend.open()) {
+            storage.openAccount(userId, number, "Savings", money("10.00"));
+            lastId = storage.credit(number, money("2.50"), "DEPOSIT", "Before reopen").id;
+        }
+        
+        try (LedgerStorage storage = backend.open()) {
+            check("balance survives reopen", sameAmount(storage.getBalance(number), "12.50"));
+            List<LedgerStorage.Posting> postings = storage.recentPostings(number, 10);
+            check("postings survive reopen", postings.size() == 1 && postings.get(0).id == lastId);
+            check("posting ids keep increasing after reopen",
+                  storage.credit(number, money("1.00"), "DEPOSIT", "After reopen").id > lastId);
+        }
+    }
+    
+    // Ids just below 2^23, just above 2^24 (where 2^24 + k could alias account k) and at the top of the int range
+    private void largeAccountIds(int userId) throws SQLException {
+        try (LedgerStorage storage = backend.open()) {
+            List<String> numbers = new ArrayList<>();
+            
+            for (int nextId : new int[] { (1 << 23) - 1, (1 << 24) + 1, Integer.MAX_VALUE - 1 }) {
+                backend.restartAccountIds(storage, nextId);
+                for (int i = 0; i < 2; i++) {
+                    String number = newAccountNumber();
+                    storage.openAccount(userId, number, "Checking", money("0.00"));
+                    storage.credit(number, money("1.00"), "DEPOSIT", number);
+                    numbers.add(number);
+                }
+            }
+            
+            boolean ownPostingsOnly = true;
+            for (String number : numbers) {
+                List<LedgerStorage.Posting> postings = storage.recentPostings(number, 10);
+                ownPostingsOnly &= postings.size() == 1 && number.equals(postings.get(0).description);
+            }
+            check("accounts with large ids see exactly their own postings", ownPostingsOnly);
+        }
+    }
+    
+    private interface StorageCall {
+        Object call() throws SQLException;
+    }
+    
+    private static boolean failsWithoutFundsError(StorageCall call) {
+        try {
+            call.call();
+            return false;
+        } catch (LedgerStorage.InsufficientFundsException e) {
+            return false;
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+    
+    private static boolean refusedAsUnsupported(StorageCall call) {
+        try {
+            call.call();
+            return false;
+        } catch (SQLFeatureNotSupportedException e) {
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+    
+    private static boolean awaitAll(ExecutorService pool, List<Future<?>> futures) throws InterruptedException {
+        boolean ok = true;
+        for (Future<?> future : futures) {
+            try {
+                future.get(60, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                e.printStackTrace();
+                ok = false;
+            }
+        }
+        pool.shutdownNow();
+        return ok;
+    }
+    
+    private void check(String description, boolean passed) {
+        System.out.println((passed ? "  PASS  " : "  FAIL  ") + description);
+        if (!passed) {
+            failures++;
+        }
+    }
+    
+    private String newAccountNumber() {
+        return String.format("9%09d", ++accountSequence);
+    }
+    
+    private static BigDecimal money(String amount) {
+        return new BigDecimal(amount);
+    }
+    
+    private static boolean sameAmount(BigDecimal actual, String expected) {
+        return actual != null && actual.compareTo(new BigDecimal(expected)) == 0;
+    }
+}
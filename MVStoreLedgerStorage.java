@@ -0,0 +1,254 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.MVStoreException;
+import org.h2.mvstore.tx.Transaction;
+import org.h2.mvstore.tx.TransactionMap;
+import org.h2.mvstore.tx.TransactionStore;
+
+// LedgerStorage directly on H2's MVStore, without SQL.
+//
+// Maps (all transactional):
+//   accounts:         account number -> Object[] {id, userId, type, balance in cents, posting count}
+//   postings:         posting id     -> Object[] {accountId, signed amount in cents,
+//                                                 balance after in cents, type, description, postedAt}
+//   account_postings: (accountId << 32 | account's posting sequence) -> postingId, newest last per account
+//
+// The index key gives the account id the upper 32 bits, so every non-negative
+// int id has its own key range and ranges never overlap or go negative. The
+// lower 32 bits count the account's postings rather than holding the global
+// posting id, which would not fit next to a full account id.
+//
+// A posting locks the account entry, updates it and appends the posting and
+// its index entry in one MVStore transaction. Row lock conflicts between
+// concurrent postings surface as MVStore lock errors and are retried.
+// Ids come from in-memory counters seeded from the maps when the store opens.
+// Committed data reaches disk with MVStore's background commit, like the
+// default H2 database write delay.
+public class MVStoreLedgerStorage implements LedgerStorage {
+    private static final String ACCOUNTS = "accounts";
+    private static final String POSTINGS = "postings";
+    private static final String ACCOUNT_POSTINGS = "account_postings";
+    
+    private static final int SEQUENCE_BITS = 32;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    private static final int MAX_ATTEMPTS = 1000;
+    
+    private final MVStore store;
+    private final TransactionStore transactionStore;
+    private final AtomicInteger nextAccountId = new AtomicInteger();
+    private final AtomicLong nextPostingId = new AtomicLong();
+    
+    // Open or create a store file; null keeps everything in memory
+    public MVStoreLedgerStorage(String fileName) {
+        MVStore.Builder builder = new MVStore.Builder();
+        if (fileName != null) {
+            builder.fileName(fileName);
+        }
+        store = builder.open();
+        transactionStore = new TransactionStore(store);
+        transactionStore.init();
+        
+        // Seed id counters from what is already stored
+        Transaction tx = transactionStore.begin();
+        TransactionMap<Long, Object[]> postings = tx.openMap(POSTINGS);
+        Long lastPosting = postings.lastKey();
+        nextPostingId.set(lastPosting == null ? 0 : lastPosting);
+        
+        TransactionMap<String, Object[]> accounts = tx.openMap(ACCOUNTS);
+        int maxAccountId = 0;
+        for (Object[] account : accounts.values()) {
+            maxAccountId = Math.max(maxAccountId, (Integer) account[0]);
+        }
+        nextAccountId.set(maxAccountId);
+        tx.commit();
+    }
+    
+    @Override
+    public Account openAccount(int userId, String accountNumber, String accountType, BigDecimal openingBalance) throws SQLException {
+        long openingCents = toCents(openingBalance);
+        
+        return inTransaction(tx -> {
+            TransactionMap<String, Object[]> accounts = tx.openMap(ACCOUNTS);
+            if (accounts.containsKey(accountNumber)) {
+                throw new SQLException("Account number already exists: " + accountNumber, "23505");
+            }
+            
+            int accountId = nextAccountId.incrementAndGet();
+            if (accounts.putIfAbsent(accountNumber, new Object[] { accountId, userId, accountType, openingCents, 0L }) != null) {
+                throw new SQLException("Account number already exists: " + accountNumber, "23505");
+            }
+            return new Account(accountId, userId, accountNumber, accountType, fromCents(openingCents));
+        });
+    }
+    
+    @Override
+    public BigDecimal getBalance(String accountNumber) throws SQLException {
+        return inTransaction(tx -> {
+            TransactionMap<String, Object[]> accounts = tx.openMap(ACCOUNTS);
+            Object[] account = accounts.get(accountNumber);
+            if (account == null) {
+                throw new SQLException("Account not found");
+            }
+            return fromCents((Long) account[3]);
+        });
+    }
+    
+    @Override
+    public Posting credit(String accountNumber, BigDecimal amount, String transactionType, String description) throws SQLException {
+        return post(accountNumber, toCents(amount), transactionType, description);
+    }
+    
+    @Override
+    public Posting debit(String accountNumber, BigDecimal amount, String transactionType, String description) throws SQLException {
+        return post(accountNumber, -toCents(amount), transactionType, description);
+    }
+    
+    @Override
+    public List<Posting> recentPostings(String accountNumber, int limit) throws SQLException {
+        return inTransaction(tx -> {
+            TransactionMap<String, Object[]> accounts = tx.openMap(ACCOUNTS);
+            TransactionMap<Long, Object[]> postings = tx.openMap(POSTINGS);
+            TransactionMap<Long, Long> index = tx.openMap(ACCOUNT_POSTINGS);
+            
+            Object[] account = accounts.get(accountNumber);
+            if (account == null) {
+                throw new SQLException("Account not found");
+            }
+            
+            int accountId = (Integer) account[0];
+            long lowest = indexKey(accountId, 0);
+            List<Posting> result = new ArrayList<>();
+            Long key = index.lowerKey(indexKey(accountId, MAX_SEQUENCE));
+            
+            while (key != null && key >= lowest && result.size() < limit) {
+                long postingId = index.get(key);
+                result.add(toPosting(postingId, postings.get(postingId)));
+                key = index.lowerKey(key);
+            }
+            return result;
+        });
+    }
+    
+    // The application's transactions are in its SQL database, which holds none of this storage's accounts
+    @Override
+    public BigDecimal getBalance(Connection conn, int accountId) throws SQLException {
+        throw new SQLFeatureNotSupportedException("MVStore ledger storage cannot join a JDBC transaction");
+    }
+    
+    @Override
+    public Posting credit(Connection conn, int accountId, BigDecimal amount, String transactionType,
+                          String description) throws SQLException {
+        throw new SQLFeatureNotSupportedException("MVStore ledger storage cannot join a JDBC transaction");
+    }
+    
+    @Override
+    public Posting debit(Connection conn, int accountId, BigDecimal amount, BigDecimal reserved, String transactionType,
+                         String description) throws SQLException {
+        throw new SQLFeatureNotSupportedException("MVStore ledger storage cannot join a JDBC transaction");
+    }
+    
+    // Make the next opened account get the given id; used by LedgerStorageConformance
+    void restartAccountIds(int nextId) {
+        nextAccountId.set(nextId - 1);
+    }
+    
+    @Override
+    public void close() {
+        transactionStore.close();
+        store.close();
+    }
+    
+    private Posting post(String accountNumber, long signedCents, String transactionType, String description) throws SQLException {
+        return inTransaction(tx -> {
+            TransactionMap<String, Object[]> accounts = tx.openMap(ACCOUNTS);
+            TransactionMap<Long, Object[]> postings = tx.openMap(POSTINGS);
+            TransactionMap<Long, Long> index = tx.openMap(ACCOUNT_POSTINGS);
+            
+            // Lock the account entry so concurrent postings to it serialize
+            Object[] account = accounts.lock(accountNumber);
+            if (account == null) {
+                throw new SQLException("Account not found");
+            }
+            
+            long balanceAfter = (Long) account[3] + signedCents;
+            if (signedCents < 0 && balanceAfter < 0) {
+                throw new InsufficientFundsException();
+            }
+            
+            int accountId = (Integer) account[0];
+            long sequence = (Long) account[4] + 1;
+            if (sequence >= MAX_SEQUENCE) {
+                throw new SQLException("Account " + accountNumber + " has reached the maximum number of postings");
+            }
+            long postingId = nextPostingId.incrementAndGet();
+            long postedAt = System.currentTimeMillis();
+            
+            accounts.put(accountNumber, new Object[] { accountId, account[1], account[2], balanceAfter, sequence });
+            postings.put(postingId, new Object[] { accountId, signedCents, balanceAfter, transactionType, description, postedAt });
+            index.put(indexKey(accountId, sequence), postingId);
+            
+            return new Posting(postingId, accountId, fromCents(signedCents), fromCents(balanceAfter),
+                               transactionType, description, postedAt);
+        });
+    }
+    
+    private interface Work<T> {
+        T run(Transaction tx) throws SQLException;
+    }
+    
+    // Run work in a transaction, committing on success and retrying when it loses a row lock race
+    private <T> T inTransaction(Work<T> work) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            Transaction tx = transactionStore.begin();
+            try {
+                T result = work.run(tx);
+                tx.commit();
+                return result;
+            } catch (SQLException e) {
+                tx.rollback();
+                throw e;
+            } catch (MVStoreException e) {
+                tx.rollback();
+                boolean lockConflict = e.getErrorCode() == DataUtils.ERROR_TRANSACTION_LOCKED
+                                       || e.getErrorCode() == DataUtils.ERROR_TRANSACTIONS_DEADLOCK;
+                if (!lockConflict || attempt >= MAX_ATTEMPTS) {
+                    throw new SQLException("Storage error: " + e.getMessage(), e);
+                }
+                Thread.yield();
+            } catch (RuntimeException e) {
+                tx.rollback();
+                throw new SQLException("Storage error: " + e.getMessage(), e);
+            }
+        }
+    }
+    
+    private static Posting toPosting(long postingId, Object[] posting) {
+        return new Posting(postingId, (Integer) posting[0], fromCents((Long) posting[1]), fromCents((Long) posting[2]),
+                           (String) posting[3], (String) posting[4], (Long) posting[5]);
+    }
+    
+    private static long indexKey(int accountId, long sequence) {
+        return ((long) accountId << SEQUENCE_BITS) | sequence;
+    }
+    
+    private static long toCents(BigDecimal amount) throws SQLException {
+        try {
+            return amount.movePointRight(2).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new SQLException("Amount must have at most two decimal places: " + amount);
+        }
+    }
+    
+    private static BigDecimal fromCents(long cents) {
+        return BigDecimal.valueOf(cents, 2);
+    }
+}
@@ -0,0 +1,33 @@
+// Money formatting from whole cents.
+//
+// Gives the same text as String.format("%.2f") for amounts with at most two
+// decimal places, which is every amount the DECIMAL(15,2) columns hold, but
+// without parsing a format pattern, boxing the argument or building
+// intermediate strings. appendCents writes into a caller-owned builder, so a
+// renderer that reuses one builder formats without allocating.
+public class MoneyFormat {
+    // Nearest whole cents of an amount
+    public static long toCents(double amount) {
+        return Math.round(amount * 100);
+    }
+    
+    // Append cents as units, a point and two digits, e.g. -1234 as "-12.34"
+    public static StringBuilder appendCents(StringBuilder sb, long cents) {
+        if (cents < 0) {
+            sb.append('-');
+            cents = -cents;
+        }
+        
+        long fraction = cents % 100;
+        sb.append(cents / 100).append('.');
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        return sb.append(fraction);
+    }
+    
+    // Two-decimal text of an amount
+    public static String format(double amount) {
+        return appendCents(new StringBuilder(24), toCents(amount)).toString();
+    }
+}
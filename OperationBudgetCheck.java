@@ -0,0 +1,223 @@
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import javax.swing.SwingUtilities;
+
+// Allocation and latency budgets for the interactive operations.
+//
+// Loads a DatasetGenerator dataset into a file database in a temporary
+// directory and starts OnlineBankingSystem on it without a frame. Each round
+// then logs in as a sample customer and runs a deposit, a transfer between the
+// customer's accounts, a withdrawal and a history page fetch through the
+// application's own methods, on the event dispatch thread as the GUI does, and
+// logs out. The first rounds are warmup. For every operation the check records
+// the bytes the calling thread allocated per call and the median latency, and
+// compares both with the operation's budget. Work the audit writer, read model
+// and balance event threads do on their own is not counted. The schema is
+// complete, background migrations included, so every posting also pays for
+// the full-text index trigger on the transactions table, which writes its
+// word and row entries inside the posting's own transaction.
+//
+// Prints one line per operation and exits with status 1 if an operation failed
+// or went over budget, so a build step running this check breaks when a hot
+// path picks up per-call setup again: a new Random or SimpleDateFormat, an
+// extra connection or statement, a result copied row by row.
+//
+// Budgets sit in checks(): the worst of six runs with the default rounds on
+// one CPU, plus about a quarter for allocation and double for latency. Lower
+// an operation's budget when an optimization of it lands. A run with only a
+// few warmup rounds measures code the JIT has not compiled yet and goes over
+// the latency budgets.
+//
+// Usage: java -cp ".;h2-2.1.214.jar" OperationBudgetCheck [warmup rounds] [measured rounds]
+public class OperationBudgetCheck {
+    private static final long SEED = 42;
+    private static final int USERS = 2_000;
+    private static final long TRANSACTIONS = 50_000;
+    private static final int YEARS = 1;
+    private static final LocalDate END_DATE = LocalDate.of(2026, 1, 1);
+    
+    // Net zero per round: deposit twice the amount that the transfer and the withdrawal each take out
+    private static final double AMOUNT = 0.01;
+    private static final double DEPOSIT = 2 * AMOUNT;
+    
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    
+    // One call of an operation; returns false if the application reported a failure
+    private interface Call {
+        boolean run(String idempotencyKey);
+    }
+    
+    // An operation, its budget and what the measured rounds cost
+    private static final class Check {
+        final String name;
+        final long maxBytesPerCall;
+        final double maxMedianMillis;
+        final Call call;
+        final long[] nanos;
+        long bytes;
+        String failure;
+        
+        Check(String name, long maxBytesPerCall, double maxMedianMillis, int rounds, Call call) {
+            this.name = name;
+            this.maxBytesPerCall = maxBytesPerCall;
+            this.maxMedianMillis = maxMedianMillis;
+            this.nanos = new long[rounds];
+            this.call = call;
+        }
+        
+        double bytesPerCall() {
+            return (double) bytes / nanos.length;
+        }
+        
+        double medianMillis() {
+            long[] sorted = nanos.clone();
+            Arrays.sort(sorted);
+            return sorted[sorted.length / 2] / 1_000_000.0;
+        }
+        
+        boolean withinBudget() {
+            return failure == null && bytesPerCall() <= maxBytesPerCall && medianMillis() <= maxMedianMillis;
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int warmup = args.length > 0 ? Integer.parseInt(args[0]) : 1_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5_000;
+        
+        // Must be set before OnlineBankingSystem is initialised. Headless, so a failure the
+        // application would show in a dialog throws instead of waiting for someone to close it.
+        Path directory = Files.createTempDirectory("operation-budget-check");
+        System.setProperty("java.awt.headless", "true");
+        // Kept open between calls: the application closes its connection after each operation, and H2 would
+        // otherwise close and compact the database file every time the last one goes
+        System.setProperty("banking.db.url", "jdbc:h2:" + directory.toAbsolutePath().resolve("bankingDB") +
+                                             ";DB_CLOSE_DELAY=-1");
+        System.setProperty("banking.audit.file", directory.resolve("audit.log").toString());
+        System.setProperty("banking.velocity.transfers.per.minute", String.valueOf(Long.MAX_VALUE));
+        // A read model window reaching back to the start of the dataset, so history pages are served from it
+        System.setProperty("banking.readmodel.window.days",
+                           String.valueOf(ChronoUnit.DAYS.between(END_DATE.minusYears(YEARS), LocalDate.now()) + 1));
+        
+        QueryPlanCheck.Sample sample;
+        try (Connection conn = DriverManager.getConnection(OnlineBankingSystem.DB_URL, OnlineBankingSystem.DB_USER,
+                                                           OnlineBankingSystem.DB_PASSWORD)) {
+            SchemaMigrator migrator = new SchemaMigrator();
+            List<SchemaMigrator.Migration> deferred = migrator.migrate(conn);
+            
+            DatasetGenerator generator = new DatasetGenerator(SEED, USERS, TRANSACTIONS, YEARS, END_DATE);
+            Path data = Files.createTempDirectory(directory, "data");
+            try {
+                generator.generate(data);
+                generator.load(conn, data);
+            } finally {
+                DatasetGenerator.delete(data);
+            }
+            // Transaction indexes built once over the loaded rows
+            migrator.applyDeferred(conn, deferred);
+            // Closed months archived as on a running installation, so the application's startup archiving
+            // does not compete with the measured rounds
+            new TransactionArchiver(OnlineBankingSystem.DB_URL, OnlineBankingSystem.DB_USER,
+                                    OnlineBankingSystem.DB_PASSWORD).archiveClosedPeriods();
+            sample = QueryPlanCheck.sample(conn, USERS / 2);
+            
+            if (!HistorySearch.textIndexedTables(conn).contains("transactions")) {
+                throw new IllegalStateException("transactions has no full-text index; postings would be measured without its trigger");
+            }
+        }
+        
+        OnlineBankingSystem app = new OnlineBankingSystem();
+        List<Check> checks = checks(app, sample, rounds);
+        SwingUtilities.invokeAndWait(() -> {
+            try {
+                app.startHeadless();
+            } catch (java.io.IOException e) {
+                throw new RuntimeException(e);
+            }
+            run(app, checks, warmup, rounds);
+        });
+        
+        System.out.printf("%d warmup and %d measured rounds as user %d%n", warmup, rounds, sample.userId);
+        System.out.printf("%-14s %12s %12s %10s %10s  %s%n", "operation", "bytes/call", "budget", "median ms",
+                          "budget", "result");
+        int failures = 0;
+        for (Check check : checks) {
+            String result = check.failure != null ? "FAIL: " + check.failure : check.withinBudget() ? "PASS" : "OVER BUDGET";
+            System.out.printf("%-14s %12.0f %12d %10.3f %10.3f  %s%n", check.name, check.bytesPerCall(),
+                              check.maxBytesPerCall, check.medianMillis(), check.maxMedianMillis, result);
+            if (!check.withinBudget()) {
+                failures++;
+            }
+        }
+        
+        System.out.println(failures == 0 ? "All operations within budget" : failures + " operation(s) over budget or failing");
+        System.out.println("Check files left in " + directory);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+    
+    // The operations behind the login, deposit, withdraw, transfer and history screens, with their budgets
+    private static List<Check> checks(OnlineBankingSystem app, QueryPlanCheck.Sample sample, int rounds) {
+        String account = sample.accountNumbers.get(0);
+        String otherAccount = sample.accountNumbers.get(1);
+        List<Check> checks = new ArrayList<>();
+        
+        checks.add(new Check("login", 24 * 1024, 0.5, rounds,
+                             key -> app.authenticateUser(sample.username, sample.password)));
+        checks.add(new Check("deposit", 168 * 1024, 2.0, rounds,
+                             key -> app.deposit(account, DEPOSIT, key)));
+        checks.add(new Check("transfer", 192 * 1024, 2.0, rounds,
+                             key -> app.transferFunds(account, otherAccount, AMOUNT, "Budget check", key)));
+        checks.add(new Check("withdraw", 176 * 1024, 2.0, rounds,
+                             key -> app.withdraw(account, AMOUNT, key)));
+        checks.add(new Check("history page", 1024 * 1024, 10.0, rounds,
+                             key -> {
+                                 app.updateTransactionHistory();
+                                 return true;
+                             }));
+        return checks;
+    }
+    
+    // Run every operation once per round, measuring only the rounds after warmup
+    private static void run(OnlineBankingSystem app, List<Check> checks, int warmup, int rounds) {
+        long threadId = Thread.currentThread().getId();
+        
+        for (int round = -warmup; round < rounds; round++) {
+            for (Check check : checks) {
+                if (check.failure != null) {
+                    continue;
+                }
+                // The GUI creates a request's idempotency key when the form is opened, not in the operation
+                String key = UUID.randomUUID().toString();
+                
+                long startBytes = THREADS.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                boolean ok;
+                try {
+                    ok = check.call.run(key);
+                } catch (RuntimeException e) {
+                    check.failure = e.toString();
+                    continue;
+                }
+                long elapsed = System.nanoTime() - start;
+                long allocated = THREADS.getThreadAllocatedBytes(threadId) - startBytes;
+                
+                if (!ok) {
+                    check.failure = "reported failure in round " + round;
+                } else if (round >= 0) {
+                    check.bytes += allocated;
+                    check.nanos[round] = elapsed;
+                }
+            }
+            app.logout();
+        }
+    }
+}
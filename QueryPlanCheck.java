@@ -0,0 +1,361 @@
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Query plan regression check for the application's SQL.
+//
+// Loads a DatasetGenerator dataset into an in-memory copy of the primary schema,
+// archives all but its last month, replicates the recent months into the read
+// model, then runs EXPLAIN ANALYZE on every
+// registered statement with realistic parameters. History searches run as
+// the owner of the account with the most postings, usually the head
+// merchant, so a search that reads an account's whole history breaks its
+// row budget. A statement fails if its
+// plan contains a table scan, if none of the expected columns is used as an
+// index condition, or if it reads more rows than its budget. Prints each
+// plan that fails and exits with status 1, so a build step running this
+// check breaks on a plan regression.
+//
+// Register new statements in checks() next to the ones they resemble.
+//
+// Both databases and their full-text indexes are in memory; at the default size
+// the check needs a heap of about 4 GB.
+//
+// Usage: java -Xmx4g -cp ".;h2-2.1.214.jar" QueryPlanCheck [users] [transactions]
+public class QueryPlanCheck {
+    private static final String PRIMARY_URL = "jdbc:h2:mem:queryPlanCheck;DB_CLOSE_DELAY=-1";
+    private static final int DEFAULT_USERS = 50_000;
+    private static final int DEFAULT_TRANSACTIONS = 500_000;
+    private static final long SEED = 42;
+    private static final int YEARS = 2;
+    private static final LocalDate END_DATE = LocalDate.of(2026, 1, 1);
+    
+    // Description text searched for; common across the dataset but rare in the busiest account's postings,
+    // so neither reading the account's history nor every match of the word fits the row budget
+    private static final String HISTORY_TEXT = "holiday";
+    
+    // Index condition inside a plan comment, e.g. /* PUBLIC.IDX_RM_TX_FROM: FROM_ACCOUNT_ID IN(?1, ?2) */
+    private static final Pattern INDEX_CONDITION = Pattern.compile("/\\*\\s*[\\w.]+:\\s*([^*]*)\\*/");
+    private static final Pattern SCAN_COUNT = Pattern.compile("scanCount:\\s*(\\d+)");
+    
+    enum Database { PRIMARY, READ_MODEL }
+    
+    // One statement and what its plan must look like
+    static final class PlanExpectation {
+        final String name;
+        final Database database;
+        final String sql;
+        final Object[] params;
+        final String[] indexColumns;
+        final long maxRowsScanned;
+        
+        // indexColumns: at least one of these must appear in an index condition
+        PlanExpectation(String name, Database database, String sql, Object[] params, String[] indexColumns,
+                        long maxRowsScanned) {
+            this.name = name;
+            this.database = database;
+            this.sql = sql;
+            this.params = params;
+            this.indexColumns = indexColumns;
+            this.maxRowsScanned = maxRowsScanned;
+        }
+    }
+    
+    // A user from the dataset whose values parameterize the statements
+    static final class Sample {
+        int userId;
+        String username;
+        String password;
+        long postings;
+        final List<Integer> accountIds = new ArrayList<>();
+        final List<String> accountNumbers = new ArrayList<>();
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_USERS;
+        int transactions = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_TRANSACTIONS;
+        
+        try (Connection primary = DriverManager.getConnection(PRIMARY_URL, OnlineBankingSystem.DB_USER,
+                                                              OnlineBankingSystem.DB_PASSWORD)) {
+            SchemaMigrator migrator = new SchemaMigrator();
+            List<SchemaMigrator.Migration> deferred = migrator.migrate(primary);
+            
+            long start = System.nanoTime();
+            DatasetGenerator generator = new DatasetGenerator(SEED, users, transactions, YEARS, END_DATE);
+            Path directory = Files.createTempDirectory("query-plan-check");
+            try {
+                generator.generate(directory);
+                generator.load(primary, directory);
+            } finally {
+                DatasetGenerator.delete(directory);
+            }
+            // Transaction indexes built once over the loaded rows
+            migrator.applyDeferred(primary, deferred);
+            System.out.println("Loaded " + users + " users and " + transactions + " transactions in " +
+                               (System.nanoTime() - start) / 1_000_000 + " ms");
+            
+            // Closed months live in archive tables, as on a primary that has been running a while
+            long archived = new TransactionArchiver(PRIMARY_URL, OnlineBankingSystem.DB_USER, OnlineBankingSystem.DB_PASSWORD)
+                .archiveBefore(YearMonth.from(END_DATE.minusMonths(1)));
+            System.out.println("Archived " + archived + " transactions");
+            
+            // A window reaching back to the start of the dataset, so the read model holds all of it
+            long windowDays = ChronoUnit.DAYS.between(END_DATE.minusYears(YEARS), LocalDate.now()) + 1;
+            ReadModel readModel = new ReadModel(PRIMARY_URL, OnlineBankingSystem.DB_USER, OnlineBankingSystem.DB_PASSWORD,
+                                                windowDays, Long.MAX_VALUE);
+            readModel.start();
+            
+            try (Connection read = readModel.getConnection()) {
+                analyze(primary);
+                analyze(read);
+                
+                Sample sample = sample(primary, users / 2);
+                Sample busiest = busiest(primary);
+                System.out.println("History searches as user " + busiest.userId + " with " + busiest.postings +
+                                   " postings, row budget " + historyRowBudget(busiest));
+                if (busiest.postings <= historyRowBudget(busiest)) {
+                    System.out.println("Warning: no account has more postings than the history row budget; " +
+                                       "load more transactions for the budget to detect a whole-history scan");
+                }
+                int failures = 0;
+                
+                for (PlanExpectation expectation : checks(sample, busiest)) {
+                    Connection conn = expectation.database == Database.PRIMARY ? primary : read;
+                    if (!check(conn, expectation)) {
+                        failures++;
+                    }
+                }
+                
+                System.out.println(failures == 0 ? "All plans as expected" : failures + " plan regression(s)");
+                System.exit(failures == 0 ? 0 : 1);
+            }
+        }
+    }
+    
+    // Every statement the application runs on a hot path, with its plan expectations.
+    // busiest owns the most active account and parameterizes the history searches.
+    static List<PlanExpectation> checks(Sample sample, Sample busiest) {
+        List<PlanExpectation> checks = new ArrayList<>();
+        int accountId = sample.accountIds.get(0);
+        String accountNumber = sample.accountNumbers.get(0);
+        String otherAccountNumber = sample.accountNumbers.get(1);
+        
+        // authenticateUser, registerUser
+        checks.add(new PlanExpectation("login", Database.PRIMARY, OnlineBankingSystem.AUTHENTICATE_SQL,
+                                       new Object[] { sample.username, sample.password }, new String[] { "USERNAME" }, 5));
+        checks.add(new PlanExpectation("username availability", Database.PRIMARY, UserAvailability.Field.USERNAME.sql,
+                                       new Object[] { sample.username }, new String[] { "USERNAME" }, 5));
+        checks.add(new PlanExpectation("email availability", Database.PRIMARY, UserAvailability.Field.EMAIL.sql,
+                                       new Object[] { sample.username + "@example.com" }, new String[] { "EMAIL" }, 5));
+        checks.add(new PlanExpectation("session accounts", Database.PRIMARY, OnlineBankingSystem.USER_ACCOUNT_IDS_SQL,
+                                       new Object[] { sample.userId }, new String[] { "USER_ID" }, 10));
+        
+        // transferFunds, deposit, withdraw
+        checks.add(new PlanExpectation("owned account with balance", Database.PRIMARY, OnlineBankingSystem.OWNED_ACCOUNT_FOR_UPDATE_SQL,
+                                       new Object[] { accountNumber, sample.userId },
+                                       new String[] { "ACCOUNT_NUMBER", "USER_ID" }, 10));
+        checks.add(new PlanExpectation("account by number", Database.PRIMARY, OnlineBankingSystem.ACCOUNT_BY_NUMBER_SQL,
+                                       new Object[] { otherAccountNumber }, new String[] { "ACCOUNT_NUMBER" }, 5));
+        checks.add(new PlanExpectation("debit", Database.PRIMARY, OnlineBankingSystem.DEBIT_SQL,
+                                       new Object[] { new BigDecimal("1.00"), accountId }, new String[] { "ID" }, 5));
+        checks.add(new PlanExpectation("credit", Database.PRIMARY, OnlineBankingSystem.CREDIT_SQL,
+                                       new Object[] { new BigDecimal("1.00"), accountId }, new String[] { "ID" }, 5));
+        checks.add(new PlanExpectation("balance after posting", Database.PRIMARY, OnlineBankingSystem.BALANCE_SQL,
+                                       new Object[] { accountId }, new String[] { "ID" }, 5));
+        
+        // loadUserDashboard and the forms, served from the read model
+        checks.add(new PlanExpectation("dashboard accounts", Database.READ_MODEL, OnlineBankingSystem.DASHBOARD_ACCOUNTS_SQL,
+                                       new Object[] { sample.userId }, new String[] { "USER_ID" }, 10));
+        checks.add(new PlanExpectation("account balances", Database.READ_MODEL, OnlineBankingSystem.ACCOUNT_BALANCES_SQL,
+                                       new Object[] { sample.userId }, new String[] { "USER_ID" }, 10));
+        checks.add(new PlanExpectation("account choices", Database.READ_MODEL, OnlineBankingSystem.ACCOUNT_CHOICES_SQL,
+                                       new Object[] { sample.userId }, new String[] { "USER_ID" }, 10));
+        
+        // updateTransactionHistory on the read model
+        checks.add(history("history", Database.READ_MODEL, ReadModel.LEDGER_TABLE, busiest, new HistorySearch.Filter()));
+        HistorySearch.Filter filter = new HistorySearch.Filter();
+        filter.fromDate = END_DATE.minusDays(30);
+        filter.transactionType = "TRANSFER";
+        checks.add(history("history, last 30 days of transfers", Database.READ_MODEL, ReadModel.LEDGER_TABLE, busiest,
+                           filter));
+        HistorySearch.Filter text = new HistorySearch.Filter();
+        text.text = HISTORY_TEXT;
+        checks.add(history("history, description text", Database.READ_MODEL, ReadModel.LEDGER_TABLE, busiest, text));
+        
+        // Searches from before the read model's window continue on the primary, one month table at a time
+        HistorySearch.Filter older = new HistorySearch.Filter();
+        older.fromDate = END_DATE.minusYears(YEARS);
+        older.toDate = END_DATE.minusMonths(6);
+        String archive = TransactionArchiver.tableName(YearMonth.from(older.toDate));
+        checks.add(history("history on the primary, hot table", Database.PRIMARY, "transactions", busiest, older));
+        checks.add(history("history on the primary, archived month", Database.PRIMARY, archive, busiest, older));
+        HistorySearch.Filter olderText = older.copy();
+        olderText.text = HISTORY_TEXT;
+        checks.add(history("history on the primary, archived month, description text", Database.PRIMARY, archive,
+                           busiest, olderText));
+        
+        return checks;
+    }
+    
+    // A text search reads its postings by the primary keys the full-text index returns, the others by account
+    private static PlanExpectation history(String name, Database database, String table, Sample sample,
+                                           HistorySearch.Filter filter) {
+        List<Object> params = new ArrayList<>();
+        String sql = HistorySearch.buildQuery(table, sample.accountIds, filter, HistorySearch.DEFAULT_LIMIT, true, params);
+        String[] indexColumns = filter.text != null ? new String[] { "ID" } : new String[] { "FROM_ACCOUNT_ID", "TO_ACCOUNT_ID" };
+        return new PlanExpectation(name, database, sql, params.toArray(), indexColumns, historyRowBudget(sample));
+    }
+    
+    // Two branches per account, each reading at most the limit of postings, one account lookup per
+    // posting on each side, and its capped result once more when the branches are merged
+    static long historyRowBudget(Sample sample) {
+        return 2L * sample.accountIds.size() * 4 * HistorySearch.DEFAULT_LIMIT;
+    }
+    
+    // Explain one statement and report whether its plan meets the expectation
+    static boolean check(Connection conn, PlanExpectation expectation) throws SQLException {
+        // H2 writes comments nested in a view's plan as /++ ... ++/
+        String plan = explain(conn, expectation).replace("\"", "").replace("/++", "/*").replace("++/", "*/");
+        List<String> problems = new ArrayList<>();
+        
+        if (plan.contains(".tableScan")) {
+            problems.add("table scan");
+        }
+        if (!usesIndexOn(plan, expectation.indexColumns)) {
+            problems.add("no index condition on " + String.join(" or ", expectation.indexColumns));
+        }
+        long rowsScanned = rowsScanned(plan);
+        if (rowsScanned > expectation.maxRowsScanned) {
+            problems.add(rowsScanned + " rows scanned, budget " + expectation.maxRowsScanned);
+        }
+        
+        if (problems.isEmpty()) {
+            System.out.println("  PASS  " + expectation.name + " (" + rowsScanned + " rows scanned)");
+            return true;
+        }
+        System.out.println("  FAIL  " + expectation.name + ": " + String.join(", ", problems));
+        System.out.println("        " + plan);
+        return false;
+    }
+    
+    // Run EXPLAIN ANALYZE and undo whatever the statement changed
+    private static String explain(Connection conn, PlanExpectation expectation) throws SQLException {
+        conn.setAutoCommit(false);
+        
+        try (PreparedStatement pstmt = conn.prepareStatement("EXPLAIN ANALYZE " + expectation.sql)) {
+            for (int i = 0; i < expectation.params.length; i++) {
+                pstmt.setObject(i + 1, expectation.params[i]);
+            }
+            
+            StringBuilder plan = new StringBuilder();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    plan.append(rs.getString(1)).append(' ');
+                }
+            }
+            return plan.toString().replaceAll("\\s+", " ").trim();
+        } finally {
+            conn.rollback();
+            conn.setAutoCommit(true);
+        }
+    }
+    
+    private static boolean usesIndexOn(String plan, String[] columns) {
+        Matcher matcher = INDEX_CONDITION.matcher(plan);
+        while (matcher.find()) {
+            String condition = matcher.group(1).toUpperCase();
+            for (String column : columns) {
+                if (Pattern.compile("\\b" + column + "\\b").matcher(condition).find()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    private static long rowsScanned(String plan) {
+        long total = 0;
+        Matcher matcher = SCAN_COUNT.matcher(plan);
+        while (matcher.find()) {
+            total += Long.parseLong(matcher.group(1));
+        }
+        return total;
+    }
+    
+    // Refresh optimizer statistics so plans match a database that has been running a while
+    private static void analyze(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ANALYZE");
+        }
+    }
+    
+    // The first customer with both a checking and a savings account from the given id on
+    static Sample sample(Connection conn, int fromUserId) throws SQLException {
+        Sample sample = new Sample();
+        String userSql = "SELECT user_id FROM accounts WHERE user_id >= ? GROUP BY user_id HAVING COUNT(*) = 2 ORDER BY user_id LIMIT 1";
+        try (PreparedStatement pstmt = conn.prepareStatement(userSql)) {
+            pstmt.setInt(1, fromUserId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("No customer with two accounts from user " + fromUserId);
+                }
+                sample.userId = rs.getInt(1);
+            }
+        }
+        return load(conn, sample);
+    }
+    
+    // The owner of the account with the most postings
+    static Sample busiest(Connection conn) throws SQLException {
+        Sample sample = new Sample();
+        String sql = "SELECT a.user_id, p.postings FROM (" +
+                     "SELECT account_id, COUNT(*) AS postings FROM (" +
+                     "SELECT from_account_id AS account_id FROM " + TransactionArchiver.LEDGER_VIEW + " WHERE from_account_id IS NOT NULL " +
+                     "UNION ALL SELECT to_account_id FROM " + TransactionArchiver.LEDGER_VIEW + " WHERE to_account_id IS NOT NULL) " +
+                     "GROUP BY account_id ORDER BY postings DESC LIMIT 1) p JOIN accounts a ON a.id = p.account_id";
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            if (!rs.next()) {
+                throw new SQLException("No postings in the dataset");
+            }
+            sample.userId = rs.getInt("user_id");
+            sample.postings = rs.getLong("postings");
+        }
+        return load(conn, sample);
+    }
+    
+    // Fill in the credentials and accounts of the sample's user
+    private static Sample load(Connection conn, Sample sample) throws SQLException {
+        int userId = sample.userId;
+        
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT username, password FROM users WHERE id = ?")) {
+            pstmt.setInt(1, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("Sample user " + userId + " not found");
+                }
+                sample.username = rs.getString("username");
+                sample.password = rs.getString("password");
+            }
+        }
+        
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT id, account_number FROM accounts WHERE user_id = ? ORDER BY id")) {
+            pstmt.setInt(1, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    sample.accountIds.add(rs.getInt("id"));
+                    sample.accountNumbers.add(rs.getString("account_number"));
+                }
+            }
+        }
+        return sample;
+    }
+}
@@ -0,0 +1,470 @@
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Read-optimised copy of the banking data for dashboard, account list and
+// history queries.
+//
+// The copy lives in a private in-memory H2 database, so heavy reads never
+// take locks in the file database used by postings. It is loaded from the
+// primary at startup and then kept current by a change stream: every
+// posting path publishes what it committed, and a single applier thread
+// replays the events in order. Balances are applied as absolute
+// balance-after values, so replaying an event twice is harmless.
+//
+// The copy holds every user and account but only the postings of the last
+// windowDays days, so its heap and load time follow recent activity rather
+// than the total history. Postings that fall out of the window are trimmed
+// once an hour. History searches answer the window from the copy and only
+// read the primary for a date range the user starts before the window; see
+// getWindowStart.
+//
+// Events arrive in publish order, which for two postings on one account can
+// differ from their commit order. Each account remembers the id of the last
+// posting applied to its balance, and an event carrying an older id only
+// adds its ledger row. Ids on one account follow commit order, because a
+// posting locks the account row before it inserts its transaction.
+//
+// The queue is bounded. If it ever fills up the posting is not slowed down;
+// instead the read model is marked stale and the applier reloads it from the
+// primary, which bounds how far it can fall behind. The applier logs its lag
+// once a minute while events arrive, and warns when the copy is further
+// behind than maxLagMillis.
+public class ReadModel {
+    // In-memory database holding the read copy
+    static final String READ_DB_URL = "jdbc:h2:mem:bankingReadModel;DB_CLOSE_DELAY=-1";
+    
+    private static final int QUEUE_CAPACITY = 100_000;
+    private static final int LOAD_BATCH_SIZE = 1000;
+    private static final long TRIM_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long REPORT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    
+    // The ledger table of the copy, for HistorySearch
+    static final String LEDGER_TABLE = "transactions";
+    
+    // One committed change on the primary
+    private static class ChangeEvent {
+        final long sequence;
+        final long publishedNanos;
+        
+        // Posting fields
+        final int transactionId;
+        final Integer fromAccountId;
+        final Integer toAccountId;
+        final double amount;
+        final String transactionType;
+        final String description;
+        final Timestamp transactionDate;
+        final Double fromBalanceAfter;
+        final Double toBalanceAfter;
+        
+        // Account opening fields (transactionId is 0 for these)
+        final int userId;
+        final String fullName;
+        final String accountNumber;
+        final String accountType;
+        
+        ChangeEvent(long sequence, int transactionId, Integer fromAccountId, Integer toAccountId, double amount,
+                    String transactionType, String description, Timestamp transactionDate,
+                    Double fromBalanceAfter, Double toBalanceAfter,
+                    int userId, String fullName, String accountNumber, String accountType) {
+            this.sequence = sequence;
+            this.publishedNanos = System.nanoTime();
+            this.transactionId = transactionId;
+            this.fromAccountId = fromAccountId;
+            this.toAccountId = toAccountId;
+            this.amount = amount;
+            this.transactionType = transactionType;
+            this.description = description;
+            this.transactionDate = transactionDate;
+            this.fromBalanceAfter = fromBalanceAfter;
+            this.toBalanceAfter = toBalanceAfter;
+            this.userId = userId;
+            this.fullName = fullName;
+            this.accountNumber = accountNumber;
+            this.accountType = accountType;
+        }
+        
+        boolean isAccountOpening() {
+            return transactionId == 0;
+        }
+    }
+    
+    private final String primaryUrl;
+    private final String primaryUser;
+    private final String primaryPassword;
+    private final long windowDays;
+    private final long maxLagMillis;
+    
+    private final BlockingQueue<ChangeEvent> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong publishedSequence = new AtomicLong();
+    private final Object appliedMonitor = new Object();
+    private volatile long appliedSequence;
+    private volatile long lastApplyLagNanos;
+    private volatile long maxApplyLagNanos;
+    private volatile boolean resyncRequired;
+    private volatile Timestamp windowStart = new Timestamp(0);
+    private long nextTrimMillis;
+    private long nextReportMillis;
+    private long appliedAtLastReport;
+    
+    private Connection applierConnection;
+    private Thread applierThread;
+    
+    // windowDays: how many days of postings the copy holds; maxLagMillis: lag above which the applier warns
+    public ReadModel(String primaryUrl, String primaryUser, String primaryPassword, long windowDays,
+                     long maxLagMillis) {
+        this.primaryUrl = primaryUrl;
+        this.primaryUser = primaryUser;
+        this.primaryPassword = primaryPassword;
+        this.windowDays = windowDays;
+        this.maxLagMillis = maxLagMillis;
+    }
+    
+    // Create the in-memory schema, load a snapshot of the primary and start applying changes
+    public void start() throws SQLException {
+        applierConnection = DriverManager.getConnection(READ_DB_URL, OnlineBankingSystem.DB_USER, OnlineBankingSystem.DB_PASSWORD);
+        createSchema(applierConnection);
+        loadSnapshot();
+        
+        applierThread = new Thread(this::applyLoop, "read-model-applier");
+        applierThread.setDaemon(true);
+        applierThread.start();
+    }
+    
+    // Open a connection to the read copy
+    public Connection getConnection() throws SQLException {
+        return DriverManager.getConnection(READ_DB_URL, OnlineBankingSystem.DB_USER, OnlineBankingSystem.DB_PASSWORD);
+    }
+    
+    // Publish a committed posting. Never blocks the caller.
+    public void publishPosting(int transactionId, Integer fromAccountId, Integer toAccountId, double amount,
+                               String transactionType, String description, Timestamp transactionDate,
+                               Double fromBalanceAfter, Double toBalanceAfter) {
+        enqueue(new ChangeEvent(publishedSequence.incrementAndGet(), transactionId, fromAccountId, toAccountId, amount,
+                                transactionType, description, transactionDate, fromBalanceAfter, toBalanceAfter,
+                                0, null, null, null));
+    }
+    
+    // Publish a newly registered user and their first account. Never blocks the caller.
+    public void publishAccountOpened(int userId, String fullName, int accountId, String accountNumber,
+                                     String accountType, double balance) {
+        enqueue(new ChangeEvent(publishedSequence.incrementAndGet(), 0, null, accountId, 0,
+                                null, null, null, null, balance,
+                                userId, fullName, accountNumber, accountType));
+    }
+    
+    // Wait until everything published so far has been applied, for read-your-writes after a posting
+    public boolean awaitCaughtUp(long timeoutMillis) throws InterruptedException {
+        long target = publishedSequence.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        
+        synchronized (appliedMonitor) {
+            while (appliedSequence < target && !resyncRequired) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(appliedMonitor, remaining);
+            }
+        }
+        
+        return true;
+    }
+    
+    // Postings dated from here on, always a midnight, are all in the copy; older ones are only on the primary
+    public Timestamp getWindowStart() {
+        return windowStart;
+    }
+    
+    // Events published but not yet applied
+    public long getPendingEvents() {
+        return publishedSequence.get() - appliedSequence;
+    }
+    
+    // Age of the oldest unapplied event in milliseconds, 0 when caught up
+    public long getReplicationLagMillis() {
+        ChangeEvent oldest = queue.peek();
+        return oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.publishedNanos);
+    }
+    
+    // Publish-to-apply delay of the most recent event and the worst seen so far
+    public long getLastApplyLagMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(lastApplyLagNanos);
+    }
+    
+    public long getMaxApplyLagMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxApplyLagNanos);
+    }
+    
+    private void enqueue(ChangeEvent event) {
+        if (!queue.offer(event)) {
+            // Falling this far behind is cheaper to fix with a reload than by stalling writers
+            resyncRequired = true;
+        }
+    }
+    
+    private void applyLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (resyncRequired) {
+                    queue.clear();
+                    resyncRequired = false;
+                    long target = publishedSequence.get();
+                    loadSnapshot();
+                    markApplied(target);
+                    continue;
+                }
+                
+                long now = System.currentTimeMillis();
+                if (now >= nextTrimMillis) {
+                    trimWindow();
+                }
+                if (now >= nextReportMillis) {
+                    reportLag();
+                }
+                
+                ChangeEvent event = queue.poll(1, TimeUnit.SECONDS);
+                if (event == null) {
+                    continue;
+                }
+                
+                apply(event);
+                
+                long lag = System.nanoTime() - event.publishedNanos;
+                lastApplyLagNanos = lag;
+                if (lag > maxApplyLagNanos) {
+                    maxApplyLagNanos = lag;
+                }
+                markApplied(event.sequence);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (SQLException e) {
+                // The copy can no longer be trusted; rebuild it from the primary
+                e.printStackTrace();
+                resyncRequired = true;
+            }
+        }
+    }
+    
+    private void markApplied(long sequence) {
+        synchronized (appliedMonitor) {
+            if (sequence > appliedSequence) {
+                appliedSequence = sequence;
+            }
+            appliedMonitor.notifyAll();
+        }
+    }
+    
+    // Apply one event to the read copy
+    private void apply(ChangeEvent event) throws SQLException {
+        if (event.isAccountOpening()) {
+            try (PreparedStatement pstmt = applierConnection.prepareStatement(
+                    "MERGE INTO users (id, full_name) KEY (id) VALUES (?, ?)")) {
+                pstmt.setInt(1, event.userId);
+                pstmt.setString(2, event.fullName);
+                pstmt.executeUpdate();
+            }
+            // An account already loaded by a snapshot may have postings since its opening balance
+            try (PreparedStatement pstmt = applierConnection.prepareStatement(
+                    "INSERT INTO accounts (id, user_id, account_number, account_type, balance, last_transaction_id) " +
+                    "SELECT ?, ?, ?, ?, ?, 0 WHERE NOT EXISTS (SELECT 1 FROM accounts WHERE id = ?)")) {
+                pstmt.setInt(1, event.toAccountId);
+                pstmt.setInt(2, event.userId);
+                pstmt.setString(3, event.accountNumber);
+                pstmt.setString(4, event.accountType);
+                pstmt.setDouble(5, event.toBalanceAfter);
+                pstmt.setInt(6, event.toAccountId);
+                pstmt.executeUpdate();
+            }
+            return;
+        }
+        
+        try (PreparedStatement pstmt = applierConnection.prepareStatement(
+                "MERGE INTO transactions (" + TransactionArchiver.LEDGER_COLUMNS + ") KEY (id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            pstmt.setInt(1, event.transactionId);
+            pstmt.setObject(2, event.fromAccountId);
+            pstmt.setObject(3, event.toAccountId);
+            pstmt.setDouble(4, event.amount);
+            pstmt.setString(5, event.transactionType);
+            pstmt.setString(6, event.description);
+            pstmt.setTimestamp(7, event.transactionDate);
+            pstmt.setObject(8, event.fromBalanceAfter);
+            pstmt.setObject(9, event.toBalanceAfter);
+            pstmt.executeUpdate();
+        }
+        
+        // A balance already moved on by a later posting is left alone
+        try (PreparedStatement pstmt = applierConnection.prepareStatement(
+                "UPDATE accounts SET balance = ?, last_transaction_id = ? WHERE id = ? AND last_transaction_id < ?")) {
+            if (event.fromAccountId != null && event.fromBalanceAfter != null) {
+                pstmt.setDouble(1, event.fromBalanceAfter);
+                pstmt.setInt(2, event.transactionId);
+                pstmt.setInt(3, event.fromAccountId);
+                pstmt.setInt(4, event.transactionId);
+                pstmt.executeUpdate();
+            }
+            if (event.toAccountId != null && event.toBalanceAfter != null) {
+                pstmt.setDouble(1, event.toBalanceAfter);
+                pstmt.setInt(2, event.transactionId);
+                pstmt.setInt(3, event.toAccountId);
+                pstmt.setInt(4, event.transactionId);
+                pstmt.executeUpdate();
+            }
+        }
+    }
+    
+    // Read-side schema: only the columns the UI reads, plus indexes for its lookups
+    private void createSchema(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS users (" +
+                               "id INT PRIMARY KEY, " +
+                               "full_name VARCHAR(100) NOT NULL)");
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS accounts (" +
+                               "id INT PRIMARY KEY, " +
+                               "user_id INT NOT NULL, " +
+                               "account_number VARCHAR(20) NOT NULL, " +
+                               "account_type VARCHAR(20) NOT NULL, " +
+                               "balance DECIMAL(15,2), " +
+                               "last_transaction_id INT DEFAULT 0 NOT NULL)");
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS transactions (" +
+                               "id INT PRIMARY KEY, " +
+                               "from_account_id INT, " +
+                               "to_account_id INT, " +
+                               "amount DECIMAL(15,2) NOT NULL, " +
+                               "transaction_type VARCHAR(20) NOT NULL, " +
+                               "description VARCHAR(200), " +
+                               "transaction_date TIMESTAMP, " +
+                               "from_balance_after DECIMAL(15,2), " +
+                               "to_balance_after DECIMAL(15,2))");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_rm_accounts_user ON accounts (user_id)");
+            stmt.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS idx_rm_accounts_number ON accounts (account_number)");
+            // Descending, so a history branch reads an account's newest postings first and stops at its limit
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_rm_tx_from ON transactions " +
+                               "(from_account_id DESC, transaction_date DESC, id DESC)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_rm_tx_to ON transactions " +
+                               "(to_account_id DESC, transaction_date DESC, id DESC)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_rm_tx_date ON transactions (transaction_date)");
+            
+            // Native H2 full-text search, used by history description search; the index is built by loadSnapshot
+            stmt.execute(HistorySearch.CREATE_TEXT_SEARCH_ALIAS);
+            stmt.execute(HistorySearch.INIT_TEXT_SEARCH);
+            
+            // The UI reads the ledger through the same view name as on the primary
+            stmt.executeUpdate("CREATE OR REPLACE VIEW " + TransactionArchiver.LEDGER_VIEW + " AS " +
+                               "SELECT " + TransactionArchiver.LEDGER_COLUMNS + " FROM transactions");
+        }
+    }
+    
+    // Replace the read copy with the current accounts and the window's postings on the primary
+    private void loadSnapshot() throws SQLException {
+        Timestamp start = startOfWindow();
+        
+        try (Connection primary = DriverManager.getConnection(primaryUrl, primaryUser, primaryPassword);
+             Statement clear = applierConnection.createStatement()) {
+            // TRUNCATE bypasses the full-text triggers, so drop the index and rebuild it after the load
+            clear.execute(HistorySearch.dropTextIndex(LEDGER_TABLE));
+            clear.executeUpdate("TRUNCATE TABLE transactions");
+            clear.executeUpdate("TRUNCATE TABLE accounts");
+            clear.executeUpdate("TRUNCATE TABLE users");
+            
+            // Postings before balances: a posting committed in between is then missing from the copied
+            // ledger rather than from the balance, and its event still reaches the applier afterwards
+            // The hot table and the archived months overlapping the window, not the whole ledger view
+            String insertPosting = "INSERT INTO transactions (" + TransactionArchiver.LEDGER_COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+            for (String table : TransactionArchiver.ledgerTables(primary, start.toLocalDateTime().toLocalDate(), null)) {
+                copy(primary, "SELECT " + TransactionArchiver.LEDGER_COLUMNS + " FROM " + table + " WHERE transaction_date >= ?",
+                     insertPosting, 9, start);
+            }
+            copy(primary, "SELECT id, full_name FROM users",
+                 "INSERT INTO users (id, full_name) VALUES (?, ?)", 2);
+            copy(primary, "SELECT id, user_id, account_number, account_type, balance FROM accounts",
+                 "INSERT INTO accounts (id, user_id, account_number, account_type, balance) VALUES (?, ?, ?, ?, ?)", 5);
+            
+            // Every copied posting is already part of the copied balances
+            clear.executeUpdate("MERGE INTO accounts a USING (" +
+                                "SELECT account_id, MAX(id) AS last_id FROM (" +
+                                "SELECT from_account_id AS account_id, id FROM transactions WHERE from_account_id IS NOT NULL " +
+                                "UNION ALL SELECT to_account_id, id FROM transactions WHERE to_account_id IS NOT NULL) " +
+                                "GROUP BY account_id) p ON a.id = p.account_id " +
+                                "WHEN MATCHED THEN UPDATE SET a.last_transaction_id = p.last_id");
+            
+            clear.execute(HistorySearch.createTextIndex(LEDGER_TABLE));
+        }
+        
+        windowStart = start;
+        nextTrimMillis = System.currentTimeMillis() + TRIM_INTERVAL_MILLIS;
+    }
+    
+    // Drop postings that have fallen out of the window. The new start is published first, so a search
+    // never expects the copy to hold postings that are already being deleted.
+    private void trimWindow() throws SQLException {
+        Timestamp start = startOfWindow();
+        windowStart = start;
+        
+        try (PreparedStatement pstmt = applierConnection.prepareStatement("DELETE FROM transactions WHERE transaction_date < ?")) {
+            pstmt.setTimestamp(1, start);
+            pstmt.executeUpdate();
+        }
+        
+        nextTrimMillis = System.currentTimeMillis() + TRIM_INTERVAL_MILLIS;
+    }
+    
+    // Log the lag if anything was applied since the last report, and warn if the copy is too far behind
+    private void reportLag() {
+        long lagMillis = Math.max(getReplicationLagMillis(), TimeUnit.MICROSECONDS.toMillis(getLastApplyLagMicros()));
+        long applied = appliedSequence;
+        
+        if (applied > appliedAtLastReport || getPendingEvents() > 0) {
+            System.out.println(String.format("Read model lag: %d ms oldest pending, %d events pending, " +
+                                             "apply lag %d us last, %d us max (%d events applied)",
+                                             getReplicationLagMillis(), getPendingEvents(), getLastApplyLagMicros(),
+                                             getMaxApplyLagMicros(), applied - appliedAtLastReport));
+        }
+        if (lagMillis > maxLagMillis) {
+            System.err.println("Read model is " + lagMillis + " ms behind the primary, more than " + maxLagMillis +
+                               " ms; screens may show stale balances and history");
+        }
+        
+        appliedAtLastReport = applied;
+        nextReportMillis = System.currentTimeMillis() + REPORT_INTERVAL_MILLIS;
+    }
+    
+    private Timestamp startOfWindow() {
+        return Timestamp.valueOf(LocalDate.now().minusDays(windowDays).atStartOfDay());
+    }
+    
+    // Stream rows from the primary into the read copy in batches
+    private void copy(Connection primary, String selectSql, String insertSql, int columns, Object... params) throws SQLException {
+        try (PreparedStatement select = primary.prepareStatement(selectSql);
+             PreparedStatement insert = applierConnection.prepareStatement(insertSql)) {
+            select.setFetchSize(LOAD_BATCH_SIZE);
+            for (int i = 0; i < params.length; i++) {
+                select.setObject(i + 1, params[i]);
+            }
+            
+            try (ResultSet rs = select.executeQuery()) {
+                int pending = 0;
+                
+                while (rs.next()) {
+                    for (int i = 1; i <= columns; i++) {
+                        insert.setObject(i, rs.getObject(i));
+                    }
+                    insert.addBatch();
+                    
+                    if (++pending == LOAD_BATCH_SIZE) {
+                        insert.executeBatch();
+                        pending = 0;
+                    }
+                }
+                
+                if (pending > 0) {
+                    insert.executeBatch();
+                }
+            }
+        }
+    }
+}
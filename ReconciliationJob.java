@@ -0,0 +1,297 @@
+import java.math.BigDecimal;
+import java.sql.*;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// End-of-day reconciliation of account balances against the ledger.
+//
+// For every account the expected balance is the opening balance granted at
+// registration plus all credits (DEPOSIT, INTEREST, incoming TRANSFER) minus
+// all debits (WITHDRAWAL, outgoing TRANSFER), read from the full ledger view
+// so archived periods are included. The id space is split into ranges that
+// are checked in parallel; each range is a single read-only statement that
+// takes no row locks on the live database. A posting that commits while the
+// statement runs can leave its balance and its ledger rows on different sides
+// of what the statement reads, so every mismatch is checked again with the
+// account's row locked, as a posting locks it, and only reported if it holds.
+// All arithmetic is done on DECIMAL/BigDecimal values, never on doubles.
+//
+// The application runs the job itself once a day through startSchedule, next
+// to live postings; each range is admitted as BATCH work by the shared
+// AdmissionController, so ranges wait while interactive work is queued or
+// over its latency target. main runs it offline, against a stopped
+// application's database, and BackupManager against a restored copy.
+public class ReconciliationJob {
+    // Width of one id range checked by a single statement
+    static final int DEFAULT_RANGE_SIZE = 10000;
+    
+    private static final String RANGE_SQL =
+        "SELECT a.id, a.account_number, a.balance, " +
+        "COALESCE(c.total, 0) AS credits, COALESCE(d.total, 0) AS debits " +
+        "FROM accounts a " +
+        "LEFT JOIN (SELECT to_account_id AS account_id, SUM(amount) AS total FROM " + TransactionArchiver.LEDGER_VIEW + " " +
+        "           WHERE to_account_id BETWEEN ? AND ? " +
+        "           AND transaction_type IN ('DEPOSIT', 'TRANSFER', '" + InterestAccrualJob.INTEREST_TYPE + "') " +
+        "           GROUP BY to_account_id) c ON c.account_id = a.id " +
+        "LEFT JOIN (SELECT from_account_id AS account_id, SUM(amount) AS total FROM " + TransactionArchiver.LEDGER_VIEW + " " +
+        "           WHERE from_account_id BETWEEN ? AND ? " +
+        "           AND transaction_type IN ('WITHDRAWAL', 'TRANSFER') " +
+        "           GROUP BY from_account_id) d ON d.account_id = a.id " +
+        "WHERE a.id BETWEEN ? AND ? " +
+        "ORDER BY a.id";
+    private static final String LOCK_ACCOUNT_SQL = "SELECT balance FROM accounts WHERE id = ? FOR UPDATE";
+    
+    // One account whose stored balance does not match the ledger
+    public static class Discrepancy {
+        public final int accountId;
+        public final String accountNumber;
+        public final BigDecimal storedBalance;
+        public final BigDecimal ledgerBalance;
+        
+        Discrepancy(int accountId, String accountNumber, BigDecimal storedBalance, BigDecimal ledgerBalance) {
+            this.accountId = accountId;
+            this.accountNumber = accountNumber;
+            this.storedBalance = storedBalance;
+            this.ledgerBalance = ledgerBalance;
+        }
+        
+        public BigDecimal getDifference() {
+            return storedBalance.subtract(ledgerBalance);
+        }
+        
+        @Override
+        public String toString() {
+            return accountNumber + " (id " + accountId + "): stored " + storedBalance.toPlainString() +
+                   ", ledger " + ledgerBalance.toPlainString() + ", difference " + getDifference().toPlainString();
+        }
+    }
+    
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPassword;
+    private final int rangeSize;
+    private final int parallelism;
+    private final AdmissionController admission;
+    
+    private final AtomicLong accountsChecked = new AtomicLong();
+    
+    private ScheduledExecutorService scheduler;
+    
+    // A job run on its own, e.g. offline or on a restored copy, that does not yield to other work
+    public ReconciliationJob(String dbUrl, String dbUser, String dbPassword, int rangeSize, int parallelism) {
+        this(dbUrl, dbUser, dbPassword, rangeSize, parallelism, null);
+    }
+    
+    public ReconciliationJob(String dbUrl, String dbUser, String dbPassword, int rangeSize, int parallelism,
+                             AdmissionController admission) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword;
+        this.rangeSize = rangeSize;
+        this.parallelism = parallelism;
+        this.admission = admission;
+    }
+    
+    // Reconcile every day at the given local time and log the outcome
+    public void startSchedule(LocalTime at) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "reconciliation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime first = now.toLocalDate().atTime(at);
+        if (!first.isAfter(now)) {
+            first = first.plusDays(1);
+        }
+        scheduler.scheduleAtFixedRate(this::reconcile, Duration.between(now, first).toMillis(),
+                                      TimeUnit.DAYS.toMillis(1), TimeUnit.MILLISECONDS);
+    }
+    
+    public void stopSchedule() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+    
+    // One scheduled run; mismatches are reported, never corrected
+    void reconcile() {
+        long start = System.nanoTime();
+        try {
+            List<Discrepancy> discrepancies = run();
+            for (Discrepancy discrepancy : discrepancies) {
+                System.err.println("Reconciliation discrepancy: " + discrepancy);
+            }
+            System.out.println("Reconciled " + getAccountsChecked() + " accounts in " +
+                               (System.nanoTime() - start) / 1_000_000 + " ms, " + discrepancies.size() + " discrepancies");
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // Check every account and return the mismatches ordered by account id
+    public List<Discrepancy> run() throws SQLException, InterruptedException {
+        accountsChecked.set(0);
+        int minId;
+        int maxId;
+        
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MIN(id), MAX(id) FROM accounts")) {
+            rs.next();
+            minId = rs.getInt(1);
+            maxId = rs.getInt(2);
+            if (rs.wasNull()) {
+                return Collections.emptyList();
+            }
+        }
+        
+        ConcurrentLinkedQueue<Discrepancy> discrepancies = new ConcurrentLinkedQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<Future<?>> futures = new ArrayList<>();
+        
+        try {
+            for (long start = minId; start <= maxId; start += rangeSize) {
+                int rangeStart = (int) start;
+                int rangeEnd = (int) Math.min(start + rangeSize - 1, maxId);
+                futures.add(executor.submit(() -> {
+                    checkRange(rangeStart, rangeEnd, discrepancies);
+                    return null;
+                }));
+            }
+            
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof SQLException) {
+                        throw (SQLException) e.getCause();
+                    }
+                    if (e.getCause() instanceof InterruptedException) {
+                        throw (InterruptedException) e.getCause();
+                    }
+                    throw new IllegalStateException("Reconciliation failed", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        List<Discrepancy> result = new ArrayList<>(discrepancies);
+        result.sort(Comparator.comparingInt(d -> d.accountId));
+        return result;
+    }
+    
+    // Number of accounts examined by the last run
+    public long getAccountsChecked() {
+        return accountsChecked.get();
+    }
+    
+    // Compare stored and ledger balances for one id range in a single statement, then confirm the mismatches
+    @SuppressWarnings("try")
+    private void checkRange(int rangeStart, int rangeEnd, Queue<Discrepancy> discrepancies)
+            throws SQLException, InterruptedException {
+        BigDecimal openingBalance = BigDecimal.valueOf(OnlineBankingSystem.INITIAL_BALANCE).setScale(2);
+        
+        try (AdmissionController.Permit permit = admission == null ? null : admission.await(AdmissionController.Priority.BATCH);
+             Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+             PreparedStatement pstmt = conn.prepareStatement(RANGE_SQL)) {
+            conn.setReadOnly(true);
+            List<Discrepancy> suspects = new ArrayList<>();
+            
+            bindRange(pstmt, rangeStart, rangeEnd);
+            pstmt.setFetchSize(1000);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                long checked = 0;
+                
+                while (rs.next()) {
+                    Discrepancy discrepancy = mismatch(rs, openingBalance);
+                    if (discrepancy != null) {
+                        suspects.add(discrepancy);
+                    }
+                    checked++;
+                }
+                
+                accountsChecked.addAndGet(checked);
+            }
+            
+            if (suspects.isEmpty()) {
+                return;
+            }
+            
+            // With the row locked no posting to the account is in flight, and the next statement sees them all
+            conn.setReadOnly(false);
+            conn.setAutoCommit(false);
+            try (PreparedStatement lockStmt = conn.prepareStatement(LOCK_ACCOUNT_SQL)) {
+                for (Discrepancy suspect : suspects) {
+                    lockStmt.setInt(1, suspect.accountId);
+                    lockStmt.executeQuery().close();
+                    
+                    bindRange(pstmt, suspect.accountId, suspect.accountId);
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        Discrepancy confirmed = rs.next() ? mismatch(rs, openingBalance) : null;
+                        if (confirmed != null) {
+                            discrepancies.add(confirmed);
+                        }
+                    }
+                    conn.commit();
+                }
+            } finally {
+                conn.rollback();
+            }
+        }
+    }
+    
+    private static void bindRange(PreparedStatement pstmt, int rangeStart, int rangeEnd) throws SQLException {
+        pstmt.setInt(1, rangeStart);
+        pstmt.setInt(2, rangeEnd);
+        pstmt.setInt(3, rangeStart);
+        pstmt.setInt(4, rangeEnd);
+        pstmt.setInt(5, rangeStart);
+        pstmt.setInt(6, rangeEnd);
+    }
+    
+    // The current row's account if its stored balance differs from the ledger
+    private static Discrepancy mismatch(ResultSet rs, BigDecimal openingBalance) throws SQLException {
+        BigDecimal stored = rs.getBigDecimal("balance");
+        BigDecimal expected = openingBalance.add(rs.getBigDecimal("credits")).subtract(rs.getBigDecimal("debits"));
+        
+        return stored.compareTo(expected) != 0
+            ? new Discrepancy(rs.getInt("id"), rs.getString("account_number"), stored, expected) : null;
+    }
+    
+    // Offline run against the database of a stopped application, which otherwise holds it open
+    // Usage: ReconciliationJob [threads]
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        ReconciliationJob job = new ReconciliationJob(OnlineBankingSystem.DB_URL, OnlineBankingSystem.DB_USER,
+                                                      OnlineBankingSystem.DB_PASSWORD, DEFAULT_RANGE_SIZE, threads);
+        
+        long start = System.nanoTime();
+        List<Discrepancy> discrepancies = job.run();
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        
+        for (Discrepancy discrepancy : discrepancies) {
+            System.out.println(discrepancy);
+        }
+        
+        System.out.println("Checked " + job.getAccountsChecked() + " accounts in " + elapsedMs + " ms, " +
+                           discrepancies.size() + " discrepancies");
+        
+        if (!discrepancies.isEmpty()) {
+            System.exit(1);
+        }
+    }
+}
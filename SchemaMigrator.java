@@ -0,0 +1,294 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Versioned schema migrations.
+//
+// Every schema change is a numbered migration with a fixed list of SQL
+// statements. Applied versions are recorded in schema_version together with
+// a SHA-256 checksum of their statements, so an edited migration is detected
+// instead of silently skipped. When the database is already current, startup
+// costs a single read of schema_version.
+//
+// Migrations marked as background (typically index builds on the large
+// transactions table) are applied on a daemon thread after startup so they do
+// not hold up the first screen. H2 has no concurrent index build, so postings
+// may wait on the table lock while such an index is being created, and the
+// application only starts them once its own startup reads of the table are
+// done. Readers that depend on one ask isApplied before using it.
+public class SchemaMigrator {
+    // The migration building the hot table's full-text index; history text searches match without it until applied
+    static final int TEXT_INDEX_VERSION = 10;
+    
+    // One versioned schema change
+    public static class Migration {
+        final int version;
+        final String description;
+        final boolean background;
+        final List<String> statements;
+        
+        Migration(int version, String description, boolean background, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.background = background;
+            this.statements = Collections.unmodifiableList(Arrays.asList(statements));
+        }
+        
+        String checksum() {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                for (String statement : statements) {
+                    digest.update(statement.getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) ';');
+                }
+                
+                StringBuilder hex = new StringBuilder();
+                // Not String.format: its first few hundred calls alone cost startup tens of milliseconds
+                for (byte b : digest.digest()) {
+                    hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+    }
+    
+    // All migrations in version order. Never edit one that has shipped; add a new version instead.
+    static final List<Migration> MIGRATIONS = Collections.unmodifiableList(Arrays.asList(
+        new Migration(1, "Create users, accounts and transactions", false,
+            "CREATE TABLE IF NOT EXISTS users (" +
+            "id INT AUTO_INCREMENT PRIMARY KEY, " +
+            "username VARCHAR(50) UNIQUE NOT NULL, " +
+            "password VARCHAR(50) NOT NULL, " +
+            "full_name VARCHAR(100) NOT NULL, " +
+            "email VARCHAR(100) UNIQUE NOT NULL, " +
+            "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)",
+            "CREATE TABLE IF NOT EXISTS accounts (" +
+            "id INT AUTO_INCREMENT PRIMARY KEY, " +
+            "user_id INT NOT NULL, " +
+            "account_number VARCHAR(20) UNIQUE NOT NULL, " +
+            "account_type VARCHAR(20) NOT NULL, " +
+            "balance DECIMAL(15,2) DEFAULT 0.00, " +
+            "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+            "FOREIGN KEY (user_id) REFERENCES users(id))",
+            "CREATE TABLE IF NOT EXISTS transactions (" +
+            "id INT AUTO_INCREMENT PRIMARY KEY, " +
+            "from_account_id INT, " +
+            "to_account_id INT, " +
+            "amount DECIMAL(15,2) NOT NULL, " +
+            "transaction_type VARCHAR(20) NOT NULL, " +
+            "description VARCHAR(200), " +
+            "transaction_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+            "FOREIGN KEY (from_account_id) REFERENCES accounts(id), " +
+            "FOREIGN KEY (to_account_id) REFERENCES accounts(id))"),
+        new Migration(2, "Add running balance columns", false,
+            "ALTER TABLE transactions ADD COLUMN IF NOT EXISTS from_balance_after DECIMAL(15,2)",
+            "ALTER TABLE transactions ADD COLUMN IF NOT EXISTS to_balance_after DECIMAL(15,2)"),
+        new Migration(3, "Create archive catalog and ledger view", false,
+            "CREATE TABLE IF NOT EXISTS transaction_archives (" +
+            "period VARCHAR(6) PRIMARY KEY, " +
+            "table_name VARCHAR(40) NOT NULL, " +
+            "row_count BIGINT NOT NULL, " +
+            "archived_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)",
+            "CREATE VIEW IF NOT EXISTS " + TransactionArchiver.LEDGER_VIEW + " AS " +
+            "SELECT " + TransactionArchiver.LEDGER_COLUMNS + " FROM transactions"),
+        new Migration(4, "Create interest run markers", false,
+            "CREATE TABLE IF NOT EXISTS interest_runs (" +
+            "period VARCHAR(6) NOT NULL, " +
+            "range_start INT NOT NULL, " +
+            "range_end INT NOT NULL, " +
+            "accounts_credited INT NOT NULL, " +
+            "completed_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+            "PRIMARY KEY (period, range_start))"),
+        new Migration(5, "Index transactions by date", true,
+            "CREATE INDEX IF NOT EXISTS idx_transactions_date ON transactions (transaction_date)"),
+        new Migration(6, "Create standing orders", false,
+            "CREATE TABLE IF NOT EXISTS standing_orders (" +
+            "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+            "user_id INT NOT NULL, " +
+            "from_account VARCHAR(20) NOT NULL, " +
+            "to_account VARCHAR(20) NOT NULL, " +
+            "amount DECIMAL(15,2) NOT NULL, " +
+            "description VARCHAR(200), " +
+            "next_run_at TIMESTAMP NOT NULL, " +
+            "interval_months INT DEFAULT 0 NOT NULL, " +
+            "active BOOLEAN DEFAULT TRUE NOT NULL, " +
+            "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+            "FOREIGN KEY (user_id) REFERENCES users(id))",
+            "CREATE INDEX IF NOT EXISTS idx_standing_orders_due ON standing_orders (active, next_run_at)",
+            "CREATE TABLE IF NOT EXISTS standing_order_runs (" +
+            "order_id BIGINT NOT NULL, " +
+            "due_at TIMESTAMP NOT NULL, " +
+            "status VARCHAR(10) NOT NULL, " +
+            "error VARCHAR(200), " +
+            "executed_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+            "PRIMARY KEY (order_id, due_at))"),
+        new Migration(7, "Create idempotency keys", false,
+            "CREATE TABLE IF NOT EXISTS idempotency_keys (" +
+            "user_id INT NOT NULL, " +
+            "idem_key VARCHAR(64) NOT NULL, " +
+            "operation VARCHAR(20) NOT NULL, " +
+            "transaction_id INT, " +
+            "created_at TIMESTAMP NOT NULL, " +
+            "PRIMARY KEY (user_id, idem_key))",
+            "CREATE INDEX IF NOT EXISTS idx_idempotency_keys_created ON idempotency_keys (created_at)"),
+        new Migration(8, "Add cross-shard transfer reference", false,
+            "ALTER TABLE transactions ADD COLUMN IF NOT EXISTS transfer_ref VARCHAR(40)"),
+        new Migration(9, "Create authorization holds", false,
+            "CREATE TABLE IF NOT EXISTS holds (" +
+            "id BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+            "user_id INT NOT NULL, " +
+            "account_id INT NOT NULL, " +
+            "from_account VARCHAR(20) NOT NULL, " +
+            "to_account VARCHAR(20) NOT NULL, " +
+            "amount DECIMAL(15,2) NOT NULL, " +
+            "captured_amount DECIMAL(15,2) DEFAULT 0 NOT NULL, " +
+            "description VARCHAR(200), " +
+            "status VARCHAR(10) NOT NULL, " +
+            "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+            "expires_at TIMESTAMP NOT NULL, " +
+            "closed_at TIMESTAMP, " +
+            "FOREIGN KEY (account_id) REFERENCES accounts(id))",
+            "CREATE INDEX IF NOT EXISTS idx_holds_open ON holds (status, expires_at)"),
+        new Migration(TEXT_INDEX_VERSION, "Full-text index transactions", true,
+            HistorySearch.CREATE_TEXT_SEARCH_ALIAS,
+            HistorySearch.INIT_TEXT_SEARCH,
+            HistorySearch.dropTextIndex("transactions"),
+            HistorySearch.createTextIndex("transactions")),
+        new Migration(11, "Index transactions by account and date", true,
+            "CREATE INDEX IF NOT EXISTS idx_transactions_from_date ON transactions " +
+            "(from_account_id DESC, transaction_date DESC, id DESC)",
+            "CREATE INDEX IF NOT EXISTS idx_transactions_to_date ON transactions " +
+            "(to_account_id DESC, transaction_date DESC, id DESC)")
+    ));
+    
+    private final List<Migration> migrations;
+    
+    // Versions recorded when migrate ran, plus those this migrator has applied since
+    private final Set<Integer> appliedVersions = ConcurrentHashMap.newKeySet();
+    
+    public SchemaMigrator() {
+        this(MIGRATIONS);
+    }
+    
+    SchemaMigrator(List<Migration> migrations) {
+        this.migrations = migrations;
+    }
+    
+    // Bring the schema up to date. Returns the background migrations still to run (usually none).
+    public List<Migration> migrate(Connection conn) throws SQLException {
+        Map<Integer, String> applied = readAppliedVersions(conn);
+        
+        // Fast path: everything recorded and unchanged
+        List<Migration> pending = new ArrayList<>();
+        for (Migration migration : migrations) {
+            String checksum = applied.get(migration.version);
+            if (checksum == null) {
+                pending.add(migration);
+            } else if (!checksum.equals(migration.checksum())) {
+                throw new SQLException("Schema migration V" + migration.version + " (" + migration.description +
+                                       ") has been modified after it was applied");
+            } else {
+                appliedVersions.add(migration.version);
+            }
+        }
+        
+        if (pending.isEmpty()) {
+            return Collections.emptyList();
+        }
+        
+        if (applied.isEmpty()) {
+            createVersionTable(conn);
+        }
+        
+        List<Migration> deferred = new ArrayList<>();
+        for (Migration migration : pending) {
+            if (migration.background) {
+                deferred.add(migration);
+            } else {
+                apply(conn, migration);
+            }
+        }
+        
+        return deferred;
+    }
+    
+    // Whether a migration had been applied when migrate ran, or has been applied by this migrator since
+    public boolean isApplied(int version) {
+        return appliedVersions.contains(version);
+    }
+    
+    // Apply deferred migrations right away: on the application's background thread once startup no longer reads
+    // the tables they lock, or in tools that need the complete schema before they start
+    public void applyDeferred(Connection conn, List<Migration> deferred) throws SQLException {
+        for (Migration migration : deferred) {
+            apply(conn, migration);
+        }
+    }
+    
+    // Run one migration and record it. H2 commits DDL implicitly, so statements must be idempotent.
+    private void apply(Connection conn, Migration migration) throws SQLException {
+        long start = System.nanoTime();
+        
+        try (Statement stmt = conn.createStatement()) {
+            for (String statement : migration.statements) {
+                stmt.executeUpdate(statement);
+            }
+        }
+        
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        
+        String sql = "MERGE INTO schema_version (version, description, checksum, execution_ms) KEY (version) VALUES (?, ?, ?, ?)";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, migration.version);
+            pstmt.setString(2, migration.description);
+            pstmt.setString(3, migration.checksum());
+            pstmt.setLong(4, elapsedMs);
+            pstmt.executeUpdate();
+        }
+        appliedVersions.add(migration.version);
+        
+        System.out.println("Applied schema migration V" + migration.version + " (" + migration.description + ") in " + elapsedMs + " ms");
+    }
+    
+    // Single metadata read; an empty map means the version table does not exist yet
+    private Map<Integer, String> readAppliedVersions(Connection conn) throws SQLException {
+        Map<Integer, String> applied = new HashMap<>();
+        
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT version, checksum FROM schema_version")) {
+            while (rs.next()) {
+                applied.put(rs.getInt("version"), rs.getString("checksum"));
+            }
+        } catch (SQLException e) {
+            // Table not found, i.e. a new database or one created before versioning. H2 reports
+            // 42S04 instead of 42S02 when the database has no tables at all.
+            if (!"42S02".equals(e.getSQLState()) && !"42S04".equals(e.getSQLState())) {
+                throw e;
+            }
+        }
+        
+        return applied;
+    }
+    
+    private void createVersionTable(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS schema_version (" +
+                               "version INT PRIMARY KEY, " +
+                               "description VARCHAR(200) NOT NULL, " +
+                               "checksum VARCHAR(64) NOT NULL, " +
+                               "execution_ms BIGINT NOT NULL, " +
+                               "applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Logged-in sessions.
+//
+// Each login gets an opaque random token that maps to a Session holding the
+// user's id, name and accounts, loaded once at login so screens and postings
+// do not have to look them up again. Sessions expire after a period without
+// use (idle) and unconditionally after a maximum age (absolute).
+//
+// Lookup is a ConcurrentHashMap get plus two comparisons: no locks and no
+// allocation. The last-access time is only written when it has moved by at
+// least ACCESS_RESOLUTION_MS, so hot sessions are not rewriting the same
+// cache line on every request. Expired sessions are refused on lookup and
+// removed by a single background sweeper, so memory stays proportional to
+// the number of live sessions.
+public class SessionStore {
+    // Granularity of idle-time tracking
+    private static final long ACCESS_RESOLUTION_MS = 1000;
+    private static final int TOKEN_BYTES = 24;
+    
+    // One logged-in user; identity and metadata are fixed for the life of the session
+    public static final class Session {
+        private final String token;
+        private final int userId;
+        private final String username;
+        private final String fullName;
+        private final Map<String, Integer> accountIds;
+        private final long createdAt;
+        private volatile long lastAccess;
+        
+        Session(String token, int userId, String username, String fullName, Map<String, Integer> accountIds, long now) {
+            this.token = token;
+            this.userId = userId;
+            this.username = username;
+            this.fullName = fullName;
+            this.accountIds = Collections.unmodifiableMap(accountIds);
+            this.createdAt = now;
+            this.lastAccess = now;
+        }
+        
+        public String getToken() {
+            return token;
+        }
+        
+        public int getUserId() {
+            return userId;
+        }
+        
+        public String getUsername() {
+            return username;
+        }
+        
+        public String getFullName() {
+            return fullName;
+        }
+        
+        // Account number to account id for every account the user held at login
+        public Map<String, Integer> getAccountIds() {
+            return accountIds;
+        }
+        
+        public boolean ownsAccount(String accountNumber) {
+            return accountIds.containsKey(accountNumber);
+        }
+    }
+    
+    private final long idleTimeoutMs;
+    private final long absoluteTimeoutMs;
+    private final ConcurrentHashMap<String, Session> sessions;
+    private final SecureRandom random = new SecureRandom();
+    private final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    
+    private ScheduledExecutorService sweeper;
+    
+    public SessionStore(long idleTimeoutMinutes, long absoluteTimeoutMinutes, int expectedSessions) {
+        this.idleTimeoutMs = TimeUnit.MINUTES.toMillis(idleTimeoutMinutes);
+        this.absoluteTimeoutMs = TimeUnit.MINUTES.toMillis(absoluteTimeoutMinutes);
+        this.sessions = new ConcurrentHashMap<>(expectedSessions);
+    }
+    
+    // Start a session for an authenticated user and return it
+    public Session create(int userId, String username, String fullName, Map<String, Integer> accountIds) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        
+        Session session = new Session(encoder.encodeToString(bytes), userId, username, fullName, accountIds,
+                                      System.currentTimeMillis());
+        sessions.put(session.token, session);
+        return session;
+    }
+    
+    // The live session for a token, or null if the token is unknown or the session has expired
+    public Session get(String token) {
+        if (token == null) {
+            return null;
+        }
+        
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        
+        long now = System.currentTimeMillis();
+        if (isExpired(session, now)) {
+            sessions.remove(token, session);
+            return null;
+        }
+        
+        if (now - session.lastAccess >= ACCESS_RESOLUTION_MS) {
+            session.lastAccess = now;
+        }
+        return session;
+    }
+    
+    // End a session, e.g. on logout
+    public void invalidate(String token) {
+        if (token != null) {
+            sessions.remove(token);
+        }
+    }
+    
+    // End every session of a user
+    public void invalidateUser(int userId) {
+        sessions.values().removeIf(session -> session.userId == userId);
+    }
+    
+    public int size() {
+        return sessions.size();
+    }
+    
+    // Start the single sweeper that removes expired sessions
+    public void startSweeper() {
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, Math.min(idleTimeoutMs / 4, 60_000));
+        sweeper.scheduleWithFixedDelay(this::evictExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+    
+    public void stopSweeper() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+    
+    // Remove every expired session; returns how many were removed
+    int evictExpired() {
+        long now = System.currentTimeMillis();
+        int before = sessions.size();
+        sessions.values().removeIf(session -> isExpired(session, now));
+        return before - sessions.size();
+    }
+    
+    private boolean isExpired(Session session, long now) {
+        return now - session.lastAccess > idleTimeoutMs || now - session.createdAt > absoluteTimeoutMs;
+    }
+}
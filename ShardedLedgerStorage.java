@@ -0,0 +1,565 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+// LedgerStorage split by account number range across several H2 databases.
+//
+// The 10-digit account number space is cut into equal ranges, one per shard,
+// so an account always lives on the shard its number falls into. Single-leg
+// operations go straight to that shard through JdbcLedgerStorage. Users live
+// on shard 0; opening an account on another shard copies the owner's row
+// there so the foreign key holds. Account ids are local to their shard; the
+// account number is the global key.
+//
+// A transfer between two accounts on the same shard is one local
+// transaction writing one TRANSFER row, as transferFunds does. A transfer
+// across shards writes a debit leg on one shard and a credit leg on the
+// other, both tagged with the same transfer_ref, and commits them with
+// two-phase commit:
+//   1. post both legs, lower shard first so cross-shard lock waits cannot cycle
+//   2. PREPARE COMMIT on both shards; any failure rolls both back
+//   3. force a commit record for the transfer to the coordinator log
+//   4. commit both shards, then append a done record (not forced)
+// A crash before step 3 leaves prepared legs without a commit record, and
+// recovery rolls them back (presumed abort). A crash after step 3 leaves the
+// decision on disk, and recovery commits whatever is still in doubt. Each
+// shard's ledger stays balanced on its own, so ReconciliationJob can run
+// against any shard.
+//
+// Recovery runs when the storage is opened, before any new transfer starts.
+// Only one ShardedLedgerStorage may coordinate a given set of shards.
+public class ShardedLedgerStorage implements LedgerStorage {
+    // Size of the account number space split across the shards
+    static final long ACCOUNT_NUMBER_SPACE = 10_000_000_000L;
+    
+    private static final String LOCK_PAIR_SQL =
+        "SELECT id, account_number, balance FROM accounts WHERE account_number IN (?, ?) ORDER BY id FOR UPDATE";
+    private static final String LOCK_ACCOUNT_SQL =
+        "SELECT id, balance FROM accounts WHERE account_number = ? FOR UPDATE";
+    private static final String SET_BALANCE_SQL = "UPDATE accounts SET balance = ? WHERE id = ?";
+    private static final String INSERT_LOCAL_TRANSFER_SQL =
+        "INSERT INTO transactions (from_account_id, to_account_id, amount, transaction_type, description, " +
+        "from_balance_after, to_balance_after, transaction_date) VALUES (?, ?, ?, 'TRANSFER', ?, ?, ?, ?)";
+    private static final String INSERT_DEBIT_LEG_SQL =
+        "INSERT INTO transactions (from_account_id, amount, transaction_type, description, from_balance_after, " +
+        "transaction_date, transfer_ref) VALUES (?, ?, 'TRANSFER', ?, ?, ?, ?)";
+    private static final String INSERT_CREDIT_LEG_SQL =
+        "INSERT INTO transactions (to_account_id, amount, transaction_type, description, to_balance_after, " +
+        "transaction_date, transfer_ref) VALUES (?, ?, 'TRANSFER', ?, ?, ?, ?)";
+    private static final String IN_DOUBT_SQL = "SELECT TRANSACTION_NAME FROM INFORMATION_SCHEMA.IN_DOUBT";
+    
+    // Both sides of a completed transfer; transferId is null when it stayed on one shard
+    public static final class Transfer {
+        public final String transferId;
+        public final Posting debit;
+        public final Posting credit;
+        
+        Transfer(String transferId, Posting debit, Posting credit) {
+            this.transferId = transferId;
+            this.debit = debit;
+            this.credit = credit;
+        }
+        
+        public boolean isCrossShard() {
+            return transferId != null;
+        }
+    }
+    
+    private final List<String> shardUrls;
+    private final String dbUser;
+    private final String dbPassword;
+    private final List<JdbcLedgerStorage> shards = new ArrayList<>();
+    private final CoordinatorLog log;
+    
+    // Transfer ids are unique per coordinator start: start time plus a counter, both base 36
+    private final String transferIdPrefix = "XFER_" + Long.toString(System.currentTimeMillis(), 36).toUpperCase() + "_";
+    private final AtomicLong transferSequence = new AtomicLong();
+    
+    public ShardedLedgerStorage(List<String> shardUrls, String dbUser, String dbPassword, Path coordinatorLog)
+            throws SQLException, IOException {
+        if (shardUrls.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        
+        this.shardUrls = new ArrayList<>(shardUrls);
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword;
+        
+        for (String url : this.shardUrls) {
+            try (Connection conn = DriverManager.getConnection(url, dbUser, dbPassword)) {
+                SchemaMigrator migrator = new SchemaMigrator();
+                migrator.applyDeferred(conn, migrator.migrate(conn));
+            }
+            shards.add(new JdbcLedgerStorage(url, dbUser, dbPassword));
+        }
+        
+        log = new CoordinatorLog(coordinatorLog);
+        try {
+            recover();
+        } catch (SQLException | IOException e) {
+            log.close();
+            throw e;
+        }
+    }
+    
+    public int getShardCount() {
+        return shards.size();
+    }
+    
+    // Shard holding an account number, by equal ranges of the number space
+    public int shardOf(String accountNumber) throws SQLException {
+        long number;
+        try {
+            number = Long.parseLong(accountNumber);
+        } catch (NumberFormatException e) {
+            throw new SQLException("Account not found");
+        }
+        if (number < 0 || number >= ACCOUNT_NUMBER_SPACE) {
+            throw new SQLException("Account not found");
+        }
+        return (int) (number * shards.size() / ACCOUNT_NUMBER_SPACE);
+    }
+    
+    public String getShardUrl(int shard) {
+        return shardUrls.get(shard);
+    }
+    
+    @Override
+    public Account openAccount(int userId, String accountNumber, String accountType, BigDecimal openingBalance) throws SQLException {
+        int shard = shardOf(accountNumber);
+        if (shard != 0) {
+            copyUser(userId, shard);
+        }
+        return shards.get(shard).openAccount(userId, accountNumber, accountType, openingBalance);
+    }
+    
+    @Override
+    public BigDecimal getBalance(String accountNumber) throws SQLException {
+        return shards.get(shardOf(accountNumber)).getBalance(accountNumber);
+    }
+    
+    @Override
+    public Posting credit(String accountNumber, BigDecimal amount, String transactionType, String description) throws SQLException {
+        return shards.get(shardOf(accountNumber)).credit(accountNumber, amount, transactionType, description);
+    }
+    
+    @Override
+    public Posting debit(String accountNumber, BigDecimal amount, String transactionType, String description) throws SQLException {
+        return shards.get(shardOf(accountNumber)).debit(accountNumber, amount, transactionType, description);
+    }
+    
+    @Override
+    public List<Posting> recentPostings(String accountNumber, int limit) throws SQLException {
+        return shards.get(shardOf(accountNumber)).recentPostings(accountNumber, limit);
+    }
+    
+    // An account id does not say which shard holds it, and the caller's connection is to none of them
+    @Override
+    public BigDecimal getBalance(Connection conn, int accountId) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Sharded ledger storage cannot join a single JDBC transaction");
+    }
+    
+    @Override
+    public Posting credit(Connection conn, int accountId, BigDecimal amount, String transactionType,
+                          String description) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Sharded ledger storage cannot join a single JDBC transaction");
+    }
+    
+    @Override
+    public Posting debit(Connection conn, int accountId, BigDecimal amount, BigDecimal reserved, String transactionType,
+                         String description) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Sharded ledger storage cannot join a single JDBC transaction");
+    }
+    
+    // Move money between two accounts, or throw InsufficientFundsException with nothing changed
+    public Transfer transfer(String fromAccount, String toAccount, BigDecimal amount, String description) throws SQLException {
+        if (fromAccount.equals(toAccount)) {
+            throw new SQLException("Cannot transfer to the same account");
+        }
+        
+        int fromShard = shardOf(fromAccount);
+        int toShard = shardOf(toAccount);
+        if (fromShard == toShard) {
+            return localTransfer(fromShard, fromAccount, toAccount, amount, description);
+        }
+        return crossShardTransfer(fromShard, fromAccount, toShard, toAccount, amount, description);
+    }
+    
+    @Override
+    public void close() throws SQLException {
+        try {
+            log.close();
+        } catch (IOException e) {
+            throw new SQLException("Closing the coordinator log failed", e);
+        }
+    }
+    
+    // Fast path: both rows locked in id order, one TRANSFER row with both balances
+    private Transfer localTransfer(int shard, String fromAccount, String toAccount, BigDecimal amount,
+                                   String description) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(shardUrls.get(shard), dbUser, dbPassword)) {
+            conn.setAutoCommit(false);
+            
+            try {
+                int fromAccountId = 0;
+                int toAccountId = 0;
+                BigDecimal fromBalance = null;
+                BigDecimal toBalance = null;
+                
+                try (PreparedStatement pstmt = conn.prepareStatement(LOCK_PAIR_SQL)) {
+                    pstmt.setString(1, fromAccount);
+                    pstmt.setString(2, toAccount);
+                    
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            if (rs.getString("account_number").equals(fromAccount)) {
+                                fromAccountId = rs.getInt("id");
+                                fromBalance = rs.getBigDecimal("balance");
+                            } else {
+                                toAccountId = rs.getInt("id");
+                                toBalance = rs.getBigDecimal("balance");
+                            }
+                        }
+                    }
+                }
+                
+                if (fromBalance == null || toBalance == null) {
+                    throw new SQLException("Account not found");
+                }
+                if (fromBalance.compareTo(amount) < 0) {
+                    throw new InsufficientFundsException();
+                }
+                BigDecimal fromBalanceAfter = fromBalance.subtract(amount);
+                BigDecimal toBalanceAfter = toBalance.add(amount);
+                
+                setBalance(conn, fromAccountId, fromBalanceAfter);
+                setBalance(conn, toAccountId, toBalanceAfter);
+                
+                Timestamp postedAt = new Timestamp(System.currentTimeMillis());
+                long postingId;
+                try (PreparedStatement pstmt = conn.prepareStatement(INSERT_LOCAL_TRANSFER_SQL, Statement.RETURN_GENERATED_KEYS)) {
+                    pstmt.setInt(1, fromAccountId);
+                    pstmt.setInt(2, toAccountId);
+                    pstmt.setBigDecimal(3, amount);
+                    pstmt.setString(4, description);
+                    pstmt.setBigDecimal(5, fromBalanceAfter);
+                    pstmt.setBigDecimal(6, toBalanceAfter);
+                    pstmt.setTimestamp(7, postedAt);
+                    pstmt.executeUpdate();
+                    postingId = generatedId(pstmt);
+                }
+                
+                conn.commit();
+                return new Transfer(null,
+                                    new Posting(postingId, fromAccountId, amount.negate(), fromBalanceAfter, "TRANSFER",
+                                                description, postedAt.getTime()),
+                                    new Posting(postingId, toAccountId, amount, toBalanceAfter, "TRANSFER",
+                                                description, postedAt.getTime()));
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+    
+    // Two-phase commit of a debit leg and a credit leg on different shards
+    private Transfer crossShardTransfer(int fromShard, String fromAccount, int toShard, String toAccount,
+                                        BigDecimal amount, String description) throws SQLException {
+        String transferId = transferIdPrefix + Long.toString(transferSequence.incrementAndGet(), 36).toUpperCase();
+        Timestamp postedAt = new Timestamp(System.currentTimeMillis());
+        
+        try (Connection debitConn = DriverManager.getConnection(shardUrls.get(fromShard), dbUser, dbPassword);
+             Connection creditConn = DriverManager.getConnection(shardUrls.get(toShard), dbUser, dbPassword)) {
+            debitConn.setAutoCommit(false);
+            creditConn.setAutoCommit(false);
+            
+            Posting debit;
+            Posting credit;
+            try {
+                if (fromShard < toShard) {
+                    debit = postLeg(debitConn, fromAccount, amount, true, description, postedAt, transferId);
+                    credit = postLeg(creditConn, toAccount, amount, false, description, postedAt, transferId);
+                } else {
+                    credit = postLeg(creditConn, toAccount, amount, false, description, postedAt, transferId);
+                    debit = postLeg(debitConn, fromAccount, amount, true, description, postedAt, transferId);
+                }
+                
+                prepare(debitConn, transferId);
+                prepare(creditConn, transferId);
+            } catch (SQLException e) {
+                rollbackQuietly(debitConn);
+                rollbackQuietly(creditConn);
+                throw e;
+            }
+            
+            // Once the commit record may be on disk, recovery decides the outcome from the log
+            try {
+                log.commitDecision(transferId);
+            } catch (IOException e) {
+                throw new SQLException("Transfer " + transferId + " is in doubt until recovery: " +
+                                       "writing its commit record failed", e);
+            }
+            
+            try {
+                debitConn.commit();
+                creditConn.commit();
+            } catch (SQLException e) {
+                throw new SQLException("Transfer " + transferId + " is committed but a shard did not confirm; " +
+                                       "recovery completes it", e);
+            }
+            log.done(transferId);
+            
+            debitConn.setAutoCommit(true);
+            creditConn.setAutoCommit(true);
+            return new Transfer(transferId, debit, credit);
+        }
+    }
+    
+    // One side of a cross-shard transfer: lock, check funds for a debit, update and record with the transfer id
+    private static Posting postLeg(Connection conn, String accountNumber, BigDecimal amount, boolean debit,
+                                   String description, Timestamp postedAt, String transferId) throws SQLException {
+        int accountId;
+        BigDecimal balance;
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(LOCK_ACCOUNT_SQL)) {
+            pstmt.setString(1, accountNumber);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("Account not found");
+                }
+                accountId = rs.getInt("id");
+                balance = rs.getBigDecimal("balance");
+            }
+        }
+        
+        if (debit && balance.compareTo(amount) < 0) {
+            throw new InsufficientFundsException();
+        }
+        BigDecimal balanceAfter = debit ? balance.subtract(amount) : balance.add(amount);
+        setBalance(conn, accountId, balanceAfter);
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(debit ? INSERT_DEBIT_LEG_SQL : INSERT_CREDIT_LEG_SQL,
+                                                             Statement.RETURN_GENERATED_KEYS)) {
+            pstmt.setInt(1, accountId);
+            pstmt.setBigDecimal(2, amount);
+            pstmt.setString(3, description);
+            pstmt.setBigDecimal(4, balanceAfter);
+            pstmt.setTimestamp(5, postedAt);
+            pstmt.setString(6, transferId);
+            pstmt.executeUpdate();
+            
+            return new Posting(generatedId(pstmt), accountId, debit ? amount.negate() : amount, balanceAfter,
+                               "TRANSFER", description, postedAt.getTime());
+        }
+    }
+    
+    private static void prepare(Connection conn, String transferId) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PREPARE COMMIT " + transferId);
+        }
+    }
+    
+    private static void setBalance(Connection conn, int accountId, BigDecimal balance) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(SET_BALANCE_SQL)) {
+            pstmt.setBigDecimal(1, balance);
+            pstmt.setInt(2, accountId);
+            pstmt.executeUpdate();
+        }
+    }
+    
+    private static long generatedId(PreparedStatement pstmt) throws SQLException {
+        try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
+            if (!generatedKeys.next()) {
+                throw new SQLException("Insert failed, no ID obtained.");
+            }
+            return generatedKeys.getLong(1);
+        }
+    }
+    
+    private static void rollbackQuietly(Connection conn) {
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            // The shard rolls the transaction back when the connection closes
+        }
+    }
+    
+    // Copy an account owner from shard 0 so the accounts foreign key holds on the target shard
+    private void copyUser(int userId, int shard) throws SQLException {
+        String selectSql = "SELECT username, password, full_name, email, created_at FROM users WHERE id = ?";
+        String mergeSql = "MERGE INTO users (id, username, password, full_name, email, created_at) KEY (id) " +
+                          "VALUES (?, ?, ?, ?, ?, ?)";
+        
+        try (Connection source = DriverManager.getConnection(shardUrls.get(0), dbUser, dbPassword);
+             Connection target = DriverManager.getConnection(shardUrls.get(shard), dbUser, dbPassword);
+             PreparedStatement select = source.prepareStatement(selectSql);
+             PreparedStatement merge = target.prepareStatement(mergeSql)) {
+            select.setInt(1, userId);
+            
+            try (ResultSet rs = select.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("User not found");
+                }
+                merge.setInt(1, userId);
+                merge.setString(2, rs.getString("username"));
+                merge.setString(3, rs.getString("password"));
+                merge.setString(4, rs.getString("full_name"));
+                merge.setString(5, rs.getString("email"));
+                merge.setTimestamp(6, rs.getTimestamp("created_at"));
+                merge.executeUpdate();
+            }
+        }
+    }
+    
+    // Resolve transactions left prepared by a previous coordinator, then start a fresh log
+    private void recover() throws SQLException, IOException {
+        Set<String> committed = log.readUndoneCommits();
+        int resolved = 0;
+        
+        for (String url : shardUrls) {
+            try (Connection conn = DriverManager.getConnection(url, dbUser, dbPassword);
+                 Statement stmt = conn.createStatement()) {
+                List<String> inDoubt = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery(IN_DOUBT_SQL)) {
+                    while (rs.next()) {
+                        inDoubt.add(rs.getString(1));
+                    }
+                }
+                
+                for (String transferId : inDoubt) {
+                    String action = committed.contains(transferId) ? "COMMIT" : "ROLLBACK";
+                    stmt.execute(action + " TRANSACTION " + transferId);
+                    System.out.println("Recovered in-doubt transfer " + transferId + " on " + url + ": " + action);
+                    resolved++;
+                }
+            }
+        }
+        
+        log.truncate();
+        if (resolved > 0) {
+            System.out.println("Coordinator recovery resolved " + resolved + " in-doubt transaction(s)");
+        }
+    }
+    
+    // Append-only decision log. Commit records are forced to disk with group
+    // commit: while one caller forces, others append behind it and the next
+    // force covers them all. Done records are never forced; losing one only
+    // means recovery finds nothing left in doubt for that transfer.
+    static final class CoordinatorLog implements AutoCloseable {
+        private static final String COMMIT = "C ";
+        private static final String DONE = "D ";
+        
+        private final Path file;
+        private final FileChannel channel;
+        private long written;
+        private long forced;
+        private boolean forcing;
+        
+        CoordinatorLog(Path file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                            StandardOpenOption.APPEND);
+            this.written = channel.size();
+            this.forced = written;
+        }
+        
+        // Returns once the commit record is on disk
+        void commitDecision(String transferId) throws IOException {
+            awaitForced(append(COMMIT + transferId));
+        }
+        
+        void done(String transferId) {
+            try {
+                append(DONE + transferId);
+            } catch (IOException e) {
+                // Harmless: the transfer is already committed on every shard
+            }
+        }
+        
+        // Transfers with a complete commit record and no done record; a torn last line is ignored
+        Set<String> readUndoneCommits() throws IOException {
+            Set<String> undone = new HashSet<>();
+            String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            int end = content.lastIndexOf('\n') + 1;
+            
+            for (String line : content.substring(0, end).split("\n")) {
+                if (line.startsWith(COMMIT)) {
+                    undone.add(line.substring(COMMIT.length()));
+                } else if (line.startsWith(DONE)) {
+                    undone.remove(line.substring(DONE.length()));
+                }
+            }
+            return undone;
+        }
+        
+        // Drop every record; only called when nothing is in doubt
+        synchronized void truncate() throws IOException {
+            channel.truncate(0);
+            channel.force(true);
+            written = 0;
+            forced = 0;
+        }
+        
+        private synchronized long append(String record) throws IOException {
+            ByteBuffer buffer = StandardCharsets.UTF_8.encode(record + "\n");
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+            return written;
+        }
+        
+        // Force the log up to end, or wait for a force already under way to cover it
+        private void awaitForced(long end) throws IOException {
+            long target;
+            synchronized (this) {
+                while (forced < end && forcing) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for the coordinator log");
+                    }
+                }
+                if (forced >= end) {
+                    return;
+                }
+                forcing = true;
+                target = written;
+            }
+            
+            boolean succeeded = false;
+            try {
+                channel.force(false);
+                succeeded = true;
+            } finally {
+                synchronized (this) {
+                    if (succeeded) {
+                        forced = Math.max(forced, target);
+                    }
+                    forcing = false;
+                    notifyAll();
+                }
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
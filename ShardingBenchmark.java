@@ -0,0 +1,282 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.h2.tools.Server;
+
+// Transfer throughput of ShardedLedgerStorage from 1 to N shards.
+//
+// For each shard count a fresh set of H2 databases is created, either as
+// embedded files or behind one local TCP server per shard standing in for a
+// separate node. Every shard gets the same number of accounts. Worker
+// threads then transfer between random accounts for a fixed time; the
+// destination is on the source's shard with the given probability and on
+// another shard otherwise, so the mix of fast-path and two-phase transfers
+// is controlled. Afterwards the total balance across all shards must be
+// unchanged and no shard may hold an in-doubt transaction.
+//
+// Prints transfers per second, speedup over one shard, the share of
+// cross-shard transfers and latency percentiles per shard count. Exits with
+// status 1 if a consistency check fails.
+//
+// Usage: java -cp ".;h2-2.1.214.jar" ShardingBenchmark [max shards] [accounts per shard] [threads] [seconds] [same-shard %] [file|tcp]
+public class ShardingBenchmark {
+    private static final BigDecimal OPENING_BALANCE = new BigDecimal("1000.00");
+    private static final BigDecimal AMOUNT = new BigDecimal("0.01");
+    
+    // Outcome of one worker thread
+    private static final class WorkerResult {
+        long[] nanos = new long[1 << 14];
+        int size;
+        long crossShard;
+        long failures;
+        
+        void add(long value, boolean cross) {
+            if (size == nanos.length) {
+                nanos = Arrays.copyOf(nanos, size * 2);
+            }
+            nanos[size++] = value;
+            if (cross) {
+                crossShard++;
+            }
+        }
+    }
+    
+    // One row of the report
+    private static final class RunSummary {
+        final double transfersPerSecond;
+        final double crossShardPercent;
+        final long failures;
+        final double p50Ms;
+        final double p99Ms;
+        final double maxMs;
+        
+        RunSummary(double transfersPerSecond, double crossShardPercent, long failures, double p50Ms, double p99Ms,
+                   double maxMs) {
+            this.transfersPerSecond = transfersPerSecond;
+            this.crossShardPercent = crossShardPercent;
+            this.failures = failures;
+            this.p50Ms = p50Ms;
+            this.p99Ms = p99Ms;
+            this.maxMs = maxMs;
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int maxShards = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int accountsPerShard = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors() * 2;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        double sameShard = (args.length > 4 ? Integer.parseInt(args[4]) : 80) / 100.0;
+        boolean tcp = args.length > 5 && args[5].equals("tcp");
+        
+        System.out.printf("%d thread(s), %d accounts per shard, %d s per run, %.0f%% same-shard, %s shards%n",
+                          threads, accountsPerShard, seconds, sameShard * 100, tcp ? "TCP" : "embedded file");
+        System.out.printf("%-7s %12s %8s %8s %8s %9s %9s %9s%n", "shards", "transfers/s", "speedup", "cross %",
+                          "failed", "p50 ms", "p99 ms", "max ms");
+        
+        double baseline = 0;
+        boolean consistent = true;
+        
+        for (int shardCount = 1; shardCount <= maxShards; shardCount++) {
+            Path directory = Files.createTempDirectory("sharding-" + shardCount);
+            List<Server> servers = new ArrayList<>();
+            List<String> urls = new ArrayList<>();
+            
+            try {
+                for (int shard = 0; shard < shardCount; shard++) {
+                    if (tcp) {
+                        Server server = Server.createTcpServer("-tcpPort", String.valueOf(freePort()), "-baseDir",
+                                                               directory.toString(), "-ifNotExists").start();
+                        servers.add(server);
+                        urls.add("jdbc:h2:tcp://localhost:" + server.getPort() + "/shard" + shard + ";LOCK_TIMEOUT=10000");
+                    } else {
+                        urls.add("jdbc:h2:" + directory.resolve("shard" + shard).toAbsolutePath() + ";LOCK_TIMEOUT=10000");
+                    }
+                }
+                
+                RunSummary summary;
+                try (ShardedLedgerStorage storage = new ShardedLedgerStorage(urls, OnlineBankingSystem.DB_USER,
+                                                                             OnlineBankingSystem.DB_PASSWORD,
+                                                                             directory.resolve("coordinator.log"))) {
+                    String[][] accounts = openAccounts(storage, accountsPerShard);
+                    summary = run(storage, accounts, threads, seconds, sameShard);
+                    consistent &= verify(storage, accounts);
+                }
+                
+                if (shardCount == 1) {
+                    baseline = summary.transfersPerSecond;
+                }
+                System.out.printf("%-7d %,12.0f %8.2f %8.1f %8d %9.2f %9.2f %9.2f%n", shardCount,
+                                  summary.transfersPerSecond, summary.transfersPerSecond / Math.max(1, baseline),
+                                  summary.crossShardPercent, summary.failures, summary.p50Ms, summary.p99Ms, summary.maxMs);
+            } finally {
+                for (Server server : servers) {
+                    server.stop();
+                }
+            }
+        }
+        
+        System.out.println(consistent ? "Balances conserved on every run" : "Consistency check failed");
+        System.exit(consistent ? 0 : 1);
+    }
+    
+    // Accounts per shard, numbered from the start of each shard's range; one owner on shard 0
+    private static String[][] openAccounts(ShardedLedgerStorage storage, int accountsPerShard) throws SQLException {
+        int shardCount = storage.getShardCount();
+        int userId;
+        
+        String sql = "INSERT INTO users (username, password, full_name, email) VALUES (?, ?, ?, ?)";
+        try (Connection conn = DriverManager.getConnection(storage.getShardUrl(0), OnlineBankingSystem.DB_USER,
+                                                           OnlineBankingSystem.DB_PASSWORD);
+             PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            pstmt.setString(1, "sharding");
+            pstmt.setString(2, "secret");
+            pstmt.setString(3, "Sharding Benchmark");
+            pstmt.setString(4, "sharding@example.com");
+            pstmt.executeUpdate();
+            
+            try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
+                generatedKeys.next();
+                userId = generatedKeys.getInt(1);
+            }
+        }
+        
+        String[][] accounts = new String[shardCount][accountsPerShard];
+        for (int shard = 0; shard < shardCount; shard++) {
+            long first = (ShardedLedgerStorage.ACCOUNT_NUMBER_SPACE * shard + shardCount - 1) / shardCount;
+            for (int a = 0; a < accountsPerShard; a++) {
+                accounts[shard][a] = String.format("%010d", first + a);
+                storage.openAccount(userId, accounts[shard][a], "Checking", OPENING_BALANCE);
+            }
+        }
+        return accounts;
+    }
+    
+    // Transfer workers for the given time, summarised
+    private static RunSummary run(ShardedLedgerStorage storage, String[][] accounts, int threads, int seconds,
+                              double sameShard) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        WorkerResult[] results = new WorkerResult[threads];
+        List<Thread> workers = new ArrayList<>();
+        
+        for (int t = 0; t < threads; t++) {
+            WorkerResult result = results[t] = new WorkerResult();
+            Thread worker = new Thread(() -> transferLoop(storage, accounts, sameShard, running, result),
+                                       "sharding-worker-" + t);
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+        
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        
+        int total = 0;
+        long crossShard = 0;
+        long failures = 0;
+        for (WorkerResult result : results) {
+            total += result.size;
+            crossShard += result.crossShard;
+            failures += result.failures;
+        }
+        long[] sorted = new long[total];
+        int offset = 0;
+        for (WorkerResult result : results) {
+            System.arraycopy(result.nanos, 0, sorted, offset, result.size);
+            offset += result.size;
+        }
+        Arrays.sort(sorted);
+        
+        return new RunSummary(total * 1_000_000_000.0 / elapsed, crossShard * 100.0 / Math.max(1, total), failures,
+                              percentileMs(sorted, 0.50), percentileMs(sorted, 0.99), percentileMs(sorted, 1.0));
+    }
+    
+    private static void transferLoop(ShardedLedgerStorage storage, String[][] accounts, double sameShard,
+                                     AtomicBoolean running, WorkerResult result) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int shardCount = accounts.length;
+        
+        while (running.get()) {
+            int fromShard = random.nextInt(shardCount);
+            int toShard = fromShard;
+            if (shardCount > 1 && random.nextDouble() >= sameShard) {
+                toShard = (fromShard + 1 + random.nextInt(shardCount - 1)) % shardCount;
+            }
+            String from = accounts[fromShard][random.nextInt(accounts[fromShard].length)];
+            String to = accounts[toShard][random.nextInt(accounts[toShard].length)];
+            if (from.equals(to)) {
+                continue;
+            }
+            
+            long start = System.nanoTime();
+            try {
+                ShardedLedgerStorage.Transfer transfer = storage.transfer(from, to, AMOUNT, "Benchmark");
+                result.add(System.nanoTime() - start, transfer.isCrossShard());
+            } catch (SQLException e) {
+                result.failures++;
+            }
+        }
+    }
+    
+    // Money is neither created nor lost, and nothing is left prepared on any shard
+    private static boolean verify(ShardedLedgerStorage storage, String[][] accounts) throws SQLException {
+        BigDecimal expected = BigDecimal.ZERO;
+        BigDecimal actual = BigDecimal.ZERO;
+        boolean ok = true;
+        
+        for (int shard = 0; shard < accounts.length; shard++) {
+            expected = expected.add(OPENING_BALANCE.multiply(BigDecimal.valueOf(accounts[shard].length)));
+            
+            try (Connection conn = DriverManager.getConnection(storage.getShardUrl(shard), OnlineBankingSystem.DB_USER,
+                                                               OnlineBankingSystem.DB_PASSWORD);
+                 Statement stmt = conn.createStatement()) {
+                try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(SUM(balance), 0) FROM accounts")) {
+                    rs.next();
+                    actual = actual.add(rs.getBigDecimal(1));
+                }
+                try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.IN_DOUBT")) {
+                    rs.next();
+                    if (rs.getInt(1) != 0) {
+                        System.out.println("Shard " + shard + " has " + rs.getInt(1) + " in-doubt transaction(s)");
+                        ok = false;
+                    }
+                }
+            }
+        }
+        
+        if (expected.compareTo(actual) != 0) {
+            System.out.println("Total balance " + actual.toPlainString() + ", expected " + expected.toPlainString());
+            ok = false;
+        }
+        return ok;
+    }
+    
+    private static double percentileMs(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+    
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
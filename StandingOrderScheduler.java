@@ -0,0 +1,421 @@
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Standing orders and future-dated transfers.
+//
+// Orders are stored in standing_orders with the time of their next run. Only
+// orders due within the load window are held in memory, in a hierarchical
+// timing wheel, so millions of stored orders cost nothing until they are
+// close to due. Every tick the wheel hands back the orders that have become
+// due; they are executed in batches on a worker pool. Orders that fell due
+// while the application was down are loaded as due immediately (catch-up).
+//
+// Each execution inserts a standing_order_runs row keyed by (order_id,
+// due_at) in the same transaction as the transfer, so an order can never be
+// posted twice for the same due time even if it is loaded twice or the
+// process dies between posting and rescheduling.
+//
+// A transfer the ledger refuses, such as for insufficient funds, is recorded
+// as a FAILED run and the order moves on. Lock timeouts and deadlocks are not
+// refusals: the order is retried a few times with a short backoff, and if it
+// is still blocked it stays due in the table for the next window load.
+//
+// Orders are batch work: each one is admitted as BATCH by the shared
+// AdmissionController, so due orders wait while interactive work is queued
+// or its latency is over target.
+public class StandingOrderScheduler {
+    // Posts a transfer inside the caller's transaction and returns the work to run after commit
+    public interface TransferPoster {
+        Runnable postTransfer(Connection conn, int userId, String fromAccount, String toAccount,
+                              double amount, String description) throws SQLException;
+    }
+    
+    private static final long TICK_MILLIS = 1000L;
+    private static final int WHEEL_SIZE = 60;
+    private static final int WHEEL_LEVELS = 3;
+    private static final long LOAD_WINDOW_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long LOAD_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final int BATCH_SIZE = 500;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 100;
+    
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPassword;
+    private final TransferPoster poster;
+    private final int workers;
+    private final AdmissionController admission;
+    
+    private final TimingWheel wheel = new TimingWheel(TICK_MILLIS, WHEEL_SIZE, WHEEL_LEVELS, System.currentTimeMillis());
+    private final Set<Long> scheduled = ConcurrentHashMap.newKeySet();
+    
+    private ScheduledExecutorService timer;
+    private ExecutorService workerPool;
+    
+    public StandingOrderScheduler(String dbUrl, String dbUser, String dbPassword, TransferPoster poster, int workers,
+                                  AdmissionController admission) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword;
+        this.poster = poster;
+        this.workers = workers;
+        this.admission = admission;
+    }
+    
+    // Load the near-future window and start ticking
+    public void start() {
+        workerPool = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "standing-order-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "standing-order-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        timer.scheduleWithFixedDelay(this::loadWindow, 0, LOAD_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        timer.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    public void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        if (workerPool != null) {
+            workerPool.shutdownNow();
+        }
+    }
+    
+    // Store a new order; intervalMonths of 0 makes it a one-off future-dated transfer
+    public long createOrder(int userId, String fromAccount, String toAccount, double amount, String description,
+                            LocalDateTime firstRun, int intervalMonths) throws SQLException {
+        String sql = "INSERT INTO standing_orders (user_id, from_account, to_account, amount, description, next_run_at, interval_months) " +
+                     "VALUES (?, ?, ?, ?, ?, ?, ?)";
+        long orderId;
+        
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+             PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            pstmt.setInt(1, userId);
+            pstmt.setString(2, fromAccount);
+            pstmt.setString(3, toAccount);
+            pstmt.setDouble(4, amount);
+            pstmt.setString(5, description);
+            pstmt.setTimestamp(6, Timestamp.valueOf(firstRun));
+            pstmt.setInt(7, intervalMonths);
+            pstmt.executeUpdate();
+            
+            try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
+                generatedKeys.next();
+                orderId = generatedKeys.getLong(1);
+            }
+        }
+        
+        schedule(orderId, Timestamp.valueOf(firstRun).getTime());
+        return orderId;
+    }
+    
+    // Put an order on the wheel if it is inside the window and not already there
+    private void schedule(long orderId, long dueMillis) {
+        if (dueMillis < System.currentTimeMillis() + LOAD_WINDOW_MILLIS && scheduled.add(orderId)) {
+            wheel.add(orderId, dueMillis);
+        }
+    }
+    
+    // Read orders due before the end of the window, including overdue ones
+    private void loadWindow() {
+        String sql = "SELECT id, next_run_at FROM standing_orders WHERE active = TRUE AND next_run_at < ?";
+        
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setTimestamp(1, new Timestamp(System.currentTimeMillis() + LOAD_WINDOW_MILLIS));
+            pstmt.setFetchSize(BATCH_SIZE);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    schedule(rs.getLong("id"), rs.getTimestamp("next_run_at").getTime());
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    // Advance the wheel and hand due orders to the workers in batches
+    private void tick() {
+        List<TimingWheel.Entry> due = wheel.advance(System.currentTimeMillis());
+        
+        for (int i = 0; i < due.size(); i += BATCH_SIZE) {
+            List<TimingWheel.Entry> batch = new ArrayList<>(due.subList(i, Math.min(i + BATCH_SIZE, due.size())));
+            workerPool.execute(() -> executeBatch(batch));
+        }
+    }
+    
+    // Execute a batch of due orders on one connection, one transaction per order
+    @SuppressWarnings("try")
+    private void executeBatch(List<TimingWheel.Entry> batch) {
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+            for (TimingWheel.Entry entry : batch) {
+                Long next;
+                try (AdmissionController.Permit permit = admission.await(AdmissionController.Priority.BATCH)) {
+                    scheduled.remove(entry.orderId);
+                    next = executeWithRetry(conn, entry.orderId, new Timestamp(entry.dueMillis));
+                } catch (SQLException e) {
+                    if (!isTransient(e)) {
+                        throw e;
+                    }
+                    // Still blocked after retrying: the order stays due and the next window load picks it up
+                    e.printStackTrace();
+                    continue;
+                }
+                if (next != null) {
+                    schedule(entry.orderId, next);
+                }
+            }
+        } catch (SQLException e) {
+            // Orders not yet executed stay due in the table and are reloaded by the next window load
+            e.printStackTrace();
+            for (TimingWheel.Entry entry : batch) {
+                scheduled.remove(entry.orderId);
+            }
+        } catch (InterruptedException e) {
+            // Stopping: leave the rest for the next start
+            Thread.currentThread().interrupt();
+            for (TimingWheel.Entry entry : batch) {
+                scheduled.remove(entry.orderId);
+            }
+        }
+    }
+    
+    // Run one order, retrying it while it fails on a lock timeout or deadlock
+    private Long executeWithRetry(Connection conn, long orderId, Timestamp dueAt) throws SQLException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return executeOrder(conn, orderId, dueAt);
+            } catch (SQLException e) {
+                if (!isTransient(e) || attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                Thread.sleep(RETRY_BACKOFF_MILLIS * attempt);
+            }
+        }
+    }
+    
+    // Lock timeouts, deadlocks and serialization failures: the transaction was rolled back, not refused
+    static boolean isTransient(SQLException e) {
+        String state = e.getSQLState();
+        return e instanceof SQLTransientException || "HYT00".equals(state) || (state != null && state.startsWith("40"));
+    }
+    
+    // Run one order for one due time. Returns its next due time in millis, or null if it is finished.
+    private Long executeOrder(Connection conn, long orderId, Timestamp dueAt) throws SQLException {
+        conn.setAutoCommit(false);
+        
+        try {
+            String orderSql = "SELECT user_id, from_account, to_account, amount, description, next_run_at, interval_months " +
+                              "FROM standing_orders WHERE id = ? AND active = TRUE FOR UPDATE";
+            int userId;
+            String fromAccount;
+            String toAccount;
+            double amount;
+            String description;
+            int intervalMonths;
+            
+            try (PreparedStatement pstmt = conn.prepareStatement(orderSql)) {
+                pstmt.setLong(1, orderId);
+                
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    // Cancelled, or already moved on by an earlier execution of the same due time
+                    if (!rs.next() || !rs.getTimestamp("next_run_at").equals(dueAt)) {
+                        conn.rollback();
+                        return null;
+                    }
+                    userId = rs.getInt("user_id");
+                    fromAccount = rs.getString("from_account");
+                    toAccount = rs.getString("to_account");
+                    amount = rs.getDouble("amount");
+                    description = rs.getString("description");
+                    intervalMonths = rs.getInt("interval_months");
+                }
+            }
+            
+            Timestamp nextRun = intervalMonths > 0
+                ? Timestamp.valueOf(dueAt.toLocalDateTime().plusMonths(intervalMonths))
+                : null;
+            
+            try {
+                // Claim the run first; the primary key rejects a second posting for the same due time
+                recordRun(conn, orderId, dueAt, "POSTED", null);
+                Runnable afterCommit = poster.postTransfer(conn, userId, fromAccount, toAccount, amount, description);
+                advance(conn, orderId, nextRun);
+                conn.commit();
+                afterCommit.run();
+            } catch (SQLException e) {
+                conn.rollback();
+                if ("23505".equals(e.getSQLState())) {
+                    return null;
+                }
+                if (isTransient(e)) {
+                    throw e;
+                }
+                
+                // The transfer itself was refused (e.g. insufficient funds): record it and move on
+                recordRun(conn, orderId, dueAt, "FAILED", e.getMessage());
+                advance(conn, orderId, nextRun);
+                conn.commit();
+            }
+            
+            return nextRun == null ? null : nextRun.getTime();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+    
+    private void recordRun(Connection conn, long orderId, Timestamp dueAt, String status, String error) throws SQLException {
+        String sql = "INSERT INTO standing_order_runs (order_id, due_at, status, error) VALUES (?, ?, ?, ?)";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setLong(1, orderId);
+            pstmt.setTimestamp(2, dueAt);
+            pstmt.setString(3, status);
+            pstmt.setString(4, error == null ? null : error.substring(0, Math.min(error.length(), 200)));
+            pstmt.executeUpdate();
+        }
+    }
+    
+    // Move the order to its next due time, or deactivate a one-off order
+    private void advance(Connection conn, long orderId, Timestamp nextRun) throws SQLException {
+        String sql = nextRun == null
+            ? "UPDATE standing_orders SET active = FALSE WHERE id = ?"
+            : "UPDATE standing_orders SET next_run_at = ? WHERE id = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            if (nextRun == null) {
+                pstmt.setLong(1, orderId);
+            } else {
+                pstmt.setTimestamp(1, nextRun);
+                pstmt.setLong(2, orderId);
+            }
+            pstmt.executeUpdate();
+        }
+    }
+    
+    // Hierarchical timing wheel of order ids.
+    //
+    // Level 0 has one slot per tick; each higher level has slots WHEEL_SIZE
+    // times wider. An entry is placed on the lowest level whose current
+    // revolution contains its due tick, and is cascaded down one level each
+    // time the wheel reaches its slot, so adding and expiring are O(1)
+    // regardless of how many entries share a due time. Entries past the top
+    // level's revolution wait in an overflow list until it turns over.
+    static class TimingWheel {
+        static class Entry {
+            final long orderId;
+            final long dueMillis;
+            final long dueTick;
+            
+            Entry(long orderId, long dueMillis, long dueTick) {
+                this.orderId = orderId;
+                this.dueMillis = dueMillis;
+                this.dueTick = dueTick;
+            }
+        }
+        
+        private final long tickMillis;
+        private final int wheelSize;
+        private final long[] spans;
+        private final List<List<List<Entry>>> levels = new ArrayList<>();
+        private List<Entry> overflow = new ArrayList<>();
+        private List<Entry> due = new ArrayList<>();
+        private long currentTick;
+        
+        TimingWheel(long tickMillis, int wheelSize, int levelCount, long nowMillis) {
+            this.tickMillis = tickMillis;
+            this.wheelSize = wheelSize;
+            this.spans = new long[levelCount + 1];
+            this.currentTick = nowMillis / tickMillis;
+            
+            long span = 1;
+            for (int level = 0; level <= levelCount; level++) {
+                spans[level] = span;
+                span *= wheelSize;
+            }
+            
+            for (int level = 0; level < levelCount; level++) {
+                List<List<Entry>> slots = new ArrayList<>(wheelSize);
+                for (int i = 0; i < wheelSize; i++) {
+                    slots.add(new ArrayList<>());
+                }
+                levels.add(slots);
+            }
+        }
+        
+        synchronized void add(long orderId, long dueMillis) {
+            place(new Entry(orderId, dueMillis, dueMillis / tickMillis));
+        }
+        
+        private void place(Entry entry) {
+            if (entry.dueTick <= currentTick) {
+                due.add(entry);
+                return;
+            }
+            
+            for (int level = 0; level < levels.size(); level++) {
+                if (entry.dueTick / spans[level + 1] == currentTick / spans[level + 1]) {
+                    int slot = (int) ((entry.dueTick / spans[level]) % wheelSize);
+                    levels.get(level).get(slot).add(entry);
+                    return;
+                }
+            }
+            
+            overflow.add(entry);
+        }
+        
+        // Move the wheel up to nowMillis and return every entry that has become due
+        synchronized List<Entry> advance(long nowMillis) {
+            long targetTick = nowMillis / tickMillis;
+            
+            while (currentTick < targetTick) {
+                currentTick++;
+                
+                if (currentTick % spans[levels.size()] == 0 && !overflow.isEmpty()) {
+                    List<Entry> waiting = overflow;
+                    overflow = new ArrayList<>();
+                    for (Entry entry : waiting) {
+                        place(entry);
+                    }
+                }
+                
+                // Cascade higher levels whose slot boundary has just been reached
+                for (int level = levels.size() - 1; level >= 1; level--) {
+                    if (currentTick % spans[level] == 0) {
+                        List<Entry> slot = levels.get(level).get((int) ((currentTick / spans[level]) % wheelSize));
+                        List<Entry> cascading = new ArrayList<>(slot);
+                        slot.clear();
+                        for (Entry entry : cascading) {
+                            place(entry);
+                        }
+                    }
+                }
+                
+                List<Entry> slot = levels.get(0).get((int) (currentTick % wheelSize));
+                due.addAll(slot);
+                slot.clear();
+            }
+            
+            List<Entry> result = due;
+            due = new ArrayList<>();
+            return result;
+        }
+    }
+}
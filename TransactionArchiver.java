@@ -0,0 +1,224 @@
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+
+// Monthly partitioning for the transactions ledger.
+//
+// The "transactions" table is the hot partition: every posting is inserted
+// there and it only ever holds the current (still open) month plus whatever
+// has not been archived yet. Closed months are moved into one table per
+// period (transactions_YYYYMM) which is never written again once filled.
+// Readers go through the "transaction_ledger" view, which is a UNION ALL of
+// the hot table and every archived period, so history and statements see
+// the complete ledger without knowing where a row lives.
+public class TransactionArchiver {
+    // Name of the view that spans the hot table and all archive periods
+    public static final String LEDGER_VIEW = "transaction_ledger";
+    
+    // Column list shared by the hot table, the archive tables and the view
+    static final String LEDGER_COLUMNS = "id, from_account_id, to_account_id, amount, transaction_type, " +
+                                         "description, transaction_date, from_balance_after, to_balance_after";
+    
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPassword;
+    
+    public TransactionArchiver(String dbUrl, String dbUser, String dbPassword) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword;
+    }
+    
+    // Move every closed month out of the hot table. Returns the number of rows archived.
+    public long archiveClosedPeriods() throws SQLException {
+        return archiveBefore(YearMonth.now());
+    }
+    
+    // Move every month strictly before the given one out of the hot table
+    public long archiveBefore(YearMonth openPeriod) throws SQLException {
+        long archived = 0;
+        
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+            for (YearMonth period : findClosedPeriods(conn, openPeriod)) {
+                archived += archivePeriod(conn, period);
+            }
+            
+            // Archives created before the history indexes existed get them on the next run; the first
+            // ledger table is the hot one, indexed by its migration
+            List<String> tables = ledgerTables(conn, null, null);
+            try (Statement stmt = conn.createStatement()) {
+                for (String table : tables.subList(1, tables.size())) {
+                    createHistoryIndexes(stmt, table);
+                }
+            }
+            
+            rebuildLedgerView(conn);
+        }
+        
+        return archived;
+    }
+    
+    // Distinct months still present in the hot table that are older than the open period
+    private List<YearMonth> findClosedPeriods(Connection conn, YearMonth openPeriod) throws SQLException {
+        List<YearMonth> periods = new ArrayList<>();
+        String sql = "SELECT DISTINCT YEAR(transaction_date) AS y, MONTH(transaction_date) AS m " +
+                     "FROM transactions WHERE transaction_date < ? ORDER BY y, m";
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setTimestamp(1, Timestamp.valueOf(openPeriod.atDay(1).atStartOfDay()));
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    periods.add(YearMonth.of(rs.getInt("y"), rs.getInt("m")));
+                }
+            }
+        }
+        
+        return periods;
+    }
+    
+    // Copy one month into its archive table and delete it from the hot table atomically
+    private long archivePeriod(Connection conn, YearMonth period) throws SQLException {
+        String tableName = tableName(period);
+        
+        // DDL commits implicitly in H2, so create the target before opening the transaction
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + tableName + " (" +
+                               "id INT PRIMARY KEY, " +
+                               "from_account_id INT, " +
+                               "to_account_id INT, " +
+                               "amount DECIMAL(15,2) NOT NULL, " +
+                               "transaction_type VARCHAR(20) NOT NULL, " +
+                               "description VARCHAR(200), " +
+                               "transaction_date TIMESTAMP NOT NULL, " +
+                               "from_balance_after DECIMAL(15,2), " +
+                               "to_balance_after DECIMAL(15,2))");
+            createHistoryIndexes(stmt, tableName);
+            
+            // Searched like the hot table; rebuilt over any rows an interrupted earlier run copied. The
+            // functions are registered here too, as archiving can run before the hot table's index exists
+            stmt.execute(HistorySearch.CREATE_TEXT_SEARCH_ALIAS);
+            stmt.execute(HistorySearch.INIT_TEXT_SEARCH);
+            stmt.execute(HistorySearch.dropTextIndex(tableName));
+            stmt.execute(HistorySearch.createTextIndex(tableName));
+        }
+        
+        Timestamp start = Timestamp.valueOf(period.atDay(1).atStartOfDay());
+        Timestamp end = Timestamp.valueOf(period.plusMonths(1).atDay(1).atStartOfDay());
+        
+        conn.setAutoCommit(false);
+        
+        try {
+            // Rows already copied by an interrupted earlier run are skipped by id
+            String copySql = "INSERT INTO " + tableName + " (" + LEDGER_COLUMNS + ") " +
+                             "SELECT " + LEDGER_COLUMNS + " FROM transactions t " +
+                             "WHERE t.transaction_date >= ? AND t.transaction_date < ? " +
+                             "AND NOT EXISTS (SELECT 1 FROM " + tableName + " a WHERE a.id = t.id)";
+            try (PreparedStatement pstmt = conn.prepareStatement(copySql)) {
+                pstmt.setTimestamp(1, start);
+                pstmt.setTimestamp(2, end);
+                pstmt.executeUpdate();
+            }
+            
+            String deleteSql = "DELETE FROM transactions WHERE transaction_date >= ? AND transaction_date < ?";
+            long moved;
+            try (PreparedStatement pstmt = conn.prepareStatement(deleteSql)) {
+                pstmt.setTimestamp(1, start);
+                pstmt.setTimestamp(2, end);
+                moved = pstmt.executeUpdate();
+            }
+            
+            String catalogSql = "MERGE INTO transaction_archives (period, table_name, row_count) KEY (period) " +
+                                "VALUES (?, ?, (SELECT COUNT(*) FROM " + tableName + "))";
+            try (PreparedStatement pstmt = conn.prepareStatement(catalogSql)) {
+                pstmt.setString(1, periodKey(period));
+                pstmt.setString(2, tableName);
+                pstmt.executeUpdate();
+            }
+            
+            conn.commit();
+            return moved;
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+    
+    // The account indexes a history search reads in order, newest first, like the hot table's
+    private static void createHistoryIndexes(Statement stmt, String tableName) throws SQLException {
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_" + tableName + "_from_date ON " + tableName +
+                           " (from_account_id DESC, transaction_date DESC, id DESC)");
+        stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_" + tableName + "_to_date ON " + tableName +
+                           " (to_account_id DESC, transaction_date DESC, id DESC)");
+    }
+    
+    // The hot table and every archive table whose month overlaps from..to, newest first; a null bound is open
+    static List<String> ledgerTables(Connection conn, LocalDate from, LocalDate to) throws SQLException {
+        List<String> tables = new ArrayList<>();
+        tables.add("transactions");
+        
+        String sql = "SELECT table_name FROM transaction_archives WHERE period >= ? AND period <= ? ORDER BY period DESC";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, from == null ? "000000" : periodKey(YearMonth.from(from)));
+            pstmt.setString(2, to == null ? "999999" : periodKey(YearMonth.from(to)));
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    tables.add(rs.getString("table_name"));
+                }
+            }
+        }
+        return tables;
+    }
+    
+    // Recreate the ledger view over the hot table and every catalogued period
+    private void rebuildLedgerView(Connection conn) throws SQLException {
+        StringBuilder viewSql = new StringBuilder();
+        viewSql.append("CREATE OR REPLACE VIEW ").append(LEDGER_VIEW).append(" AS ");
+        viewSql.append("SELECT ").append(LEDGER_COLUMNS).append(" FROM transactions");
+        
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT table_name FROM transaction_archives ORDER BY period")) {
+            while (rs.next()) {
+                viewSql.append(" UNION ALL SELECT ").append(LEDGER_COLUMNS).append(" FROM ").append(rs.getString("table_name"));
+            }
+        }
+        
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(viewSql.toString());
+        }
+    }
+    
+    // Archive table name for a period, e.g. transactions_202601
+    static String tableName(YearMonth period) {
+        return "transactions_" + periodKey(period);
+    }
+    
+    // Catalog key for a period, e.g. 202601
+    static String periodKey(YearMonth period) {
+        return String.format("%04d%02d", period.getYear(), period.getMonthValue());
+    }
+    
+    // Run the archiver once from the command line
+    public static void main(String[] args) throws SQLException {
+        YearMonth openPeriod = args.length > 0 ? YearMonth.parse(args[0]) : YearMonth.from(LocalDate.now());
+        TransactionArchiver archiver = new TransactionArchiver(OnlineBankingSystem.DB_URL,
+                                                               OnlineBankingSystem.DB_USER,
+                                                               OnlineBankingSystem.DB_PASSWORD);
+        
+        try (Connection conn = DriverManager.getConnection(OnlineBankingSystem.DB_URL,
+                                                           OnlineBankingSystem.DB_USER,
+                                                           OnlineBankingSystem.DB_PASSWORD)) {
+            // The archive catalog and ledger view come from V3; background migrations are left to the
+            // application's next start
+            new SchemaMigrator().migrate(conn);
+        }
+        
+        long moved = archiver.archiveBefore(openPeriod);
+        System.out.println("Archived " + moved + " transactions before " + openPeriod);
+    }
+}
@@ -0,0 +1,150 @@
+import java.sql.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Username and email availability for the registration form.
+//
+// Keeps a BloomFilter of the usernames and one of the emails in the users
+// table, loaded once at startup and extended by every registration this
+// process commits. A value the filter has never seen is free, and is
+// reported so without touching the database; only possible hits (values
+// that are taken, plus the configured share of false positives) are looked
+// up by their unique index. Until loading has finished every check goes to
+// the database.
+//
+// Users added by other processes, such as bulk onboarding, only reach the
+// filter at the next start, so a value reported free may still be taken.
+// The UNIQUE constraints stay authoritative and registerUser still reports
+// such a clash. Memory is fixed by the expected user count: at a 1%
+// false-positive rate each filter takes about 9.6 bits per user, 120 MB for
+// 100 million users.
+public class UserAvailability {
+    // A unique field of the registration form
+    public enum Field {
+        USERNAME("SELECT 1 FROM users WHERE username = ?"),
+        EMAIL("SELECT 1 FROM users WHERE email = ?");
+        
+        final String sql;
+        
+        Field(String sql) {
+            this.sql = sql;
+        }
+    }
+    
+    private static final int FETCH_SIZE = 10_000;
+    
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPassword;
+    private final BloomFilter usernames;
+    private final BloomFilter emails;
+    private volatile boolean loaded;
+    
+    // Checks answered from the filters alone, and database lookups that found the value free
+    private final LongAdder filterAnswers = new LongAdder();
+    private final LongAdder databaseLookups = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+    
+    public UserAvailability(String dbUrl, String dbUser, String dbPassword, long expectedUsers, double falsePositiveRate) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword;
+        this.usernames = new BloomFilter(expectedUsers, falsePositiveRate);
+        this.emails = new BloomFilter(expectedUsers, falsePositiveRate);
+    }
+    
+    // Add every stored username and email; checks use the filters from then on
+    public void load(Connection conn) throws SQLException {
+        long start = System.nanoTime();
+        
+        try (Statement stmt = conn.createStatement()) {
+            stmt.setFetchSize(FETCH_SIZE);
+            
+            try (ResultSet rs = stmt.executeQuery("SELECT username, email FROM users")) {
+                while (rs.next()) {
+                    usernames.add(rs.getString(1));
+                    emails.add(rs.getString(2));
+                }
+            }
+        }
+        
+        loaded = true;
+        System.out.println("Loaded " + usernames.getEntryCount() + " users into the availability filters in " +
+                           (System.nanoTime() - start) / 1_000_000 + " ms, false-positive rate " +
+                           String.format("%.4f", usernames.getFalsePositiveRate()));
+    }
+    
+    // Record a committed registration
+    public void add(String username, String email) {
+        usernames.add(username);
+        emails.add(email);
+    }
+    
+    // Fast path: false if the value is certainly free, without touching the database
+    public boolean mightBeTaken(Field field, String value) {
+        if (!loaded) {
+            return true;
+        }
+        
+        boolean possible = (field == Field.USERNAME ? usernames : emails).mightContain(value);
+        if (!possible) {
+            filterAnswers.increment();
+        }
+        return possible;
+    }
+    
+    // Whether the value is stored; a connection is only opened for possible hits
+    public boolean isTaken(Field field, String value) throws SQLException {
+        if (!mightBeTaken(field, value)) {
+            return false;
+        }
+        
+        try (Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword)) {
+            return lookup(conn, field, value);
+        }
+    }
+    
+    // Whether the value is stored, asking the caller's connection about possible hits
+    public boolean isTaken(Connection conn, Field field, String value) throws SQLException {
+        return mightBeTaken(field, value) && lookup(conn, field, value);
+    }
+    
+    private boolean lookup(Connection conn, Field field, String value) throws SQLException {
+        databaseLookups.increment();
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(field.sql)) {
+            pstmt.setString(1, value);
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return true;
+                }
+            }
+        }
+        
+        if (loaded) {
+            falsePositives.increment();
+        }
+        return false;
+    }
+    
+    public boolean isLoaded() {
+        return loaded;
+    }
+    
+    public long getFilterAnswers() {
+        return filterAnswers.sum();
+    }
+    
+    public long getDatabaseLookups() {
+        return databaseLookups.sum();
+    }
+    
+    public long getFalsePositives() {
+        return falsePositives.sum();
+    }
+    
+    // Bytes held by both filters
+    public long getMemoryBytes() {
+        return (usernames.getBitCount() + emails.getBitCount()) / 8;
+    }
+}
@@ -0,0 +1,324 @@
+import java.sql.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// In-memory velocity limits checked on the posting path.
+//
+// Three limits are enforced without touching the database:
+//  - per account: total withdrawals in the last 24 hours
+//  - per user: number of transfers in the last minute
+//  - per user: amount moved out (transfers and withdrawals) in the last hour
+//
+// Each limit is a bucketed sliding window whose buckets pack an epoch tag and
+// a value into one long, so updates are a single CAS and checks never lock.
+// A request is admitted by adding it to its windows first and backing it out
+// again if any window is now over its limit, which keeps concurrent requests
+// from slipping past a check together. Windows are rebuilt from the ledger at
+// startup and entries that have been idle for longer than the longest window
+// are evicted by a background sweeper. A request marks its entry used in the
+// same map operation that looks it up, and the sweeper re-checks an entry
+// under that key's lock before removing it, so a request never counts into
+// an entry that has just been evicted.
+public class VelocityLimiter {
+    // Which limit rejected a request
+    public enum Limit {
+        DAILY_WITHDRAWAL_AMOUNT("Daily withdrawal limit reached"),
+        TRANSFERS_PER_MINUTE("Too many transfers in the last minute"),
+        HOURLY_OUTGOING_AMOUNT("Hourly transfer limit reached");
+        
+        private final String message;
+        
+        Limit(String message) {
+            this.message = message;
+        }
+        
+        public String getMessage() {
+            return message;
+        }
+    }
+    
+    // Thrown when a posting would exceed one of the velocity limits
+    public static class LimitExceededException extends Exception {
+        private static final long serialVersionUID = 1L;
+        
+        private final Limit limit;
+        
+        public LimitExceededException(Limit limit) {
+            super(limit.getMessage());
+            this.limit = limit;
+        }
+        
+        public Limit getLimit() {
+            return limit;
+        }
+    }
+    
+    private static final long MINUTE_MS = 60_000L;
+    private static final long HOUR_MS = 60 * MINUTE_MS;
+    private static final long DAY_MS = 24 * HOUR_MS;
+    
+    private final long dailyWithdrawalCapCents;
+    private final long maxTransfersPerMinute;
+    private final long maxOutgoingPerHourCents;
+    
+    private final ConcurrentHashMap<String, AccountWindows> accounts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, UserWindows> users = new ConcurrentHashMap<>();
+    
+    private ScheduledExecutorService sweeper;
+    
+    public VelocityLimiter(double dailyWithdrawalCap, long maxTransfersPerMinute, double maxOutgoingPerHour) {
+        this.dailyWithdrawalCapCents = toCents(dailyWithdrawalCap);
+        this.maxTransfersPerMinute = maxTransfersPerMinute;
+        this.maxOutgoingPerHourCents = toCents(maxOutgoingPerHour);
+    }
+    
+    // Admit a withdrawal or throw; returns the timestamp to pass to release() if the posting fails
+    public long acquireWithdrawal(int userId, String accountNumber, double amount) throws LimitExceededException {
+        long now = System.currentTimeMillis();
+        long cents = toCents(amount);
+        AccountWindows account = accountWindows(accountNumber, now);
+        UserWindows user = userWindows(userId, now);
+        
+        if (account.withdrawals.add(now, cents) > dailyWithdrawalCapCents) {
+            account.withdrawals.add(now, -cents);
+            throw new LimitExceededException(Limit.DAILY_WITHDRAWAL_AMOUNT);
+        }
+        
+        if (user.outgoing.add(now, cents) > maxOutgoingPerHourCents) {
+            user.outgoing.add(now, -cents);
+            account.withdrawals.add(now, -cents);
+            throw new LimitExceededException(Limit.HOURLY_OUTGOING_AMOUNT);
+        }
+        
+        return now;
+    }
+    
+    // Admit a transfer or throw; returns the timestamp to pass to release() if the posting fails
+    public long acquireTransfer(int userId, double amount) throws LimitExceededException {
+        long now = System.currentTimeMillis();
+        long cents = toCents(amount);
+        UserWindows user = userWindows(userId, now);
+        
+        if (user.transfers.add(now, 1) > maxTransfersPerMinute) {
+            user.transfers.add(now, -1);
+            throw new LimitExceededException(Limit.TRANSFERS_PER_MINUTE);
+        }
+        
+        if (user.outgoing.add(now, cents) > maxOutgoingPerHourCents) {
+            user.outgoing.add(now, -cents);
+            user.transfers.add(now, -1);
+            throw new LimitExceededException(Limit.HOURLY_OUTGOING_AMOUNT);
+        }
+        
+        return now;
+    }
+    
+    // Give back a withdrawal admitted at acquiredAt whose posting was rolled back
+    public void releaseWithdrawal(int userId, String accountNumber, double amount, long acquiredAt) {
+        long cents = toCents(amount);
+        AccountWindows account = accounts.get(accountNumber);
+        UserWindows user = users.get(userId);
+        
+        if (account != null) {
+            account.withdrawals.add(acquiredAt, -cents);
+        }
+        if (user != null) {
+            user.outgoing.add(acquiredAt, -cents);
+        }
+    }
+    
+    // Give back a transfer admitted at acquiredAt whose posting was rolled back
+    public void releaseTransfer(int userId, double amount, long acquiredAt) {
+        UserWindows user = users.get(userId);
+        
+        if (user != null) {
+            user.transfers.add(acquiredAt, -1);
+            user.outgoing.add(acquiredAt, -toCents(amount));
+        }
+    }
+    
+    // Replay the last 24 hours of limited postings so limits survive a restart. Only the transfers customers
+    // entered count, as at runtime: the application sends an idempotency key with each of them, while standing
+    // orders and hold captures post without one. The account is looked up per posting rather than joined: H2
+    // plans the join from a scan of every account with one ledger probe each, minutes on a large database,
+    // where this reads the day's postings through the date index.
+    public void rebuild(Connection conn) throws SQLException {
+        accounts.clear();
+        users.clear();
+        
+        String sql = "SELECT t.transaction_type, t.amount, t.transaction_date, " +
+                     "(SELECT account_number FROM accounts WHERE id = t.from_account_id) AS account_number, " +
+                     "(SELECT user_id FROM accounts WHERE id = t.from_account_id) AS user_id " +
+                     "FROM " + TransactionArchiver.LEDGER_VIEW + " t " +
+                     "WHERE t.from_account_id IS NOT NULL AND t.transaction_date >= ? " +
+                     "AND (t.transaction_type = 'WITHDRAWAL' OR " +
+                     "(t.transaction_type = 'TRANSFER' AND t.id IN (SELECT transaction_id FROM idempotency_keys " +
+                     "WHERE operation = 'TRANSFER' AND created_at >= ?)))";
+        long now = System.currentTimeMillis();
+        
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setTimestamp(1, new Timestamp(now - DAY_MS));
+            pstmt.setTimestamp(2, new Timestamp(now - DAY_MS));
+            
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    long at = rs.getTimestamp("transaction_date").getTime();
+                    long cents = rs.getBigDecimal("amount").movePointRight(2).longValue();
+                    UserWindows user = userWindows(rs.getInt("user_id"), at);
+                    
+                    if ("WITHDRAWAL".equals(rs.getString("transaction_type"))) {
+                        accountWindows(rs.getString("account_number"), at).withdrawals.add(at, cents);
+                    } else {
+                        user.transfers.add(at, 1);
+                    }
+                    user.outgoing.add(at, cents);
+                }
+            }
+        }
+    }
+    
+    // Start evicting windows that have seen no activity for a full day
+    public void startSweeper() {
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "velocity-limit-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::evictIdle, 1, 1, TimeUnit.MINUTES);
+    }
+    
+    public void stopSweeper() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+    
+    // Number of accounts and users currently tracked
+    public int getTrackedEntries() {
+        return accounts.size() + users.size();
+    }
+    
+    // Drop every entry whose longest window no longer covers its last activity, re-checked under the key's
+    // lock so an entry a request has just looked up stays
+    void evictIdle() {
+        long cutoff = System.currentTimeMillis() - DAY_MS;
+        for (String accountNumber : accounts.keySet()) {
+            accounts.computeIfPresent(accountNumber, (k, windows) -> windows.lastUsed < cutoff ? null : windows);
+        }
+        for (Integer userId : users.keySet()) {
+            users.computeIfPresent(userId, (k, windows) -> windows.lastUsed < cutoff ? null : windows);
+        }
+    }
+    
+    private AccountWindows accountWindows(String accountNumber, long now) {
+        return accounts.compute(accountNumber, (k, windows) -> {
+            AccountWindows current = windows != null ? windows : new AccountWindows();
+            current.touch(now);
+            return current;
+        });
+    }
+    
+    private UserWindows userWindows(int userId, long now) {
+        return users.compute(userId, (k, windows) -> {
+            UserWindows current = windows != null ? windows : new UserWindows();
+            current.touch(now);
+            return current;
+        });
+    }
+    
+    private static long toCents(double amount) {
+        return Math.round(amount * 100);
+    }
+    
+    // Windows kept per account
+    private static class AccountWindows {
+        final SlidingWindow withdrawals = new SlidingWindow(15 * MINUTE_MS, 96);
+        volatile long lastUsed;
+        
+        void touch(long now) {
+            if (now > lastUsed) {
+                lastUsed = now;
+            }
+        }
+    }
+    
+    // Windows kept per user
+    private static class UserWindows {
+        final SlidingWindow transfers = new SlidingWindow(1000L, 60);
+        final SlidingWindow outgoing = new SlidingWindow(MINUTE_MS, 60);
+        volatile long lastUsed;
+        
+        void touch(long now) {
+            if (now > lastUsed) {
+                lastUsed = now;
+            }
+        }
+    }
+    
+    // Lock-free sliding window sum over bucketCount buckets of bucketMillis each.
+    // Each slot holds (epoch tag << VALUE_BITS) | value so it can be reset and added to in one CAS.
+    static class SlidingWindow {
+        private static final int VALUE_BITS = 40;
+        private static final long VALUE_MASK = (1L << VALUE_BITS) - 1;
+        private static final long TAG_MASK = (1L << (64 - VALUE_BITS)) - 1;
+        
+        private final long bucketMillis;
+        private final int bucketCount;
+        private final AtomicLongArray slots;
+        
+        SlidingWindow(long bucketMillis, int bucketCount) {
+            this.bucketMillis = bucketMillis;
+            this.bucketCount = bucketCount;
+            this.slots = new AtomicLongArray(bucketCount);
+        }
+        
+        // Add delta to the bucket for time at (if it is still inside the window) and return the window total at that time
+        long add(long at, long delta) {
+            long epoch = at / bucketMillis;
+            long tag = epoch & TAG_MASK;
+            int index = (int) (epoch % bucketCount);
+            
+            while (true) {
+                long slot = slots.get(index);
+                long age = (tag - (slot >>> VALUE_BITS)) & TAG_MASK;
+                long base;
+                
+                if (slot != 0 && age == 0) {
+                    base = slot & VALUE_MASK;
+                } else if (slot == 0 || age <= (TAG_MASK >>> 1)) {
+                    // Slot is unused or holds an older epoch that shares this index: it has expired
+                    base = 0;
+                } else {
+                    // Slot already holds a newer epoch, so time at has fallen out of the window
+                    break;
+                }
+                
+                long value = Math.max(0, Math.min(VALUE_MASK, base + delta));
+                if (slots.compareAndSet(index, slot, (tag << VALUE_BITS) | value)) {
+                    break;
+                }
+            }
+            
+            return sum(epoch);
+        }
+        
+        // Total of all buckets that fall inside the window ending at epoch
+        long sum(long epoch) {
+            long tag = epoch & TAG_MASK;
+            long total = 0;
+            
+            for (int i = 0; i < bucketCount; i++) {
+                long slot = slots.get(i);
+                long age = (tag - (slot >>> VALUE_BITS)) & TAG_MASK;
+                if (slot != 0 && age < bucketCount) {
+                    total += slot & VALUE_MASK;
+                }
+            }
+            
+            return total;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+#!/bin/sh
+# Build the application and an AppCDS archive for faster startup (JDK 13+).
+#
+# Usage: ./build-cds.sh [path/to/h2.jar]
+#
+# 1. Compiles the sources into ./classes
+# 2. Starts the app once with -Dbanking.exitAfterStartup=true, which exits as
+#    soon as the login screen is shown and the database is initialised, and
+#    dumps every class loaded up to that point (app, Swing and H2) to app.jsa
+# 3. Prints the command to start the app with the archive
+set -e
+
+H2_JAR=${1:-h2-2.1.214.jar}
+CP="classes:$H2_JAR"
+
+mkdir -p classes
+cp Calculator.java classes/OnlineBankingSystem.java
+javac -cp "$H2_JAR" -d classes classes/OnlineBankingSystem.java $(ls *.java | grep -v '^Calculator.java$')
+rm classes/OnlineBankingSystem.java
+
+# Training run; needs a display (use xvfb-run on headless build machines)
+java -XX:ArchiveClassesAtExit=app.jsa -Dbanking.exitAfterStartup=true -cp "$CP" OnlineBankingSystem
+
+echo "Archive written to app.jsa. Start the app with:"
+echo "  java -XX:SharedArchiveFile=app.jsa -cp \"$CP\" OnlineBankingSystem"